@@ -0,0 +1,5 @@
+#!/usr/bin/env bash
+. `dirname "${BASH_SOURCE[0]}"`/setup.sh
+
+java -Xmx${memory_requirement} -cp ${DLVA_JAR} -Dlogback.configurationFile=${SLF4J_CONFIG} \
+    org.campagnelab.dl.somatic.tools.IndexRecords ${other_parameters}
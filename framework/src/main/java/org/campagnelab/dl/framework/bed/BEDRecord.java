@@ -32,6 +32,14 @@ public class BEDRecord {
     }
 
 
+    public int getStartPosition() {
+        return startPosition;
+    }
+
+    public int getEndPosition() {
+        return endPosition;
+    }
+
     /**
      * Determine if the record overlaps with a single base. This method evaluates to position>=start && position<=end;
      *
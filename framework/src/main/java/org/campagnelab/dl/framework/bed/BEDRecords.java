@@ -70,6 +70,24 @@ public class BEDRecords {
         }
     }
 
+    /**
+     * Return the chromosomes that have at least one record, in lexicographic order.
+     */
+    public Set<String> chromosomes() {
+        return store.keySet();
+    }
+
+    /**
+     * Return the records of a chromosome, or an empty list when the chromosome has no records.
+     *
+     * @param chromosome name of the chromosome.
+     * @return records, sorted by start position after {@link #sort()} has been called.
+     */
+    public List<BEDRecord> records(String chromosome) {
+        ObjectArrayList<BEDRecord> recordList = store.get(chromosome);
+        return recordList == null ? Collections.emptyList() : recordList;
+    }
+
     public int numRecords() {
         Optional<Integer> result = this.store.values().stream().map(bedRecords -> bedRecords.size()).reduce((size1, size2) -> size1 + size2);
         return result.get();
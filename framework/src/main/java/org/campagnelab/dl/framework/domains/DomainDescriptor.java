@@ -166,6 +166,18 @@ public abstract class DomainDescriptor<RecordType> {
      */
     public abstract long getNumRecords(String[] recordFiles);
 
+    /**
+     * Return the number of records across the record files, without iterating over the records. The count is read
+     * from the record file properties when they can be trusted, or obtained by scanning chunk headers otherwise.
+     * Implementations of getNumRecords should try this method first.
+     *
+     * @param recordFiles record files (i.e., .sbi or .ssi files).
+     * @return number of records, or RecordCountHelper.UNKNOWN if the count requires decoding records.
+     */
+    protected long getNumRecordsFast(String[] recordFiles) {
+        return RecordCountHelper.countRecords(recordFiles);
+    }
+
     // The following provide default implementations suitable when training with only Loss score.
     public PerformanceMetricDescriptor<RecordType> performanceDescritor() {
         return new PerformanceMetricDescriptor<RecordType>(this) {
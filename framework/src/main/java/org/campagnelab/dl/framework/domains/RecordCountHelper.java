@@ -0,0 +1,197 @@
+package org.campagnelab.dl.framework.domains;
+
+import com.google.protobuf.CodedInputStream;
+import com.google.protobuf.WireFormat;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.*;
+import java.util.Properties;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * Counts the records of chunked record files (.sbi, .ssi) without creating record iterators.
+ * The count is read from the properties file written next to the data file (.sbip, .ssip) when it is present
+ * and at least as recent as the data file. Otherwise, the helper walks the chunk headers of the data file and counts
+ * the record entries of each chunk collection. Record bytes are skipped, never parsed into protobuf messages.
+ */
+public class RecordCountHelper {
+    static private Logger LOG = LoggerFactory.getLogger(RecordCountHelper.class);
+
+    /**
+     * Value returned when the number of records cannot be determined without decoding records.
+     */
+    public static final long UNKNOWN = -1;
+
+    // Goby chunk layout: DELIMITER_LENGTH bytes of delimiter, followed by a 4 bytes chunk size and the chunk payload.
+    // A chunk of size zero marks the end of the file.
+    private static final int DELIMITER_LENGTH = 8;
+    private static final byte DELIMITER_CONTENT = (byte) 0xFF;
+    // field number of the repeated records field in the chunk collection messages:
+    private static final int RECORDS_FIELD_NUMBER = 1;
+
+    private static final String[] DATA_EXTENSIONS = {".sbi", ".ssi"};
+
+    /**
+     * Return the number of records across the record files, or UNKNOWN if any of the files could not be counted
+     * without decoding records.
+     *
+     * @param recordFiles names of the record files, with or without extension.
+     * @return number of records, or UNKNOWN.
+     */
+    public static long countRecords(String[] recordFiles) {
+        long count = 0;
+        for (String recordFile : recordFiles) {
+            long n = countRecords(recordFile);
+            if (n == UNKNOWN) {
+                return UNKNOWN;
+            }
+            count += n;
+        }
+        return count;
+    }
+
+    /**
+     * Return the number of records in one record file, or UNKNOWN.
+     *
+     * @param recordFile name of the record file, with or without extension.
+     * @return number of records, or UNKNOWN.
+     */
+    public static long countRecords(String recordFile) {
+        File dataFile = dataFile(recordFile);
+        if (dataFile == null) {
+            return UNKNOWN;
+        }
+        long n = countFromProperties(dataFile);
+        if (n != UNKNOWN) {
+            return n;
+        }
+        n = countFromChunks(dataFile);
+        if (n == UNKNOWN) {
+            LOG.warn("Unable to count records in {} from properties or chunk headers.", dataFile);
+        }
+        return n;
+    }
+
+    /**
+     * Read numRecords from the properties file of a data file. The value is trusted only when the properties
+     * file is not older than the data file.
+     *
+     * @param dataFile data file (i.e., .sbi, .ssi).
+     * @return number of records, or UNKNOWN.
+     */
+    public static long countFromProperties(File dataFile) {
+        File propertiesFile = new File(dataFile.getPath() + "p");
+        if (!propertiesFile.exists() || propertiesFile.lastModified() < dataFile.lastModified()) {
+            return UNKNOWN;
+        }
+        Properties properties = new Properties();
+        try (Reader reader = new FileReader(propertiesFile)) {
+            properties.load(reader);
+        } catch (IOException e) {
+            return UNKNOWN;
+        }
+        String value = properties.getProperty("numRecords");
+        if (value == null) {
+            return UNKNOWN;
+        }
+        try {
+            long n = Long.parseLong(value.trim());
+            return n >= 0 ? n : UNKNOWN;
+        } catch (NumberFormatException e) {
+            return UNKNOWN;
+        }
+    }
+
+    /**
+     * Count records by walking the chunk headers of a data file. Each chunk payload is decompressed as a stream,
+     * and only the tags of the collection message are read: record entries are skipped without being decoded.
+     *
+     * @param dataFile data file (i.e., .sbi, .ssi).
+     * @return number of records, or UNKNOWN when the file layout or chunk codec is not recognized.
+     */
+    public static long countFromChunks(File dataFile) {
+        long count = 0;
+        try (DataInputStream input = new DataInputStream(new BufferedInputStream(new FileInputStream(dataFile)))) {
+            byte[] delimiter = new byte[DELIMITER_LENGTH];
+            while (true) {
+                try {
+                    input.readFully(delimiter);
+                } catch (EOFException e) {
+                    // no end marker, but the file ends on a chunk boundary.
+                    return count;
+                }
+                if (!isDelimiter(delimiter)) {
+                    return UNKNOWN;
+                }
+                int chunkSize = input.readInt();
+                if (chunkSize == 0) {
+                    return count;
+                }
+                if (chunkSize < 0) {
+                    return UNKNOWN;
+                }
+                byte[] payload = new byte[chunkSize];
+                input.readFully(payload);
+                long n = countChunkEntries(payload);
+                if (n == UNKNOWN) {
+                    return UNKNOWN;
+                }
+                count += n;
+            }
+        } catch (IOException e) {
+            return UNKNOWN;
+        }
+    }
+
+    private static boolean isDelimiter(byte[] delimiter) {
+        // the first delimiter byte may hold the chunk codec registration code:
+        for (int i = 1; i < DELIMITER_LENGTH; i++) {
+            if (delimiter[i] != DELIMITER_CONTENT) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static long countChunkEntries(byte[] payload) throws IOException {
+        if (payload.length < 2 || payload[0] != (byte) 0x1f || payload[1] != (byte) 0x8b) {
+            // only gzip chunks can be streamed without the goby codec.
+            return UNKNOWN;
+        }
+        try (InputStream uncompressed = new GZIPInputStream(new ByteArrayInputStream(payload))) {
+            CodedInputStream stream = CodedInputStream.newInstance(uncompressed);
+            stream.setSizeLimit(Integer.MAX_VALUE);
+            long n = 0;
+            int tag;
+            while ((tag = stream.readTag()) != 0) {
+                if (WireFormat.getTagFieldNumber(tag) == RECORDS_FIELD_NUMBER
+                        && WireFormat.getTagWireType(tag) == WireFormat.WIRETYPE_LENGTH_DELIMITED) {
+                    n++;
+                }
+                if (!stream.skipField(tag)) {
+                    break;
+                }
+            }
+            return n;
+        }
+    }
+
+    private static File dataFile(String recordFile) {
+        for (String extension : DATA_EXTENSIONS) {
+            if (recordFile.endsWith(extension)) {
+                return new File(recordFile);
+            }
+            if (recordFile.endsWith(extension + "p")) {
+                return new File(recordFile.substring(0, recordFile.length() - 1));
+            }
+        }
+        for (String extension : DATA_EXTENSIONS) {
+            File file = new File(recordFile + extension);
+            if (file.exists()) {
+                return file;
+            }
+        }
+        return null;
+    }
+}
@@ -0,0 +1,230 @@
+package org.campagnelab.dl.framework.iterators;
+
+import it.unimi.dsi.util.XorShift1024StarRandom;
+import org.campagnelab.dl.framework.iterators.cache.MappedFeaturesCache;
+import org.nd4j.linalg.api.ndarray.INDArray;
+import org.nd4j.linalg.dataset.api.MultiDataSet;
+import org.nd4j.linalg.dataset.api.MultiDataSetPreProcessor;
+import org.nd4j.linalg.dataset.api.iterator.MultiDataSetIterator;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.NoSuchElementException;
+
+/**
+ * Draws minibatches from a .cf cache, picking each example with a probability proportional to its weight. Weights are
+ * typically the loss of each example in the last forward pass, so that training focuses on the examples the model
+ * still gets wrong. Call {@link #updateWeights(INDArray)} with the loss of each example of the minibatch last
+ * returned. All examples start with a weight of 1.
+ * <p>
+ * Examples are drawn with replacement. A fraction of the examples of each minibatch is drawn uniformly, so that
+ * examples whose loss became very small are still revisited. An epoch returns as many examples as the dataset has.
+ * Weights are kept in a Fenwick tree, so drawing an example and updating its weight are O(log n). Only the weights are
+ * kept in memory: the examples of each minibatch are read from the memory-mapped cache (see
+ * {@link MappedFeaturesCache}), and are returned in the order of their index in the cache.
+ */
+public class ImportanceSamplingIterator implements MultiDataSetIterator {
+    private final MappedFeaturesCache cache;
+    private final int numExamples;
+    private final int miniBatchSize;
+    private final double uniformFraction;
+    private final XorShift1024StarRandom random;
+
+    private final float[] weights;
+    /**
+     * Fenwick tree of the weights, indexed by example index + 1.
+     */
+    private final double[] fenwick;
+    private double totalWeight;
+    private float maxWeight = 1;
+    private int[] lastIndices = new int[0];
+    private int numReturned;
+    private MultiDataSetPreProcessor preProcessor;
+
+    /**
+     * Sample from the examples of a .cf cache.
+     *
+     * @param cacheBasename   basename of the .cf and .cfp files.
+     * @param miniBatchSize   number of examples per minibatch returned.
+     * @param uniformFraction fraction of the examples of a minibatch drawn uniformly rather than by weight.
+     * @param seed            random seed.
+     */
+    public ImportanceSamplingIterator(String cacheBasename, int miniBatchSize, double uniformFraction, long seed)
+            throws IOException {
+        this(new MappedFeaturesCache(cacheBasename), miniBatchSize, uniformFraction, seed);
+    }
+
+    /**
+     * Sample from the examples of a cache.
+     *
+     * @param cache           the dataset.
+     * @param miniBatchSize   number of examples per minibatch returned.
+     * @param uniformFraction fraction of the examples of a minibatch drawn uniformly rather than by weight.
+     * @param seed            random seed.
+     */
+    public ImportanceSamplingIterator(MappedFeaturesCache cache, int miniBatchSize, double uniformFraction, long seed) {
+        if (cache.numExamples() == 0) {
+            throw new IllegalArgumentException("The dataset must have at least one example.");
+        }
+        this.cache = cache;
+        this.numExamples = cache.numExamples();
+        this.miniBatchSize = miniBatchSize;
+        this.uniformFraction = uniformFraction;
+        this.random = new XorShift1024StarRandom(seed);
+        weights = new float[numExamples];
+        fenwick = new double[numExamples + 1];
+        for (int i = 0; i < numExamples; i++) {
+            setWeight(i, maxWeight);
+        }
+    }
+
+    private void setWeight(int example, float weight) {
+        double delta = weight - weights[example];
+        weights[example] = weight;
+        totalWeight += delta;
+        for (int i = example + 1; i < fenwick.length; i += i & -i) {
+            fenwick[i] += delta;
+        }
+    }
+
+    /**
+     * Return the example whose cumulative weight range contains target.
+     */
+    private int find(double target) {
+        int position = 0;
+        for (int step = Integer.highestOneBit(numExamples); step > 0; step >>= 1) {
+            int next = position + step;
+            if (next <= numExamples && fenwick[next] <= target) {
+                position = next;
+                target -= fenwick[next];
+            }
+        }
+        return Math.min(position, numExamples - 1);
+    }
+
+    private int draw() {
+        if (!(totalWeight > 0) || random.nextDouble() < uniformFraction) {
+            return random.nextInt(numExamples);
+        }
+        return find(random.nextDouble() * totalWeight);
+    }
+
+    /**
+     * Set the weights of the examples of the minibatch last returned by next().
+     *
+     * @param lossPerExample one non-negative value per example, in minibatch order, such as the result of
+     *                       ComputationGraph.scoreExamples.
+     */
+    public void updateWeights(INDArray lossPerExample) {
+        for (int i = 0; i < lastIndices.length; i++) {
+            updateWeight(i, lossPerExample.getFloat(i));
+        }
+    }
+
+    /**
+     * Set the weight of one example of the minibatch last returned by next().
+     *
+     * @param indexInMinibatch index of the example in the minibatch.
+     * @param weight           non-negative weight, such as the loss of the example.
+     */
+    public void updateWeight(int indexInMinibatch, float weight) {
+        int example = lastIndices[indexInMinibatch];
+        if (Float.isNaN(weight)) {
+            // the model cannot score this example yet, treat it as hard:
+            weight = maxWeight;
+        } else if (weight < 0) {
+            weight = 0;
+        }
+        maxWeight = Math.max(maxWeight, weight);
+        setWeight(example, weight);
+    }
+
+    /**
+     * Return the average weight of the examples.
+     */
+    public float getAverageWeight() {
+        return (float) (totalWeight / numExamples);
+    }
+
+    /**
+     * Return the indices, in the dataset, of the examples of the minibatch last returned by next().
+     */
+    public int[] getLastIndices() {
+        return lastIndices;
+    }
+
+    public int numExamples() {
+        return numExamples;
+    }
+
+    /**
+     * Return the number of examples returned since the start of the epoch.
+     */
+    public int cursor() {
+        return numReturned;
+    }
+
+    @Override
+    public boolean hasNext() {
+        return numReturned < numExamples;
+    }
+
+    @Override
+    public MultiDataSet next() {
+        return next(miniBatchSize);
+    }
+
+    /**
+     * Draw a minibatch of num examples, or fewer at the end of the epoch.
+     */
+    @Override
+    public MultiDataSet next(int num) {
+        if (!hasNext()) {
+            throw new NoSuchElementException();
+        }
+        if (num <= 0) {
+            throw new IllegalArgumentException("The number of examples must be positive: " + num);
+        }
+        int size = Math.min(num, numExamples - numReturned);
+        int[] indices = new int[size];
+        for (int i = 0; i < size; i++) {
+            indices[i] = draw();
+        }
+        // read each minibatch of the cache once:
+        Arrays.sort(indices);
+        numReturned += size;
+        lastIndices = indices;
+        MultiDataSet ds = cache.examples(indices);
+        if (preProcessor != null) {
+            preProcessor.preProcess(ds);
+        }
+        return ds;
+    }
+
+    @Override
+    public void setPreProcessor(MultiDataSetPreProcessor preProcessor) {
+        this.preProcessor = preProcessor;
+    }
+
+    @Override
+    public MultiDataSetPreProcessor getPreProcessor() {
+        return preProcessor;
+    }
+
+    @Override
+    public boolean resetSupported() {
+        return true;
+    }
+
+    @Override
+    public boolean asyncSupported() {
+        // weights must be updated before the next minibatch is drawn:
+        return false;
+    }
+
+    @Override
+    public void reset() {
+        numReturned = 0;
+        lastIndices = new int[0];
+    }
+}
@@ -0,0 +1,119 @@
+package org.campagnelab.dl.framework.iterators;
+
+import it.unimi.dsi.fastutil.objects.ObjectArrayList;
+import it.unimi.dsi.util.XorShift1024StarRandom;
+import org.nd4j.linalg.api.ndarray.INDArray;
+import org.nd4j.linalg.dataset.api.MultiDataSet;
+import org.nd4j.linalg.dataset.api.MultiDataSetPreProcessor;
+import org.nd4j.linalg.dataset.api.iterator.MultiDataSetIterator;
+import org.nd4j.linalg.factory.Nd4j;
+
+import java.util.NoSuchElementException;
+
+/**
+ * An in-memory iterator over a synthetic classification dataset, with one input and one softmax output.
+ * Each class has a random centroid in feature space, and each example is the centroid of its class plus gaussian
+ * noise, so that the dataset can be learned but is not trivially separable. The dataset is fully determined by the
+ * seed. Useful to benchmark training without reading records from disk.
+ */
+public class SyntheticMultiDataSetIterator implements MultiDataSetIterator {
+    private final ObjectArrayList<MultiDataSet> minibatches = new ObjectArrayList<>();
+    private final int numExamples;
+    private MultiDataSetPreProcessor preProcessor;
+    private int index;
+
+    /**
+     * Generate a synthetic dataset.
+     *
+     * @param numExamples   number of examples.
+     * @param numFeatures   number of features per example.
+     * @param numLabels     number of classes.
+     * @param miniBatchSize number of examples per minibatch (the last minibatch may be smaller).
+     * @param noise         standard deviation of the noise added to class centroids.
+     * @param seed          random seed.
+     */
+    public SyntheticMultiDataSetIterator(int numExamples, int numFeatures, int numLabels, int miniBatchSize,
+                                         double noise, long seed) {
+        this.numExamples = numExamples;
+        XorShift1024StarRandom random = new XorShift1024StarRandom(seed);
+        float[][] centroids = new float[numLabels][numFeatures];
+        for (int label = 0; label < numLabels; label++) {
+            for (int j = 0; j < numFeatures; j++) {
+                centroids[label][j] = (float) random.nextGaussian();
+            }
+        }
+        for (int start = 0; start < numExamples; start += miniBatchSize) {
+            int size = Math.min(miniBatchSize, numExamples - start);
+            float[] features = new float[size * numFeatures];
+            float[] labels = new float[size * numLabels];
+            for (int i = 0; i < size; i++) {
+                int label = random.nextInt(numLabels);
+                labels[i * numLabels + label] = 1;
+                for (int j = 0; j < numFeatures; j++) {
+                    features[i * numFeatures + j] = centroids[label][j] + (float) (noise * random.nextGaussian());
+                }
+            }
+            INDArray featureArray = Nd4j.create(features, new int[]{size, numFeatures});
+            INDArray labelArray = Nd4j.create(labels, new int[]{size, numLabels});
+            minibatches.add(new org.nd4j.linalg.dataset.MultiDataSet(featureArray, labelArray));
+        }
+    }
+
+    /**
+     * Return the number of examples in one pass over the iterator.
+     *
+     * @return number of examples.
+     */
+    public int getNumExamples() {
+        return numExamples;
+    }
+
+    @Override
+    public MultiDataSet next(int num) {
+        return next();
+    }
+
+    @Override
+    public void setPreProcessor(MultiDataSetPreProcessor preProcessor) {
+        this.preProcessor = preProcessor;
+    }
+
+    @Override
+    public MultiDataSetPreProcessor getPreProcessor() {
+        return preProcessor;
+    }
+
+    @Override
+    public boolean resetSupported() {
+        return true;
+    }
+
+    @Override
+    public boolean asyncSupported() {
+        return true;
+    }
+
+    @Override
+    public void reset() {
+        index = 0;
+    }
+
+    @Override
+    public boolean hasNext() {
+        return index < minibatches.size();
+    }
+
+    @Override
+    public MultiDataSet next() {
+        if (!hasNext()) {
+            throw new NoSuchElementException();
+        }
+        MultiDataSet source = minibatches.get(index++);
+        // return a copy: preprocessors and trainers may modify the minibatch in place.
+        MultiDataSet ds = new org.nd4j.linalg.dataset.MultiDataSet(source.getFeatures(0).dup(), source.getLabels(0).dup());
+        if (preProcessor != null) {
+            preProcessor.preProcess(ds);
+        }
+        return ds;
+    }
+}
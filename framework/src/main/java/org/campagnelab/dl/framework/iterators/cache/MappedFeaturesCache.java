@@ -0,0 +1,303 @@
+package org.campagnelab.dl.framework.iterators.cache;
+
+import it.unimi.dsi.fastutil.io.FastBufferedOutputStream;
+import it.unimi.dsi.fastutil.longs.LongArrayList;
+import it.unimi.dsi.fastutil.objects.ObjectArrayList;
+import org.nd4j.linalg.api.ndarray.INDArray;
+import org.nd4j.linalg.dataset.DataSet;
+import org.nd4j.linalg.dataset.api.MultiDataSet;
+import org.nd4j.linalg.dataset.api.iterator.DataSetIterator;
+import org.nd4j.linalg.factory.Nd4j;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Date;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Properties;
+
+/**
+ * Random access to the examples of a cache of mapped features (.cf/.cfp files). The .cf file is memory-mapped, and
+ * only the minibatches that hold the examples requested are read. Caches written with DataSet
+ * (multiDataSet=false in the .cfp) or MultiDataSet minibatches are both supported. All minibatches of the cache but
+ * the last must have the miniBatchSize of the .cfp, as is the case for caches written by MapFeatures,
+ * MapMultiDatasetFeatures or {@link #write(Iterator, String)}.
+ */
+public class MappedFeaturesCache {
+    /**
+     * Number of bytes used to store the length of each minibatch.
+     */
+    private static final int LENGTH_BYTES = 4;
+
+    private final int numExamples;
+    private final int miniBatchSize;
+    private final boolean multiDataSet;
+    /**
+     * Offset of each minibatch in the .cf file, followed by the length of the file.
+     */
+    private final LongArrayList offsets = new LongArrayList();
+    private final MappedByteBuffer[] segments;
+    /**
+     * Offset in the .cf file of the start of each segment.
+     */
+    private final long[] segmentStarts;
+
+    public MappedFeaturesCache(String basename) throws IOException {
+        Properties cfProperties = new Properties();
+        try (FileReader reader = new FileReader(basename + ".cfp")) {
+            cfProperties.load(reader);
+        }
+        miniBatchSize = Integer.parseInt(cfProperties.getProperty("miniBatchSize", "0"));
+        numExamples = Integer.parseInt(cfProperties.getProperty("numRecords", "0"));
+        multiDataSet = Boolean.parseBoolean(cfProperties.getProperty("multiDataSet", "true"));
+        if (miniBatchSize <= 0) {
+            throw new IOException("The cache has no miniBatchSize property: " + basename + ".cfp");
+        }
+        try (FileChannel channel = new FileInputStream(basename + ".cf").getChannel()) {
+            final long fileLength = channel.size();
+            ByteBuffer length = ByteBuffer.allocate(LENGTH_BYTES);
+            long offset = 0;
+            while (offset + LENGTH_BYTES <= fileLength) {
+                length.clear();
+                channel.read(length, offset);
+                offsets.add(offset);
+                offset += LENGTH_BYTES + length.getInt(0);
+            }
+            offsets.add(Math.min(offset, fileLength));
+            // map the file in segments of at most 2GB, that start and end at minibatch boundaries:
+            List<MappedByteBuffer> mapped = new ObjectArrayList<>();
+            LongArrayList starts = new LongArrayList();
+            int first = 0;
+            while (first < offsets.size() - 1) {
+                int end = first + 1;
+                while (end < offsets.size() - 1 && offsets.getLong(end + 1) - offsets.getLong(first) <= Integer.MAX_VALUE) {
+                    end++;
+                }
+                starts.add(offsets.getLong(first));
+                mapped.add(channel.map(FileChannel.MapMode.READ_ONLY, offsets.getLong(first),
+                        offsets.getLong(end) - offsets.getLong(first)));
+                first = end;
+            }
+            segments = mapped.toArray(new MappedByteBuffer[mapped.size()]);
+            segmentStarts = starts.toLongArray();
+        }
+    }
+
+    public int numExamples() {
+        return numExamples;
+    }
+
+    public int miniBatchSize() {
+        return miniBatchSize;
+    }
+
+    /**
+     * Read the examples at the given indices.
+     *
+     * @param indices indices of the examples in the cache, sorted in increasing order. An index may be repeated.
+     * @return a minibatch with the examples, in the order of indices.
+     */
+    public MultiDataSet examples(int[] indices) {
+        List<MultiDataSet> minibatches = new ObjectArrayList<>();
+        List<int[]> rowsByMinibatch = new ObjectArrayList<>();
+        int start = 0;
+        while (start < indices.length) {
+            int minibatchIndex = indices[start] / miniBatchSize;
+            int end = start + 1;
+            while (end < indices.length && indices[end] / miniBatchSize == minibatchIndex) {
+                end++;
+            }
+            int[] rows = new int[end - start];
+            for (int i = start; i < end; i++) {
+                rows[i - start] = indices[i] - minibatchIndex * miniBatchSize;
+            }
+            minibatches.add(minibatch(minibatchIndex));
+            rowsByMinibatch.add(rows);
+            start = end;
+        }
+        INDArray[][] features = new INDArray[minibatches.size()][];
+        INDArray[][] labels = new INDArray[minibatches.size()][];
+        INDArray[][] featuresMasks = new INDArray[minibatches.size()][];
+        INDArray[][] labelsMasks = new INDArray[minibatches.size()][];
+        for (int m = 0; m < minibatches.size(); m++) {
+            features[m] = minibatches.get(m).getFeatures();
+            labels[m] = minibatches.get(m).getLabels();
+            featuresMasks[m] = minibatches.get(m).getFeaturesMaskArrays();
+            labelsMasks[m] = minibatches.get(m).getLabelsMaskArrays();
+        }
+        return new org.nd4j.linalg.dataset.MultiDataSet(gather(features, rowsByMinibatch, indices.length),
+                gather(labels, rowsByMinibatch, indices.length),
+                gather(featuresMasks, rowsByMinibatch, indices.length),
+                gather(labelsMasks, rowsByMinibatch, indices.length));
+    }
+
+    /**
+     * Select rows (the first dimension) of the arrays of several minibatches, and stack them in one array per input
+     * or output, keeping the other dimensions.
+     *
+     * @param arrays          arrays of each minibatch.
+     * @param rowsByMinibatch rows selected in each minibatch.
+     * @param numRows         total number of rows selected.
+     */
+    private static INDArray[] gather(INDArray[][] arrays, List<int[]> rowsByMinibatch, int numRows) {
+        if (arrays.length == 0 || arrays[0] == null) {
+            return null;
+        }
+        INDArray[] result = new INDArray[arrays[0].length];
+        for (int i = 0; i < result.length; i++) {
+            if (arrays[0][i] == null) {
+                continue;
+            }
+            INDArray[] pieces = new INDArray[arrays.length];
+            for (int m = 0; m < arrays.length; m++) {
+                INDArray array = arrays[m][i];
+                int size = array.size(0);
+                INDArray matrix = array.dup('c').reshape('c', size, array.length() / size);
+                pieces[m] = Nd4j.pullRows(matrix, 1, rowsByMinibatch.get(m));
+            }
+            int[] shape = arrays[0][i].shape().clone();
+            shape[0] = numRows;
+            result[i] = (pieces.length == 1 ? pieces[0] : Nd4j.vstack(pieces)).reshape('c', shape);
+        }
+        return result;
+    }
+
+    /**
+     * Read one minibatch of the cache.
+     */
+    private MultiDataSet minibatch(int minibatchIndex) {
+        if (minibatchIndex >= offsets.size() - 1) {
+            throw new IndexOutOfBoundsException("The cache has no minibatch " + minibatchIndex);
+        }
+        final long offset = offsets.getLong(minibatchIndex);
+        int segment = 0;
+        while (segment + 1 < segmentStarts.length && segmentStarts[segment + 1] <= offset) {
+            segment++;
+        }
+        ByteBuffer buffer = segments[segment].duplicate();
+        buffer.position((int) (offset - segmentStarts[segment]));
+        byte[] bytes = new byte[buffer.getInt()];
+        buffer.get(bytes);
+        try (ByteArrayInputStream from = new ByteArrayInputStream(bytes)) {
+            if (multiDataSet) {
+                org.nd4j.linalg.dataset.MultiDataSet ds = new org.nd4j.linalg.dataset.MultiDataSet();
+                ds.load(from);
+                return ds;
+            } else {
+                DataSet ds = new DataSet();
+                ds.load(from);
+                return new org.nd4j.linalg.dataset.MultiDataSet(ds.getFeatures(), ds.getLabels(),
+                        ds.getFeaturesMaskArray(), ds.getLabelsMaskArray());
+            }
+        } catch (IOException e) {
+            throw new RuntimeException("Unable to load minibatch " + minibatchIndex, e);
+        }
+    }
+
+    /**
+     * Write the minibatches of an iterator to a cache.
+     *
+     * @param iterator minibatches to write, for instance a MultiDataSetIterator. All minibatches but the last must
+     *                 have the same number of examples.
+     * @param basename basename of the .cf and .cfp files.
+     * @return number of examples written.
+     */
+    public static long write(Iterator<? extends MultiDataSet> iterator, String basename) throws IOException {
+        try (Writer writer = new Writer(basename, true)) {
+            while (iterator.hasNext()) {
+                MultiDataSet ds = iterator.next();
+                ds.save(writer.next(ds.getFeatures(0).size(0)));
+            }
+            return writer.numExamples;
+        }
+    }
+
+    /**
+     * Write the minibatches of an iterator to a cache.
+     *
+     * @param iterator minibatches to write. All minibatches but the last must have the same number of examples.
+     * @param basename basename of the .cf and .cfp files.
+     * @return number of examples written.
+     */
+    public static long write(DataSetIterator iterator, String basename) throws IOException {
+        try (Writer writer = new Writer(basename, false)) {
+            while (iterator.hasNext()) {
+                DataSet ds = iterator.next();
+                ds.save(writer.next(ds.numExamples()));
+            }
+            return writer.numExamples;
+        }
+    }
+
+    private static class Writer implements AutoCloseable {
+        private final String basename;
+        private final boolean multiDataSet;
+        private final OutputStream output;
+        private final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        private int miniBatchSize;
+        private int lastSize;
+        private long numExamples;
+        private long numDatasets;
+
+        Writer(String basename, boolean multiDataSet) throws IOException {
+            this.basename = basename;
+            this.multiDataSet = multiDataSet;
+            output = new FastBufferedOutputStream(new FileOutputStream(basename + ".cf"));
+        }
+
+        /**
+         * Write the previous minibatch, if any, and return the stream to save the next one to.
+         */
+        OutputStream next(int size) throws IOException {
+            flush();
+            if (numDatasets == 0) {
+                miniBatchSize = size;
+            } else if (lastSize != miniBatchSize) {
+                throw new IllegalArgumentException(String.format("Only the last minibatch can have less than %d examples.",
+                        miniBatchSize));
+            }
+            lastSize = size;
+            numExamples += size;
+            numDatasets++;
+            return bytes;
+        }
+
+        private void flush() throws IOException {
+            if (bytes.size() == 0) {
+                return;
+            }
+            final int length = bytes.size();
+            // write the length of the array first, most significant bytes first:
+            output.write((length >> 8 * 3) & 0xFF);
+            output.write((length >> 8 * 2) & 0xFF);
+            output.write((length >> 8) & 0xFF);
+            output.write(length & 0xFF);
+            bytes.writeTo(output);
+            bytes.reset();
+        }
+
+        @Override
+        public void close() throws IOException {
+            flush();
+            output.close();
+            Properties cfpProperties = new Properties();
+            cfpProperties.put("multiDataSet", Boolean.toString(multiDataSet));
+            cfpProperties.put("miniBatchSize", Integer.toString(miniBatchSize));
+            cfpProperties.put("numRecords", Long.toString(numExamples));
+            cfpProperties.put("numDatasets", Long.toString(numDatasets));
+            try (FileWriter writer = new FileWriter(new File(basename + ".cfp"))) {
+                cfpProperties.store(writer, new Date().toString());
+            }
+        }
+    }
+}
@@ -0,0 +1,167 @@
+package org.campagnelab.dl.framework.performance;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * AUC calculator for decision values in [0,1], such as predicted probabilities, that uses constant memory. Decision
+ * values are counted in a histogram of numBins bins per class, so observing a prediction is O(1) and the AUC is
+ * computed in O(numBins), however many predictions were observed. Pairs of decisions that fall in different bins are
+ * ranked exactly as with {@link AreaUnderTheROCCurve}; pairs that fall in the same bin count as ties. With the
+ * default number of bins, the AUC differs from the exact value by less than the fraction of pairs closer than 1.5e-5.
+ * <p>
+ * Calculators that observed different predictions can be merged, so that predictions can be scored by several threads.
+ */
+public class StreamingAUC {
+    static private Logger LOG = LoggerFactory.getLogger(StreamingAUC.class);
+    public static final int DEFAULT_NUM_BINS = 1 << 16;
+    private final long[] positiveBins;
+    private final long[] negativeBins;
+    private long numPositive;
+    private long numNegative;
+    /**
+     * NaN decision values are always interpreted as wrong predictions: they are counted, but not binned.
+     */
+    private boolean foundNan;
+
+    public StreamingAUC() {
+        this(DEFAULT_NUM_BINS);
+    }
+
+    public StreamingAUC(int numBins) {
+        positiveBins = new long[numBins];
+        negativeBins = new long[numBins];
+    }
+
+    public void reset() {
+        Arrays.fill(positiveBins, 0);
+        Arrays.fill(negativeBins, 0);
+        numPositive = 0;
+        numNegative = 0;
+        foundNan = false;
+    }
+
+    /**
+     * Observe a prediction.
+     *
+     * @param decisionValue decision value, in [0,1]. Values outside this range are counted in the first or last bin.
+     * @param label         positive or zero for a positive example, negative for a negative example.
+     */
+    public void observe(double decisionValue, double label) {
+        boolean isNan = decisionValue != decisionValue;
+        if (!foundNan && isNan) {
+            LOG.warn("NaN found instead of a decision value. NaN are always interpreted as wrong predictions. ");
+            foundNan = true;
+        }
+        if (label >= 0) {
+            numPositive++;
+            if (!isNan) {
+                positiveBins[bin(decisionValue)]++;
+            }
+        } else {
+            numNegative++;
+            if (!isNan) {
+                negativeBins[bin(decisionValue)]++;
+            }
+        }
+    }
+
+    private int bin(double decisionValue) {
+        int numBins = positiveBins.length;
+        return Math.max(0, Math.min(numBins - 1, (int) (decisionValue * numBins)));
+    }
+
+    /**
+     * Add the predictions observed by another calculator to this one.
+     *
+     * @param other a calculator with the same number of bins.
+     */
+    public void merge(StreamingAUC other) {
+        if (other.positiveBins.length != positiveBins.length) {
+            throw new IllegalArgumentException("Calculators must have the same number of bins.");
+        }
+        for (int bin = 0; bin < positiveBins.length; bin++) {
+            positiveBins[bin] += other.positiveBins[bin];
+            negativeBins[bin] += other.negativeBins[bin];
+        }
+        numPositive += other.numPositive;
+        numNegative += other.numNegative;
+        foundNan |= other.foundNan;
+    }
+
+    public double evaluateStatistic() {
+        double sum = 0;
+        long negativesBelow = 0;
+        for (int bin = 0; bin < positiveBins.length; bin++) {
+            sum += positiveBins[bin] * (negativesBelow + 0.5 * negativeBins[bin]);
+            negativesBelow += negativeBins[bin];
+        }
+        return sum / numPositive / numNegative;
+    }
+
+    /**
+     * Return the 95% confidence interval of the AUC, estimated as {@link AreaUnderTheROCCurve} does.
+     */
+    public double[] confidenceInterval95() {
+        double z = 1.96;
+        double auc = evaluateStatistic();
+        double q1 = auc / (2 - auc);
+        double q2 = 2 * auc * auc / (1 + auc);
+        double standardError = Math.sqrt((auc * (1 - auc) + (numPositive - 1) * (q1 - auc * auc)
+                + (numNegative - 1) * (q2 - auc * auc)) / numPositive / numNegative);
+        return new double[]{auc - z * standardError, auc + z * standardError};
+    }
+
+    /**
+     * Write the histograms, so that predictions observed in another process can be merged with {@link #read}.
+     * Only non-empty bins are written.
+     */
+    public void write(DataOutput output) throws IOException {
+        output.writeInt(positiveBins.length);
+        output.writeLong(numPositive);
+        output.writeLong(numNegative);
+        output.writeBoolean(foundNan);
+        int numNonEmpty = 0;
+        for (int bin = 0; bin < positiveBins.length; bin++) {
+            numNonEmpty += positiveBins[bin] != 0 || negativeBins[bin] != 0 ? 1 : 0;
+        }
+        output.writeInt(numNonEmpty);
+        for (int bin = 0; bin < positiveBins.length; bin++) {
+            if (positiveBins[bin] != 0 || negativeBins[bin] != 0) {
+                output.writeInt(bin);
+                output.writeLong(positiveBins[bin]);
+                output.writeLong(negativeBins[bin]);
+            }
+        }
+    }
+
+    /**
+     * Read a calculator written with {@link #write}.
+     */
+    public static StreamingAUC read(DataInput input) throws IOException {
+        StreamingAUC calculator = new StreamingAUC(input.readInt());
+        calculator.numPositive = input.readLong();
+        calculator.numNegative = input.readLong();
+        calculator.foundNan = input.readBoolean();
+        int numNonEmpty = input.readInt();
+        for (int i = 0; i < numNonEmpty; i++) {
+            int bin = input.readInt();
+            calculator.positiveBins[bin] = input.readLong();
+            calculator.negativeBins[bin] = input.readLong();
+        }
+        return calculator;
+    }
+
+    public long getNumPositive() {
+        return numPositive;
+    }
+
+    public long getNumNegative() {
+        return numNegative;
+    }
+}
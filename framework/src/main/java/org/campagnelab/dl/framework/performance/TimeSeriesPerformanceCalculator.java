@@ -1,6 +1,6 @@
 package org.campagnelab.dl.framework.performance;
 
-
+import it.unimi.dsi.fastutil.ints.Int2IntOpenHashMap;
 import org.apache.commons.lang3.tuple.ImmutablePair;
 import org.apache.commons.lang3.tuple.Pair;
 import org.campagnelab.dl.framework.domains.DomainDescriptor;
@@ -17,85 +17,214 @@ import java.util.stream.Collectors;
 import java.util.stream.IntStream;
 
 /**
- * Calculates stats for time series predictions
+ * Calculates stats for time series predictions. Predictions are counted in a dense confusion matrix of ints, with one
+ * row per true label and one column per predicted label, plus a column for predicted labels outside allLabels. All
+ * metrics are derived from this matrix. Whole minibatches of labels can be added at once with
+ * {@link #addMinibatch(INDArray, INDArray, INDArray, int)}, and calculators that scored different sequences, for
+ * instance in different threads, can be combined with {@link #merge(TimeSeriesPerformanceCalculator)}.
  * Created by joshuacohen on 11/28/16.
  */
 public class TimeSeriesPerformanceCalculator implements TimeSeriesPerformanceCalculatorI {
-    private Counter truePositives;
-    private Counter falsePositives;
-    private Counter falseNegatives;
-    private Set<Integer> neverPredictedLabels;
-    private Set<Integer> neverAppearedLabels;
+    private final List<Integer> allLabels;
+    private final int numLabels;
+    /**
+     * Index of each label in allLabels, or null when allLabels is 0..numLabels-1.
+     */
+    private final Int2IntOpenHashMap labelIndices;
+    /**
+     * counts[trueIndex * (numLabels + 1) + predictedIndex]. Column numLabels counts predicted labels not in allLabels.
+     */
+    private final int[] counts;
     private int correctPredictions;
     private int totalPredictions;
-    private Map<Integer, Double> labelPrecisions;
-    private Map<Integer, Double> labelRecalls;
+    private Set<Integer> neverPredictedLabels;
+    private Set<Integer> neverAppearedLabels;
     private double mcPrecision;
     private double mcRecall;
     private double mcAccuracy;
     private double mcF1Score;
-    private ConfusionMatrix confusionMatrix;
-    private List<Integer> allLabels;
     private boolean evalCalled;
 
 
     public TimeSeriesPerformanceCalculator(List<Integer> allLabels) {
-        truePositives = new Counter();
-        falsePositives = new Counter();
-        falseNegatives = new Counter();
-        neverPredictedLabels = new HashSet<>();
-        neverAppearedLabels = new HashSet<>();
-        labelPrecisions = new HashMap<>();
-        labelRecalls = new HashMap<>();
-        confusionMatrix = new ConfusionMatrix(allLabels);
-        totalPredictions = 0;
         this.allLabels = allLabels;
+        numLabels = allLabels.size();
+        boolean contiguous = true;
+        for (int i = 0; i < numLabels; i++) {
+            contiguous &= allLabels.get(i) == i;
+        }
+        if (contiguous) {
+            labelIndices = null;
+        } else {
+            labelIndices = new Int2IntOpenHashMap(numLabels);
+            labelIndices.defaultReturnValue(-1);
+            for (int i = 0; i < numLabels; i++) {
+                labelIndices.put(allLabels.get(i).intValue(), i);
+            }
+        }
+        counts = new int[numLabels * (numLabels + 1)];
+        totalPredictions = 0;
     }
 
     public TimeSeriesPerformanceCalculator(int numLabels) {
         this(IntStream.range(0, numLabels).boxed().collect(Collectors.toList()));
     }
 
+    private int indexOf(int label) {
+        if (labelIndices == null) {
+            return label >= 0 && label < numLabels ? label : -1;
+        }
+        return labelIndices.get(label);
+    }
+
     public void addTimeSeries(TimeSeriesPrediction timeSeries) {
-        for (int i = 0; i < timeSeries.trueLabels().length; i++) {
-            totalPredictions++;
-            confusionMatrix.increment(timeSeries.trueLabels()[i], timeSeries.predictedLabels()[i]);
-            if (timeSeries.trueLabels()[i] == timeSeries.predictedLabels()[i]) {
-                truePositives.increment(timeSeries.trueLabels()[i]);
-                correctPredictions++;
-            } else {
-                falseNegatives.increment(timeSeries.trueLabels()[i]);
-                falsePositives.increment(timeSeries.predictedLabels()[i]);
+        addLabels(timeSeries.trueLabels(), timeSeries.predictedLabels(), timeSeries.trueLabels().length);
+    }
+
+    /**
+     * Count the first length predictions of a sequence.
+     *
+     * @param trueLabels      true label at each time step.
+     * @param predictedLabels predicted label at each time step.
+     * @param length          number of time steps to count.
+     */
+    public void addLabels(int[] trueLabels, int[] predictedLabels, int length) {
+        for (int i = 0; i < length; i++) {
+            increment(trueLabels[i], predictedLabels[i]);
+        }
+    }
+
+    private void increment(int trueLabel, int predictedLabel) {
+        int trueIndex = indexOf(trueLabel);
+        if (trueIndex == -1) {
+            throw new IllegalArgumentException("True label is not one of the labels of the calculator: " + trueLabel);
+        }
+        int predictedIndex = indexOf(predictedLabel);
+        counts[trueIndex * (numLabels + 1) + (predictedIndex == -1 ? numLabels : predictedIndex)]++;
+        totalPredictions++;
+        if (trueLabel == predictedLabel) {
+            correctPredictions++;
+        }
+    }
+
+    /**
+     * Count the predictions of the first numExamples sequences of a minibatch. Sequences are trimmed to their mask,
+     * and labels are the index of the largest output at each time step, exactly as
+     * {@link TimeSeriesPredictionInterpreter#interpret(INDArray, INDArray, INDArray, int)} would, but without creating
+     * a prediction per sequence. Labels must be 0..numLabels-1.
+     *
+     * @param allTrueLabels     one-hot true labels, [miniBatchSize, numLabels, numTimeSteps].
+     * @param allPredictedLabels outputs of the model, [miniBatchSize, numLabels, numTimeSteps].
+     * @param allTrueMasks      masks of the labels, [miniBatchSize, numTimeSteps], or null when all steps are valid.
+     * @param numExamples       number of sequences of the minibatch to count.
+     */
+    public void addMinibatch(INDArray allTrueLabels, INDArray allPredictedLabels, INDArray allTrueMasks,
+                             int numExamples) {
+        int numClasses = allTrueLabels.size(1);
+        int numTimeSteps = allTrueLabels.size(2);
+        float[] trueValues = allTrueLabels.dup('c').data().asFloat();
+        float[] predictedValues = allPredictedLabels.dup('c').data().asFloat();
+        float[] maskValues = allTrueMasks == null ? null : allTrueMasks.dup('c').data().asFloat();
+        int[] trueLabels = new int[numTimeSteps];
+        int[] predictedLabels = new int[numTimeSteps];
+        for (int example = 0; example < numExamples; example++) {
+            int sequenceLength = numTimeSteps;
+            if (maskValues != null) {
+                sequenceLength = 0;
+                for (int t = 0; t < numTimeSteps; t++) {
+                    sequenceLength += maskValues[example * numTimeSteps + t] > 0 ? 1 : 0;
+                }
             }
+            int offset = example * numClasses * numTimeSteps;
+            int trueLength = argMax(trueValues, offset, numClasses, numTimeSteps, sequenceLength, trueLabels);
+            argMax(predictedValues, offset, numClasses, numTimeSteps, sequenceLength, predictedLabels);
+            addLabels(trueLabels, predictedLabels, trueLength);
         }
     }
 
+    /**
+     * Store the index of the largest value of each of the first sequenceLength time steps in labels. Like
+     * TimeSeriesPrediction, return the number of time steps whose values sum to more than zero, when there is any.
+     */
+    private static int argMax(float[] values, int offset, int numClasses, int numTimeSteps, int sequenceLength,
+                              int[] labels) {
+        int numValid = 0;
+        for (int t = 0; t < sequenceLength; t++) {
+            int best = 0;
+            float bestValue = values[offset + t];
+            float sum = bestValue;
+            for (int c = 1; c < numClasses; c++) {
+                float value = values[offset + c * numTimeSteps + t];
+                sum += value;
+                if (value > bestValue) {
+                    bestValue = value;
+                    best = c;
+                }
+            }
+            labels[t] = best;
+            numValid += sum > 0 ? 1 : 0;
+        }
+        return numValid > 0 ? numValid : sequenceLength;
+    }
+
+    /**
+     * Add the predictions counted by another calculator to this calculator.
+     *
+     * @param other a calculator with the same labels, in the same order.
+     */
+    public void merge(TimeSeriesPerformanceCalculator other) {
+        if (!allLabels.equals(other.allLabels)) {
+            throw new IllegalArgumentException("Calculators must have the same labels.");
+        }
+        for (int i = 0; i < counts.length; i++) {
+            counts[i] += other.counts[i];
+        }
+        correctPredictions += other.correctPredictions;
+        totalPredictions += other.totalPredictions;
+        evalCalled = false;
+    }
+
     public TimeSeriesPerformanceCalculatorI eval() {
-        for (Integer label : allLabels) {
-            int labelTP = truePositives.count(label);
-            int labelFP = falsePositives.count(label);
-            int labelFN = falseNegatives.count(label);
-            if ((labelTP + labelFP) == 0) {
+        int width = numLabels + 1;
+        int[] predicted = new int[numLabels];
+        int[] appeared = new int[numLabels];
+        for (int trueIndex = 0; trueIndex < numLabels; trueIndex++) {
+            for (int predictedIndex = 0; predictedIndex < width; predictedIndex++) {
+                int count = counts[trueIndex * width + predictedIndex];
+                appeared[trueIndex] += count;
+                if (predictedIndex < numLabels) {
+                    predicted[predictedIndex] += count;
+                }
+            }
+        }
+        neverPredictedLabels = new HashSet<>();
+        neverAppearedLabels = new HashSet<>();
+        double totalPrecision = 0;
+        double totalRecall = 0;
+        int numPrecisions = 0;
+        int numRecalls = 0;
+        // sum precisions and recalls in increasing label order:
+        int[] order = IntStream.range(0, numLabels).boxed()
+                .sorted(Comparator.comparing(allLabels::get)).mapToInt(Integer::intValue).toArray();
+        for (int index : order) {
+            Integer label = allLabels.get(index);
+            int labelTP = counts[index * width + index];
+            // TP + FP is the number of times the label was predicted, TP + FN the number of times it appeared:
+            if (predicted[index] == 0) {
                 neverPredictedLabels.add(label);
             } else {
-                labelPrecisions.put(label, ((double) labelTP) / (labelTP + labelFP));
+                totalPrecision += ((double) labelTP) / predicted[index];
+                numPrecisions++;
             }
-            if ((labelTP + labelFN) == 0) {
+            if (appeared[index] == 0) {
                 neverAppearedLabels.add(label);
             } else {
-                labelRecalls.put(label, ((double) labelTP) / (labelTP + labelFN));
+                totalRecall += ((double) labelTP) / appeared[index];
+                numRecalls++;
             }
         }
-        double totalPrecision = 0;
-        double totalRecall = 0;
-        for (Double labelPrecision : labelPrecisions.values()) {
-            totalPrecision += labelPrecision;
-        }
-        for (Double labelRecall : labelRecalls.values()) {
-            totalRecall += labelRecall;
-        }
-        mcPrecision = totalPrecision / labelPrecisions.size();
-        mcRecall = totalRecall / labelRecalls.size();
+        mcPrecision = totalPrecision / numPrecisions;
+        mcRecall = totalRecall / numRecalls;
         mcAccuracy = (double) correctPredictions / totalPredictions;
         mcF1Score = (2.0 * mcPrecision * mcRecall) / (mcPrecision + mcRecall);
         evalCalled = true;
@@ -132,11 +261,22 @@ public class TimeSeriesPerformanceCalculator implements TimeSeriesPerformanceCal
 
     public Map<Pair<Integer, Integer>, Integer> getConfusionMatrix() {
         assert evalCalled : "eval() should be called first";
-        return confusionMatrix.toMap();
+        Map<Pair<Integer, Integer>, Integer> confusionMatrixMap = new HashMap<>();
+        for (int i : allLabels) {
+            for (int j : allLabels) {
+                confusionMatrixMap.put(new ImmutablePair<>(i, j), countConfusionMatrix(i, j));
+            }
+        }
+        return confusionMatrixMap;
     }
 
     public int countConfusionMatrix(int trueLabel, int predictedLabel) {
-        return confusionMatrix.count(trueLabel, predictedLabel);
+        int trueIndex = indexOf(trueLabel);
+        if (trueIndex == -1) {
+            throw new IllegalArgumentException("Unknown true label: " + trueLabel);
+        }
+        int predictedIndex = indexOf(predictedLabel);
+        return predictedIndex == -1 ? 0 : counts[trueIndex * (numLabels + 1) + predictedIndex];
     }
 
 
@@ -150,64 +290,12 @@ public class TimeSeriesPerformanceCalculator implements TimeSeriesPerformanceCal
         statsBuilder.append(String.format("\t%s", getNeverAppearedOrPredictedSet("never_predicted")));
         for (int i : allLabels) {
             for (int j : allLabels) {
-                statsBuilder.append(String.format("\t%d", confusionMatrix.count(i, j)));
+                statsBuilder.append(String.format("\t%d", countConfusionMatrix(i, j)));
             }
         }
         return statsBuilder.toString();
     }
 
-    private class Counter {
-        private Map<Integer, Integer> backingMap;
-
-        public Counter() {
-            backingMap = new HashMap<>();
-        }
-
-        public void increment(int label) {
-            if (backingMap.containsKey(label)) {
-                backingMap.put(label, backingMap.get(label) + 1);
-            } else {
-                backingMap.put(label, 1);
-            }
-        }
-
-        public int count(int label) {
-            Integer labelCount = backingMap.get(label);
-            return labelCount != null ? labelCount : 0;
-        }
-    }
-
-    private class ConfusionMatrix {
-        private Map<Integer, Counter> backingMap;
-        private List<Integer> allLabels;
-
-        public ConfusionMatrix(List<Integer> allLabels) {
-            backingMap = new HashMap<>();
-            this.allLabels = allLabels;
-            for (Integer label : allLabels) {
-                backingMap.put(label, new Counter());
-            }
-        }
-
-        public void increment(int trueLabel, int predictedLabel) {
-            backingMap.get(trueLabel).increment(predictedLabel);
-        }
-
-        public int count(int trueLabel, int predictedLabel) {
-            return backingMap.get(trueLabel).count(predictedLabel);
-        }
-
-        public Map<Pair<Integer, Integer>, Integer> toMap() {
-            Map<Pair<Integer, Integer>, Integer> confusionMatrixMap = new HashMap<>();
-            for (int i : allLabels) {
-                for (int j : allLabels) {
-                    confusionMatrixMap.put(new ImmutablePair<>(i, j), count(i, j));
-                }
-            }
-            return confusionMatrixMap;
-        }
-    }
-
     public static double estimateFromGraph(ComputationGraph graph, MultiDataSetIterator iterator, int numLabels,
                                            String metricName, int outputIndex, long scoreN,
                                            DomainDescriptor domainDescriptor) {
@@ -238,9 +326,8 @@ public class TimeSeriesPerformanceCalculator implements TimeSeriesPerformanceCal
         if (!(predictionInterpreter instanceof TimeSeriesPredictionInterpreter)) {
             throw new IllegalArgumentException("TimeSeriesPerformanceCalculator needs a TimeSeriesPredictionInterpreter");
         }
-        TimeSeriesPredictionInterpreter timeSeriesPredictionInterpreter = (TimeSeriesPredictionInterpreter) predictionInterpreter;
         TimeSeriesPerformanceCalculator calculator = new TimeSeriesPerformanceCalculator(numLabels);
-        int sequenceCount = 0;
+        long sequenceCount = 0;
         iterator.reset();
         while (iterator.hasNext()) {
             MultiDataSet next = iterator.next();
@@ -248,15 +335,11 @@ public class TimeSeriesPerformanceCalculator implements TimeSeriesPerformanceCal
             INDArray allTrueLabels = next.getLabels(outputIndex);
             INDArray allTrueMasks = next.getLabelsMaskArray(outputIndex);
             int numExamples = next.getFeatures(outputIndex).size(0);
-            for (int sequenceIdx = 0; sequenceIdx < numExamples; sequenceIdx++) {
-                TimeSeriesPrediction prediction = timeSeriesPredictionInterpreter.interpret(allTrueMasks, allTrueLabels,
-                        allPredictedLabels, sequenceIdx);
-                calculator.addTimeSeries(prediction);
-                sequenceCount++;
-                if (sequenceCount > scoreN) {
-                    break;
-                }
-            }
+            // score up to scoreN + 1 sequences:
+            long remaining = scoreN - sequenceCount;
+            int numToScore = remaining < numExamples ? (int) remaining + 1 : numExamples;
+            calculator.addMinibatch(allTrueLabels, allPredictedLabels, allTrueMasks, numToScore);
+            sequenceCount += numToScore;
             if (sequenceCount > scoreN) {
                 break;
             }
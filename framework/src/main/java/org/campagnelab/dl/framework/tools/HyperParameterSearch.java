@@ -0,0 +1,360 @@
+package org.campagnelab.dl.framework.tools;
+
+import it.unimi.dsi.fastutil.doubles.DoubleArrayList;
+import it.unimi.dsi.fastutil.doubles.DoubleList;
+import it.unimi.dsi.fastutil.ints.Int2DoubleAVLTreeMap;
+import it.unimi.dsi.fastutil.ints.Int2DoubleSortedMap;
+import it.unimi.dsi.fastutil.objects.ObjectArrayList;
+import org.apache.commons.io.FileUtils;
+import org.campagnelab.dl.framework.tools.arguments.AbstractTool;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.PrintWriter;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * Runs a random hyper-parameter search. Trial arguments are sampled from an {@link ArgGenerator} configuration, and
+ * each trial runs a TrainModel tool in its own JVM, several trials at a time. The .cf cache of the training set is
+ * built once before the trials start, then only read by the trials.
+ * <p>
+ * Trials are stopped early with the median stopping rule: after each validation, the best value of the metric that a
+ * trial obtained so far is compared to the median of the best values that other trials had obtained at the same
+ * epoch. A trial worse than the median is stopped. Metric values are read from the epochs-perf-log.tsv file that
+ * PerformanceLogger writes in the model directory of each trial after each epoch. When all trials are done, a summary
+ * of the trials, ranked by best metric value, is written to summary.tsv in the output directory.
+ */
+public class HyperParameterSearch extends AbstractTool<HyperParameterSearchArguments> {
+    static private Logger LOG = LoggerFactory.getLogger(HyperParameterSearch.class);
+    private static final String MODEL_DIRECTORY_PREFIX = "model directory: ";
+    private static final String PERFORMANCE_LOG = "epochs-perf-log.tsv";
+
+    enum Status {PENDING, RUNNING, COMPLETED, STOPPED, FAILED}
+
+    /**
+     * A training run with one combination of arguments.
+     */
+    static class Trial {
+        final int index;
+        final String arguments;
+        Status status = Status.PENDING;
+        Process process;
+        volatile String modelDirectory;
+        /**
+         * Best value of the metric obtained so far, at each validated epoch.
+         */
+        final Int2DoubleSortedMap bestByEpoch = new Int2DoubleAVLTreeMap();
+
+        Trial(int index, String arguments) {
+            this.index = index;
+            this.arguments = arguments;
+        }
+
+        double bestValue() {
+            return bestByEpoch.isEmpty() ? Double.NaN : bestByEpoch.get(bestByEpoch.lastIntKey());
+        }
+
+        int lastEpoch() {
+            return bestByEpoch.isEmpty() ? -1 : bestByEpoch.lastIntKey();
+        }
+    }
+
+    public static void main(String[] args) {
+        HyperParameterSearch tool = new HyperParameterSearch();
+        tool.parseArguments(args, "HyperParameterSearch", tool.createArguments());
+        tool.execute();
+    }
+
+    @Override
+    public HyperParameterSearchArguments createArguments() {
+        return new HyperParameterSearchArguments();
+    }
+
+    @Override
+    public void execute() {
+        try {
+            File outputDirectory = new File(args().outputDirectory);
+            FileUtils.forceMkdir(outputDirectory);
+            ArgGenerator generator = new ArgGenerator(args().seed);
+            generator.configure(args().argConfig);
+            String[] sampled = generator.generateCommands(args().numTrials).split("\n", -1);
+            List<Trial> trials = new ObjectArrayList<>();
+            for (int i = 0; i < args().numTrials; i++) {
+                trials.add(new Trial(i, i < sampled.length ? sampled[i] : ""));
+            }
+            if (!args().skipCacheBuild) {
+                buildCache(outputDirectory);
+            }
+            run(trials, outputDirectory);
+            writeSummary(trials, new File(outputDirectory, "summary.tsv"));
+        } catch (IOException e) {
+            throw new RuntimeException("Unable to run the hyper-parameter search.", e);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException("The hyper-parameter search was interrupted.", e);
+        }
+    }
+
+    /**
+     * Build the cache of the training set once, so that trials only read it.
+     */
+    private void buildCache(File outputDirectory) throws IOException, InterruptedException {
+        System.out.println("Building the training set cache.");
+        Process process = start("--build-cache-then-stop", new File(outputDirectory, "cache-build.log"), null);
+        if (process.waitFor() != 0) {
+            throw new IOException("Unable to build the cache, see " + new File(outputDirectory, "cache-build.log"));
+        }
+    }
+
+    private void run(List<Trial> trials, File outputDirectory) throws IOException, InterruptedException {
+        int numCores = Runtime.getRuntime().availableProcessors();
+        int parallelTrials = args().parallelTrials != null ? args().parallelTrials :
+                Math.max(1, numCores / Math.max(1, args().threadsPerTrial));
+        System.out.printf("Running %d trials, %d at a time.%n", trials.size(), parallelTrials);
+        int nextTrial = 0;
+        int numRunning = 0;
+        try {
+            while (nextTrial < trials.size() || numRunning > 0) {
+                while (numRunning < parallelTrials && nextTrial < trials.size()) {
+                    Trial trial = trials.get(nextTrial++);
+                    trial.process = start(trial.arguments, new File(outputDirectory, "trial-" + trial.index + ".log"), trial);
+                    trial.status = Status.RUNNING;
+                    numRunning++;
+                    // model directories are named after the time training starts, wait for this one before the next:
+                    while (trial.modelDirectory == null && trial.process.isAlive()) {
+                        Thread.sleep(100);
+                    }
+                }
+                Thread.sleep(args().pollSeconds * 1000L);
+                for (Trial trial : trials) {
+                    if (trial.status != Status.RUNNING) {
+                        continue;
+                    }
+                    updateMetrics(trial, args().metricName, args().smallerIsBetter);
+                    if (!trial.process.isAlive()) {
+                        trial.status = trial.process.exitValue() == 0 ? Status.COMPLETED : Status.FAILED;
+                        numRunning--;
+                        if (trial.bestByEpoch.isEmpty()) {
+                            LOG.warn("No value of " + args().metricName + " found for trial " + trial.index);
+                        }
+                        System.out.printf("Trial %d %s, best %s=%f%n", trial.index, trial.status.name().toLowerCase(),
+                                args().metricName, trial.bestValue());
+                    } else if (shouldStop(trial, trials, args().minEpochs, args().minTrialsForStopping,
+                            args().smallerIsBetter)) {
+                        trial.process.destroy();
+                        trial.process.waitFor();
+                        trial.status = Status.STOPPED;
+                        numRunning--;
+                        System.out.printf("Trial %d stopped after epoch %d, best %s=%f%n", trial.index, trial.lastEpoch(),
+                                args().metricName, trial.bestValue());
+                    }
+                }
+            }
+        } finally {
+            // do not leave trainers running when the search fails or is interrupted:
+            for (Trial trial : trials) {
+                if (trial.status == Status.RUNNING && trial.process != null && trial.process.isAlive()) {
+                    trial.process.destroy();
+                }
+            }
+        }
+    }
+
+    /**
+     * Start a trainer process. Its output is copied to logFile, and the model directory it prints is stored in trial.
+     */
+    private Process start(String sampledArguments, File logFile, Trial trial) throws IOException {
+        List<String> command = new ObjectArrayList<>();
+        command.add(new File(new File(System.getProperty("java.home"), "bin"), "java").getPath());
+        command.addAll(split(args().jvmArguments));
+        command.add("-cp");
+        command.add(System.getProperty("java.class.path"));
+        command.add(args().trainerClassname);
+        command.addAll(split(args().trainerArguments));
+        command.addAll(split(sampledArguments));
+        ProcessBuilder builder = new ProcessBuilder(command);
+        builder.environment().put("OMP_NUM_THREADS", Integer.toString(args().threadsPerTrial));
+        builder.environment().put("MKL_NUM_THREADS", Integer.toString(args().threadsPerTrial));
+        builder.redirectErrorStream(true);
+        Process process = builder.start();
+        Thread copier = new Thread(() -> {
+            try (BufferedReader output = new BufferedReader(new InputStreamReader(process.getInputStream()));
+                 PrintWriter log = new PrintWriter(new FileWriter(logFile))) {
+                String line;
+                while ((line = output.readLine()) != null) {
+                    log.println(line);
+                    if (trial != null && line.startsWith(MODEL_DIRECTORY_PREFIX)) {
+                        trial.modelDirectory = line.substring(MODEL_DIRECTORY_PREFIX.length()).trim();
+                    }
+                }
+            } catch (IOException e) {
+                LOG.warn("Unable to copy the output of a trial to " + logFile, e);
+            }
+        });
+        copier.setDaemon(true);
+        copier.start();
+        return process;
+    }
+
+    private static List<String> split(String arguments) {
+        String trimmed = arguments == null ? "" : arguments.trim();
+        return trimmed.isEmpty() ? Collections.emptyList() : Arrays.asList(trimmed.split("\\s+"));
+    }
+
+    /**
+     * Update the best values of the metric of a trial from its performance log. PerformanceLogger rewrites the log
+     * after each epoch, so a log that cannot be parsed, that does not have the metric yet, or that has fewer epochs
+     * than were read before is being written: the values read before are kept until the next poll.
+     */
+    static void updateMetrics(Trial trial, String metricName, boolean smallerIsBetter) {
+        if (trial.modelDirectory == null) {
+            return;
+        }
+        File perfLog = new File(trial.modelDirectory, PERFORMANCE_LOG);
+        if (!perfLog.exists()) {
+            return;
+        }
+        Int2DoubleSortedMap values;
+        try {
+            values = readMetric(perfLog, metricName);
+        } catch (IOException | NumberFormatException e) {
+            LOG.debug("No new values in " + perfLog + ": " + e.getMessage());
+            return;
+        }
+        if (values.size() < trial.bestByEpoch.size()) {
+            return;
+        }
+        trial.bestByEpoch.clear();
+        double best = Double.NaN;
+        for (int epoch : values.keySet()) {
+            best = better(values.get(epoch), best, smallerIsBetter);
+            trial.bestByEpoch.put(epoch, best);
+        }
+    }
+
+    /**
+     * Read the values of a metric, by epoch, from a performance log written by PerformanceLogger. The header of the
+     * log repeats the epoch and trainingScore columns before the metric names, while rows only have them once.
+     */
+    static Int2DoubleSortedMap readMetric(File perfLog, String metricName) throws IOException {
+        Int2DoubleSortedMap values = new Int2DoubleAVLTreeMap();
+        try (BufferedReader reader = new BufferedReader(new FileReader(perfLog))) {
+            String header = reader.readLine();
+            if (header == null) {
+                return values;
+            }
+            List<String> names = new ObjectArrayList<>(header.split("\t"));
+            if (names.size() <= 3) {
+                // the header is being written:
+                return values;
+            }
+            // numExamplesUsed, epoch and trainingScore:
+            names = names.subList(3, names.size());
+            if (names.size() >= 2 && names.get(0).equals("epoch") && names.get(1).equals("trainingScore")) {
+                names = names.subList(2, names.size());
+            }
+            int metricIndex = names.indexOf(metricName);
+            if (metricIndex == -1) {
+                throw new IOException("Metric " + metricName + " not found in " + perfLog);
+            }
+            String line;
+            while ((line = reader.readLine()) != null) {
+                String[] tokens = line.split("\t");
+                if (tokens.length <= 3 + metricIndex) {
+                    // the log is being written:
+                    continue;
+                }
+                values.put(Integer.parseInt(tokens[1]), Double.parseDouble(tokens[3 + metricIndex]));
+            }
+        }
+        return values;
+    }
+
+    /**
+     * Return the better of two metric values. NaN is worse than any value.
+     */
+    static double better(double a, double b, boolean smallerIsBetter) {
+        if (Double.isNaN(a)) {
+            return b;
+        }
+        if (Double.isNaN(b)) {
+            return a;
+        }
+        return smallerIsBetter ? Math.min(a, b) : Math.max(a, b);
+    }
+
+    /**
+     * Decide if a trial should be stopped with the median stopping rule.
+     *
+     * @param trial                a running trial.
+     * @param trials               all the trials of the search.
+     * @param minEpochs            number of epochs before the trial can be stopped.
+     * @param minTrialsForStopping number of other trials that must have reached the epoch of the trial.
+     * @param smallerIsBetter      true when smaller values of the metric are better.
+     * @return true when the best value of the trial is worse than the median of the other trials at its last epoch.
+     */
+    static boolean shouldStop(Trial trial, List<Trial> trials, int minEpochs, int minTrialsForStopping,
+                              boolean smallerIsBetter) {
+        int epoch = trial.lastEpoch();
+        if (epoch + 1 < minEpochs) {
+            return false;
+        }
+        DoubleList others = new DoubleArrayList();
+        for (Trial other : trials) {
+            if (other != trial && other.bestByEpoch.containsKey(epoch)) {
+                others.add(other.bestByEpoch.get(epoch));
+            }
+        }
+        if (others.size() < minTrialsForStopping) {
+            return false;
+        }
+        double median = median(others, smallerIsBetter);
+        double value = trial.bestValue();
+        return Double.isNaN(value) || better(value, median, smallerIsBetter) != value;
+    }
+
+    /**
+     * Return the median of values, with NaN values ranked as the worst.
+     */
+    static double median(DoubleList values, boolean smallerIsBetter) {
+        double worst = smallerIsBetter ? Double.POSITIVE_INFINITY : Double.NEGATIVE_INFINITY;
+        double[] sorted = new double[values.size()];
+        for (int i = 0; i < sorted.length; i++) {
+            double value = values.getDouble(i);
+            sorted[i] = Double.isNaN(value) ? worst : value;
+        }
+        Arrays.sort(sorted);
+        int middle = sorted.length / 2;
+        return sorted.length % 2 == 1 ? sorted[middle] : (sorted[middle - 1] + sorted[middle]) / 2;
+    }
+
+    /**
+     * Write the trials, best first.
+     */
+    void writeSummary(List<Trial> trials, File summaryFile) throws IOException {
+        List<Trial> ranked = new ObjectArrayList<>(trials);
+        Comparator<Trial> byValue = Comparator.comparingDouble(trial -> {
+            double value = trial.bestValue();
+            return Double.isNaN(value) ? Double.POSITIVE_INFINITY : args().smallerIsBetter ? value : -value;
+        });
+        ranked.sort(byValue);
+        try (PrintWriter writer = new PrintWriter(new FileWriter(summaryFile))) {
+            writer.printf("rank\ttrial\tstatus\tbest_%s\tepochs\tmodelDirectory\targuments%n", args().metricName);
+            int rank = 1;
+            for (Trial trial : ranked) {
+                writer.printf("%d\t%d\t%s\t%f\t%d\t%s\t%s%n", rank++, trial.index, trial.status.name().toLowerCase(),
+                        trial.bestValue(), trial.lastEpoch() + 1, trial.modelDirectory, trial.arguments);
+            }
+        }
+        System.out.println("Summary written to " + summaryFile);
+    }
+}
@@ -0,0 +1,57 @@
+package org.campagnelab.dl.framework.tools;
+
+import com.beust.jcommander.Parameter;
+import com.beust.jcommander.Parameters;
+import org.campagnelab.dl.framework.tools.arguments.ToolArguments;
+
+/**
+ * Arguments for HyperParameterSearch.
+ */
+@Parameters(commandDescription = "Run random hyper-parameter search trials of a TrainModel tool in parallel on local cores, stop unpromising trials early and rank the trials.")
+public class HyperParameterSearchArguments implements ToolArguments {
+
+    @Parameter(names = "--config", description = "Path to the argument configuration file, in the ArgGenerator format.", required = true)
+    public String argConfig;
+
+    @Parameter(names = "--trainer", description = "Fully qualified classname of the TrainModel tool to run for each trial, e.g., org.campagnelab.dl.genotype.learning.TrainModelG.", required = true)
+    public String trainerClassname;
+
+    @Parameter(names = "--trainer-arguments", description = "Arguments passed to every trial, such as training and validation sets, in addition to the sampled arguments.", required = true)
+    public String trainerArguments;
+
+    @Parameter(names = "--num-trials", description = "Number of trials, each with arguments sampled from the configuration.")
+    public int numTrials = 20;
+
+    @Parameter(names = "--parallel-trials", description = "Number of trials run at the same time. Defaults to the number of cores divided by --threads-per-trial.")
+    public Integer parallelTrials;
+
+    @Parameter(names = "--threads-per-trial", description = "Number of native threads (OMP_NUM_THREADS) each trial may use.")
+    public int threadsPerTrial = 2;
+
+    @Parameter(names = "--jvm-arguments", description = "JVM arguments of the trial processes.")
+    public String jvmArguments = "-Xmx4g";
+
+    @Parameter(names = "--metric", description = "Name of the validation metric used to stop and rank trials, as logged by PerformanceLogger.")
+    public String metricName = "AUC";
+
+    @Parameter(names = "--smaller-is-better", description = "Use when smaller values of the metric are better, as for score.")
+    public boolean smallerIsBetter;
+
+    @Parameter(names = "--min-epochs", description = "Trials are not stopped before they were validated after this number of epochs.")
+    public int minEpochs = 2;
+
+    @Parameter(names = "--min-trials-for-stopping", description = "A trial is compared to the other trials at the same epoch only when at least this number of other trials reached that epoch.")
+    public int minTrialsForStopping = 3;
+
+    @Parameter(names = "--skip-cache-build", description = "Do not build the .cf cache of the training set before starting trials. Use when the cache already exists.")
+    public boolean skipCacheBuild;
+
+    @Parameter(names = "--poll-seconds", description = "Interval between two checks of the performance logs of running trials.")
+    public int pollSeconds = 10;
+
+    @Parameter(names = "--output-directory", description = "Directory where trial logs and the summary are written.")
+    public String outputDirectory = "hyper-parameter-search";
+
+    @Parameter(names = "--seed", description = "Random seed used to sample trial arguments.")
+    public long seed = 2389283;
+}
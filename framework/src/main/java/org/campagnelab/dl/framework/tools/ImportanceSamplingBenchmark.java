@@ -0,0 +1,123 @@
+package org.campagnelab.dl.framework.tools;
+
+import it.unimi.dsi.fastutil.objects.ObjectArrayList;
+import org.campagnelab.dl.framework.iterators.ImportanceSamplingIterator;
+import org.campagnelab.dl.framework.iterators.SyntheticMultiDataSetIterator;
+import org.campagnelab.dl.framework.iterators.cache.MappedFeaturesCache;
+import org.campagnelab.dl.framework.performance.AreaUnderTheROCCurve;
+import org.campagnelab.dl.framework.tools.arguments.AbstractTool;
+import org.deeplearning4j.nn.graph.ComputationGraph;
+import org.nd4j.linalg.api.ndarray.INDArray;
+import org.nd4j.linalg.dataset.api.MultiDataSet;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.List;
+
+/**
+ * Measures how long training takes to reach a target AUC when minibatches are drawn uniformly, and when examples are
+ * drawn in proportion to their loss in the last forward pass (see {@link ImportanceSamplingIterator}). Both
+ * strategies train the same network, from the same initial weights, on the same synthetic binary classification
+ * dataset. The time spent estimating the AUC after each epoch is not counted.
+ */
+public class ImportanceSamplingBenchmark extends AbstractTool<ImportanceSamplingBenchmarkArguments> {
+
+    public static void main(String[] args) {
+        ImportanceSamplingBenchmark tool = new ImportanceSamplingBenchmark();
+        tool.parseArguments(args, "ImportanceSamplingBenchmark", tool.createArguments());
+        tool.execute();
+    }
+
+    @Override
+    public ImportanceSamplingBenchmarkArguments createArguments() {
+        return new ImportanceSamplingBenchmarkArguments();
+    }
+
+    @Override
+    public void execute() {
+        // generate training and validation examples together, so that they share the class centroids:
+        SyntheticMultiDataSetIterator dataset = new SyntheticMultiDataSetIterator(args().numExamples + args().numValidation,
+                args().numFeatures, 2, args().miniBatchSize, args().noise, args().seed);
+        int numTrainingMinibatches = (args().numExamples + args().miniBatchSize - 1) / args().miniBatchSize;
+        List<MultiDataSet> training = new ObjectArrayList<>();
+        List<MultiDataSet> validation = new ObjectArrayList<>();
+        while (dataset.hasNext()) {
+            (training.size() < numTrainingMinibatches ? training : validation).add(dataset.next());
+        }
+        double[] uniform;
+        double[] importance;
+        try {
+            // both strategies sample the training examples from a .cf cache, as training does:
+            File cacheDirectory = Files.createTempDirectory("importance-sampling").toFile();
+            cacheDirectory.deleteOnExit();
+            String cacheBasename = new File(cacheDirectory, "training").getPath();
+            MappedFeaturesCache.write(training.iterator(), cacheBasename);
+            new File(cacheBasename + ".cf").deleteOnExit();
+            new File(cacheBasename + ".cfp").deleteOnExit();
+            training.clear();
+            System.out.println("sampling\tepoch\tseconds\tAUC");
+            uniform = benchmark("uniform", new ImportanceSamplingIterator(cacheBasename, args().miniBatchSize, 1,
+                    args().seed), false, validation);
+            importance = benchmark("importance", new ImportanceSamplingIterator(cacheBasename, args().miniBatchSize,
+                    args().uniformFraction, args().seed), true, validation);
+        } catch (IOException e) {
+            throw new RuntimeException("Unable to write the training examples to a cache", e);
+        }
+        System.out.println();
+        System.out.println("sampling\tepochs-to-target\tseconds-to-target\tbest-AUC");
+        report("uniform", uniform);
+        report("importance", importance);
+    }
+
+    /**
+     * Train until the target AUC is reached.
+     *
+     * @return {epochs, seconds, best AUC}, with NaN epochs and seconds if the target was not reached.
+     */
+    private double[] benchmark(String samplingName, ImportanceSamplingIterator iterator, boolean updateWeights,
+                               List<MultiDataSet> validation) {
+        ComputationGraph graph = TrainerBenchmark.createGraph(args().seed, args().numFeatures, args().numLayers,
+                args().numHiddenNodes, 2);
+        long trainingMillis = 0;
+        double bestAUC = 0;
+        for (int epoch = 1; epoch <= args().maxEpochs; epoch++) {
+            long start = System.currentTimeMillis();
+            iterator.reset();
+            while (iterator.hasNext()) {
+                MultiDataSet ds = iterator.next();
+                graph.fit(ds);
+                if (updateWeights) {
+                    iterator.updateWeights(graph.scoreExamples(ds, false));
+                }
+            }
+            trainingMillis += System.currentTimeMillis() - start;
+            double auc = estimateAUC(graph, validation);
+            bestAUC = Math.max(bestAUC, auc);
+            double seconds = trainingMillis / 1000.0;
+            System.out.printf("%s\t%d\t%.1f\t%f%n", samplingName, epoch, seconds, auc);
+            if (auc >= args().targetAUC) {
+                return new double[]{epoch, seconds, bestAUC};
+            }
+        }
+        return new double[]{Double.NaN, Double.NaN, bestAUC};
+    }
+
+    private double estimateAUC(ComputationGraph graph, List<MultiDataSet> validation) {
+        AreaUnderTheROCCurve auc = new AreaUnderTheROCCurve();
+        for (MultiDataSet ds : validation) {
+            INDArray predicted = graph.outputSingle(ds.getFeatures(0));
+            INDArray labels = ds.getLabels(0);
+            for (int i = 0; i < predicted.rows(); i++) {
+                auc.observe(predicted.getDouble(i, 1), labels.getDouble(i, 1) == 1 ? 1 : -1);
+            }
+        }
+        return auc.evaluateStatistic();
+    }
+
+    private void report(String samplingName, double[] result) {
+        System.out.printf("%s\t%s\t%s\t%f%n", samplingName,
+                Double.isNaN(result[0]) ? "not reached" : String.format("%.0f", result[0]),
+                Double.isNaN(result[1]) ? "not reached" : String.format("%.1f", result[1]), result[2]);
+    }
+}
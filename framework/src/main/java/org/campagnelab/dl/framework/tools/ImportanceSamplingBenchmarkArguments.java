@@ -0,0 +1,45 @@
+package org.campagnelab.dl.framework.tools;
+
+import com.beust.jcommander.Parameter;
+import com.beust.jcommander.Parameters;
+import org.campagnelab.dl.framework.tools.arguments.ToolArguments;
+
+/**
+ * Arguments for ImportanceSamplingBenchmark.
+ */
+@Parameters(commandDescription = "Compare the time needed to reach a target AUC with uniform and importance sampling, on a synthetic dataset.")
+public class ImportanceSamplingBenchmarkArguments implements ToolArguments {
+
+    @Parameter(names = "--num-examples", description = "Number of training examples in the synthetic dataset.")
+    public int numExamples = 20000;
+
+    @Parameter(names = "--num-validation", description = "Number of validation examples used to estimate the AUC after each epoch.")
+    public int numValidation = 5000;
+
+    @Parameter(names = "--num-features", description = "Number of features per example.")
+    public int numFeatures = 50;
+
+    @Parameter(names = "--noise", description = "Standard deviation of the noise added to class centroids. Larger values make the dataset harder.")
+    public double noise = 4.0;
+
+    @Parameter(names = "--num-hidden-nodes", description = "Number of hidden nodes in each of the dense layers.")
+    public int numHiddenNodes = 64;
+
+    @Parameter(names = "--num-layers", description = "Number of dense layers.")
+    public int numLayers = 2;
+
+    @Parameter(names = "--mini-batch-size", description = "The size of the training minibatch.")
+    public int miniBatchSize = 32;
+
+    @Parameter(names = "--target-auc", description = "AUC on the validation examples at which training is stopped.")
+    public double targetAUC = 0.95;
+
+    @Parameter(names = "--max-epochs", description = "Maximum number of epochs, for each sampling strategy.")
+    public int maxEpochs = 20;
+
+    @Parameter(names = "--uniform-fraction", description = "Fraction of the examples of each minibatch drawn uniformly when sampling by loss.")
+    public double uniformFraction = 0.1;
+
+    @Parameter(names = {"-s", "--random-seed"}, description = "The random seed used to generate the dataset, sample examples and initialize network weights.")
+    public long seed = 1;
+}
@@ -74,7 +74,7 @@ public abstract class Predict<RecordType> extends ConditionRecordingTool<Predict
                 File dir = new File(resultPath);
                 // attempt to create the directory here
                 dir.mkdirs();
-                String testSetName = FilenameUtils.getBaseName(args().testSet);
+                String testSetName = getTestSetName();
                 String resultFilename = String.format("%s/%s-%s-%s-%s.tsv", resultPath, modelTime, args().modelName,
                         args().type, testSetName);
                 System.out.println("Writing predictions to " + resultFilename);
@@ -150,9 +150,9 @@ public abstract class Predict<RecordType> extends ConditionRecordingTool<Predict
         PredictWith<RecordType> predictor = args().vecPath != null ? new PredictWithVecFile<RecordType>(domainDescriptor, args().vecPath) :
                 new PredictWithModel<RecordType>(domainDescriptor, model);
 
-        Iterable<RecordType> apply = domainDescriptor.getRecordIterable().apply(evaluationDataFilename);
+        Iterable<RecordType> apply = getRecordIterable(evaluationDataFilename);
         Iterable<RecordType> itAdapter = Iterables.limit(apply, args().scoreN);
-        Iterable<RecordType> recordsIterable = Iterables.limit(domainDescriptor.getRecordIterable().apply(evaluationDataFilename), args().scoreN);
+        Iterable<RecordType> recordsIterable = Iterables.limit(getRecordIterable(evaluationDataFilename), args().scoreN);
 
         initializeStats(prefix);
         writeHeader(resutsWriter);
@@ -162,10 +162,10 @@ public abstract class Predict<RecordType> extends ConditionRecordingTool<Predict
                         miniBatchSize, domainDescriptor, false, null) {
                     @Override
                     public String getBasename() {
-                        return FilenameUtils.getBaseName(args().testSet);
+                        return getTestSetName();
                     }
                 };
-        MultiDataSetIterator adapterCached = args().noCache ? adapter :
+        MultiDataSetIterator adapterCached = !useCache() ? adapter :
                 cacheHelper.cache(domainDescriptor,
                         adapter, adapter.getBasename(),
                         args().scoreN, args().miniBatchSize);
@@ -227,6 +227,33 @@ public abstract class Predict<RecordType> extends ConditionRecordingTool<Predict
         modelLoader.writeTestCount(totalRecords);
     }
 
+    /**
+     * Determine if the features of the test set are mapped through a cache (.cf/.cfp). Subclasses can override this
+     * method to disable the cache when they predict only some records of the test set.
+     */
+    protected boolean useCache() {
+        return !args().noCache;
+    }
+
+    /**
+     * Return the name of the test set, used to name output files and the cache of the test set. Subclasses that
+     * predict only some records of the test set must return a name specific to these records.
+     */
+    protected String getTestSetName() {
+        return FilenameUtils.getBaseName(args().testSet);
+    }
+
+    /**
+     * Return the records to predict. Subclasses can override this method to restrict predictions to some records
+     * of the test set.
+     *
+     * @param evaluationDataFilename path of the test set.
+     * @return the records to predict, in order.
+     */
+    protected Iterable<RecordType> getRecordIterable(String evaluationDataFilename) {
+        return domainDescriptor.getRecordIterable().apply(evaluationDataFilename);
+    }
+
     /**
      * This method is called after the test set has been observed and statistics evaluated via processPredictions.
      * It sets statistics on the whole test set, which are then written tab-delimited to a file.
@@ -15,7 +15,7 @@ import org.campagnelab.dl.framework.iterators.MultiDataSetIteratorAdapter;
 import org.campagnelab.dl.framework.iterators.cache.CacheHelper;
 import org.campagnelab.dl.framework.iterators.cache.FullyInMemoryCache;
 import org.campagnelab.dl.framework.mappers.FeatureMapper;
-import org.campagnelab.dl.framework.mixup.MixupMultiDataSetPreProcessor;
+import org.campagnelab.dl.framework.mixup.BatchMixupMultiDataSetPreProcessor;
 import org.campagnelab.dl.framework.models.ComputationGraphSaver;
 import org.campagnelab.dl.framework.models.ModelLoader;
 import org.campagnelab.dl.framework.models.ModelPropertiesHelper;
@@ -23,7 +23,7 @@ import org.campagnelab.dl.framework.performance.Metric;
 import org.campagnelab.dl.framework.performance.PerformanceLogger;
 import org.campagnelab.dl.framework.performance.PerformanceMetricDescriptor;
 import org.campagnelab.dl.framework.tools.arguments.ConditionRecordingTool;
-import org.campagnelab.dl.framework.training.ParallelTrainerOnGPU;
+import org.campagnelab.dl.framework.training.ParallelTrainer;
 import org.campagnelab.dl.framework.training.SequentialTrainer;
 import org.campagnelab.dl.framework.training.Trainer;
 import org.campagnelab.dl.framework.training.WrapInAsyncAttach;
@@ -329,7 +329,7 @@ public abstract class TrainModel<RecordType> extends ConditionRecordingTool<Trai
         }
 
         if (args().mixupAlpha != null) {
-            iterator.setPreProcessor(new MixupMultiDataSetPreProcessor(args().seed, args().mixupAlpha));
+            iterator.setPreProcessor(new BatchMixupMultiDataSetPreProcessor(args().seed, args().mixupAlpha));
         }
         final long numRecords = Math.min(args().numTraining, domainDescriptor.getNumRecords(args().getTrainingSets()));
         int miniBatchesPerEpoch = (int) (numRecords / args().miniBatchSize);
@@ -359,8 +359,8 @@ public abstract class TrainModel<RecordType> extends ConditionRecordingTool<Trai
                 System.out.println("Unsupported tracking style: " + args().trackingStyle);
         }
 
-        Trainer trainer = args().parallel ? new ParallelTrainerOnGPU(computationGraph, args().miniBatchSize,
-                (int) numRecords) :
+        Trainer trainer = args().parallel ? new ParallelTrainer(computationGraph, args().miniBatchSize,
+                (int) numRecords, args().parallelWorkers, args().parallelPrefetchBuffer, args().parallelAveragingFrequency) :
                 new SequentialTrainer();
         trainer.setLogSpeed(args().trackingStyle == TrainingArguments.TrackStyle.SPEED);
         // only wrap the iterator in async for sequential trainer:
@@ -383,8 +383,8 @@ public abstract class TrainModel<RecordType> extends ConditionRecordingTool<Trai
             writeBestScoreFile();
             if ((epoch + 1) % args().validateEvery == 0) {
 
-                // estimate all performance metrics. Note that we do a pass over the validation set for each metric:
-                // (avoid using several metrics).
+                // estimate all performance metrics. Domains that override the multi-metric estimateMetric do this in
+                // one pass over the validation set, otherwise the default implementation does one pass per metric.
                 double validationMetricValue = initializePerformance(perfDescriptor, perfDescriptor.earlyStoppingMetric());
                 DoubleArrayList metricValues = new DoubleArrayList();
 
@@ -0,0 +1,126 @@
+package org.campagnelab.dl.framework.tools;
+
+import it.unimi.dsi.logging.ProgressLogger;
+import org.campagnelab.dl.framework.iterators.SyntheticMultiDataSetIterator;
+import org.campagnelab.dl.framework.tools.arguments.AbstractTool;
+import org.campagnelab.dl.framework.training.ParallelTrainer;
+import org.campagnelab.dl.framework.training.SequentialTrainer;
+import org.campagnelab.dl.framework.training.Trainer;
+import org.campagnelab.dl.framework.training.WrapInAsyncAttach;
+import org.deeplearning4j.nn.api.OptimizationAlgorithm;
+import org.deeplearning4j.nn.conf.ComputationGraphConfiguration;
+import org.deeplearning4j.nn.conf.NeuralNetConfiguration;
+import org.deeplearning4j.nn.conf.Updater;
+import org.deeplearning4j.nn.conf.layers.DenseLayer;
+import org.deeplearning4j.nn.conf.layers.OutputLayer;
+import org.deeplearning4j.nn.graph.ComputationGraph;
+import org.deeplearning4j.nn.weights.WeightInit;
+import org.nd4j.linalg.dataset.api.iterator.MultiDataSetIterator;
+import org.nd4j.linalg.lossfunctions.impl.LossMCXENT;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Measures training throughput of SequentialTrainer and ParallelTrainer on a synthetic dataset held in memory.
+ * Use this tool to decide if data-parallel training helps on a given machine and ND4J backend (CPU or GPU), and
+ * how many workers to use with --parallel-workers.
+ */
+public class TrainerBenchmark extends AbstractTool<TrainerBenchmarkArguments> {
+    static private Logger LOG = LoggerFactory.getLogger(TrainerBenchmark.class);
+
+    public static void main(String[] args) {
+        TrainerBenchmark tool = new TrainerBenchmark();
+        tool.parseArguments(args, "TrainerBenchmark", tool.createArguments());
+        tool.execute();
+    }
+
+    @Override
+    public TrainerBenchmarkArguments createArguments() {
+        return new TrainerBenchmarkArguments();
+    }
+
+    @Override
+    public void execute() {
+        SyntheticMultiDataSetIterator dataset = new SyntheticMultiDataSetIterator(args().numExamples,
+                args().numFeatures, args().numLabels, args().miniBatchSize, 2.0, args().seed);
+        List<Integer> workers = new ArrayList<>(args().parallelWorkers);
+        if (workers.isEmpty()) {
+            workers.add(ParallelTrainer.defaultNumWorkers());
+        }
+        System.out.printf("Backend: %s, %d cores available.%n", ParallelTrainer.isCpuBackend() ? "CPU" : "GPU",
+                Runtime.getRuntime().availableProcessors());
+        System.out.println("trainer\tworkers\tepochs\texamples\tseconds\texamples/s\tscore");
+
+        ComputationGraph graph = createGraph();
+        SequentialTrainer sequential = new SequentialTrainer();
+        report("sequential", 1, benchmark(graph, sequential, WrapInAsyncAttach.wrap(dataset)), sequential);
+
+        for (int numWorkers : workers) {
+            graph = createGraph();
+            ParallelTrainer parallel = new ParallelTrainer(graph, args().miniBatchSize, dataset.getNumExamples(),
+                    numWorkers, args().parallelPrefetchBuffer, args().parallelAveragingFrequency);
+            try {
+                report("parallel", numWorkers, benchmark(graph, parallel, dataset), parallel);
+            } finally {
+                parallel.shutdown();
+            }
+        }
+    }
+
+    private long[] benchmark(ComputationGraph graph, Trainer trainer, MultiDataSetIterator iterator) {
+        ProgressLogger pg = new ProgressLogger(LOG);
+        pg.itemsName = "mini-batch";
+        // one untimed epoch to warm up the JIT and the backend:
+        iterator.reset();
+        trainer.train(graph, iterator, pg);
+        long numExamples = 0;
+        long start = System.currentTimeMillis();
+        for (int epoch = 0; epoch < args().numEpochs; epoch++) {
+            iterator.reset();
+            numExamples += trainer.train(graph, iterator, pg);
+        }
+        return new long[]{numExamples, System.currentTimeMillis() - start};
+    }
+
+    private void report(String trainerName, int numWorkers, long[] result, Trainer trainer) {
+        double seconds = result[1] / 1000.0;
+        System.out.printf("%s\t%d\t%d\t%d\t%.1f\t%.1f\t%f%n", trainerName, numWorkers, args().numEpochs, result[0],
+                seconds, result[0] / seconds, trainer.getScore());
+    }
+
+    private ComputationGraph createGraph() {
+        return createGraph(args().seed, args().numFeatures, args().numLayers, args().numHiddenNodes, args().numLabels);
+    }
+
+    /**
+     * Create a graph of dense layers with a softmax output, to train on a synthetic dataset.
+     */
+    static ComputationGraph createGraph(long seed, int numFeatures, int numLayers, int numHiddenNodes, int numLabels) {
+        ComputationGraphConfiguration.GraphBuilder builder = new NeuralNetConfiguration.Builder()
+                .seed(seed)
+                .iterations(1)
+                .optimizationAlgo(OptimizationAlgorithm.STOCHASTIC_GRADIENT_DESCENT)
+                .learningRate(0.01)
+                .updater(Updater.ADAGRAD)
+                .weightInit(WeightInit.XAVIER)
+                .graphBuilder().addInputs("input");
+        String previous = "input";
+        int numInputs = numFeatures;
+        for (int i = 1; i <= numLayers; i++) {
+            String name = "dense" + i;
+            builder.addLayer(name, new DenseLayer.Builder().nIn(numInputs).nOut(numHiddenNodes)
+                    .activation("relu").build(), previous);
+            previous = name;
+            numInputs = numHiddenNodes;
+        }
+        builder.addLayer("output", new OutputLayer.Builder(new LossMCXENT())
+                .activation("softmax").nIn(numInputs).nOut(numLabels).build(), previous);
+        ComputationGraphConfiguration conf = builder.setOutputs("output").pretrain(false).backprop(true).build();
+        ComputationGraph graph = new ComputationGraph(conf);
+        graph.init();
+        return graph;
+    }
+}
@@ -0,0 +1,49 @@
+package org.campagnelab.dl.framework.tools;
+
+import com.beust.jcommander.Parameter;
+import com.beust.jcommander.Parameters;
+import org.campagnelab.dl.framework.tools.arguments.ToolArguments;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Arguments for TrainerBenchmark.
+ */
+@Parameters(commandDescription = "Compare the training throughput of the sequential and parallel trainers on a synthetic dataset.")
+public class TrainerBenchmarkArguments implements ToolArguments {
+
+    @Parameter(names = "--num-examples", description = "Number of examples in the synthetic dataset.")
+    public int numExamples = 100000;
+
+    @Parameter(names = "--num-features", description = "Number of features per example.")
+    public int numFeatures = 500;
+
+    @Parameter(names = "--num-labels", description = "Number of classes to predict.")
+    public int numLabels = 3;
+
+    @Parameter(names = "--num-hidden-nodes", description = "Number of hidden nodes in each of the dense layers.")
+    public int numHiddenNodes = 500;
+
+    @Parameter(names = "--num-layers", description = "Number of dense layers.")
+    public int numLayers = 3;
+
+    @Parameter(names = "--mini-batch-size", description = "The size of the training minibatch.")
+    public int miniBatchSize = 32;
+
+    @Parameter(names = "--num-epochs", description = "Number of epochs to train with each trainer.")
+    public int numEpochs = 3;
+
+    @Parameter(names = "--parallel-workers", variableArity = true, description = "Number of parallel workers to benchmark. " +
+            "Several values can be given to compare configurations. Defaults to the trainer default for the backend.")
+    public List<Integer> parallelWorkers = new ArrayList<>();
+
+    @Parameter(names = "--parallel-prefetch-buffer", description = "Number of minibatches prefetched for the parallel workers.")
+    public Integer parallelPrefetchBuffer = null;
+
+    @Parameter(names = "--parallel-averaging-frequency", description = "Number of minibatches between parameter averaging.")
+    public Integer parallelAveragingFrequency = null;
+
+    @Parameter(names = {"-s", "--random-seed"}, description = "The random seed used to generate the dataset and initialize network weights.")
+    public long seed = 1;
+}
@@ -112,9 +112,23 @@ public abstract class TrainingArguments extends RecordingToolArguments {
     @Parameter(names = "--gpu-device", description = "Index of the GPU to use for training (0,1, up to the number of GPUs in the server).")
     public Integer deviceIndex = null;
 
-    @Parameter(names = "--parallel", description = "When provided, trains on several GPUs in parallel.")
+    @Parameter(names = "--parallel", description = "When provided, trains with several workers in parallel. Workers use one " +
+            "GPU each with the CUDA backend, or several CPU cores each with the native CPU backend. Parameters of the workers " +
+            "are averaged periodically (see --parallel-averaging-frequency).")
     public boolean parallel;
 
+    @Parameter(names = "--parallel-workers", description = "Number of parallel workers when --parallel is used. Defaults to " +
+            "4 with GPUs, or to one worker per four cores on CPU. Overrides the framework.parallelWrapper.numWorkers property.")
+    public Integer parallelWorkers = null;
+
+    @Parameter(names = "--parallel-prefetch-buffer", description = "Number of minibatches prefetched for the parallel workers. " +
+            "Overrides the framework.parallelWrapper.prefetchBuffer property.")
+    public Integer parallelPrefetchBuffer = null;
+
+    @Parameter(names = "--parallel-averaging-frequency", description = "Number of minibatches each worker trains on before " +
+            "parameters are averaged across workers. Overrides the framework.parallelWrapper.averagingFrequency property.")
+    public Integer parallelAveragingFrequency = null;
+
     protected abstract String defaultArchitectureClassname();
 
     @Parameter(names = "--build-cache-then-stop", description = "When provided, build the caches, then immediately stop.")
@@ -0,0 +1,151 @@
+package org.campagnelab.dl.framework.training;
+
+import it.unimi.dsi.logging.ProgressLogger;
+import org.deeplearning4j.nn.api.Model;
+import org.deeplearning4j.nn.graph.ComputationGraph;
+import org.deeplearning4j.optimize.api.IterationListener;
+import org.deeplearning4j.optimize.listeners.PerformanceListener;
+import org.deeplearning4j.parallelism.ParallelWrapper;
+import org.nd4j.linalg.dataset.api.iterator.MultiDataSetIterator;
+import org.nd4j.linalg.factory.Nd4j;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Data-parallel trainer. Each worker trains a replica of the graph on its own minibatches and parameters are
+ * averaged across replicas every averagingFrequency minibatches. Workers are assigned to GPU devices with the CUDA
+ * backend, and run on separate CPU cores with the native (CPU) backend.
+ */
+public class ParallelTrainer implements Trainer {
+    static private Logger LOG = LoggerFactory.getLogger(ParallelTrainer.class);
+
+    private final IterationListener perListener = new PerformanceListener(1) {
+        private int numNanEncounteredConsecutively;
+
+        @Override
+        public void iterationDone(Model model, int iteration) {
+            double scoreLocal = model.score();
+            // the listener is called by every worker:
+            synchronized (ParallelTrainer.this) {
+                if (scoreLocal != scoreLocal) {
+                    numNanEncounteredConsecutively++;
+                } else {
+                    numNanEncounteredConsecutively = 0;
+                    score += scoreLocal;
+                    n++;
+                }
+                if (numNanEncounteredConsecutively > 100) {
+                    LOG.error("Nan score encountered too many consecutive times");
+                    wrapper.stopFit();
+                }
+            }
+        }
+    };
+    ParallelWrapper wrapper;
+    int numExamplesPerIterator;
+    int miniBatchSize;
+    private boolean logSpeed;
+    private double score;
+    private int n;
+
+    /**
+     * Create a parallel trainer configured with the framework.parallelWrapper.* system properties, or with
+     * defaults suitable for the ND4J backend in use.
+     */
+    public ParallelTrainer(ComputationGraph graph, int miniBatchSize, int totalExamplesPerIterator) {
+        this(graph, miniBatchSize, totalExamplesPerIterator, null, null, null);
+    }
+
+    /**
+     * Create a parallel trainer.
+     *
+     * @param graph                    graph to train.
+     * @param miniBatchSize            size of the minibatches returned by the training iterator.
+     * @param totalExamplesPerIterator number of examples in one pass over the training iterator.
+     * @param numWorkers               number of workers, or null for the default.
+     * @param prefetchBuffer           number of minibatches to prefetch, or null for the default.
+     * @param averagingFrequency       number of minibatches between parameter averaging, or null for the default.
+     */
+    public ParallelTrainer(ComputationGraph graph, int miniBatchSize, int totalExamplesPerIterator,
+                           Integer numWorkers, Integer prefetchBuffer, Integer averagingFrequency) {
+        if (numWorkers == null) {
+            numWorkers = getIntProperty("framework.parallelWrapper.numWorkers", defaultNumWorkers());
+        }
+        if (prefetchBuffer == null) {
+            prefetchBuffer = getIntProperty("framework.parallelWrapper.prefetchBuffer", 12 * numWorkers);
+        }
+        if (averagingFrequency == null) {
+            averagingFrequency = getIntProperty("framework.parallelWrapper.averagingFrequency", 3);
+        }
+        System.out.printf("Parallel training with %d workers (%s backend), prefetch buffer: %d, averaging frequency: %d%n",
+                numWorkers, isCpuBackend() ? "CPU" : "GPU", prefetchBuffer, averagingFrequency);
+        wrapper = new ParallelWrapper.Builder<>(graph)
+                .prefetchBuffer(prefetchBuffer)
+                .workers(numWorkers)
+                .averagingFrequency(averagingFrequency)
+                .reportScoreAfterAveraging(false)
+                // .useLegacyAveraging(true)
+                .build();
+        wrapper.setListeners(perListener);
+
+        this.numExamplesPerIterator = totalExamplesPerIterator;
+        this.miniBatchSize = miniBatchSize;
+    }
+
+    /**
+     * Default number of workers. Four workers with GPUs, as ParallelTrainerOnGPU used. On CPU, each worker also runs
+     * its operations with several native threads, so we start one worker per four cores.
+     *
+     * @return default number of workers.
+     */
+    public static int defaultNumWorkers() {
+        if (isCpuBackend()) {
+            return Math.max(1, Runtime.getRuntime().availableProcessors() / 4);
+        }
+        return 4;
+    }
+
+    /**
+     * Determine if ND4J runs on the native CPU backend.
+     *
+     * @return True for the CPU backend, false for CUDA.
+     */
+    public static boolean isCpuBackend() {
+        return !Nd4j.getBackend().getClass().getName().toLowerCase().contains("cuda");
+    }
+
+    private static int getIntProperty(String key, int defaultValue) {
+        String value = System.getProperty(key);
+        return value != null ? Integer.parseInt(value) : defaultValue;
+    }
+
+    @Override
+    public int train(ComputationGraph graph, MultiDataSetIterator iterator, ProgressLogger pg) {
+        synchronized (this) {
+            score = 0;
+            n = 0;
+        }
+        wrapper.fit(iterator);
+        if (logSpeed) {
+            pg.update(numExamplesPerIterator);
+        }
+        return numExamplesPerIterator;
+    }
+
+    @Override
+    public void setLogSpeed(boolean logSpeed) {
+        this.logSpeed = logSpeed;
+    }
+
+    @Override
+    public synchronized double getScore() {
+        return score / (double) n;
+    }
+
+    /**
+     * Stop the workers. The trainer cannot be used after this method is called.
+     */
+    public void shutdown() {
+        wrapper.shutdown();
+    }
+}
@@ -0,0 +1,76 @@
+package org.campagnelab.dl.framework.domains;
+
+import com.google.protobuf.CodedOutputStream;
+import org.junit.Test;
+
+import java.io.*;
+import java.nio.file.Files;
+import java.util.zip.GZIPOutputStream;
+
+import static org.junit.Assert.assertEquals;
+
+public class RecordCountHelperTest {
+
+    @Test
+    public void countFromChunks() throws Exception {
+        File dir = Files.createTempDirectory("counts").toFile();
+        File sbi = new File(dir, "test.sbi");
+        writeChunks(sbi, 3, 5, 2);
+        assertEquals(10, RecordCountHelper.countFromChunks(sbi));
+        // no .sbip, the helper must scan the chunks:
+        assertEquals(10, RecordCountHelper.countRecords(new File(dir, "test").getPath()));
+    }
+
+    @Test
+    public void countFromProperties() throws Exception {
+        File dir = Files.createTempDirectory("counts").toFile();
+        File sbi = new File(dir, "test.sbi");
+        writeChunks(sbi, 4);
+        File sbip = new File(dir, "test.sbip");
+        try (Writer writer = new FileWriter(sbip)) {
+            writer.write("numRecords=123\n");
+        }
+        sbip.setLastModified(sbi.lastModified() + 1000);
+        assertEquals(123, RecordCountHelper.countRecords(new String[]{sbi.getPath()}));
+
+        // stale properties are not trusted:
+        sbip.setLastModified(sbi.lastModified() - 10000);
+        assertEquals(4, RecordCountHelper.countRecords(new String[]{sbi.getPath()}));
+    }
+
+    @Test
+    public void unknownLayout() throws Exception {
+        File dir = Files.createTempDirectory("counts").toFile();
+        File sbi = new File(dir, "test.sbi");
+        try (FileOutputStream out = new FileOutputStream(sbi)) {
+            out.write("not a chunked file".getBytes());
+        }
+        assertEquals(RecordCountHelper.UNKNOWN, RecordCountHelper.countRecords(sbi.getPath()));
+    }
+
+    private void writeChunks(File file, int... numRecordsPerChunk) throws IOException {
+        try (DataOutputStream out = new DataOutputStream(new FileOutputStream(file))) {
+            for (int n : numRecordsPerChunk) {
+                ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+                try (GZIPOutputStream gzip = new GZIPOutputStream(bytes)) {
+                    CodedOutputStream coded = CodedOutputStream.newInstance(gzip);
+                    for (int i = 0; i < n; i++) {
+                        coded.writeByteArray(1, new byte[]{8, (byte) i});
+                    }
+                    coded.flush();
+                }
+                writeDelimiter(out);
+                out.writeInt(bytes.size());
+                out.write(bytes.toByteArray());
+            }
+            writeDelimiter(out);
+            out.writeInt(0);
+        }
+    }
+
+    private void writeDelimiter(DataOutputStream out) throws IOException {
+        for (int i = 0; i < 8; i++) {
+            out.writeByte(0xFF);
+        }
+    }
+}
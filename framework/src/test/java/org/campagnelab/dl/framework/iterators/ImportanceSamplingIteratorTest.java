@@ -0,0 +1,103 @@
+package org.campagnelab.dl.framework.iterators;
+
+import it.unimi.dsi.fastutil.objects.ObjectArrayList;
+import org.apache.commons.io.FileUtils;
+import org.campagnelab.dl.framework.iterators.cache.MappedFeaturesCache;
+import org.junit.Before;
+import org.junit.Test;
+import org.nd4j.linalg.api.ndarray.INDArray;
+import org.nd4j.linalg.dataset.api.MultiDataSet;
+import org.nd4j.linalg.factory.Nd4j;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+
+/**
+ * Check that examples are drawn from the cache with their own features and labels, in proportion to their weights.
+ */
+public class ImportanceSamplingIteratorTest {
+    private static final String DIR = "test-results/importance-sampling/";
+    private static final int NUM_EXAMPLES = 10;
+
+    @Before
+    public void setUp() throws IOException {
+        FileUtils.deleteQuietly(new File(DIR));
+        FileUtils.forceMkdir(new File(DIR));
+        MappedFeaturesCache.write(dataset().iterator(), DIR + "dataset");
+    }
+
+    /**
+     * Example i has features [i, i, i] in a 1x3 sequence and label i % 2.
+     */
+    private static List<MultiDataSet> dataset() {
+        List<MultiDataSet> minibatches = new ObjectArrayList<>();
+        for (int start = 0; start < NUM_EXAMPLES; start += 4) {
+            int size = Math.min(4, NUM_EXAMPLES - start);
+            INDArray features = Nd4j.zeros(size, 1, 3);
+            INDArray labels = Nd4j.zeros(size, 2);
+            for (int i = 0; i < size; i++) {
+                for (int t = 0; t < 3; t++) {
+                    features.putScalar(new int[]{i, 0, t}, start + i);
+                }
+                labels.putScalar(i, (start + i) % 2, 1);
+            }
+            minibatches.add(new org.nd4j.linalg.dataset.MultiDataSet(features, labels));
+        }
+        return minibatches;
+    }
+
+    @Test
+    public void drawsWholeExamples() throws IOException {
+        ImportanceSamplingIterator iterator = new ImportanceSamplingIterator(DIR + "dataset", 4, 0, 1);
+        int numReturned = 0;
+        while (iterator.hasNext()) {
+            MultiDataSet ds = iterator.next();
+            int[] indices = iterator.getLastIndices();
+            assertArrayEquals(new int[]{indices.length, 1, 3}, ds.getFeatures(0).shape());
+            for (int i = 0; i < indices.length; i++) {
+                assertEquals(indices[i], ds.getFeatures(0).getDouble(i, 0, 2), 0);
+                assertEquals(1, ds.getLabels(0).getDouble(i, indices[i] % 2), 0);
+            }
+            numReturned += indices.length;
+            assertEquals(numReturned, iterator.cursor());
+        }
+        assertEquals(NUM_EXAMPLES, numReturned);
+        iterator.reset();
+        assertEquals(0, iterator.cursor());
+        assertEquals(4, iterator.next().getFeatures(0).size(0));
+        assertEquals(3, iterator.next(3).getFeatures(0).size(0));
+        assertEquals(3, iterator.getLastIndices().length);
+        assertEquals(7, iterator.cursor());
+    }
+
+    @Test
+    public void drawsInProportionToWeights() throws IOException {
+        ImportanceSamplingIterator iterator = new ImportanceSamplingIterator(DIR + "dataset", 4, 0, 1);
+        // give a zero weight to all examples but 7, as they are drawn:
+        for (int epoch = 0; epoch < 100; epoch++) {
+            iterator.reset();
+            while (iterator.hasNext()) {
+                iterator.next();
+                int[] indices = iterator.getLastIndices();
+                float[] losses = new float[indices.length];
+                for (int i = 0; i < indices.length; i++) {
+                    losses[i] = indices[i] == 7 ? 1 : 0;
+                }
+                iterator.updateWeights(Nd4j.create(losses));
+            }
+        }
+        assertEquals(0.1f, iterator.getAverageWeight(), 1e-6);
+        iterator.reset();
+        iterator.next();
+        int[] expected = new int[4];
+        Arrays.fill(expected, 7);
+        assertArrayEquals(expected, iterator.getLastIndices());
+        assertFalse(iterator.asyncSupported());
+    }
+}
@@ -0,0 +1,81 @@
+package org.campagnelab.dl.framework.mixup;
+
+import org.junit.Test;
+import org.nd4j.linalg.api.ndarray.INDArray;
+import org.nd4j.linalg.dataset.api.MultiDataSet;
+import org.nd4j.linalg.factory.Nd4j;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+public class BatchMixupMultiDataSetPreProcessorTest {
+
+    @Test
+    public void sameAsPerExampleMixup() {
+        MixupMultiDataSetPreProcessor perExample = new MixupMultiDataSetPreProcessor(1234, 0.2);
+        BatchMixupMultiDataSetPreProcessor batch = new BatchMixupMultiDataSetPreProcessor(1234, 0.2);
+        Nd4j.getRandom().setSeed(42);
+        // several minibatches, to check that both preprocessors consume the random stream identically:
+        for (int minibatchSize : new int[]{8, 8, 5}) {
+            MultiDataSet expected = createMinibatch(minibatchSize);
+            MultiDataSet actual = copy(expected);
+            perExample.preProcess(expected);
+            batch.preProcess(actual);
+            assertSame(expected.getFeatures(), actual.getFeatures());
+            assertSame(expected.getLabels(), actual.getLabels());
+            assertSame(expected.getFeaturesMaskArrays(), actual.getFeaturesMaskArrays());
+            assertSame(expected.getLabelsMaskArrays(), actual.getLabelsMaskArrays());
+        }
+    }
+
+    private void assertSame(INDArray[] expected, INDArray[] actual) {
+        if (expected == null) {
+            assertEquals(null, actual);
+            return;
+        }
+        assertEquals(expected.length, actual.length);
+        for (int i = 0; i < expected.length; i++) {
+            if (expected[i] == null) {
+                assertEquals(null, actual[i]);
+                continue;
+            }
+            assertArrayEquals(expected[i].shape(), actual[i].shape());
+            assertArrayEquals(expected[i].dup('c').data().asFloat(), actual[i].dup('c').data().asFloat(), 1E-6f);
+        }
+    }
+
+    private MultiDataSet copy(MultiDataSet source) {
+        return new org.nd4j.linalg.dataset.MultiDataSet(dup(source.getFeatures()), dup(source.getLabels()),
+                dup(source.getFeaturesMaskArrays()), dup(source.getLabelsMaskArrays()));
+    }
+
+    private INDArray[] dup(INDArray[] arrays) {
+        if (arrays == null) {
+            return null;
+        }
+        INDArray[] copies = new INDArray[arrays.length];
+        for (int i = 0; i < arrays.length; i++) {
+            copies[i] = arrays[i] == null ? null : arrays[i].dup();
+        }
+        return copies;
+    }
+
+    private MultiDataSet createMinibatch(int minibatchSize) {
+        INDArray dense = Nd4j.rand(minibatchSize, 10);
+        INDArray sequence = Nd4j.rand(new int[]{minibatchSize, 4, 6});
+        INDArray sequenceMask = Nd4j.zeros(minibatchSize, 6);
+        for (int i = 0; i < minibatchSize; i++) {
+            for (int t = 0; t <= i % 6; t++) {
+                sequenceMask.putScalar(i, t, 1);
+            }
+        }
+        INDArray label = Nd4j.zeros(minibatchSize, 3);
+        for (int i = 0; i < minibatchSize; i++) {
+            label.putScalar(i, i % 3, 1);
+        }
+        return new org.nd4j.linalg.dataset.MultiDataSet(new INDArray[]{dense, sequence},
+                new INDArray[]{label},
+                new INDArray[]{null, sequenceMask},
+                null);
+    }
+}
@@ -0,0 +1,87 @@
+package org.campagnelab.dl.framework.performance;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Check that the streaming AUC agrees with the exact pairwise AUC.
+ */
+public class StreamingAUCTest {
+
+    @Test
+    public void exactWhenDecisionsAreInDifferentBins() {
+        double[] decisions = {0.05, 0.15, 0.25, 0.35, 0.45, 0.55, 0.65, 0.75};
+        double[] labels = {-1, 1, -1, -1, 1, -1, 1, 1};
+        StreamingAUC streaming = new StreamingAUC(10);
+        for (int i = 0; i < decisions.length; i++) {
+            streaming.observe(decisions[i], labels[i]);
+        }
+        assertEquals(AreaUnderTheROCCurve.evaluateStatistic(decisions, labels), streaming.evaluateStatistic(), 1e-10);
+    }
+
+    @Test
+    public void closeToExactOnNoisyPredictions() {
+        Random random = new Random(1234);
+        int n = 5000;
+        double[] decisions = new double[n];
+        double[] labels = new double[n];
+        StreamingAUC streaming = new StreamingAUC();
+        for (int i = 0; i < n; i++) {
+            labels[i] = random.nextBoolean() ? 1 : -1;
+            decisions[i] = Math.min(1, Math.max(0, 0.5 + 0.2 * labels[i] + 0.3 * random.nextGaussian()));
+            streaming.observe(decisions[i], labels[i]);
+        }
+        assertEquals(AreaUnderTheROCCurve.evaluateStatistic(decisions, labels), streaming.evaluateStatistic(), 1e-3);
+    }
+
+    @Test
+    public void mergeEqualsSinglePass() {
+        Random random = new Random(42);
+        StreamingAUC all = new StreamingAUC();
+        StreamingAUC first = new StreamingAUC();
+        StreamingAUC second = new StreamingAUC();
+        for (int i = 0; i < 1000; i++) {
+            double label = random.nextBoolean() ? 1 : -1;
+            double decision = random.nextDouble();
+            all.observe(decision, label);
+            (i % 3 == 0 ? first : second).observe(decision, label);
+        }
+        first.merge(second);
+        assertEquals(all.evaluateStatistic(), first.evaluateStatistic(), 0);
+        assertEquals(all.getNumPositive(), first.getNumPositive());
+    }
+
+    @Test
+    public void writeThenRead() throws IOException {
+        Random random = new Random(42);
+        StreamingAUC calculator = new StreamingAUC();
+        for (int i = 0; i < 1000; i++) {
+            calculator.observe(random.nextDouble(), random.nextBoolean() ? 1 : -1);
+        }
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        calculator.write(new DataOutputStream(bytes));
+        StreamingAUC read = StreamingAUC.read(new DataInputStream(new ByteArrayInputStream(bytes.toByteArray())));
+        assertEquals(calculator.evaluateStatistic(), read.evaluateStatistic(), 0);
+        assertEquals(calculator.getNumNegative(), read.getNumNegative());
+        assertEquals(calculator.confidenceInterval95()[0], read.confidenceInterval95()[0], 0);
+    }
+
+    @Test
+    public void nanIsAlwaysWrong() {
+        double[] decisions = {0.9, Double.NaN, 0.1, 0.2};
+        double[] labels = {1, 1, -1, -1};
+        StreamingAUC streaming = new StreamingAUC();
+        for (int i = 0; i < decisions.length; i++) {
+            streaming.observe(decisions[i], labels[i]);
+        }
+        assertEquals(AreaUnderTheROCCurve.evaluateStatistic(decisions, labels), streaming.evaluateStatistic(), 1e-10);
+    }
+}
@@ -0,0 +1,78 @@
+package org.campagnelab.dl.framework.performance;
+
+import org.campagnelab.dl.framework.domains.prediction.TimeSeriesPrediction;
+import org.campagnelab.dl.framework.domains.prediction.TimeSeriesPredictionInterpreter;
+import org.junit.Test;
+import org.nd4j.linalg.api.ndarray.INDArray;
+import org.nd4j.linalg.factory.Nd4j;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Check the metrics derived from the confusion matrix, and that minibatches and merged calculators give the same
+ * results as sequences added one at a time.
+ */
+public class TimeSeriesPerformanceCalculatorTest {
+    private static final int NUM_LABELS = 3;
+    private static final int NUM_EXAMPLES = 5;
+    private static final int NUM_TIME_STEPS = 6;
+
+    @Test
+    public void metrics() {
+        TimeSeriesPerformanceCalculator calculator = new TimeSeriesPerformanceCalculator(NUM_LABELS);
+        calculator.addTimeSeries(new TimeSeriesPrediction()
+                .setTrueLabels(new int[]{0, 0, 1, 1})
+                .setPredictedLabels(new int[]{0, 1, 1, 1}));
+        calculator.eval();
+        assertEquals(0.75, calculator.getMetric("accuracy"), 1e-10);
+        // label 0: precision 1, recall 0.5; label 1: precision 2/3, recall 1; label 2 never appeared nor predicted.
+        assertEquals((1 + 2 / 3.0) / 2, calculator.getMetric("precision"), 1e-10);
+        assertEquals(0.75, calculator.getMetric("recall"), 1e-10);
+        assertEquals(Arrays.asList(2), Arrays.asList(calculator.getNeverAppearedOrPredictedSet("never_appeared").toArray()));
+        assertEquals(Arrays.asList(2), Arrays.asList(calculator.getNeverAppearedOrPredictedSet("never_predicted").toArray()));
+        assertEquals(1, calculator.countConfusionMatrix(0, 1));
+        assertEquals(2, calculator.countConfusionMatrix(1, 1));
+        assertEquals(0, calculator.countConfusionMatrix(1, 0));
+    }
+
+    @Test
+    public void minibatchAndMergeAgreeWithSequences() {
+        Random random = new Random(12);
+        INDArray trueLabels = Nd4j.zeros(NUM_EXAMPLES, NUM_LABELS, NUM_TIME_STEPS);
+        INDArray outputs = Nd4j.zeros(NUM_EXAMPLES, NUM_LABELS, NUM_TIME_STEPS);
+        INDArray masks = Nd4j.zeros(NUM_EXAMPLES, NUM_TIME_STEPS);
+        for (int example = 0; example < NUM_EXAMPLES; example++) {
+            int length = 2 + random.nextInt(NUM_TIME_STEPS - 1);
+            for (int t = 0; t < length; t++) {
+                masks.putScalar(example, t, 1);
+                trueLabels.putScalar(new int[]{example, random.nextInt(NUM_LABELS), t}, 1);
+                for (int label = 0; label < NUM_LABELS; label++) {
+                    outputs.putScalar(new int[]{example, label, t}, random.nextFloat());
+                }
+            }
+        }
+        TimeSeriesPredictionInterpreter interpreter = new TimeSeriesPredictionInterpreter(null);
+        TimeSeriesPerformanceCalculator bySequence = new TimeSeriesPerformanceCalculator(NUM_LABELS);
+        for (int example = 0; example < NUM_EXAMPLES; example++) {
+            bySequence.addTimeSeries(interpreter.interpret(masks, trueLabels, outputs, example));
+        }
+        TimeSeriesPerformanceCalculator byMinibatch = new TimeSeriesPerformanceCalculator(NUM_LABELS);
+        byMinibatch.addMinibatch(trueLabels, outputs, masks, NUM_EXAMPLES);
+        TimeSeriesPerformanceCalculator merged = new TimeSeriesPerformanceCalculator(NUM_LABELS);
+        TimeSeriesPerformanceCalculator other = new TimeSeriesPerformanceCalculator(NUM_LABELS);
+        merged.addMinibatch(trueLabels, outputs, masks, 2);
+        for (int example = 2; example < NUM_EXAMPLES; example++) {
+            other.addTimeSeries(interpreter.interpret(masks, trueLabels, outputs, example));
+        }
+        merged.merge(other);
+
+        bySequence.eval();
+        byMinibatch.eval();
+        merged.eval();
+        assertEquals(bySequence.evalString(), byMinibatch.evalString());
+        assertEquals(bySequence.evalString(), merged.evalString());
+    }
+}
@@ -0,0 +1,116 @@
+package org.campagnelab.dl.framework.tools;
+
+import it.unimi.dsi.fastutil.doubles.DoubleArrayList;
+import it.unimi.dsi.fastutil.ints.Int2DoubleSortedMap;
+import it.unimi.dsi.fastutil.objects.ObjectArrayList;
+import org.apache.commons.io.FileUtils;
+import org.campagnelab.dl.framework.performance.Metric;
+import org.campagnelab.dl.framework.performance.PerformanceLogger;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ * Test reading performance logs and the median stopping rule of the hyper-parameter search.
+ */
+public class HyperParameterSearchTest {
+    private static final String DIR = "test-results/hyper-parameter-search/";
+
+    @Before
+    public void setUp() throws IOException {
+        FileUtils.deleteQuietly(new File(DIR));
+        FileUtils.forceMkdir(new File(DIR));
+    }
+
+    @Test
+    public void readMetric() throws IOException {
+        PerformanceLogger logger = new PerformanceLogger(DIR);
+        logger.definePerformances(new Metric("score", false), new Metric("AUC", true));
+        logger.logMetrics("epochs", 1000, 0, 0.5, 0.75);
+        logger.logTrainingScore("epochs", 0, 0.6);
+        logger.logMetrics("epochs", 2000, 1, 0.4, 0.8);
+        logger.logTrainingScore("epochs", 1, 0.5);
+        logger.write("epochs");
+
+        Int2DoubleSortedMap auc = HyperParameterSearch.readMetric(new File(DIR, "epochs-perf-log.tsv"), "AUC");
+        assertEquals(2, auc.size());
+        assertEquals(0.75, auc.get(0), 1E-6);
+        assertEquals(0.8, auc.get(1), 1E-6);
+        Int2DoubleSortedMap score = HyperParameterSearch.readMetric(new File(DIR, "epochs-perf-log.tsv"), "score");
+        assertEquals(0.4, score.get(1), 1E-6);
+    }
+
+    @Test
+    public void logBeingWrittenKeepsValues() throws IOException {
+        PerformanceLogger logger = new PerformanceLogger(DIR);
+        logger.definePerformances(new Metric("score", false), new Metric("AUC", true));
+        logger.logMetrics("epochs", 1000, 0, 0.5, 0.75);
+        logger.logTrainingScore("epochs", 0, 0.6);
+        logger.logMetrics("epochs", 2000, 1, 0.4, 0.8);
+        logger.logTrainingScore("epochs", 1, 0.5);
+        logger.write("epochs");
+        HyperParameterSearch.Trial trial = new HyperParameterSearch.Trial(0, "");
+        trial.modelDirectory = DIR;
+        HyperParameterSearch.updateMetrics(trial, "AUC", false);
+        assertEquals(1, trial.lastEpoch());
+        assertEquals(0.8, trial.bestValue(), 1E-6);
+
+        File perfLog = new File(DIR, "epochs-perf-log.tsv");
+        String complete = FileUtils.readFileToString(perfLog);
+        String[] partialLogs = {"", "numExamplesUsed\tep", complete.substring(0, complete.indexOf('\n') + 1),
+                complete.substring(0, complete.lastIndexOf("0.8")) + "x\n"};
+        for (String partialLog : partialLogs) {
+            FileUtils.writeStringToFile(perfLog, partialLog);
+            HyperParameterSearch.updateMetrics(trial, "AUC", false);
+            assertEquals(1, trial.lastEpoch());
+            assertEquals(0.8, trial.bestValue(), 1E-6);
+        }
+        // a metric missing from the log is not new data either:
+        FileUtils.writeStringToFile(perfLog, complete);
+        HyperParameterSearch.updateMetrics(trial, "missing", false);
+        assertEquals(0.8, trial.bestValue(), 1E-6);
+    }
+
+    @Test
+    public void median() {
+        assertEquals(2, HyperParameterSearch.median(new DoubleArrayList(new double[]{3, 1, 2}), false), 0);
+        assertEquals(2.5, HyperParameterSearch.median(new DoubleArrayList(new double[]{4, 1, 3, 2}), false), 0);
+        // NaN values are the worst:
+        assertEquals(2, HyperParameterSearch.median(new DoubleArrayList(new double[]{Double.NaN, 2, 3}), false), 0);
+        assertEquals(3, HyperParameterSearch.median(new DoubleArrayList(new double[]{Double.NaN, 2, 3}), true), 0);
+    }
+
+    @Test
+    public void medianStoppingRule() {
+        List<HyperParameterSearch.Trial> trials = new ObjectArrayList<>();
+        trials.add(trial(0, 0.6, 0.7, 0.8));
+        trials.add(trial(1, 0.7, 0.75));
+        trials.add(trial(2, 0.65, 0.72));
+        HyperParameterSearch.Trial poor = trial(3, 0.55, 0.6);
+        trials.add(poor);
+
+        // other trials reached epoch 1, the poor trial is below their median:
+        assertTrue(HyperParameterSearch.shouldStop(poor, trials, 2, 3, false));
+        // not enough epochs yet:
+        assertFalse(HyperParameterSearch.shouldStop(poor, trials, 3, 3, false));
+        // not enough other trials at this epoch:
+        assertFalse(HyperParameterSearch.shouldStop(poor, trials, 2, 4, false));
+        // the best trial is never stopped:
+        assertFalse(HyperParameterSearch.shouldStop(trials.get(1), trials, 2, 3, false));
+        // when smaller is better, the poor trial has the best values:
+        assertFalse(HyperParameterSearch.shouldStop(poor, trials, 2, 3, true));
+    }
+
+    private HyperParameterSearch.Trial trial(int index, double... bestByEpoch) {
+        HyperParameterSearch.Trial trial = new HyperParameterSearch.Trial(index, "");
+        for (int epoch = 0; epoch < bestByEpoch.length; epoch++) {
+            trial.bestByEpoch.put(epoch, bestByEpoch[epoch]);
+        }
+        return trial;
+    }
+}
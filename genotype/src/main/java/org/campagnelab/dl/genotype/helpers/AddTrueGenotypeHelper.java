@@ -2,6 +2,7 @@ package org.campagnelab.dl.genotype.helpers;
 
 import it.unimi.dsi.fastutil.objects.ObjectArrayList;
 import it.unimi.dsi.fastutil.objects.ObjectArraySet;
+import it.unimi.dsi.fastutil.objects.ObjectIterator;
 import it.unimi.dsi.fastutil.objects.ObjectSet;
 import it.unimi.dsi.util.XorShift1024StarRandom;
 import org.campagnelab.dl.varanalysis.protobuf.BaseInformationRecords;
@@ -52,6 +53,9 @@ public class AddTrueGenotypeHelper implements AddTrueGenotypeHelperI {
     private int recordsLabeled;
     static WarningCounter wrongNumGenosCalled = new WarningCounter(26);
     private List<BaseInformationRecords.BaseInformation> context;
+    private String lastReferenceId;
+    private int lastGenomeTargetIndex;
+    private SortedVariants.Cursor truthCursor;
 
 
     /**
@@ -65,12 +69,21 @@ public class AddTrueGenotypeHelper implements AddTrueGenotypeHelperI {
      */
     public void configure(String mapFilename, RandomAccessSequenceInterface genome,
                           int sampleIndex, boolean considerIndels, boolean indelsAsRef, float referenceSamplingRate) {
+        configure(loadMap(mapFilename), mapFilename, genome, sampleIndex, considerIndels, indelsAsRef,
+                referenceSamplingRate);
+    }
+
+    /**
+     * Create a helper with a map already loaded with {@link #loadMap(String)}. The map and genome are only read, and
+     * can be shared by the helpers of several threads.
+     *
+     * @param varMap      map of true genotypes.
+     * @param mapFilename filename the map was loaded from.
+     */
+    public void configure(VariantMapHelper varMap, String mapFilename, RandomAccessSequenceInterface genome,
+                          int sampleIndex, boolean considerIndels, boolean indelsAsRef, float referenceSamplingRate) {
         this.mapFilename = mapFilename;
-        try {
-            varMap = new VariantMapHelper(mapFilename);
-        } catch (IOException | ClassNotFoundException e) {
-            throw new RuntimeException("Unable to load true genotype map with filename " + mapFilename, e);
-        }
+        this.varMap = varMap;
         this.genome = genome;
         this.considerIndels = considerIndels;
         this.indelsAsRef = indelsAsRef;
@@ -79,14 +92,40 @@ public class AddTrueGenotypeHelper implements AddTrueGenotypeHelperI {
 
     }
 
-    public void configure(String mapFilename, RandomAccessSequenceInterface genome,
-                          int sampleIndex, boolean considerIndels, float referenceSamplingRate) {
-        this.mapFilename = mapFilename;
+    /**
+     * Load a map of true genotypes. The true alleles are converted to upper case here, once, so that the map is only
+     * read afterwards.
+     *
+     * @param mapFilename map generated with Goby's VCFToMapMode.
+     * @return the map.
+     */
+    public static VariantMapHelper loadMap(String mapFilename) {
+        VariantMapHelper varMap;
         try {
             varMap = new VariantMapHelper(mapFilename);
         } catch (IOException | ClassNotFoundException e) {
             throw new RuntimeException("Unable to load true genotype map with filename " + mapFilename, e);
         }
+        ObjectIterator<String> chromosomes = varMap.getAllChromosomes();
+        while (chromosomes.hasNext()) {
+            ObjectIterator<Variant> variants = varMap.getAllVariants(chromosomes.next());
+            while (variants != null && variants.hasNext()) {
+                for (Variant.FromTo allele : variants.next().trueAlleles) {
+                    allele.makeUpperCase();
+                }
+            }
+        }
+        return varMap;
+    }
+
+    public VariantMapHelper getVariantMap() {
+        return varMap;
+    }
+
+    public void configure(String mapFilename, RandomAccessSequenceInterface genome,
+                          int sampleIndex, boolean considerIndels, float referenceSamplingRate) {
+        this.mapFilename = mapFilename;
+        varMap = loadMap(mapFilename);
         this.genome = genome;
         this.considerIndels = considerIndels;
         this.indelsAsRef = true;
@@ -106,14 +145,28 @@ public class AddTrueGenotypeHelper implements AddTrueGenotypeHelperI {
     public boolean addTrueGenotype(BaseInformationRecords.BaseInformation record) {
         int position = record.getPosition();
         String chrom = record.getReferenceId();
-        int genomeTargetIndex = genome.getReferenceIndex(chrom);
+        if (!chrom.equals(lastReferenceId)) {
+            lastGenomeTargetIndex = genome.getReferenceIndex(chrom);
+            lastReferenceId = chrom;
+        }
+        int genomeTargetIndex = lastGenomeTargetIndex;
         if (genomeTargetIndex==-1 ) {
             System.err.printf("Unable to locate reference sequence %s in genome.",chrom);
             System.exit(1);
         }
-        char referenceBaseChar = genome.get(genomeTargetIndex, record.getPosition());
-        String referenceBase = Character.toString(referenceBaseChar);
-        return addTrueGenotype(willKeep(position, chrom, referenceBase), record);
+        // the reference base is only read from the genome when the record is kept:
+        return addTrueGenotype(new WillKeep(position, chrom, genomeTargetIndex).invoke(), record);
+    }
+
+    /**
+     * Find the true variants with a merge-join over the variants of the map, sorted by position, instead of a map
+     * lookup per record. This is faster when records are sorted by position, as in .sbi files produced by Goby.
+     * Unsorted records are still labeled correctly, with a binary search.
+     *
+     * @param sortedVariants variants of the map, shared by the helpers of several threads.
+     */
+    public void useMergeJoin(SortedVariants sortedVariants) {
+        this.truthCursor = sortedVariants.cursor();
     }
 
     // determine if a record will be kept
@@ -143,12 +196,13 @@ public class AddTrueGenotypeHelper implements AddTrueGenotypeHelperI {
         numRecords++;
         // determine if the record should be kept:
         boolean keep = willKeep.isKeep();
-        Set<Variant.FromTo> trueAlleles = willKeep.getTrueAlleles();
-        String formattedTrueGenotype = GenotypeHelper.fromAlleles(GenotypeHelper.fromTosToAlleles(trueAlleles));
-        boolean isVariant = willKeep.isVariant();
-        BaseInformationRecords.BaseInformation.Builder buildRec = record.toBuilder();
 
         if (keep) {
+            // only records that are kept are rebuilt:
+            Set<Variant.FromTo> trueAlleles = willKeep.getTrueAlleles();
+            String formattedTrueGenotype = GenotypeHelper.fromAlleles(GenotypeHelper.fromTosToAlleles(trueAlleles));
+            boolean isVariant = willKeep.isVariant();
+            BaseInformationRecords.BaseInformation.Builder buildRec = record.toBuilder();
             // We keep this record, so we label it:
             if (isVariant) {
                 distinctTrueGenotypes.add(formattedTrueGenotype);
@@ -255,6 +309,8 @@ public class AddTrueGenotypeHelper implements AddTrueGenotypeHelperI {
         private boolean keep;
         private boolean isIndel;
 
+        private int genomeTargetIndex = -1;
+
         public WillKeep(int position, String chrom, String referenceBase) {
 
             this.position = position;
@@ -262,6 +318,15 @@ public class AddTrueGenotypeHelper implements AddTrueGenotypeHelperI {
             this.referenceBase = referenceBase;
         }
 
+        /**
+         * Create a WillKeep that reads the reference base from the genome, only if the site is kept as reference.
+         */
+        WillKeep(int position, String chrom, int genomeTargetIndex) {
+            this.position = position;
+            this.chrom = chrom;
+            this.genomeTargetIndex = genomeTargetIndex;
+        }
+
 
         public boolean isVariant() {
             return isVariant;
@@ -283,7 +348,8 @@ public class AddTrueGenotypeHelper implements AddTrueGenotypeHelperI {
             boolean isIndel = false;
             boolean isSNP = false;
             // The map contains Goby positions (zero-based).
-            Variant variant = varMap.getVariant(chrom,position);
+            Variant variant = truthCursor != null ? truthCursor.getVariant(chrom, position) :
+                    varMap.getVariant(chrom,position);
             if (variant != null) {
                 inMap = true;
             }
@@ -325,17 +391,19 @@ public class AddTrueGenotypeHelper implements AddTrueGenotypeHelperI {
                 if (random.nextFloat() > referenceSamplingRate) {
                     skip = true;
                 }
-                // alignment and genome do not necessarily share the same space of reference indices. Convert:
-                referenceBase = referenceBase.toUpperCase();
                 trueAlleles = new ObjectArraySet<Variant.FromTo>(1);
-                trueAlleles.add(new Variant.FromTo(referenceBase,referenceBase));
+                if (referenceBase == null && !skip) {
+                    referenceBase = Character.toString(genome.get(genomeTargetIndex, position));
+                }
+                if (referenceBase != null) {
+                    // alignment and genome do not necessarily share the same space of reference indices. Convert:
+                    referenceBase = referenceBase.toUpperCase();
+                    trueAlleles.add(new Variant.FromTo(referenceBase, referenceBase));
+                }
             } else if (isVariant && variant.isIndel() && (!indelsAsRef) && (!considerIndels)){
                 numIndelsIgnored++;
                 skip = true;
             }
-            for (Variant.FromTo allele : trueAlleles){
-                allele.makeUpperCase();
-            }
             this.isVariant = isVariant;
             keep = !skip;
             return this;
@@ -0,0 +1,93 @@
+package org.campagnelab.dl.genotype.helpers;
+
+import it.unimi.dsi.fastutil.objects.ObjectArrayList;
+import it.unimi.dsi.fastutil.objects.ObjectIterator;
+import org.campagnelab.dl.somatic.utils.SortedIntCursor;
+import org.campagnelab.goby.util.Variant;
+import org.campagnelab.goby.util.VariantMapHelper;
+
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * The variants of a genotype map, sorted by position in each chromosome. Records sorted by position are matched to
+ * variants with a {@link Cursor}, which walks the variants of a chromosome in lockstep with the records (see
+ * {@link SortedIntCursor}). The variants of a chromosome are sorted the first time a record of this chromosome is
+ * seen, and are then shared, read-only, by the cursors of all threads.
+ */
+public class SortedVariants {
+    private static final Chromosome NO_VARIANTS = new Chromosome(new int[0], new Variant[0]);
+
+    private static class Chromosome {
+        final int[] positions;
+        final Variant[] variants;
+
+        Chromosome(int[] positions, Variant[] variants) {
+            this.positions = positions;
+            this.variants = variants;
+        }
+    }
+
+    private final VariantMapHelper varMap;
+    private final ConcurrentHashMap<String, Chromosome> chromosomes = new ConcurrentHashMap<>();
+
+    public SortedVariants(VariantMapHelper varMap) {
+        this.varMap = varMap;
+    }
+
+    private Chromosome chromosome(String chromosome) {
+        return chromosomes.computeIfAbsent(chromosome, this::sort);
+    }
+
+    private Chromosome sort(String chromosome) {
+        ObjectArrayList<Variant> variants = new ObjectArrayList<>();
+        ObjectIterator<Variant> it = varMap.getAllVariants(chromosome);
+        if (it == null) {
+            return NO_VARIANTS;
+        }
+        while (it.hasNext()) {
+            variants.add(it.next());
+        }
+        Variant[] sorted = variants.toArray(new Variant[variants.size()]);
+        Arrays.sort(sorted, Comparator.comparingInt(variant -> variant.position));
+        int[] positions = new int[sorted.length];
+        for (int i = 0; i < sorted.length; i++) {
+            positions[i] = sorted[i].position;
+        }
+        return new Chromosome(positions, sorted);
+    }
+
+    /**
+     * Return a new cursor. Cursors are not thread-safe: each thread needs its own.
+     */
+    public Cursor cursor() {
+        return new Cursor();
+    }
+
+    public class Cursor {
+        private final SortedIntCursor positions = new SortedIntCursor();
+        private String currentChromosome;
+        private Chromosome current;
+
+        private Cursor() {
+        }
+
+        /**
+         * Return the variant at a position, as VariantMapHelper.getVariant does.
+         *
+         * @param chromosome name of the chromosome.
+         * @param position   zero-based position.
+         * @return the variant, or null when the position has no variant.
+         */
+        public Variant getVariant(String chromosome, int position) {
+            if (!chromosome.equals(currentChromosome)) {
+                currentChromosome = chromosome;
+                current = chromosome(chromosome);
+                positions.reset(current.positions);
+            }
+            final int index = positions.find(position);
+            return index == -1 ? null : current.variants[index];
+        }
+    }
+}
@@ -5,6 +5,7 @@ import it.unimi.dsi.fastutil.objects.Object2ObjectOpenHashMap;
 import org.apache.commons.compress.utils.IOUtils;
 import org.campagnelab.dl.framework.architecture.graphs.ComputationGraphAssembler;
 import org.campagnelab.dl.framework.domains.DomainDescriptor;
+import org.campagnelab.dl.framework.domains.RecordCountHelper;
 import org.campagnelab.dl.framework.domains.prediction.Prediction;
 import org.campagnelab.dl.framework.domains.prediction.PredictionInterpreter;
 import org.campagnelab.dl.framework.mappers.BooleanLabelMapper;
@@ -19,6 +20,7 @@ import org.campagnelab.dl.genotype.mappers.*;
 import org.campagnelab.dl.genotype.performance.AlleleAccuracyHelper;
 import org.campagnelab.dl.genotype.performance.GenotypeTrainingPerformanceHelper;
 import org.campagnelab.dl.genotype.performance.GenotypeTrainingPerformanceHelperWithAUC;
+import org.campagnelab.dl.genotype.performance.GenotypeValidationEstimator;
 import org.campagnelab.dl.genotype.predictions.*;
 import org.campagnelab.dl.somatic.learning.TrainSomaticModel;
 import org.campagnelab.dl.somatic.learning.iterators.BaseInformationConcatIterator;
@@ -571,6 +573,9 @@ public class GenotypeDomainDescriptor extends DomainDescriptor<BaseInformationRe
 
             @Override
             public double estimateMetric(ComputationGraph graph, String metricName, MultiDataSetIterator dataSetIterator, long scoreN) {
+                if (GenotypeValidationEstimator.supports(metricName)) {
+                    return new GenotypeValidationEstimator(domainDescriptor, graph).estimate(dataSetIterator, scoreN, metricName)[0];
+                }
                 switch (metricName) {
                     case "Accuracy":
                     case "AUC":
@@ -602,8 +607,10 @@ public class GenotypeDomainDescriptor extends DomainDescriptor<BaseInformationRe
             @Override
             public double[] estimateMetric(ComputationGraph graph, MultiDataSetIterator dataSetIterator, long scoreN,
                                            String... metrics) {
-
-
+                if (GenotypeValidationEstimator.supportsAll(metrics)) {
+                    // estimate all the metrics in one pass over the validation set:
+                    return new GenotypeValidationEstimator(domainDescriptor, graph).estimate(dataSetIterator, scoreN, metrics);
+                }
                 GenotypeTrainingPerformanceHelperWithAUC helper = new GenotypeTrainingPerformanceHelperWithAUC(domainDescriptor, graph);
                 helper.estimateWithGraph(dataSetIterator, graph,
                         index -> index > scoreN
@@ -763,6 +770,10 @@ public class GenotypeDomainDescriptor extends DomainDescriptor<BaseInformationRe
 
     @Override
     public long getNumRecords(String[] recordFiles) {
+        long numRecords = getNumRecordsFast(recordFiles);
+        if (numRecords != RecordCountHelper.UNKNOWN) {
+            return numRecords;
+        }
         BaseInformationConcatIterator it = null;
         try {
             List<BaseInformationIterator> list = Arrays.asList(recordFiles).stream().map(filename -> {
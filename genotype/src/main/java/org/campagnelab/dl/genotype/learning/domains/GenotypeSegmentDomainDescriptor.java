@@ -5,6 +5,7 @@ import org.apache.commons.lang.NotImplementedException;
 import org.apache.commons.lang.StringUtils;
 import org.campagnelab.dl.framework.architecture.graphs.ComputationGraphAssembler;
 import org.campagnelab.dl.framework.domains.DomainDescriptor;
+import org.campagnelab.dl.framework.domains.RecordCountHelper;
 import org.campagnelab.dl.framework.domains.prediction.Prediction;
 import org.campagnelab.dl.framework.domains.prediction.PredictionInterpreter;
 import org.campagnelab.dl.framework.mappers.ConfigurableFeatureMapper;
@@ -323,7 +324,11 @@ public class GenotypeSegmentDomainDescriptor extends DomainDescriptor<SegmentInf
 
     @Override
     public long getNumRecords(String[] recordFiles) {
-        long count = 0;
+        long count = getNumRecordsFast(recordFiles);
+        if (count != RecordCountHelper.UNKNOWN) {
+            return count;
+        }
+        count = 0;
         for (String recordFile : recordFiles) {
 
             try (SegmentReader reader = new SegmentReader(recordFile)) {
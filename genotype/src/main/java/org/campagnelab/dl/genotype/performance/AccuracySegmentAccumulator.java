@@ -9,8 +9,8 @@ import org.campagnelab.dl.genotype.predictions.SegmentPrediction;
  * Estimates accuracy of predictions over a segment.
  */
 public class AccuracySegmentAccumulator extends SegmentStatsAccumulator {
-    int correct = 0;
-    int n = 0;
+    long correct = 0;
+    long n = 0;
 
     @Override
     public ObjectList<String> metricNames() {
@@ -33,6 +33,14 @@ public class AccuracySegmentAccumulator extends SegmentStatsAccumulator {
 
     }
 
+    @Override
+    public SegmentStatsAccumulator merge(SegmentStatsAccumulator other) {
+        AccuracySegmentAccumulator acc = (AccuracySegmentAccumulator) other;
+        correct += acc.correct;
+        n += acc.n;
+        return this;
+    }
+
     @Override
     DoubleList estimates() {
         double accuracy = ((double) correct) / ((double) n);
@@ -0,0 +1,158 @@
+package org.campagnelab.dl.genotype.performance;
+
+import it.unimi.dsi.fastutil.objects.ObjectArraySet;
+import it.unimi.dsi.fastutil.objects.ObjectSet;
+import org.campagnelab.dl.framework.domains.DomainDescriptor;
+import org.campagnelab.dl.framework.domains.prediction.Prediction;
+import org.campagnelab.dl.framework.performance.AreaUnderTheROCCurve;
+import org.campagnelab.dl.framework.tools.PredictWithModel;
+import org.campagnelab.dl.framework.training.WrapInAsyncAttach;
+import org.campagnelab.dl.genotype.helpers.GenotypeHelper;
+import org.campagnelab.dl.genotype.predictions.GenotypePrediction;
+import org.campagnelab.dl.varanalysis.protobuf.BaseInformationRecords;
+import org.deeplearning4j.datasets.iterator.AsyncMultiDataSetIterator;
+import org.deeplearning4j.nn.api.Model;
+import org.deeplearning4j.nn.graph.ComputationGraph;
+import org.nd4j.linalg.api.ndarray.INDArray;
+import org.nd4j.linalg.dataset.api.MultiDataSet;
+import org.nd4j.linalg.dataset.api.iterator.MultiDataSetIterator;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Estimates every genotype validation metric in a single pass over the validation set. Minibatches are prefetched
+ * on a background thread while the model predicts the current minibatch, the model output is computed once per
+ * minibatch, and the loss score is only computed when the score metric is requested. The cost of validation
+ * scales with the number of validation records, not with the number of records times the number of metrics.
+ */
+public class GenotypeValidationEstimator extends PredictWithModel<BaseInformationRecords.BaseInformation> {
+
+    private static final ObjectSet<String> EXTRA_METRICS = new ObjectArraySet<>(new String[]{"score", "AUC", "AUC+F1"});
+    private static final ObjectSet<String> ACCUMULATOR_METRICS =
+            new ObjectArraySet<>(new StatsAccumulator().createOutputHeader());
+
+    private final StatsAccumulator accumulator = new StatsAccumulator();
+    private final AreaUnderTheROCCurve aucCalculator = new AreaUnderTheROCCurve(100000);
+    private double scoreSum;
+    private int numMiniBatchesScored;
+
+    public GenotypeValidationEstimator(DomainDescriptor<BaseInformationRecords.BaseInformation> domainDescriptor, Model model) {
+        super(domainDescriptor, model);
+    }
+
+    /**
+     * Determine if the estimator can calculate a metric.
+     *
+     * @param metricName name of the metric.
+     * @return True when the metric can be estimated by this class.
+     */
+    public static boolean supports(String metricName) {
+        return EXTRA_METRICS.contains(metricName) || ACCUMULATOR_METRICS.contains(metricName);
+    }
+
+    /**
+     * Determine if the estimator can calculate all the metrics.
+     *
+     * @param metrics names of the metrics.
+     * @return True when every metric can be estimated by this class.
+     */
+    public static boolean supportsAll(String... metrics) {
+        return Arrays.stream(metrics).allMatch(GenotypeValidationEstimator::supports);
+    }
+
+    /**
+     * Estimate metrics over the first scoreN examples of the iterator.
+     *
+     * @param iterator iterator over the validation set.
+     * @param scoreN   number of examples to score.
+     * @param metrics  names of the metrics to estimate.
+     * @return metric values, in the order of the metric names.
+     */
+    public double[] estimate(MultiDataSetIterator iterator, long scoreN, String... metrics) {
+        final boolean withScore = Arrays.asList(metrics).contains("score");
+        final boolean withAUC = Arrays.asList(metrics).contains("AUC") || Arrays.asList(metrics).contains("AUC+F1");
+        accumulator.initializeStats();
+        aucCalculator.reset();
+        scoreSum = 0;
+        numMiniBatchesScored = 0;
+
+        iterator.reset();
+        MultiDataSetIterator prefetched = iterator.asyncSupported() ? WrapInAsyncAttach.wrap(iterator) : iterator;
+        ComputationGraph graph = (ComputationGraph) model;
+        final int numOutputs = domainDescriptor.getNumModelOutputs();
+        List<Prediction> predictions = new ArrayList<>(numOutputs);
+        long nProcessed = 0;
+        try {
+            while (nProcessed < scoreN && prefetched.hasNext()) {
+                MultiDataSet next = prefetched.next();
+                INDArray[] outputs = graph.output(false, next.getFeatures());
+                if (withScore) {
+                    double dsScore = graph.score(next);
+                    if (dsScore == dsScore) {
+                        scoreSum += dsScore;
+                        numMiniBatchesScored += 1;
+                    }
+                }
+                INDArray[] trueLabels = next.getLabels();
+                int numExamples = next.getFeatures(0).size(0);
+                for (int exampleIndex = 0; exampleIndex < numExamples && nProcessed < scoreN; exampleIndex++) {
+                    predictions.clear();
+                    for (int outputIndex = 0; outputIndex < numOutputs; outputIndex++) {
+                        if (interpretors[outputIndex] != null) {
+                            Prediction prediction = interpretors[outputIndex].interpret(
+                                    trueLabels[outputIndex],
+                                    outputs[outputIndex],
+                                    exampleIndex);
+                            prediction.outputIndex = outputIndex;
+                            prediction.index = (int) nProcessed;
+                            predictions.add(prediction);
+                        }
+                    }
+                    GenotypePrediction gp = (GenotypePrediction) domainDescriptor.aggregatePredictions(null/**null in training phase */, predictions);
+                    // obtain the reference base as an int (e.g., 0 or 1), to match the format of
+                    // genotypes obtained during training from the cache:
+                    String referenceBase = Integer.toString(gp.referenceGobyIndex);
+                    accumulator.observe(gp, gp.isVariant(), GenotypeHelper.isVariant(gp.predictedGenotype, referenceBase));
+                    if (withAUC && gp.isVariant()) {
+                        aucCalculator.observe(gp.isVariantProbability, gp.isCorrect() ? 1 : -1);
+                    }
+                    nProcessed += 1;
+                }
+            }
+        } finally {
+            if (prefetched instanceof AsyncMultiDataSetIterator) {
+                ((AsyncMultiDataSetIterator) prefetched).shutdown();
+            }
+        }
+        return metricValues(withAUC ? aucCalculator.evaluateStatistic() : Double.NaN, metrics);
+    }
+
+    private double[] metricValues(double auc, String... metrics) {
+        double[] statistics = accumulator.createOutputStatistics();
+        String[] header = accumulator.createOutputHeader();
+        double f1 = statistics[Arrays.asList(header).indexOf("F1")];
+        double[] values = new double[metrics.length];
+        for (int i = 0; i < metrics.length; i++) {
+            switch (metrics[i]) {
+                case "score":
+                    values[i] = scoreSum / (double) numMiniBatchesScored;
+                    break;
+                case "AUC":
+                    values[i] = auc;
+                    break;
+                case "AUC+F1":
+                    values[i] = auc * 0.1 + f1 * 0.9;
+                    break;
+                default:
+                    int index = Arrays.asList(header).indexOf(metrics[i]);
+                    if (index == -1) {
+                        throw new RuntimeException("Statistic not found for metric name " + metrics[i]);
+                    }
+                    values[i] = statistics[index];
+            }
+        }
+        return values;
+    }
+}
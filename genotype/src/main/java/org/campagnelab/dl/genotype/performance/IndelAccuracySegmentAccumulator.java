@@ -9,13 +9,13 @@ import org.campagnelab.dl.genotype.predictions.SegmentPrediction;
  * Estimates accuracy of predictions for indels, over a segment.
  */
 public class IndelAccuracySegmentAccumulator extends SegmentStatsAccumulator {
-    private int correct;
-    private int predictedIndel;
-    private int trueIndel;
-    private int trueOrPredictedIndel;
-    private int tp;
-    private int fp;
-    private int fn;
+    private long correct;
+    private long predictedIndel;
+    private long trueIndel;
+    private long trueOrPredictedIndel;
+    private long tp;
+    private long fp;
+    private long fn;
 
     @Override
     public ObjectList<String> metricNames() {
@@ -118,6 +118,19 @@ public class IndelAccuracySegmentAccumulator extends SegmentStatsAccumulator {
 
     }
 
+    @Override
+    public SegmentStatsAccumulator merge(SegmentStatsAccumulator other) {
+        IndelAccuracySegmentAccumulator acc = (IndelAccuracySegmentAccumulator) other;
+        correct += acc.correct;
+        predictedIndel += acc.predictedIndel;
+        trueIndel += acc.trueIndel;
+        trueOrPredictedIndel += acc.trueOrPredictedIndel;
+        tp += acc.tp;
+        fp += acc.fp;
+        fn += acc.fn;
+        return this;
+    }
+
     @Override
     DoubleList estimates() {
         double accuracy = ((double) correct) / ((double) trueOrPredictedIndel);
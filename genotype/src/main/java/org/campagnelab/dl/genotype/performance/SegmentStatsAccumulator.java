@@ -37,6 +37,21 @@ public class SegmentStatsAccumulator {
         }
     }
 
+    /**
+     * Add the counts of another accumulator, filled over a disjoint set of segments, to this one. Sharded
+     * prediction jobs merge their accumulators to obtain the same estimates as a single run.
+     *
+     * @param other accumulator of the same type (and with the same sub-accumulators) as this one.
+     * @return this accumulator.
+     */
+    public SegmentStatsAccumulator merge(SegmentStatsAccumulator other) {
+        assert accumulators.length == other.accumulators.length : "accumulators must have the same structure to be merged.";
+        for (int i = 0; i < accumulators.length; i++) {
+            accumulators[i].merge(other.accumulators[i]);
+        }
+        return this;
+    }
+
     DoubleList estimates() {
         estimates.clear();
         for (SegmentStatsAccumulator acc : accumulators) {
@@ -2,44 +2,50 @@ package org.campagnelab.dl.genotype.performance;
 
 import org.campagnelab.dl.genotype.predictions.GenotypePrediction;
 
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+
 /**
- * Estimate genotype statistics.
+ * Estimate genotype statistics. Counters are long so that a whole-genome prediction cannot overflow them.
+ * Accumulators filled over disjoint partitions of a dataset can be combined exactly with {@link #merge}, also when
+ * they were filled in different processes and saved with {@link #write}.
  * Created by rct66 on 12/19/16.
  */
 public class StatsAccumulator {
 
 
-    int numCorrectVariants;
-    int numProcessed;
-    int numTruePositive;
-    int numTrueNegative;
-    int numFalsePositive;
-    int numFalseNegative;
-    int numIndelsCorrect;
-    int numSnpsCorrect;
-    int numIndelsProcessed;
-    int numSnpsProcessed;
-    int numIndelsTruePositive;
-    int numIndelsFalsePositive;
-    int numIndelsFalseNegative;
-    int numIndelsTrueNegative;
-    int numSnpsTruePositive;
-    int numSnpsFalsePositive;
-    int numSnpsFalseNegative;
-    int numVariants;
-    int numIndels;
-    int concordantVariants;
-    int numVariantsExpected;
-    int numTrueOrPredictedVariants;
-
-    int numSnpsTrueNegative;
-    int hetCount = 0;
-    int homCount = 0;
-    int numTrueIndels = 0;
-    private int numPredictedIndels = 0;
-    private int numIsIndels = 0;
-    private int numPredictedSNPs;
-    private int numIsSNPs = 0;
+    long numCorrectVariants;
+    long numProcessed;
+    long numTruePositive;
+    long numTrueNegative;
+    long numFalsePositive;
+    long numFalseNegative;
+    long numIndelsCorrect;
+    long numSnpsCorrect;
+    long numIndelsProcessed;
+    long numSnpsProcessed;
+    long numIndelsTruePositive;
+    long numIndelsFalsePositive;
+    long numIndelsFalseNegative;
+    long numIndelsTrueNegative;
+    long numSnpsTruePositive;
+    long numSnpsFalsePositive;
+    long numSnpsFalseNegative;
+    long numVariants;
+    long numIndels;
+    long concordantVariants;
+    long numVariantsExpected;
+    long numTrueOrPredictedVariants;
+
+    long numSnpsTrueNegative;
+    long hetCount = 0;
+    long homCount = 0;
+    long numTrueIndels = 0;
+    private long numPredictedIndels = 0;
+    private long numIsIndels = 0;
+    private long numPredictedSNPs;
+    private long numIsSNPs = 0;
     private boolean observedWasFP;
     private boolean observedWasTP;
     private boolean observedWasFN;
@@ -72,6 +78,133 @@ public class StatsAccumulator {
         homCount = 0;
         numPredictedIndels = 0;
         numIsIndels = 0;
+        numTrueIndels = 0;
+        numPredictedSNPs = 0;
+        numIsSNPs = 0;
+    }
+
+    /**
+     * Add the counts of another accumulator to this one. After merging, the statistics reported by this accumulator
+     * are those that a single accumulator would have reported had it observed the predictions of both.
+     *
+     * @param other accumulator filled over a disjoint set of predictions.
+     * @return this accumulator.
+     */
+    public StatsAccumulator merge(StatsAccumulator other) {
+        numCorrectVariants += other.numCorrectVariants;
+        numProcessed += other.numProcessed;
+        numIndelsCorrect += other.numIndelsCorrect;
+        numSnpsCorrect += other.numSnpsCorrect;
+        numIndelsProcessed += other.numIndelsProcessed;
+        numSnpsProcessed += other.numSnpsProcessed;
+        numIndelsTruePositive += other.numIndelsTruePositive;
+        numIndelsFalsePositive += other.numIndelsFalsePositive;
+        numIndelsFalseNegative += other.numIndelsFalseNegative;
+        numIndelsTrueNegative += other.numIndelsTrueNegative;
+        numSnpsTruePositive += other.numSnpsTruePositive;
+        numSnpsFalsePositive += other.numSnpsFalsePositive;
+        numSnpsFalseNegative += other.numSnpsFalseNegative;
+        numSnpsTrueNegative += other.numSnpsTrueNegative;
+        numVariants += other.numVariants;
+        numIndels += other.numIndels;
+        concordantVariants += other.concordantVariants;
+        // every partition is configured with the number of variants expected over the whole dataset:
+        numVariantsExpected = Math.max(numVariantsExpected, other.numVariantsExpected);
+        numTrueOrPredictedVariants += other.numTrueOrPredictedVariants;
+        hetCount += other.hetCount;
+        homCount += other.homCount;
+        numTrueIndels += other.numTrueIndels;
+        numPredictedIndels += other.numPredictedIndels;
+        numIsIndels += other.numIsIndels;
+        numPredictedSNPs += other.numPredictedSNPs;
+        numIsSNPs += other.numIsSNPs;
+        // TP/TN/FP/FN totals are derived from the per-type counters in createOutputStatistics:
+        numTruePositive = numSnpsTruePositive + numIndelsTruePositive;
+        numTrueNegative = numSnpsTrueNegative + numIndelsTrueNegative;
+        numFalsePositive = numSnpsFalsePositive + numIndelsFalsePositive;
+        numFalseNegative = numSnpsFalseNegative + numIndelsFalseNegative;
+        return this;
+    }
+
+    /**
+     * Number of counters that {@link #write} saves.
+     */
+    private static final int NUM_COUNTERS = 26;
+
+    /**
+     * Write the counters of this accumulator, in the order {@link #merge} combines them. TP/TN/FP/FN totals are not
+     * written, they are derived from the per-type counters.
+     */
+    public void write(DataOutput output) throws IOException {
+        output.writeInt(NUM_COUNTERS);
+        output.writeLong(numCorrectVariants);
+        output.writeLong(numProcessed);
+        output.writeLong(numIndelsCorrect);
+        output.writeLong(numSnpsCorrect);
+        output.writeLong(numIndelsProcessed);
+        output.writeLong(numSnpsProcessed);
+        output.writeLong(numIndelsTruePositive);
+        output.writeLong(numIndelsFalsePositive);
+        output.writeLong(numIndelsFalseNegative);
+        output.writeLong(numIndelsTrueNegative);
+        output.writeLong(numSnpsTruePositive);
+        output.writeLong(numSnpsFalsePositive);
+        output.writeLong(numSnpsFalseNegative);
+        output.writeLong(numSnpsTrueNegative);
+        output.writeLong(numVariants);
+        output.writeLong(numIndels);
+        output.writeLong(concordantVariants);
+        output.writeLong(numVariantsExpected);
+        output.writeLong(numTrueOrPredictedVariants);
+        output.writeLong(hetCount);
+        output.writeLong(homCount);
+        output.writeLong(numTrueIndels);
+        output.writeLong(numPredictedIndels);
+        output.writeLong(numIsIndels);
+        output.writeLong(numPredictedSNPs);
+        output.writeLong(numIsSNPs);
+    }
+
+    /**
+     * Read an accumulator written with {@link #write}.
+     */
+    public static StatsAccumulator read(DataInput input) throws IOException {
+        int numCounters = input.readInt();
+        if (numCounters != NUM_COUNTERS) {
+            throw new IOException("Unable to read counters: expected " + NUM_COUNTERS + " counters, found " + numCounters);
+        }
+        StatsAccumulator stats = new StatsAccumulator();
+        stats.numCorrectVariants = input.readLong();
+        stats.numProcessed = input.readLong();
+        stats.numIndelsCorrect = input.readLong();
+        stats.numSnpsCorrect = input.readLong();
+        stats.numIndelsProcessed = input.readLong();
+        stats.numSnpsProcessed = input.readLong();
+        stats.numIndelsTruePositive = input.readLong();
+        stats.numIndelsFalsePositive = input.readLong();
+        stats.numIndelsFalseNegative = input.readLong();
+        stats.numIndelsTrueNegative = input.readLong();
+        stats.numSnpsTruePositive = input.readLong();
+        stats.numSnpsFalsePositive = input.readLong();
+        stats.numSnpsFalseNegative = input.readLong();
+        stats.numSnpsTrueNegative = input.readLong();
+        stats.numVariants = input.readLong();
+        stats.numIndels = input.readLong();
+        stats.concordantVariants = input.readLong();
+        stats.numVariantsExpected = input.readLong();
+        stats.numTrueOrPredictedVariants = input.readLong();
+        stats.hetCount = input.readLong();
+        stats.homCount = input.readLong();
+        stats.numTrueIndels = input.readLong();
+        stats.numPredictedIndels = input.readLong();
+        stats.numIsIndels = input.readLong();
+        stats.numPredictedSNPs = input.readLong();
+        stats.numIsSNPs = input.readLong();
+        stats.numTruePositive = stats.numSnpsTruePositive + stats.numIndelsTruePositive;
+        stats.numTrueNegative = stats.numSnpsTrueNegative + stats.numIndelsTrueNegative;
+        stats.numFalsePositive = stats.numSnpsFalsePositive + stats.numIndelsFalsePositive;
+        stats.numFalseNegative = stats.numSnpsFalseNegative + stats.numIndelsFalseNegative;
+        return stats;
     }
 
     public void observe(GenotypePrediction fullPred) {
@@ -206,7 +339,7 @@ public class StatsAccumulator {
         System.out.printf("SNPs=TP %d FN %d FP %d TN %d %n", numSnpsTruePositive, numSnpsFalseNegative, numSnpsFalsePositive, numSnpsTrueNegative);
     }
 
-    public void setNumVariantsExpected(int numVariantsExpected) {
+    public void setNumVariantsExpected(long numVariantsExpected) {
         this.numVariantsExpected = numVariantsExpected;
     }
 
@@ -1,6 +1,9 @@
 package org.campagnelab.dl.genotype.storage;
 
+import org.apache.commons.io.FilenameUtils;
 import org.apache.commons.io.IOUtils;
+import org.campagnelab.dl.somatic.storage.ChunkPositionIndex;
+import org.campagnelab.dl.somatic.storage.ChunkRangeIterator;
 import org.campagnelab.dl.somatic.storage.RecordIterable;
 import org.campagnelab.dl.somatic.storage.RecordReaderI;
 import org.campagnelab.dl.varanalysis.protobuf.SegmentInformationRecords;
@@ -8,8 +11,11 @@ import org.campagnelab.goby.baseinfo.SequenceSegmentInformationReader;
 import org.campagnelab.goby.exception.GobyRuntimeException;
 
 import java.io.Closeable;
+import java.io.File;
 import java.io.IOException;
+import java.util.Collections;
 import java.util.Iterator;
+import java.util.List;
 import java.util.Properties;
 
 /**
@@ -21,9 +27,156 @@ public class SegmentReader implements Closeable, RecordIterable<SegmentInformati
         RecordReaderI<SegmentInformationRecords.SegmentInformation> {
 
     private SequenceSegmentInformationReader reader;
+    private final String ssiPath;
+    private ChunkPositionIndex positionIndex;
 
     public SegmentReader(String filepath) throws IOException {
         reader = new SequenceSegmentInformationReader(filepath);
+        ssiPath = ssiFilename(filepath);
+    }
+
+    /**
+     * Creates a reader for the specified range.
+     *
+     * @param filepath    path of the .ssi file.
+     * @param startOffset offset in the file to start from (bytes)
+     * @param endOffset   chunks that start at or after this offset are not read.
+     * @throws IOException
+     */
+    public SegmentReader(String filepath, long startOffset, long endOffset) throws IOException {
+        reader = new SequenceSegmentInformationReader(startOffset, endOffset, filepath);
+        ssiPath = ssiFilename(filepath);
+    }
+
+    /**
+     * Return the path of the .ssi file of a basename or filename.
+     */
+    public static String ssiFilename(String file) {
+        return (file.endsWith(".ssi") ? FilenameUtils.removeExtension(file) : file) + ".ssi";
+    }
+
+    /**
+     * Gets the path of the .ssi file this reader reads from.
+     *
+     * @return the path of the .ssi file.
+     */
+    public String getSourceSsiPath() {
+        return ssiPath;
+    }
+
+    /**
+     * Return the position index of the file. The index is rebuilt when it is missing or older than the .ssi file,
+     * and saved when the directory of the file is writable.
+     *
+     * @return the position index.
+     * @throws IOException when the index cannot be read or rebuilt.
+     */
+    public ChunkPositionIndex getPositionIndex() throws IOException {
+        if (positionIndex == null) {
+            positionIndex = ChunkPositionIndex.load(ssiPath);
+            if (positionIndex == null) {
+                positionIndex = buildIndex(ssiPath);
+                positionIndex.trySave(ssiPath);
+            }
+        }
+        return positionIndex;
+    }
+
+    /**
+     * Rebuild the position index of an existing .ssi file, reading each chunk once, and save it next to the file.
+     *
+     * @param ssiPath path of the .ssi file.
+     * @return the index.
+     * @throws IOException when the file cannot be read or the index cannot be written.
+     */
+    public static ChunkPositionIndex rebuildIndex(String ssiPath) throws IOException {
+        ChunkPositionIndex index = buildIndex(ssiPath);
+        index.save(ssiPath);
+        return index;
+    }
+
+    private static ChunkPositionIndex buildIndex(String ssiPath) throws IOException {
+        return ChunkPositionIndex.build(new File(ssiPath), (startOffset, endOffset, consumer) -> {
+            try (SegmentReader reader = new SegmentReader(ssiPath, startOffset, endOffset)) {
+                for (SegmentInformationRecords.SegmentInformation segment : reader) {
+                    SegmentInformationRecords.ReferencePosition start = segment.getStartPosition();
+                    SegmentInformationRecords.ReferencePosition end = segment.getEndPosition();
+                    consumer.accept(start.getReferenceIndex(), start.getReferenceId(), start.getLocation());
+                    consumer.accept(end.getReferenceIndex(), end.getReferenceId(), end.getLocation());
+                }
+            }
+        });
+    }
+
+    /**
+     * Iterate over the segments that overlap a region. Only the chunks that overlap the region are read.
+     *
+     * @param region region in the chr:start-end format, where start and end are included.
+     * @return iterator over the overlapping segments, in file order. Close it to release the file.
+     * @throws IOException when the position index cannot be obtained.
+     */
+    public ChunkRangeIterator<SegmentInformationRecords.SegmentInformation> interval(String region) throws IOException {
+        int colon = region.lastIndexOf(':');
+        int dash = region.indexOf('-', colon + 1);
+        if (colon == -1 || dash == -1) {
+            throw new IllegalArgumentException("Region must be provided in the chr:start-end format: " + region);
+        }
+        return interval(region.substring(0, colon), Integer.parseInt(region.substring(colon + 1, dash)),
+                Integer.parseInt(region.substring(dash + 1)));
+    }
+
+    /**
+     * Iterate over the segments that overlap a genomic interval. Only the chunks that overlap the interval are read.
+     *
+     * @param referenceId name of the reference sequence (i.e., chromosome).
+     * @param start       first position of the interval.
+     * @param end         last position of the interval (inclusive).
+     * @return iterator over the overlapping segments, in file order. Close it to release the file.
+     * @throws IOException when the position index cannot be obtained.
+     */
+    public ChunkRangeIterator<SegmentInformationRecords.SegmentInformation> interval(String referenceId, int start,
+                                                                                     int end) throws IOException {
+        return interval(getPositionIndex().referenceIndex(referenceId), start, end);
+    }
+
+    /**
+     * Iterate over the segments that overlap a genomic interval. Only the chunks that overlap the interval are read.
+     *
+     * @param referenceIndex index of the reference sequence, -1 when the reference is not in the file.
+     * @param start          first position of the interval.
+     * @param end            last position of the interval (inclusive).
+     * @return iterator over the overlapping segments, in file order. Close it to release the file.
+     * @throws IOException when the position index cannot be obtained.
+     */
+    public ChunkRangeIterator<SegmentInformationRecords.SegmentInformation> interval(int referenceIndex, int start,
+                                                                                     int end) throws IOException {
+        List<long[]> ranges = referenceIndex == -1 || end < start ? Collections.emptyList() :
+                getPositionIndex().byteRanges(referenceIndex, start, end);
+        final String path = ssiPath;
+        return new ChunkRangeIterator<>(ranges, (startOffset, endOffset) -> new SegmentReader(path, startOffset, endOffset),
+                segment -> overlaps(segment, referenceIndex, start, end));
+    }
+
+    /**
+     * Determine if a segment overlaps an interval.
+     *
+     * @param segment        the segment.
+     * @param referenceIndex reference index of the interval.
+     * @param start          first position of the interval.
+     * @param end            last position of the interval (inclusive).
+     * @return true when at least one base of the segment is in the interval.
+     */
+    public static boolean overlaps(SegmentInformationRecords.SegmentInformation segment, int referenceIndex,
+                                   int start, int end) {
+        SegmentInformationRecords.ReferencePosition first = segment.getStartPosition();
+        SegmentInformationRecords.ReferencePosition last = segment.getEndPosition();
+        return compare(first.getReferenceIndex(), first.getLocation(), referenceIndex, end) <= 0 &&
+                compare(last.getReferenceIndex(), last.getLocation(), referenceIndex, start) >= 0;
+    }
+
+    private static int compare(int referenceIndex1, int position1, int referenceIndex2, int position2) {
+        int result = Integer.compare(referenceIndex1, referenceIndex2);
+        return result != 0 ? result : Integer.compare(position1, position2);
     }
     /**
      * The number of records that can be read with this reader.
@@ -1,9 +1,13 @@
 package org.campagnelab.dl.genotype.storage;
 
+import org.campagnelab.dl.somatic.storage.ChunkPositionIndex;
 import org.campagnelab.dl.varanalysis.protobuf.SegmentInformationRecords;
 import org.campagnelab.goby.baseinfo.SequenceSegmentInformationWriter;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
 import java.io.Closeable;
+import java.io.File;
 import java.io.IOException;
 
 /**
@@ -12,21 +16,51 @@ import java.io.IOException;
  * @author manuele simi
  */
 public class SegmentWriter implements Closeable {
+    static private Logger LOG = LoggerFactory.getLogger(SegmentWriter.class);
 
     private SequenceSegmentInformationWriter writer;
+    private final String ssiFilename;
+    private final int numEntriesPerChunk;
+    private final ChunkPositionIndex.Builder indexBuilder;
+    private long numWritten;
 
-    public SegmentWriter(String file, int numEntriesPerChunk) throws IOException {
+    /**
+     * Create a writer.
+     *
+     * @param file               name of the .ssi file, with or without the extension.
+     * @param numEntriesPerChunk number of segments per chunk.
+     * @param writeIndex         true to write the position index of the file when it is closed. Temporary files
+     *                           that are only read sequentially need no index.
+     */
+    public SegmentWriter(String file, int numEntriesPerChunk, boolean writeIndex) throws IOException {
         writer = new SequenceSegmentInformationWriter(file);
         writer.setNumEntriesPerChunk(numEntriesPerChunk);
+        this.numEntriesPerChunk = numEntriesPerChunk;
+        this.ssiFilename = SegmentReader.ssiFilename(file);
+        this.indexBuilder = writeIndex ? new ChunkPositionIndex.Builder() : null;
+    }
+
+    public SegmentWriter(String file, int numEntriesPerChunk) throws IOException {
+        this(file, numEntriesPerChunk, true);
     }
 
     public SegmentWriter(String file) throws IOException {
-        writer = new SequenceSegmentInformationWriter(file);
-        writer.setNumEntriesPerChunk(1000);
+        this(file, 1000);
     }
 
     public void writeRecord(SegmentInformationRecords.SegmentInformation record)  {
         writer.appendEntry(record);
+        if (indexBuilder == null) {
+            return;
+        }
+        // segments are written in chunks of numEntriesPerChunk segments. The chunk spans from the start of its first
+        // segment to the end of its last segment:
+        final int chunk = (int) (numWritten / numEntriesPerChunk);
+        SegmentInformationRecords.ReferencePosition start = record.getStartPosition();
+        SegmentInformationRecords.ReferencePosition end = record.getEndPosition();
+        indexBuilder.observe(chunk, start.getReferenceIndex(), start.getReferenceId(), start.getLocation());
+        indexBuilder.observe(chunk, end.getReferenceIndex(), end.getReferenceId(), end.getLocation());
+        numWritten++;
     }
     /**
      * Closes this stream and releases any system resources associated
@@ -44,5 +78,27 @@ public class SegmentWriter implements Closeable {
     @Override
     public void close() throws IOException {
          writer.close();
+         writeIndex();
+    }
+
+    /**
+     * Write the position index of the file. The index is not written when the chunks found in the file do not match
+     * the number of segments written per chunk. It can then be rebuilt with SegmentReader.rebuildIndex.
+     */
+    private void writeIndex() {
+        File ssiFile = new File(ssiFilename);
+        if (indexBuilder == null || !ssiFile.exists()) {
+            return;
+        }
+        try {
+            long[] chunkOffsets = ChunkPositionIndex.chunkOffsets(ssiFile);
+            if (chunkOffsets.length - 1 != indexBuilder.numChunks()) {
+                LOG.warn("Chunks of {} do not match the segments written, position index not written.", ssiFilename);
+                return;
+            }
+            indexBuilder.build(chunkOffsets).save(ssiFilename);
+        } catch (IOException e) {
+            LOG.warn("Unable to write the position index of " + ssiFilename, e);
+        }
     }
 }
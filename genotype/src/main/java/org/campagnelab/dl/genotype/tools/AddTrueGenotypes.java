@@ -8,6 +8,7 @@ import org.campagnelab.dl.framework.bed.BedLoader;
 import org.campagnelab.dl.framework.bed.FullOverlapper;
 import org.campagnelab.dl.framework.tools.arguments.AbstractTool;
 import org.campagnelab.dl.genotype.helpers.AddTrueGenotypeHelper;
+import org.campagnelab.dl.genotype.helpers.SortedVariants;
 import org.campagnelab.dl.somatic.storage.RecordReader;
 import org.campagnelab.dl.varanalysis.protobuf.BaseInformationRecords;
 import org.campagnelab.goby.baseinfo.SequenceBaseInformationWriter;
@@ -85,6 +86,9 @@ public class AddTrueGenotypes extends AbstractTool<AddTrueGenotypesArguments> {
                     args().considerIndels,
                     args().indelsAsRef,
                     args().referenceSamplingRate);
+            if (args().mergeJoin) {
+                addTrueGenotypeHelper.useMergeJoin(new SortedVariants(addTrueGenotypeHelper.getVariantMap()));
+            }
             ProgressLogger recordLogger = new ProgressLogger(LOG);
             recordLogger.expectedUpdates = source.numRecords();
             System.out.println(source.numRecords() + " records to label");
@@ -36,5 +36,9 @@ public class AddTrueGenotypesArguments implements ToolArguments {
 
     @Parameter( names = { "--indels-as-ref"}, description = "When true, treat add the first base of indels as ref if they aren't considered. Ignored if indels considered.")
     public boolean indelsAsRef = true;
+
+    @Parameter( names = { "--merge-join"}, description = "When true, walk the variants of the map in lockstep with the records, " +
+            "instead of looking up each record in the map. Much faster when the input is sorted by position.")
+    public boolean mergeJoin;
 }
 
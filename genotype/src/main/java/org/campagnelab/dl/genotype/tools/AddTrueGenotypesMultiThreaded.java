@@ -6,17 +6,19 @@ import it.unimi.dsi.logging.ProgressLogger;
 import org.apache.commons.io.FilenameUtils;
 import org.campagnelab.dl.framework.tools.arguments.AbstractTool;
 import org.campagnelab.dl.genotype.helpers.AddTrueGenotypeHelper;
+import org.campagnelab.dl.genotype.helpers.SortedVariants;
 import org.campagnelab.dl.somatic.storage.RecordReader;
 import org.campagnelab.dl.varanalysis.protobuf.BaseInformationRecords;
 import org.campagnelab.goby.baseinfo.SequenceBaseInformationWriter;
 import org.campagnelab.goby.reads.RandomAccessSequenceCache;
+import org.campagnelab.goby.util.VariantMapHelper;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.util.ArrayList;
-import java.util.Iterator;
 import java.util.List;
 
 /**
@@ -30,6 +32,8 @@ public class AddTrueGenotypesMultiThreaded extends AbstractTool<AddTrueGenotypes
 
 
     RandomAccessSequenceCache genome;
+    VariantMapHelper varMap;
+    SortedVariants sortedVariants;
     final static int THREAD_COUNT = 8;
     final public static boolean PRINT_INDEL_ERROR_CONTEXT = false;
 
@@ -49,15 +53,23 @@ public class AddTrueGenotypesMultiThreaded extends AbstractTool<AddTrueGenotypes
 
     public void prepare(){
         try {
-            source = new RecordReader(args().inputFile);
-            iter =  source.iterator();
+            // the genome and the map are loaded once and shared, read-only, by all threads:
+            genome = new RandomAccessSequenceCache();
+            genome.load(args().genomeFilename, "min", "max");
+            varMap = AddTrueGenotypeHelper.loadMap(args().genotypeMap);
+            sortedVariants = args().mergeJoin ? new SortedVariants(varMap) : null;
+            long numRecords;
+            try (RecordReader source = new RecordReader(args().inputFile)) {
+                sbiPath = source.getSourceSbiPath();
+                numRecords = source.numRecords();
+            }
             recordLogger = new ProgressLogger(LOG);
-            recordLogger.expectedUpdates = source.numRecords();
-            System.out.println(source.numRecords() + " records to label");
+            recordLogger.expectedUpdates = numRecords;
+            System.out.println(numRecords + " records to label");
             recordsLabeled = 0;
             recordLogger.start();
             ObjectArrayList<BaseInformationRecords.BaseInformation> recContext = new ObjectArrayList<>(1000);
-        } catch (IOException e) {
+        } catch (IOException | ClassNotFoundException e) {
             throw new RuntimeException(e);
         }
     }
@@ -67,37 +79,37 @@ public class AddTrueGenotypesMultiThreaded extends AbstractTool<AddTrueGenotypes
     public void run() {
         AddTrueGenotypeHelper addTrueGenotypeHelper  = new AddTrueGenotypeHelper();
         SequenceBaseInformationWriter dest = null;
-        genome = new RandomAccessSequenceCache();
         try {
-            genome.load(args().genomeFilename, "min", "max");
             dest = new SequenceBaseInformationWriter(FilenameUtils.getFullPath(args().outputFilename) + FilenameUtils.getBaseName(args().outputFilename) + Thread.currentThread().getId() + ".sbi");
         } catch (FileNotFoundException e) {
             throw new RuntimeException(e);
         } catch (IOException e) {
             e.printStackTrace();
-        } catch (ClassNotFoundException e) {
-            e.printStackTrace();
         }
         synchronized (this) {
             writers.add(dest);
         }
         addTrueGenotypeHelper.configure(
+                varMap,
                 args().genotypeMap,
                 genome,
                 args().sampleIndex,
                 args().considerIndels,
                 args().indelsAsRef,
                 args().referenceSamplingRate);
-        try {
-            BaseInformationRecords.BaseInformation rec;
+        if (sortedVariants != null) {
+            addTrueGenotypeHelper.useMergeJoin(sortedVariants);
+        }
+        int rangeIndex;
+        synchronized (this) {
+            rangeIndex = nextRangeIndex++;
+        }
+        // each thread labels a contiguous range of the input, so records reach its merge-join cursor in order:
+        final long length = new File(sbiPath).length();
+        try (RecordReader source = new RecordReader(sbiPath, length * rangeIndex / THREAD_COUNT,
+                length * (rangeIndex + 1) / THREAD_COUNT)) {
             boolean keep;
-            while (true){
-                synchronized(this) {
-                    if (!iter.hasNext()){
-                        break;
-                    }
-                    rec = iter.next();
-                }
+            for (BaseInformationRecords.BaseInformation rec : source) {
                 keep = addTrueGenotypeHelper.addTrueGenotype(rec);
                 synchronized(this) {
                     if (keep) {
@@ -121,11 +133,11 @@ public class AddTrueGenotypesMultiThreaded extends AbstractTool<AddTrueGenotypes
     }
 
 
-    RecordReader source;
+    String sbiPath;
+    int nextRangeIndex;
     ProgressLogger recordLogger;
 
     int recordsLabeled;
-    Iterator<BaseInformationRecords.BaseInformation> iter;
     List<SequenceBaseInformationWriter> writers = new ArrayList<SequenceBaseInformationWriter>();
 
 
@@ -2,8 +2,10 @@ package org.campagnelab.dl.genotype.tools;
 
 
 import it.unimi.dsi.logging.ProgressLogger;
+import org.campagnelab.dl.framework.bed.BedLoader;
 import org.campagnelab.dl.framework.tools.arguments.AbstractTool;
 import org.campagnelab.dl.genotype.mappers.GenotypeFeatureMapper;
+import org.campagnelab.dl.somatic.storage.ChunkRangeIterator;
 import org.campagnelab.dl.somatic.storage.RecordReader;
 import org.campagnelab.dl.varanalysis.protobuf.BaseInformationRecords;
 import org.campagnelab.goby.reads.RandomAccessSequenceCache;
@@ -80,6 +82,10 @@ public class DebugGenotype extends AbstractTool<DebugGenotypeArguments> {
         } catch (IOException | ClassNotFoundException e) {
             throw new RuntimeException("Unable to load true genotype map with filename " + args().genotypeMap, e);
         }
+        if (args().region != null || args().bedFilename != null) {
+            printRegions(source);
+            return;
+        }
 
         Scanner sc = new Scanner(System.in);
         while (true) {
@@ -133,8 +139,18 @@ public class DebugGenotype extends AbstractTool<DebugGenotypeArguments> {
                 continue;
             }
             ProgressLogger recordLogger = new ProgressLogger(LOG);
-            System.out.println("scanning from total of " + source.numRecords() + " records.");
-            for (BaseInformationRecords.BaseInformation rec :  source){
+            // only read the chunks that overlap the queried positions:
+            ChunkRangeIterator<BaseInformationRecords.BaseInformation> records;
+            try {
+                records = source.interval(source.getPositionIndex().referenceIndex(chr), pos,
+                        (pos2 != null ? pos2 : pos) + 1);
+            } catch (IOException e) {
+                System.out.println("Unable to index " + args().inputFile + ": " + e.getMessage());
+                continue;
+            }
+            System.out.println("scanning the records that overlap the query.");
+            while (records.hasNext()) {
+                BaseInformationRecords.BaseInformation rec = records.next();
                 if (pos2 != null){
                     if (rec.getPosition() >= pos && rec.getPosition() <= pos2 && rec.getReferenceId().equals(chr)){
                         System.out.println(rec.getReferenceId() + ":" + rec.getPosition() + ":" + rec.getSamples(0).getFormattedCounts());
@@ -181,6 +197,7 @@ public class DebugGenotype extends AbstractTool<DebugGenotypeArguments> {
                 }
                 recordLogger.lightUpdate();
             }
+            closeQuietly(records);
             recordLogger.done();
 
         }
@@ -190,6 +207,30 @@ public class DebugGenotype extends AbstractTool<DebugGenotypeArguments> {
     }
 
 
+    /**
+     * Print the records of --region or --bed.
+     */
+    private void printRegions(RecordReader source) {
+        try (ChunkRangeIterator<BaseInformationRecords.BaseInformation> records = args().region != null ?
+                source.interval(args().region) :
+                source.regions(BedLoader.loadBedFile(new FileReader(args().bedFilename)))) {
+            while (records.hasNext()) {
+                BaseInformationRecords.BaseInformation rec = records.next();
+                System.out.println(rec.getReferenceId() + ":" + rec.getPosition() + ":" + rec.getSamples(0).getFormattedCounts());
+            }
+        } catch (IOException e) {
+            throw new RuntimeException("Unable to read the records of the regions from " + args().inputFile, e);
+        }
+    }
+
+    private void closeQuietly(ChunkRangeIterator<BaseInformationRecords.BaseInformation> records) {
+        try {
+            records.close();
+        } catch (IOException e) {
+            LOG.warn("Unable to close the records of " + args().inputFile, e);
+        }
+    }
+
     @Override
     public DebugGenotypeArguments createArguments() {
         return new DebugGenotypeArguments();
@@ -24,6 +24,13 @@ public class DebugGenotypeArguments implements ToolArguments {
 
     @Parameter(names = "--net-architecture", description = "fully qualified classname that implements the choice of network architecture. Use this to see mapped labels of a record.")
     public java.lang.String architectureClassname;
-    
 
+    @Parameter(names = {"--region"}, description = "Print the records of this region, provided in chr:start-end " +
+            "format (zero-based positions, both included), instead of querying sites interactively. Only the chunks " +
+            "of the .sbi that overlap the region are read.")
+    public String region;
+
+    @Parameter(names = {"--bed"}, description = "Print the records inside the regions of this BED file, instead of " +
+            "querying sites interactively. Only the chunks of the .sbi that overlap the regions are read.")
+    public String bedFilename;
 }
@@ -39,5 +39,6 @@ public class DownSampleGenotypeArguments implements ToolArguments {
     @Parameter( names = { "seed"}, description = "optional custom random seed.")
     public int seed=240965;
 
+    @Parameter(names = {"--threads"}, description = "Number of threads. The input is split in as many byte ranges, each filtered by one thread with its own random stream. The output is the same for a given seed and number of threads.")
+    public int numThreads = 1;
 }
-
@@ -1,13 +1,9 @@
 package org.campagnelab.dl.genotype.tools;
 
 
-import it.unimi.dsi.logging.ProgressLogger;
-import it.unimi.dsi.util.XorShift1024StarRandom;
 import org.campagnelab.dl.framework.tools.arguments.AbstractTool;
 import org.campagnelab.dl.genotype.helpers.GenotypeHelper;
-import org.campagnelab.dl.somatic.storage.RecordReader;
 import org.campagnelab.dl.varanalysis.protobuf.BaseInformationRecords;
-import org.campagnelab.goby.baseinfo.SequenceBaseInformationWriter;
 import org.campagnelab.goby.reads.RandomAccessSequenceCache;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -18,20 +14,20 @@ import java.util.Random;
 
 /**
  * Down-sample genotypes that do not have certain characteristics. Used to over-sample SNPs and het variants.
- *
+ * With --threads, byte ranges of the input are down-sampled in parallel (see {@link PartitionedSbiFilter}). All
+ * threads share the genome, which is only read.
  */
 public class DownSampleGenotypes extends AbstractTool<DownSampleGenotypeArguments> {
 
 
     private RandomAccessSequenceCache genome = new RandomAccessSequenceCache();
-    private Random random;
-    private int recordsIncluded = 0;
-    private int sitesNotSampled = 0;
-    private int inputNumRecords = 0;
+    private long recordsIncluded = 0;
+    private long sitesNotSampled = 0;
+    private long inputNumRecords = 0;
 
     static private Logger LOG = LoggerFactory.getLogger(DownSampleGenotypes.class);
-    private int numIndel;
-    private int numHeterozygotes;
+    private long numIndel;
+    private long numHeterozygotes;
 
 
     public static void main(String[] args) {
@@ -55,9 +51,9 @@ public class DownSampleGenotypes extends AbstractTool<DownSampleGenotypeArgument
             System.out.println("These arguments would result in nothing written to the output. Aborting.");
             System.exit(1);
         }
-
-        //init random
-        random = new XorShift1024StarRandom(args().seed);
+        if (args().balancingRatio != null) {
+            throw new UnsupportedOperationException("--balancing-ratio is currently not supported.");
+        }
         //get reference genome
         String genomePath = args().genomeFilename;
         try {
@@ -70,75 +66,18 @@ public class DownSampleGenotypes extends AbstractTool<DownSampleGenotypeArgument
         }
 
         try {
-            int numSkippedSoFar = 0;
-            int numKeptSoFar = 0;
-            int numOtherKeptSoFar = 0;
-            int numMustKeepSoFar = 0;
-            RecordReader source = new RecordReader(args().inputFile);
-            SequenceBaseInformationWriter dest = new SequenceBaseInformationWriter(args().outputFilename);
-            ProgressLogger recordLogger = new ProgressLogger(LOG);
-            recordLogger.expectedUpdates = source.numRecords();
-            System.out.println(source.numRecords() + " records to label");
-            recordLogger.start();
-
-            for (BaseInformationRecords.BaseInformation rec : source) {
-                int referenceIndex = genome.getReferenceIndex(rec.getReferenceId());
-                char referenceBase = genome.get(referenceIndex, rec.getPosition());
-                String refBase = Character.toString(referenceBase);
-                inputNumRecords++;
-                boolean isVariant = rec.getSamples(0).getIsVariant();
-                String trueGenotype = rec.getTrueGenotype();
-
-                boolean keep = false;
-
-                //todo verify use of isIndel here
-                boolean indel = GenotypeHelper.isIndel(refBase,trueGenotype);
-                boolean heterozygote = GenotypeHelper.isHeterozygote(trueGenotype);
-
-                keep |= args().keepAllIndels && indel;
-                keep |= args().keepAllHeterozygotes && heterozygote;
-                if (keep) {
-                    numMustKeepSoFar++;
-                }
-                if (!keep) {
-
-                    if (random.nextFloat() > args().otherSamplingRate) {
-                        sitesNotSampled++;
-                        numOtherKeptSoFar++;
-                    } else {
-                        keep = true;
-
-                    }
-                    if (args().balancingRatio != null) {
-                        /**
-                        System.out.printf("sitesNotSampled %d numKeptSoFar %d otherSamplingRate %f%n",sitesNotSampled,numKeptSoFar, args().otherSamplingRate);
-
-                        float hasBeen=  numKeptSoFar-numMustKeepSoFar;
-                        float shouldBe = numKeptSoFar*args().balancingRatio;
-                        System.out.printf("hasBeen=%f shouldBe=%f%n",hasBeen,shouldBe);
-                        args().otherSamplingRate = Math.max(0, hasBeen  / shouldBe );
-                   */
-                        throw new UnsupportedOperationException("This argument is currently not supported.");
-                    }
-                }
-                if (keep) {
-                    if (indel) {
-                        numIndel++;
-                    }
-                    if (heterozygote) {
-                        numHeterozygotes++;
-                    }
-                    recordsIncluded++;
-                    dest.appendEntry(rec);
-                    numKeptSoFar++;
-                } else {
-                    numSkippedSoFar++;
-                }
-                recordLogger.update();
+            PartitionedSbiFilter filter = new PartitionedSbiFilter(args().inputFile, args().outputFilename,
+                    args().numThreads);
+            long numSkippedSoFar = 0;
+            for (DownSamplePartition partition : filter.run(DownSamplePartition::new)) {
+                inputNumRecords += partition.inputNumRecords;
+                sitesNotSampled += partition.sitesNotSampled;
+                numIndel += partition.numIndel;
+                numHeterozygotes += partition.numHeterozygotes;
+                recordsIncluded += partition.recordsIncluded;
+                numSkippedSoFar += partition.inputNumRecords - partition.recordsIncluded;
             }
-            recordLogger.done();
-            dest.setCustomProperties(getStatProperties(source));
-            dest.close();
+            filter.close(getStatProperties(filter.getInputProperties()));
             printStats(numSkippedSoFar);
         } catch (IOException e) {
             System.err.println("IO exception, perhaps sbi file not found?");
@@ -147,6 +86,57 @@ public class DownSampleGenotypes extends AbstractTool<DownSampleGenotypeArgument
         }
     }
 
+    /**
+     * Down-samples the records of one partition of the input.
+     */
+    private class DownSamplePartition implements PartitionedSbiFilter.Partition {
+        private final Random random;
+        long recordsIncluded;
+        long sitesNotSampled;
+        long inputNumRecords;
+        long numIndel;
+        long numHeterozygotes;
+
+        DownSamplePartition(int partition) {
+            random = PartitionedSbiFilter.partitionRandom(args().seed, partition);
+        }
+
+        @Override
+        public boolean keep(BaseInformationRecords.BaseInformation rec) {
+            int referenceIndex = genome.getReferenceIndex(rec.getReferenceId());
+            char referenceBase = genome.get(referenceIndex, rec.getPosition());
+            String refBase = Character.toString(referenceBase);
+            inputNumRecords++;
+            String trueGenotype = rec.getTrueGenotype();
+
+            boolean keep = false;
+
+            //todo verify use of isIndel here
+            boolean indel = GenotypeHelper.isIndel(refBase, trueGenotype);
+            boolean heterozygote = GenotypeHelper.isHeterozygote(trueGenotype);
+
+            keep |= args().keepAllIndels && indel;
+            keep |= args().keepAllHeterozygotes && heterozygote;
+            if (!keep) {
+                if (random.nextFloat() > args().otherSamplingRate) {
+                    sitesNotSampled++;
+                } else {
+                    keep = true;
+                }
+            }
+            if (keep) {
+                if (indel) {
+                    numIndel++;
+                }
+                if (heterozygote) {
+                    numHeterozygotes++;
+                }
+                recordsIncluded++;
+            }
+            return keep;
+        }
+    }
+
 
     @Override
     public DownSampleGenotypeArguments createArguments() {
@@ -154,7 +144,7 @@ public class DownSampleGenotypes extends AbstractTool<DownSampleGenotypeArgument
     }
 
 
-    private void printStats(int numSkippedSoFar) {
+    private void printStats(long numSkippedSoFar) {
         System.out.println(numSkippedSoFar + " number of sites removed from the file..");
         System.out.println(recordsIncluded + " labeled records written.");
         System.out.println(numHeterozygotes + " heterozygotes records written.");
@@ -162,13 +152,13 @@ public class DownSampleGenotypes extends AbstractTool<DownSampleGenotypeArgument
     }
 
 
-    public Properties getStatProperties(RecordReader source) {
-        Properties result = source.getProperties();
-        result.put("downSampleGenotypes.sitesNotSampled", Integer.toString(sitesNotSampled));
-        result.put("downSampleGenotypes.numIndelsWritten", Integer.toString(numIndel));
-        result.put("downSampleGenotypes.numHeterezygotesWritten", Integer.toString(numHeterozygotes));
-        result.put("downSampleGenotypes.sitesNotSampled", Integer.toString(sitesNotSampled));
-        result.put("downSampleGenotypes.input.numRecords", Integer.toString(inputNumRecords));
+    public Properties getStatProperties(Properties inputProperties) {
+        Properties result = inputProperties;
+        result.put("downSampleGenotypes.sitesNotSampled", Long.toString(sitesNotSampled));
+        result.put("downSampleGenotypes.numIndelsWritten", Long.toString(numIndel));
+        result.put("downSampleGenotypes.numHeterezygotesWritten", Long.toString(numHeterozygotes));
+        result.put("downSampleGenotypes.sitesNotSampled", Long.toString(sitesNotSampled));
+        result.put("downSampleGenotypes.input.numRecords", Long.toString(inputNumRecords));
         result.put("downSampleGenotypes.otherSamplingRate", Float.toString(args().otherSamplingRate));
         return result;
     }
@@ -1,14 +1,9 @@
 package org.campagnelab.dl.genotype.tools;
 
 
-import it.unimi.dsi.logging.ProgressLogger;
-import it.unimi.dsi.util.XorShift1024StarRandom;
 import org.campagnelab.dl.framework.tools.arguments.AbstractTool;
 import org.campagnelab.dl.genotype.helpers.GenotypeHelper;
-import org.campagnelab.dl.somatic.storage.RecordReader;
 import org.campagnelab.dl.varanalysis.protobuf.BaseInformationRecords;
-import org.campagnelab.goby.baseinfo.SequenceBaseInformationWriter;
-import org.campagnelab.goby.reads.RandomAccessSequenceCache;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -19,18 +14,15 @@ import java.util.Random;
 /**
  * Filter an SBI dataset to keep sites that match certain criteria.
  * <p>
- *
+ * With --threads, byte ranges of the input are filtered in parallel (see {@link PartitionedSbiFilter}).
  *
  * @author Fabien Campagne
  */
 public class FilterSBI extends AbstractTool<FilterSBIArguments> {
 
 
-    RandomAccessSequenceCache genome = new RandomAccessSequenceCache();
-    Random random;
     long filteredCount=0;
     long includedCount=0;
-    double otherSamplingRate;
 
 
     static private Logger LOG = LoggerFactory.getLogger(FilterSBI.class);
@@ -47,54 +39,64 @@ public class FilterSBI extends AbstractTool<FilterSBIArguments> {
     @Override
     //only supports genotypes encoded with a bar (|) delimiter
     public void execute() {
+        try {
+            filter();
+            printStats(includedCount, filteredCount);
+        } catch (IOException e) {
+            System.err.println("IO exception, perhaps the sbi file was not found?");
+            e.printStackTrace();
+            System.exit(1);
+        }
+    }
 
-        //init random
-        random = new XorShift1024StarRandom(args().seed);
-        double otherSamplingRate = args().otherSamplingRate;
+    void filter() throws IOException {
+        PartitionedSbiFilter filter = new PartitionedSbiFilter(args().inputFile, args().outputFilename,
+                args().numThreads);
+        for (FilterPartition partition : filter.run(FilterPartition::new)) {
+            filteredCount += partition.filteredCount;
+            includedCount += partition.includedCount;
+        }
+        filter.close(getStatProperties(filter.getInputProperties()));
+    }
 
-        try {
+    /**
+     * Filters the records of one partition of the input.
+     */
+    private class FilterPartition implements PartitionedSbiFilter.Partition {
+        private final Random random;
+        private final double otherSamplingRate = args().otherSamplingRate;
+        long filteredCount;
+        long includedCount;
+
+        FilterPartition(int partition) {
+            random = PartitionedSbiFilter.partitionRandom(args().seed, partition);
+        }
 
-            RecordReader source = new RecordReader(args().inputFile);
-            SequenceBaseInformationWriter dest = new SequenceBaseInformationWriter(args().outputFilename);
-            ProgressLogger recordLogger = new ProgressLogger(LOG);
-            recordLogger.expectedUpdates = source.numRecords();
-            System.out.println(source.numRecords() + " records to filter");
-            recordLogger.start();
-            for (BaseInformationRecords.BaseInformation rec : source) {
-
-                boolean isVariant = rec.getSamples(0).getIsVariant();
-                boolean isSnp = isVariant && !GenotypeHelper.isIndel(rec.getReferenceBase(), rec.getTrueGenotype());
-                boolean toRemove = false;
-                if (args().removeSNPs && isSnp) {
-                    toRemove = true;
-                    filteredCount++;
-                }
-                if (args().removeReferenceMatching && !isVariant) {
+        @Override
+        public boolean keep(BaseInformationRecords.BaseInformation rec) {
+            boolean isVariant = rec.getSamples(0).getIsVariant();
+            boolean isSnp = isVariant && !GenotypeHelper.isIndel(rec.getReferenceBase(), rec.getTrueGenotype());
+            boolean toRemove = false;
+            if (args().removeSNPs && isSnp) {
+                toRemove = true;
+                filteredCount++;
+            }
+            if (args().removeReferenceMatching && !isVariant) {
 
-                    toRemove = true;
-                }
+                toRemove = true;
+            }
 
-                if (toRemove) {
-                    if (random.nextFloat() < otherSamplingRate) {
-                        //override the remove flag. We want to keep a subset of those we remove.
-                        toRemove = false;
-                        filteredCount--;
-                    }
-                }
-                if (!toRemove) {
-                    includedCount++;
-                    dest.appendEntry(rec);
+            if (toRemove) {
+                if (random.nextFloat() < otherSamplingRate) {
+                    //override the remove flag. We want to keep a subset of those we remove.
+                    toRemove = false;
+                    filteredCount--;
                 }
-                recordLogger.lightUpdate();
             }
-            recordLogger.done();
-            dest.setCustomProperties(getStatProperties(source));
-            dest.close();
-            printStats(includedCount, filteredCount);
-        } catch (IOException e) {
-            System.err.println("IO exception, perhaps the sbi file was not found?");
-            e.printStackTrace();
-            System.exit(1);
+            if (!toRemove) {
+                includedCount++;
+            }
+            return !toRemove;
         }
     }
 
@@ -113,8 +115,8 @@ public class FilterSBI extends AbstractTool<FilterSBIArguments> {
     }
 
 
-    public Properties getStatProperties(RecordReader source) {
-        Properties result = source.getProperties();
+    public Properties getStatProperties(Properties inputProperties) {
+        Properties result = inputProperties;
         result.put("removeSnps.filtered", Long.toString(filteredCount));
         result.put("removeSnps.included", Long.toString(includedCount));
 
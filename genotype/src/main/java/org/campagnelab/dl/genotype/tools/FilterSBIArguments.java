@@ -28,5 +28,7 @@ public class FilterSBIArguments implements ToolArguments {
     public boolean removeSNPs;
     @Parameter(names={"--remove-ref-matching"},description = "Remove reference matching sites when specified. Keep SNPs or indels.")
     public boolean removeReferenceMatching;
-}
 
+    @Parameter(names = {"--threads"}, description = "Number of threads. The input is split in as many byte ranges, each filtered by one thread with its own random stream. The output is the same for a given seed and number of threads.")
+    public int numThreads = 1;
+}
@@ -3,6 +3,7 @@ package org.campagnelab.dl.genotype.tools;
 import org.campagnelab.dl.framework.tools.arguments.AbstractTool;
 import org.campagnelab.dl.genotype.storage.SegmentReader;
 import org.campagnelab.dl.genotype.storage.SegmentWriter;
+import org.campagnelab.dl.somatic.storage.ChunkRangeIterator;
 import org.campagnelab.dl.varanalysis.protobuf.SegmentInformationRecords;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -10,6 +11,7 @@ import org.slf4j.LoggerFactory;
 import java.io.File;
 import java.io.IOException;
 import java.util.Objects;
+import java.util.function.Consumer;
 
 /**
  * Filter SSI to extract a subset of the segments at specific positions.
@@ -44,12 +46,29 @@ public class FilterSSI extends AbstractTool<FilterSSIArguments> {
         final int[] numOfFilteredBases = {0};
         try (SegmentReader ssiReader = new SegmentReader(new File(args().inputFile).getAbsolutePath());
              SegmentWriter ssiwriter = new SegmentWriter(new File(args().outputFile).getAbsolutePath());) {
-            ssiReader.forEach(segmentInformation -> {
+            Consumer<SegmentInformationRecords.SegmentInformation> filter = segmentInformation -> {
                 if (this.accept(segmentInformation)) {
                     ssiwriter.writeRecord(segmentInformation);
                     numOfFilteredBases[0] += segmentInformation.getLength();
                 }
-            });
+            };
+            ChunkRangeIterator<SegmentInformationRecords.SegmentInformation> segments;
+            try {
+                // only the chunks that overlap the range are read:
+                segments = ssiReader.interval(this.referenceId, this.startLocation, this.endLocation);
+            } catch (IOException e) {
+                LOG.warn("Unable to index " + args().inputFile + ", scanning all the segments: " + e.getMessage());
+                segments = null;
+            }
+            if (segments != null) {
+                try {
+                    segments.forEachRemaining(filter);
+                } finally {
+                    segments.close();
+                }
+            } else {
+                ssiReader.forEach(filter);
+            }
         } catch (IOException e) {
             e.printStackTrace();
         }
@@ -0,0 +1,46 @@
+package org.campagnelab.dl.genotype.tools;
+
+import org.campagnelab.dl.framework.tools.arguments.AbstractTool;
+import org.campagnelab.dl.genotype.storage.SegmentReader;
+import org.campagnelab.dl.somatic.storage.ChunkPositionIndex;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+
+/**
+ * A tool to build the position index (.ssi.idx) of ssi files written before indices were introduced. The index lets
+ * {@link SegmentReader#interval(String, int, int)} read only the chunks that overlap a genomic interval.
+ */
+public class IndexSSI extends AbstractTool<IndexSSIArguments> {
+
+    static private final Logger LOG = LoggerFactory.getLogger(IndexSSI.class);
+
+    public static void main(String[] args) {
+        IndexSSI tool = new IndexSSI();
+        tool.parseArguments(args, "IndexSSI", tool.createArguments());
+        tool.execute();
+    }
+
+    @Override
+    public IndexSSIArguments createArguments() {
+        return new IndexSSIArguments();
+    }
+
+    @Override
+    public void execute() {
+        try {
+            for (String inputFile : args().inputFiles) {
+                String ssiPath = SegmentReader.ssiFilename(inputFile);
+                if (!args().force && ChunkPositionIndex.load(ssiPath) != null) {
+                    LOG.info("Index of {} is up to date.", ssiPath);
+                    continue;
+                }
+                ChunkPositionIndex index = SegmentReader.rebuildIndex(ssiPath);
+                LOG.info("Indexed {} chunks of {}", index.numChunks(), ssiPath);
+            }
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+}
@@ -0,0 +1,20 @@
+package org.campagnelab.dl.genotype.tools;
+
+import com.beust.jcommander.Parameter;
+import org.campagnelab.dl.framework.tools.arguments.ToolArguments;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Arguments for the {@link IndexSSI} tool.
+ */
+public class IndexSSIArguments implements ToolArguments {
+
+    @Parameter(required = true, names = {"-i", "--input-files"}, variableArity = true,
+            description = "Input files in .ssi format.")
+    public List<String> inputFiles = new ArrayList<>();
+
+    @Parameter(names = {"-f", "--force"}, description = "Rebuild the index even when an up to date index exists.")
+    public boolean force;
+}
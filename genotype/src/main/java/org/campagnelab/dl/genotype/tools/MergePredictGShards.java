@@ -0,0 +1,194 @@
+package org.campagnelab.dl.genotype.tools;
+
+import it.unimi.dsi.fastutil.objects.ObjectArrayList;
+import it.unimi.dsi.fastutil.objects.ObjectOpenHashSet;
+import org.campagnelab.dl.framework.performance.StreamingAUC;
+import org.campagnelab.dl.framework.tools.arguments.AbstractTool;
+import org.campagnelab.dl.genotype.performance.StatsAccumulator;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedReader;
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Merge the outputs of PredictG runs over the shards of a dataset (see PredictG --shard-count). VCF and BED files of
+ * the shards are concatenated in shard order. Since shards are consecutive byte ranges of the dataset, the merged
+ * files are in genomic order when the dataset is sorted, as they would be after a single PredictG run. Sites found
+ * at the end of a shard and again at the start of the next are written once. The index column of the BED files counts
+ * the predictions of each shard from zero, so it is offset by the number of predictions of the earlier shards, as it
+ * would be numbered by a single run. Statistics counters of the shards are
+ * added, so the merged statistics are those of a single run over the whole dataset. The AUC is estimated over all
+ * variants of all shards, instead of a sample of --records-for-auc variants.
+ */
+public class MergePredictGShards extends AbstractTool<MergePredictGShardsArguments> {
+    static private Logger LOG = LoggerFactory.getLogger(MergePredictGShards.class);
+    static final String STATISTICS_EXTENSION = "-shard-statistics.bin";
+    private static final String VCF_EXTENSION = "-genotypes.vcf";
+    private static final String[] BED_EXTENSIONS = {"-observed-regions.bed", "-fp.bed", "-fn.bed", "-tp.bed",
+            "-tn.bed"};
+
+    public static void main(String[] args) {
+
+        MergePredictGShards tool = new MergePredictGShards();
+        tool.parseArguments(args, "MergePredictGShards", tool.createArguments());
+        tool.execute();
+    }
+
+    @Override
+    public MergePredictGShardsArguments createArguments() {
+        return new MergePredictGShardsArguments();
+    }
+
+    @Override
+    public void execute() {
+        String outputBasename = args().outputBasename != null ? args().outputBasename : args().inputBasename;
+        try {
+            long[] indexOffsets = mergeStatistics(shardFiles(STATISTICS_EXTENSION),
+                    new File(outputBasename + "-statistics.tsv"));
+            File vcfOutput = new File(outputBasename + VCF_EXTENSION);
+            long numLines = mergeLines(shardFiles(VCF_EXTENSION), vcfOutput);
+            System.out.printf("Wrote %d lines to %s%n", numLines, vcfOutput);
+            for (String extension : BED_EXTENSIONS) {
+                File output = new File(outputBasename + extension);
+                numLines = mergeLines(shardFiles(extension), output, indexOffsets);
+                System.out.printf("Wrote %d lines to %s%n", numLines, output);
+            }
+        } catch (IOException e) {
+            System.err.println("Unable to merge shards: " + e.getMessage());
+            e.printStackTrace();
+            System.exit(1);
+        }
+    }
+
+    private List<File> shardFiles(String extension) throws IOException {
+        List<File> files = new ObjectArrayList<>();
+        for (int shardIndex = 0; shardIndex < args().shardCount; shardIndex++) {
+            File file = new File(PredictG.shardName(args().inputBasename, shardIndex, args().shardCount) + extension);
+            if (!file.exists()) {
+                throw new IOException("Output of shard " + shardIndex + " not found: " + file);
+            }
+            files.add(file);
+        }
+        return files;
+    }
+
+    /**
+     * Concatenate VCF files. See {@link #mergeLines(List, File, long[])}.
+     */
+    static long mergeLines(List<File> inputs, File output) throws IOException {
+        return mergeLines(inputs, output, null);
+    }
+
+    /**
+     * Concatenate VCF or BED files. The header lines (starting with #) of the first file are kept, and a site is
+     * written only once when it ends one file and starts the next.
+     *
+     * @param inputs       files of each shard, in shard order.
+     * @param output       merged file.
+     * @param indexOffsets offset added to the index column (the fourth) of the lines of each shard, or null to copy
+     *                     lines unchanged.
+     * @return number of sites written.
+     */
+    static long mergeLines(List<File> inputs, File output, long[] indexOffsets) throws IOException {
+        long numWritten = 0;
+        String lastChromosome = null;
+        long lastPosition = -1;
+        Set<String> previousChromosomes = new ObjectOpenHashSet<>();
+        boolean inOrder = true;
+        try (PrintWriter writer = new PrintWriter(new FileWriter(output))) {
+            for (int shardIndex = 0; shardIndex < inputs.size(); shardIndex++) {
+                File input = inputs.get(shardIndex);
+                try (BufferedReader reader = new BufferedReader(new FileReader(input))) {
+                    String line;
+                    while ((line = reader.readLine()) != null) {
+                        if (line.startsWith("#")) {
+                            if (shardIndex == 0) {
+                                writer.println(line);
+                            }
+                            continue;
+                        }
+                        String[] tokens = line.split("\t", 3);
+                        String chromosome = tokens[0];
+                        long position = Long.parseLong(tokens[1]);
+                        if (chromosome.equals(lastChromosome)) {
+                            if (position == lastPosition) {
+                                // the site was predicted in two shards:
+                                continue;
+                            }
+                            inOrder &= position > lastPosition;
+                        } else {
+                            if (lastChromosome != null) {
+                                previousChromosomes.add(lastChromosome);
+                            }
+                            inOrder &= !previousChromosomes.contains(chromosome);
+                        }
+                        lastChromosome = chromosome;
+                        lastPosition = position;
+                        if (indexOffsets != null && indexOffsets[shardIndex] != 0) {
+                            String[] columns = line.split("\t", 5);
+                            columns[3] = Long.toString(Long.parseLong(columns[3]) + indexOffsets[shardIndex]);
+                            line = String.join("\t", columns);
+                        }
+                        writer.println(line);
+                        numWritten++;
+                    }
+                }
+            }
+        }
+        if (!inOrder) {
+            LOG.warn("Sites of {} are not in genomic order, the dataset was probably not sorted. Sites were written in dataset order.", output);
+        }
+        return numWritten;
+    }
+
+    /**
+     * Merge the statistics of the shards and write them to output.
+     *
+     * @return the number of predictions of the shards before each shard, to offset the indices of its BED files.
+     */
+    private long[] mergeStatistics(List<File> inputs, File output) throws IOException {
+        StatsAccumulator stats = null;
+        StreamingAUC auc = null;
+        long[] indexOffsets = new long[inputs.size()];
+        long numPredicted = 0;
+        for (int shardIndex = 0; shardIndex < inputs.size(); shardIndex++) {
+            File input = inputs.get(shardIndex);
+            try (DataInputStream reader = new DataInputStream(new BufferedInputStream(new FileInputStream(input)))) {
+                StatsAccumulator shardStats = StatsAccumulator.read(reader);
+                StreamingAUC shardAUC = StreamingAUC.read(reader);
+                indexOffsets[shardIndex] = numPredicted;
+                numPredicted += reader.readLong();
+                if (stats == null) {
+                    stats = shardStats;
+                    auc = shardAUC;
+                } else {
+                    stats.merge(shardStats);
+                    auc.merge(shardAUC);
+                }
+            }
+        }
+        stats.reportStatistics("merged");
+        double aucValue = auc.evaluateStatistic();
+        double[] confidenceInterval95 = auc.confidenceInterval95();
+        System.out.printf("AUC = %f [%f-%f]%n", aucValue, confidenceInterval95[0], confidenceInterval95[1]);
+        try (PrintWriter writer = new PrintWriter(new FileWriter(output))) {
+            writer.append(String.join("\t", stats.createOutputHeader())).append("\tAUC\t[AUC95\tAUC95]\n");
+            for (double value : stats.createOutputStatistics()) {
+                writer.printf("%f\t", value);
+            }
+            writer.printf("%f\t%f\t%f%n", aucValue, confidenceInterval95[0], confidenceInterval95[1]);
+        }
+        System.out.println("Statistics written to " + output);
+        return indexOffsets;
+    }
+}
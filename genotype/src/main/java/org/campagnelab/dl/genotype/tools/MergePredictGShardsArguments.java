@@ -0,0 +1,21 @@
+package org.campagnelab.dl.genotype.tools;
+
+import com.beust.jcommander.Parameter;
+import com.beust.jcommander.Parameters;
+import org.campagnelab.dl.framework.tools.arguments.ToolArguments;
+
+/**
+ * Arguments for MergePredictGShards.
+ */
+@Parameters(commandDescription = "Merge the VCF, BED and statistics written by PredictG for each shard of a dataset.")
+
+public class MergePredictGShardsArguments implements ToolArguments {
+    @Parameter(required = true, names = {"-i", "--input-basename"}, description = "Basename of the PredictG outputs, without the shard suffix (e.g., <model-time>-<model-name>-<dataset>). ")
+    public String inputBasename;
+
+    @Parameter(required = true, names = {"--shard-count"}, description = "Number of shards the dataset was split into, as given to PredictG.")
+    public int shardCount;
+
+    @Parameter(names = {"-o", "--output-basename"}, description = "Basename of the merged outputs. Defaults to the input basename.")
+    public String outputBasename;
+}
@@ -0,0 +1,201 @@
+package org.campagnelab.dl.genotype.tools;
+
+
+import it.unimi.dsi.fastutil.objects.ObjectArrayList;
+import it.unimi.dsi.logging.ProgressLogger;
+import it.unimi.dsi.util.XorShift1024StarRandom;
+import org.campagnelab.dl.somatic.storage.ChunkPositionIndex;
+import org.campagnelab.dl.somatic.storage.RecordReader;
+import org.campagnelab.dl.somatic.tools.QuickConcat;
+import org.campagnelab.dl.varanalysis.protobuf.BaseInformationRecords;
+import org.campagnelab.goby.baseinfo.SequenceBaseInformationWriter;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Reader;
+import java.io.Writer;
+import java.util.List;
+import java.util.Properties;
+import java.util.Random;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.function.IntFunction;
+
+/**
+ * Filters the records of an .sbi file with several threads. The input is split in byte ranges, one per thread. Each
+ * partition is filtered by its own {@link Partition}, which gets its own random stream (see
+ * {@link #partitionRandom(long, int)}), and writes the records it keeps to a temporary file. Temporary files are then
+ * concatenated in partition order with {@link QuickConcat}, without decoding records, so the output keeps the order
+ * of the input and only depends on the seed and the number of threads. With one thread, records are written directly to the output, and the random stream is
+ * the one the single-threaded tools used.
+ */
+public class PartitionedSbiFilter {
+    static private Logger LOG = LoggerFactory.getLogger(PartitionedSbiFilter.class);
+    private static final long CONCAT_BUFFER_SIZE = 100 * 1024 * 1024;
+    /**
+     * Number of records a thread reads before it updates the shared progress logger.
+     */
+    private static final int PROGRESS_BATCH = 10000;
+    private static final String NUM_RECORDS = "numRecords";
+
+    /**
+     * Decides which records of a partition are kept, and counts them. Each partition is used by one thread only.
+     */
+    public interface Partition {
+        boolean keep(BaseInformationRecords.BaseInformation record);
+    }
+
+    private final String inputFile;
+    private final String outputFilename;
+    private final String outputBasename;
+    private final int numPartitions;
+    private SequenceBaseInformationWriter dest;
+    private Properties inputProperties;
+
+    public PartitionedSbiFilter(String inputFile, String outputFilename, int numThreads) {
+        this.inputFile = inputFile;
+        this.outputFilename = outputFilename;
+        this.outputBasename = outputFilename.replaceAll("\\.sbi$", "");
+        this.numPartitions = Math.max(1, numThreads);
+    }
+
+    /**
+     * Return the random generator of a partition. Partition zero uses the seed itself.
+     */
+    public static Random partitionRandom(long seed, int partition) {
+        return new XorShift1024StarRandom(seed + partition * 0x9E3779B97F4A7C15L);
+    }
+
+    /**
+     * Filter the input and write the records kept to the output, in input order. The properties of the output are
+     * only complete once {@link #close(Properties)} is called.
+     *
+     * @param newPartition creates the filter of a partition, given its index.
+     * @return the filter of each partition, in partition order, to collect statistics.
+     */
+    public <P extends Partition> List<P> run(IntFunction<P> newPartition) throws IOException {
+        String inputSbi;
+        ProgressLogger recordLogger = new ProgressLogger(LOG);
+        try (RecordReader source = new RecordReader(inputFile)) {
+            inputSbi = source.getSourceSbiPath();
+            inputProperties = source.getProperties();
+            recordLogger.expectedUpdates = source.numRecords();
+            LOG.info(source.numRecords() + " records to filter");
+        }
+        List<P> partitions = new ObjectArrayList<>();
+        for (int partition = 0; partition < numPartitions; partition++) {
+            partitions.add(newPartition.apply(partition));
+        }
+        recordLogger.start();
+        if (numPartitions == 1) {
+            dest = new SequenceBaseInformationWriter(outputFilename);
+            filterPartition(inputSbi, 0, new File(inputSbi).length(), partitions.get(0), dest, recordLogger);
+        } else {
+            final long inputLength = new File(inputSbi).length();
+            ExecutorService executor = Executors.newFixedThreadPool(numPartitions);
+            try {
+                List<Future<?>> futures = new ObjectArrayList<>();
+                String[] partitionBasenames = new String[numPartitions];
+                for (int partition = 0; partition < numPartitions; partition++) {
+                    final long startOffset = inputLength * partition / numPartitions;
+                    final long endOffset = inputLength * (partition + 1) / numPartitions;
+                    final P filter = partitions.get(partition);
+                    final String partitionBasename = partitionBasename(partition);
+                    partitionBasenames[partition] = partitionBasename;
+                    futures.add(executor.submit(() -> {
+                        SequenceBaseInformationWriter writer = new SequenceBaseInformationWriter(partitionBasename);
+                        try {
+                            filterPartition(inputSbi, startOffset, endOffset, filter, writer, recordLogger);
+                        } finally {
+                            writer.close();
+                        }
+                        return null;
+                    }));
+                }
+                for (Future<?> future : futures) {
+                    future.get();
+                }
+                QuickConcat.concatenate(partitionBasenames, outputBasename, CONCAT_BUFFER_SIZE, null);
+            } catch (InterruptedException | ExecutionException e) {
+                throw new IOException("Unable to filter partitions in parallel.", e);
+            } finally {
+                executor.shutdown();
+                for (int partition = 0; partition < numPartitions; partition++) {
+                    new File(partitionBasename(partition) + ".sbi").delete();
+                    new File(partitionBasename(partition) + ".sbip").delete();
+                    new File(ChunkPositionIndex.indexFilename(partitionBasename(partition) + ".sbi")).delete();
+                }
+            }
+        }
+        recordLogger.done();
+        return partitions;
+    }
+
+    /**
+     * Return the properties of the input file.
+     */
+    public Properties getInputProperties() {
+        return inputProperties;
+    }
+
+    /**
+     * Store properties with the output and close it. The number of records of the input, if present in the
+     * properties, is not stored: the output has its own.
+     */
+    public void close(Properties properties) throws IOException {
+        Properties custom = new Properties();
+        for (String key : properties.stringPropertyNames()) {
+            if (!NUM_RECORDS.equals(key)) {
+                custom.setProperty(key, properties.getProperty(key));
+            }
+        }
+        if (dest != null) {
+            dest.setCustomProperties(custom);
+            dest.close();
+            return;
+        }
+        // the output was concatenated, add the properties to those of the concatenation:
+        String sbipFilename = outputBasename + ".sbip";
+        Properties outputProperties = new Properties();
+        try (Reader reader = new FileReader(sbipFilename)) {
+            outputProperties.load(reader);
+        }
+        outputProperties.putAll(custom);
+        try (Writer writer = new FileWriter(sbipFilename)) {
+            outputProperties.store(writer, null);
+        }
+    }
+
+    private String partitionBasename(int partition) {
+        return outputBasename + "-partition-" + partition;
+    }
+
+    private void filterPartition(String inputSbi, long startOffset, long endOffset, Partition filter,
+                                 SequenceBaseInformationWriter writer, ProgressLogger recordLogger) throws IOException {
+        int notLogged = 0;
+        try (RecordReader source = new RecordReader(inputSbi, startOffset, endOffset)) {
+            for (BaseInformationRecords.BaseInformation rec : source) {
+                if (filter.keep(rec)) {
+                    writer.appendEntry(rec);
+                }
+                if (++notLogged == PROGRESS_BATCH) {
+                    logProgress(recordLogger, notLogged);
+                    notLogged = 0;
+                }
+            }
+        }
+        logProgress(recordLogger, notLogged);
+    }
+
+    private static void logProgress(ProgressLogger recordLogger, int count) {
+        synchronized (recordLogger) {
+            recordLogger.update(count);
+        }
+    }
+}
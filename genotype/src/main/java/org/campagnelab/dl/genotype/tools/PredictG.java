@@ -7,8 +7,10 @@ import it.unimi.dsi.fastutil.ints.IntArrayList;
 import it.unimi.dsi.fastutil.objects.ObjectAVLTreeSet;
 import it.unimi.dsi.fastutil.objects.ObjectArrayList;
 import org.apache.commons.io.FilenameUtils;
+import org.campagnelab.dl.framework.bed.BedLoader;
 import org.campagnelab.dl.framework.domains.prediction.Prediction;
 import org.campagnelab.dl.framework.performance.AreaUnderTheROCCurve;
+import org.campagnelab.dl.framework.performance.StreamingAUC;
 import org.campagnelab.dl.framework.tools.Predict;
 import org.campagnelab.dl.framework.tools.PredictArguments;
 import org.campagnelab.dl.genotype.helpers.GenotypeHelper;
@@ -16,12 +18,19 @@ import org.campagnelab.dl.genotype.mappers.MetaDataLabelMapper;
 import org.campagnelab.dl.genotype.performance.BEDHelper;
 import org.campagnelab.dl.genotype.performance.StatsAccumulator;
 import org.campagnelab.dl.genotype.predictions.GenotypePrediction;
+import org.campagnelab.dl.somatic.storage.ChunkRangeIterator;
+import org.campagnelab.dl.somatic.storage.RecordReader;
 import org.campagnelab.dl.somatic.util.GenomicSitesVisited;
 import org.campagnelab.dl.varanalysis.protobuf.BaseInformationRecords;
 import org.campagnelab.goby.predictions.FormatIndelVCF;
 import org.nd4j.linalg.api.ndarray.INDArray;
 import org.nd4j.linalg.factory.Nd4j;
 
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.FileReader;
 import java.io.FileWriter;
 import java.io.IOException;
 import java.io.PrintWriter;
@@ -29,6 +38,13 @@ import java.util.*;
 
 /**
  * Example of Predict implementation. This class performs predictions with a model trained by TrainModelS.
+ * <p>
+ * With --shard-count n, only the records of one of n byte ranges of the test set are predicted, so that several
+ * processes can predict one genome. Each shard writes its own VCF and BED files, as well as the counters of its
+ * statistics, and {@link MergePredictGShards} combines the outputs of all shards.
+ * <p>
+ * With --region or --bed, only the sites of the region(s) are predicted, and only the chunks of the test set that
+ * overlap them are read.
  *
  * @author Remi Torracinta
  * @author Fabien Campagne
@@ -45,6 +61,16 @@ public class PredictG extends Predict<BaseInformationRecords.BaseInformation> {
     private double[] confidenceInterval95;
     private PrintWriter vcfWriter;
     private String[] orderStats;
+    /**
+     * AUC calculator that observes every variant. Its histograms are written with the statistics of a shard, so that
+     * the AUC of all shards can be estimated exactly.
+     */
+    private StreamingAUC shardAUC;
+    /**
+     * Number of records predicted, written with the statistics of a shard to number the BED files of later shards.
+     */
+    private long numPredicted;
+    private String outputBasename;
 
 
     @Override
@@ -60,6 +86,19 @@ public class PredictG extends Predict<BaseInformationRecords.BaseInformation> {
         predict.execute();
     }
 
+    @Override
+    public void execute() {
+        if (args().shardCount < 1 || args().shardIndex < 0 || args().shardIndex >= args().shardCount) {
+            System.err.printf("--shard-index must be between 0 and %d.%n", args().shardCount - 1);
+            System.exit(1);
+        }
+        if (isRestricted() && (isSharded() || (args().region != null && args().bedFilename != null))) {
+            System.err.println("Only one of --region, --bed and --shard-count can be used.");
+            System.exit(1);
+        }
+        super.execute();
+    }
+
     public PredictG() {
         stats = new StatsAccumulator();
         stats.initializeStats();
@@ -82,6 +121,7 @@ public class PredictG extends Predict<BaseInformationRecords.BaseInformation> {
             bedBasename = String.format("%s-%s-%s-%s", modelTime, modelPrefix, args().checkpointKey, testSetBasename);
         }
 
+        outputBasename = bedBasename;
         try {
             vcfWriter = new PrintWriter(new FileWriter(vcfFilename));
         } catch (IOException e) {
@@ -113,6 +153,104 @@ public class PredictG extends Predict<BaseInformationRecords.BaseInformation> {
         stats.initializeStats();
         orderStats = stats.createOutputHeader();
         aucLossCalculator = new AreaUnderTheROCCurve(args().numRecordsForAUC);
+        shardAUC = new StreamingAUC();
+        numPredicted = 0;
+    }
+
+    private boolean isSharded() {
+        return args().shardCount > 1;
+    }
+
+    /**
+     * Return the name of a shard of a test set, or of the outputs predicted for it.
+     */
+    public static String shardName(String basename, int shardIndex, int shardCount) {
+        return String.format("%s-shard-%d-of-%d", basename, shardIndex, shardCount);
+    }
+
+    @Override
+    protected String getTestSetName() {
+        String name = super.getTestSetName();
+        return isSharded() ? shardName(name, args().shardIndex, args().shardCount) : name;
+    }
+
+    /**
+     * Iterators over the records of --region or --bed. Prediction may stop before they reach the end of the regions,
+     * so they are closed once statistics are reported.
+     */
+    private final List<ChunkRangeIterator<BaseInformationRecords.BaseInformation>> regionIterators =
+            new ObjectArrayList<>();
+
+    private boolean isRestricted() {
+        return args().region != null || args().bedFilename != null;
+    }
+
+    @Override
+    protected boolean useCache() {
+        // the cache would hold the features of the whole test set:
+        return super.useCache() && !isRestricted();
+    }
+
+    @Override
+    protected Iterable<BaseInformationRecords.BaseInformation> getRecordIterable(String evaluationDataFilename) {
+        if (isRestricted()) {
+            return () -> {
+                try (RecordReader reader = new RecordReader(evaluationDataFilename)) {
+                    ChunkRangeIterator<BaseInformationRecords.BaseInformation> iterator = args().region != null ?
+                            reader.interval(args().region) :
+                            reader.regions(BedLoader.loadBedFile(new FileReader(args().bedFilename)));
+                    regionIterators.add(iterator);
+                    return iterator;
+                } catch (IOException e) {
+                    throw new RuntimeException("Unable to read records from " + evaluationDataFilename, e);
+                }
+            };
+        }
+        if (!isSharded()) {
+            return super.getRecordIterable(evaluationDataFilename);
+        }
+        String sbiPath;
+        try (RecordReader reader = new RecordReader(evaluationDataFilename)) {
+            sbiPath = reader.getSourceSbiPath();
+        } catch (IOException e) {
+            throw new RuntimeException("Unable to read records from " + evaluationDataFilename, e);
+        }
+        final long length = new File(sbiPath).length();
+        final long startOffset = length * args().shardIndex / args().shardCount;
+        final long endOffset = length * (args().shardIndex + 1) / args().shardCount;
+        return () -> {
+            try {
+                return new RecordReader(sbiPath, startOffset, endOffset).iterator();
+            } catch (IOException e) {
+                throw new RuntimeException("Unable to read records from " + sbiPath, e);
+            }
+        };
+    }
+
+    private void closeRegionIterators() {
+        for (ChunkRangeIterator<BaseInformationRecords.BaseInformation> iterator : regionIterators) {
+            try {
+                iterator.close();
+            } catch (IOException e) {
+                throw new RuntimeException("Unable to close the records of the regions to predict.", e);
+            }
+        }
+        regionIterators.clear();
+    }
+
+    /**
+     * Write the counters of the statistics of this shard, to be merged by {@link MergePredictGShards}.
+     */
+    private void writeShardStatistics() {
+        String filename = outputBasename + MergePredictGShards.STATISTICS_EXTENSION;
+        try (DataOutputStream output = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(filename)))) {
+            stats.write(output);
+            shardAUC.write(output);
+            output.writeLong(numPredicted);
+        } catch (IOException e) {
+            throw new RuntimeException("Unable to write shard statistics to " + filename, e);
+        }
+        System.out.println("Shard statistics written to " + filename);
     }
 
 
@@ -165,6 +303,10 @@ public class PredictG extends Predict<BaseInformationRecords.BaseInformation> {
             bedHelper.close();
         }
         vcfWriter.close();
+        closeRegionIterators();
+        if (isSharded()) {
+            writeShardStatistics();
+        }
     }
 
     public PredictGArguments args() {
@@ -173,6 +315,8 @@ public class PredictG extends Predict<BaseInformationRecords.BaseInformation> {
 
     @Override
     protected void processPredictions(PrintWriter resultWriter, BaseInformationRecords.BaseInformation record, List<Prediction> predictionList) {
+        // prediction indices count every record, including those skipped below:
+        numPredicted++;
         int coverage = coverage(record);
         if (coverage <= 0 || coverage < args().minimumCoverage) {
             // we do not write the genotype if the sample has no counts, because some models won't be able
@@ -311,6 +455,7 @@ public class PredictG extends Predict<BaseInformationRecords.BaseInformation> {
     private void observeForAUC(GenotypePrediction fullPred, boolean isVariant) {
         if (isVariant) {
             aucLossCalculator.observe(fullPred.overallProbability, fullPred.isCorrect() ? 1 : -1);
+            shardAUC.observe(fullPred.overallProbability, fullPred.isCorrect() ? 1 : -1);
         }
     }
 
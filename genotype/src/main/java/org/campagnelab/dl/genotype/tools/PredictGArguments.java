@@ -41,4 +41,21 @@ public class PredictGArguments extends PredictArguments {
     @Parameter(names = {"--checkpoint-key"}, description = "Checkpoint key from pytorch model. Will be added to output " +
             "filename if passed in as argument and ignored if not.")
     String checkpointKey;
-}
\ No newline at end of file
+
+    @Parameter(names = {"--shard-index"}, description = "Index of the shard of the dataset to predict, from 0 to " +
+            "--shard-count - 1. Each shard is a byte range of the .sbi file. Merge the outputs of all shards with " +
+            "MergePredictGShards.")
+    int shardIndex = 0;
+
+    @Parameter(names = {"--shard-count"}, description = "Number of shards the dataset is split into. " +
+            "Default 1 (predict the whole dataset).")
+    int shardCount = 1;
+
+    @Parameter(names = {"--region"}, description = "Only predict sites in this region, provided in chr:start-end " +
+            "format (zero-based positions, both included). Only the chunks of the .sbi that overlap the region are read.")
+    String region;
+
+    @Parameter(names = {"--bed"}, description = "Only predict sites inside the regions of this BED file. Only the " +
+            "chunks of the .sbi that overlap the regions are read.")
+    String bedFilename;
+}
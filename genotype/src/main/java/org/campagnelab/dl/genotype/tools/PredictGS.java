@@ -2,6 +2,7 @@ package org.campagnelab.dl.genotype.tools;
 
 import edu.cornell.med.icb.util.VersionUtils;
 import it.unimi.dsi.fastutil.objects.ObjectAVLTreeSet;
+import it.unimi.dsi.fastutil.objects.ObjectArrayList;
 import org.apache.commons.io.FilenameUtils;
 import org.campagnelab.dl.framework.domains.prediction.Prediction;
 import org.campagnelab.dl.framework.tools.Predict;
@@ -9,6 +10,8 @@ import org.campagnelab.dl.framework.tools.PredictArguments;
 import org.campagnelab.dl.genotype.performance.BEDHelper;
 import org.campagnelab.dl.genotype.performance.StatsAccumulator;
 import org.campagnelab.dl.genotype.predictions.SegmentPrediction;
+import org.campagnelab.dl.genotype.storage.SegmentReader;
+import org.campagnelab.dl.somatic.storage.ChunkRangeIterator;
 import org.campagnelab.dl.varanalysis.protobuf.SegmentInformationRecords;
 import org.campagnelab.goby.predictions.FormatIndelVCF;
 import org.nd4j.linalg.api.ndarray.INDArray;
@@ -58,6 +61,47 @@ public class PredictGS extends Predict<SegmentInformationRecords.SegmentInformat
     }
 
 
+    /**
+     * Iterators over the segments of --region. Prediction may stop before they reach the end of the region, so
+     * they are closed once statistics are reported.
+     */
+    private final List<ChunkRangeIterator<SegmentInformationRecords.SegmentInformation>> regionIterators =
+            new ObjectArrayList<>();
+
+    @Override
+    protected boolean useCache() {
+        // the cache would hold the features of the whole test set:
+        return super.useCache() && args().region == null;
+    }
+
+    @Override
+    protected Iterable<SegmentInformationRecords.SegmentInformation> getRecordIterable(String evaluationDataFilename) {
+        if (args().region == null) {
+            return super.getRecordIterable(evaluationDataFilename);
+        }
+        return () -> {
+            try (SegmentReader reader = new SegmentReader(evaluationDataFilename)) {
+                ChunkRangeIterator<SegmentInformationRecords.SegmentInformation> iterator =
+                        reader.interval(args().region);
+                regionIterators.add(iterator);
+                return iterator;
+            } catch (IOException e) {
+                throw new RuntimeException("Unable to read segments from " + evaluationDataFilename, e);
+            }
+        };
+    }
+
+    private void closeRegionIterators() {
+        for (ChunkRangeIterator<SegmentInformationRecords.SegmentInformation> iterator : regionIterators) {
+            try {
+                iterator.close();
+            } catch (IOException e) {
+                throw new RuntimeException("Unable to close segments of region " + args().region, e);
+            }
+        }
+        regionIterators.clear();
+    }
+
     @Override
     public PredictArguments createArguments() {
         return new PredictGSArguments();
@@ -102,6 +146,7 @@ public class PredictGS extends Predict<SegmentInformationRecords.SegmentInformat
         if (Objects.nonNull(this.vcfIndelsWriter)) this.vcfIndelsWriter.close();
         if (Objects.nonNull(this.vcfWriter)) this.vcfWriter.close();
         if (Objects.nonNull(this.bedHelper)) this.bedHelper.close();
+        closeRegionIterators();
     }
 
     /**
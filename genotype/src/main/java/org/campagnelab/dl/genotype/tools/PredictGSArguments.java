@@ -12,5 +12,9 @@ public class PredictGSArguments extends PredictGArguments {
     @Parameter(names = {"--split-indels"}, description = "Write indel sites in a separate VCF.")
     boolean splitIndels = false;
 
+    @Parameter(names = {"--region"}, description = "Only predict segments that overlap this region, provided in " +
+            "chr:start-end format. Only the chunks of the .ssi that overlap the region are read.")
+    String region;
+
 
 }
@@ -3,6 +3,7 @@ package org.campagnelab.dl.genotype.tools;
 import com.google.protobuf.TextFormat;
 import org.campagnelab.dl.framework.tools.arguments.AbstractTool;
 import org.campagnelab.dl.genotype.storage.SegmentReader;
+import org.campagnelab.dl.somatic.storage.ChunkRangeIterator;
 import org.campagnelab.dl.varanalysis.protobuf.SegmentInformationRecords;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -35,38 +36,47 @@ public class PrintSSIToText extends AbstractTool<PrintSSIToTextArguments> {
         try {
             long totalRecords = 0;
 
-            SegmentReader source = new SegmentReader(args().inputFile);
-            totalRecords = source.getTotalRecords();
-
-            source = new SegmentReader(args().inputFile);
+            try (SegmentReader counter = new SegmentReader(args().inputFile)) {
+                totalRecords = counter.getTotalRecords();
+            }
 
-            for (SegmentInformationRecords.SegmentInformation segment : source) {
-                if (args().removeFeatures || args().removeLabels) {
-                    SegmentInformationRecords.SegmentInformation.Builder segBuilder = segment.toBuilder();
-                    int sampleIndex = 0;
-                    for (SegmentInformationRecords.Sample sample : segBuilder.getSampleList()) {
-                        SegmentInformationRecords.Sample.Builder sampleBuilder = sample.toBuilder();
-                        int baseIndex = 0;
+            SegmentReader source = new SegmentReader(args().inputFile);
+            final ChunkRangeIterator<SegmentInformationRecords.SegmentInformation> inRegion =
+                    args().region != null ? source.interval(args().region) : null;
+            Iterable<SegmentInformationRecords.SegmentInformation> segments = inRegion != null ? () -> inRegion : source;
+            try {
+                for (SegmentInformationRecords.SegmentInformation segment : segments) {
+                    if (args().removeFeatures || args().removeLabels) {
+                        SegmentInformationRecords.SegmentInformation.Builder segBuilder = segment.toBuilder();
+                        int sampleIndex = 0;
+                        for (SegmentInformationRecords.Sample sample : segBuilder.getSampleList()) {
+                            SegmentInformationRecords.Sample.Builder sampleBuilder = sample.toBuilder();
+                            int baseIndex = 0;
 
-                        for (SegmentInformationRecords.Base base : sample.getBaseList()) {
-                            SegmentInformationRecords.Base.Builder baseBuilder = base.toBuilder();
-                            if (args().removeFeatures) {
-                                baseBuilder.clearFeatures();
+                            for (SegmentInformationRecords.Base base : sample.getBaseList()) {
+                                SegmentInformationRecords.Base.Builder baseBuilder = base.toBuilder();
+                                if (args().removeFeatures) {
+                                    baseBuilder.clearFeatures();
+                                }
+                                if (args().removeLabels) {
+                                    baseBuilder.clearLabels();
+                                }
+                                sampleBuilder.setBase(baseIndex, baseBuilder);
+                                baseIndex++;
                             }
-                            if (args().removeLabels) {
-                                baseBuilder.clearLabels();
-                            }
-                            sampleBuilder.setBase(baseIndex, baseBuilder);
-                            baseIndex++;
+                            segBuilder.setSample(sampleIndex, sampleBuilder);
                         }
-                        segBuilder.setSample(sampleIndex, sampleBuilder);
+                        segment=segBuilder.build();
                     }
-                    segment=segBuilder.build();
-                }
-                TextFormat.print(segment, System.out);
+                    TextFormat.print(segment, System.out);
 
+                }
+            } finally {
+                if (inRegion != null) {
+                    inRegion.close();
+                }
+                source.close();
             }
-            source.close();
             System.out.println("Total records: " + totalRecords);
 
         } catch (IOException e) {
@@ -18,4 +18,8 @@ public class PrintSSIToTextArguments implements ToolArguments {
 
     @Parameter(names = { "--no-labels"}, description = "Do not show labels.")
     public boolean removeLabels;
+
+    @Parameter(names = {"--region"}, description = "Only print segments that overlap this region, provided in " +
+            "chr:start-end format.")
+    public String region;
 }
@@ -3,10 +3,14 @@ package org.campagnelab.dl.genotype.tools;
 import it.unimi.dsi.fastutil.objects.ObjectArrayList;
 import it.unimi.dsi.fastutil.objects.ObjectIterator;
 import it.unimi.dsi.lang.MutableString;
+import it.unimi.dsi.logging.ProgressLogger;
+import it.unimi.dsi.util.XorShift1024StarRandom;
 import org.campagnelab.dl.framework.tools.arguments.AbstractTool;
 import org.campagnelab.dl.genotype.helpers.GenotypeHelper;
 import org.campagnelab.dl.genotype.segments.FormatterCountHelper;
+import org.campagnelab.dl.somatic.storage.ChunkPositionIndex;
 import org.campagnelab.dl.somatic.storage.RecordWriter;
+import org.campagnelab.dl.somatic.tools.QuickConcat;
 import org.campagnelab.dl.varanalysis.protobuf.BaseInformationRecords;
 import org.campagnelab.goby.reads.DualRandomAccessSequenceCache;
 import org.campagnelab.goby.reads.RandomAccessSequenceCache;
@@ -16,18 +20,28 @@ import org.campagnelab.goby.util.VariantMapHelper;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.io.File;
 import java.io.IOException;
 import java.util.*;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
 
 /**
- * Generate SBI files starting from a variant map.
+ * Generate SBI files starting from a variant map. The variants of each chromosome are split in ranges of
+ * --variants-per-range variants, which are simulated in parallel with --threads. Each range draws its counts from its
+ * own random generator, seeded from --seed, the chromosome and the index of the range, so the output only depends on
+ * the seed and the range size. Ranges are written to temporary files, then concatenated to the output in reference
+ * order.
  */
 public class SBISimulator extends AbstractTool<SBISimulatorArguments> {
 
     static private Logger LOG = LoggerFactory.getLogger(SBISimulator.class);
-    private Random r = new Random();
-    private char[] bases = new char[]{'A', 'C', 'T', 'G', 'N'};
-    private String countFormat = "%s/%s=%d+%d";
+    private static final long CONCAT_BUFFER_SIZE = 100 * 1024 * 1024;
+    private static final char[] bases = new char[]{'A', 'C', 'T', 'G', 'N'};
+    private static final String countFormat = "%s/%s=%d+%d";
 
     public static void main(String[] args) {
         SBISimulator tool = new SBISimulator();
@@ -48,44 +62,31 @@ public class SBISimulator extends AbstractTool<SBISimulatorArguments> {
             genome.load(args().genome);
             this.genome=genome;
 
-            final RecordWriter writer = new RecordWriter(args().outputFilename);
             final VariantMapHelper helper = new VariantMapHelper(args().inputFile);
             List<String> chromosomes = this.chromosomesForSBI(helper);
             if (args().readN != Integer.MAX_VALUE)
                 chromosomes = chromosomes.subList(0, args().readN);
+            // simulate chromosomes in reference order:
+            chromosomes = new ObjectArrayList<>(chromosomes);
+            chromosomes.sort(Comparator.comparingInt((String chromosome) -> referenceOrder(chromosome))
+                    .thenComparing(Comparator.naturalOrder()));
             LOG.info("Processing chromosome(s): " + Arrays.toString(chromosomes.toArray()));
-            for (String chromosome: chromosomes) {
+            List<SimulatedRange> ranges = new ObjectArrayList<>();
+            int variantsPerRange = Math.max(1, args().variantsPerRange);
+            for (String chromosome : chromosomes) {
                 if (args().verbose) System.out.println("Chrom: " + chromosome);
+                // materialize the variants once, ranges simulate slices of the array:
+                ObjectArrayList<Variant> list = new ObjectArrayList<>();
                 for (ObjectIterator<Variant> it = helper.getAllVariants(chromosome); it.hasNext(); ) {
-                    Variant variant = it.next();
-                    String trueGenotype = GenotypeHelper.fromFromTos(variant.trueAlleles);
-                    Set<String> counts = new HashSet<>();
-                    Set<String> keys = new HashSet<>();
-                    if (GenotypeHelper.getAlleles(trueGenotype).size() > 1) {
-                        String keepFrom = variant.referenceBase;
-                        for (Variant.FromTo trueAllele : variant.trueAlleles) {
-                            if (!trueAllele.getFrom().equals(variant.referenceBase))
-                                keepFrom = trueAllele.getFrom(); //use the one that does not match the reference, if any
-                        }
-                        for (Variant.FromTo trueAllele : variant.trueAlleles) {
-                            calculateCounts(keepFrom, (trueAllele.getTo().length() != keepFrom.length()) ? keepFrom : trueAllele.getTo(),
-                                    counts, keys, trueGenotype);
-                        }
-                    }  else {
-                        for (Variant.FromTo trueAllele : variant.trueAlleles) {
-                            calculateCounts(trueAllele.getFrom(), trueAllele.getTo(), counts, keys, trueGenotype);
-                        }
-                    }
-                    fillUpCounts(counts, keys, variant.referenceBase);
-                    if (args().verbose)
-                        System.out.println("Genotype=" + trueGenotype + ", counts: " +
-                                Arrays.toString(counts.toArray(new String[counts.size()])));
-                    BaseInformationRecords.BaseInformation record = makeRecord(variant.referenceIndex, chromosome,
-                            variant.position, trueGenotype, counts.toArray(new String[counts.size()]));
-                    addRecord(writer, record);
+                    list.add(it.next());
+                }
+                Variant[] variants = list.toArray(new Variant[list.size()]);
+                for (int start = 0, rangeIndex = 0; start < variants.length; start += variantsPerRange, rangeIndex++) {
+                    ranges.add(new SimulatedRange(chromosome, rangeIndex, variants, start,
+                            Math.min(variants.length, start + variantsPerRange)));
                 }
             }
-            writer.close();
+            simulateRanges(ranges, args().outputFilename, args().numThreads);
         } catch (IOException e) {
             LOG.error("Unable to locate the variant map.");
             throw new IllegalArgumentException("Unable to locate the variant map.");
@@ -95,6 +96,207 @@ public class SBISimulator extends AbstractTool<SBISimulatorArguments> {
         }
     }
 
+    private int referenceOrder(String chromosome) {
+        int index = genome.getReferenceIndex(chromosome);
+        return index < 0 ? Integer.MAX_VALUE : index;
+    }
+
+    /**
+     * Simulates the records of one range.
+     */
+    interface RangeTask {
+        void simulate(RecordWriter writer) throws IOException;
+    }
+
+    /**
+     * Return the random generator of a range. The seed only depends on the seed of the tool, the chromosome and the
+     * index of the range in the chromosome, not on the thread that simulates the range.
+     */
+    static Random rangeRandom(long seed, String chromosome, int rangeIndex) {
+        return new XorShift1024StarRandom(seed + 0x9E3779B97F4A7C15L * (chromosome.hashCode() * 31L + rangeIndex));
+    }
+
+    /**
+     * Simulate the ranges, with one task per range, and append them to the output in order. Each range is written
+     * to a temporary file, and the files are concatenated with {@link QuickConcat}, without decoding records. The
+     * temporary files are removed, even when a task fails.
+     *
+     * @param ranges         ranges, in the order of the output.
+     * @param outputFilename name of the output .sbi file, with or without the extension.
+     * @param numThreads     number of ranges simulated at the same time.
+     */
+    static void simulateRanges(List<? extends RangeTask> ranges, String outputFilename, int numThreads) throws IOException {
+        ProgressLogger pg = new ProgressLogger(LOG);
+        pg.itemsName = "range";
+        pg.expectedUpdates = ranges.size();
+        pg.start();
+        final String outputBasename = outputFilename.replaceAll("\\.sbi$", "");
+        if (ranges.isEmpty()) {
+            // no variants to simulate, write a valid empty file:
+            new RecordWriter(outputBasename).close();
+            pg.done();
+            return;
+        }
+        String[] rangeBasenames = new String[ranges.size()];
+        ExecutorService executor = Executors.newFixedThreadPool(Math.max(1, numThreads));
+        try {
+            List<Future<?>> futures = new ObjectArrayList<>();
+            for (int task = 0; task < ranges.size(); task++) {
+                final RangeTask range = ranges.get(task);
+                final String rangeBasename = outputBasename + "-range-" + task;
+                rangeBasenames[task] = rangeBasename;
+                futures.add(executor.submit(() -> {
+                    try (RecordWriter rangeWriter = new RecordWriter(rangeBasename)) {
+                        range.simulate(rangeWriter);
+                    }
+                    synchronized (pg) {
+                        pg.update();
+                    }
+                    return null;
+                }));
+            }
+            for (Future<?> future : futures) {
+                future.get();
+            }
+            QuickConcat.concatenate(rangeBasenames, outputBasename, CONCAT_BUFFER_SIZE, null);
+        } catch (InterruptedException | ExecutionException e) {
+            throw new IOException("Unable to simulate ranges in parallel.", e);
+        } finally {
+            executor.shutdownNow();
+            try {
+                // do not remove files that a cancelled task is still writing:
+                executor.awaitTermination(1, TimeUnit.MINUTES);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            for (String rangeBasename : rangeBasenames) {
+                if (rangeBasename != null) {
+                    new File(rangeBasename + ".sbi").delete();
+                    new File(rangeBasename + ".sbip").delete();
+                    new File(ChunkPositionIndex.indexFilename(rangeBasename + ".sbi")).delete();
+                }
+            }
+        }
+        pg.done();
+    }
+
+    /**
+     * A range of the variants of a chromosome, simulated by one thread.
+     */
+    private class SimulatedRange implements RangeTask {
+        private final String chromosome;
+        private final Variant[] variants;
+        private final int startVariant;
+        private final int endVariant;
+        private final Random r;
+        private final MutableString referenceContext = new MutableString();
+
+        SimulatedRange(String chromosome, int rangeIndex, Variant[] variants, int startVariant, int endVariant) {
+            this.chromosome = chromosome;
+            this.variants = variants;
+            this.startVariant = startVariant;
+            this.endVariant = endVariant;
+            this.r = rangeRandom(args().seed, chromosome, rangeIndex);
+        }
+
+        @Override
+        public void simulate(RecordWriter writer) {
+            for (int variantIndex = startVariant; variantIndex < endVariant; variantIndex++) {
+                Variant variant = variants[variantIndex];
+                String trueGenotype = GenotypeHelper.fromFromTos(variant.trueAlleles);
+                Set<String> counts = new HashSet<>();
+                Set<String> keys = new HashSet<>();
+                if (GenotypeHelper.getAlleles(trueGenotype).size() > 1) {
+                    String keepFrom = variant.referenceBase;
+                    for (Variant.FromTo trueAllele : variant.trueAlleles) {
+                        if (!trueAllele.getFrom().equals(variant.referenceBase))
+                            keepFrom = trueAllele.getFrom(); //use the one that does not match the reference, if any
+                    }
+                    for (Variant.FromTo trueAllele : variant.trueAlleles) {
+                        calculateCounts(keepFrom, (trueAllele.getTo().length() != keepFrom.length()) ? keepFrom : trueAllele.getTo(),
+                                counts, keys, trueGenotype);
+                    }
+                }  else {
+                    for (Variant.FromTo trueAllele : variant.trueAlleles) {
+                        calculateCounts(trueAllele.getFrom(), trueAllele.getTo(), counts, keys, trueGenotype);
+                    }
+                }
+                fillUpCounts(counts, keys, variant.referenceBase);
+                if (args().verbose)
+                    System.out.println("Genotype=" + trueGenotype + ", counts: " +
+                            Arrays.toString(counts.toArray(new String[counts.size()])));
+                BaseInformationRecords.BaseInformation record = makeRecord(variant.referenceIndex, chromosome,
+                        variant.position, trueGenotype, counts.toArray(new String[counts.size()]));
+                addRecord(writer, record);
+            }
+        }
+
+        // format of count creation instruction is from/to=10+12
+        private BaseInformationRecords.BaseInformation makeRecord(int refIndex, String refId, int position, String genotype, String... countCreations) {
+            BaseInformationRecords.BaseInformation.Builder builder = BaseInformationRecords.BaseInformation.newBuilder();
+            builder.setTrueGenotype(genotype);
+            builder.setReferenceIndex(refIndex);
+            builder.setPosition(position);
+            builder.setReferenceId(refId);
+            BaseInformationRecords.SampleInfo.Builder sample = BaseInformationRecords.SampleInfo.newBuilder();
+            String referenceBase = "N";
+            for (String countCreationInstruction : countCreations) {
+                BaseInformationRecords.CountInfo.Builder countBuilder = BaseInformationRecords.CountInfo.newBuilder();
+                String tokens[] = countCreationInstruction.split("[/=+]");
+                assert tokens.length == 4 :
+                        "count creation instruction must have four arguments: ref/to=forward+reverse, was " + countCreationInstruction;
+                final String from = tokens[0];
+                countBuilder.setFromSequence(from);
+                referenceBase = Character.toString(from.charAt(0));
+                builder.setReferenceBase(referenceBase);
+                final String token = tokens[1];
+                countBuilder.setToSequence(token);
+                countBuilder.setMatchesReference(from.equals(token));
+                int countForwardStrand = Integer.parseInt(tokens[2]);
+                countBuilder.setGenotypeCountForwardStrand(countForwardStrand);
+                int countReverseStrand = Integer.parseInt(tokens[3]);
+                countBuilder.setGenotypeCountReverseStrand(countReverseStrand);
+                countBuilder.setIsCalled(countForwardStrand + countReverseStrand > 0);
+                populateWithFrequencies(countBuilder);
+                if (from.length() > 1) {
+                    countBuilder.setIsIndel(true);
+                }
+                sample.addCounts(countBuilder);
+            }
+            referenceContext.setLength(0);
+            int contextStart = Math.max(0, (position - (args().genomicContextLength - 1) / 2));
+            int genomeRefIndex=genome.getReferenceIndex(refId);
+            genome.getRange(genomeRefIndex, contextStart,
+                    args().genomicContextLength,
+                    referenceContext);
+
+            if (args().genomicContextLength==1) {
+                assert referenceBase.charAt(0)==referenceContext.charAt(0):
+                        String.format("reference base must match with context, base: %s context:  %s",referenceBase,
+                        referenceContext);
+            }
+            builder.setGenomicSequenceContext(referenceContext.toString());
+            sample.setFormattedCounts(FormatterCountHelper.format(sample));
+            builder.addSamples(sample);
+            return builder.build();
+        }
+
+        private int generateCounts() {
+            return r.nextInt(101) + 100;
+        }
+
+        private void calculateCounts(String from, String to, Set<String> allCounts, Set<String> keys, String trueGenotype) {
+           /* String[] inGenotype = trueGenotype.split("\\|", 2);
+                    if ((from.equals(inGenotype[0]) || to.equals(inGenotype[1]))
+                            && !keys.contains(from + "/" + to)) {
+                        allCounts.add(String.format(countFormat, from, to, generateCounts(), generateCounts()));
+                        keys.add(from + "/" + to);
+                    }  */
+            allCounts.add(String.format(countFormat, from, to, generateCounts(), generateCounts()));
+            keys.add(from + "/" + to);
+        }
+    }
+
     /**
      * Detect the chromosomes to use for the output SBI
      *
@@ -125,56 +327,6 @@ public class SBISimulator extends AbstractTool<SBISimulatorArguments> {
         }
         return chroms;
     }
-    MutableString referenceContext=new MutableString();
-    // format of count creation instruction is from/to=10+12
-    private BaseInformationRecords.BaseInformation makeRecord(int refIndex, String refId, int position, String genotype, String... countCreations) {
-        BaseInformationRecords.BaseInformation.Builder builder = BaseInformationRecords.BaseInformation.newBuilder();
-        builder.setTrueGenotype(genotype);
-        builder.setReferenceIndex(refIndex);
-        builder.setPosition(position);
-        builder.setReferenceId(refId);
-        BaseInformationRecords.SampleInfo.Builder sample = BaseInformationRecords.SampleInfo.newBuilder();
-        String referenceBase = "N";
-        for (String countCreationInstruction : countCreations) {
-            BaseInformationRecords.CountInfo.Builder countBuilder = BaseInformationRecords.CountInfo.newBuilder();
-            String tokens[] = countCreationInstruction.split("[/=+]");
-            assert tokens.length == 4 :
-                    "count creation instruction must have four arguments: ref/to=forward+reverse, was " + countCreationInstruction;
-            final String from = tokens[0];
-            countBuilder.setFromSequence(from);
-            referenceBase = Character.toString(from.charAt(0));
-            builder.setReferenceBase(referenceBase);
-            final String token = tokens[1];
-            countBuilder.setToSequence(token);
-            countBuilder.setMatchesReference(from.equals(token));
-            int countForwardStrand = Integer.parseInt(tokens[2]);
-            countBuilder.setGenotypeCountForwardStrand(countForwardStrand);
-            int countReverseStrand = Integer.parseInt(tokens[3]);
-            countBuilder.setGenotypeCountReverseStrand(countReverseStrand);
-            countBuilder.setIsCalled(countForwardStrand + countReverseStrand > 0);
-            populateWithFrequencies(countBuilder);
-            if (from.length() > 1) {
-                countBuilder.setIsIndel(true);
-            }
-            sample.addCounts(countBuilder);
-        }
-        referenceContext.setLength(0);
-        int contextStart = Math.max(0, (position - (args().genomicContextLength - 1) / 2));
-        int genomeRefIndex=genome.getReferenceIndex(refId);
-        genome.getRange(genomeRefIndex, contextStart,
-                args().genomicContextLength,
-                referenceContext);
-
-        if (args().genomicContextLength==1) {
-            assert referenceBase.charAt(0)==referenceContext.charAt(0):
-                    String.format("reference base must match with context, base: %s context:  %s",referenceBase,
-                    referenceContext);
-        }
-        builder.setGenomicSequenceContext(referenceContext.toString());
-        sample.setFormattedCounts(FormatterCountHelper.format(sample));
-        builder.addSamples(sample);
-        return builder.build();
-    }
 
     private void populateWithFrequencies(BaseInformationRecords.CountInfo.Builder countBuilder) {
         BaseInformationRecords.NumberWithFrequency.Builder builderN = BaseInformationRecords.NumberWithFrequency.newBuilder();
@@ -206,21 +358,6 @@ public class SBISimulator extends AbstractTool<SBISimulatorArguments> {
         }
     }
 
-    private int generateCounts() {
-        return r.nextInt(101) + 100;
-    }
-
-    private void calculateCounts(String from, String to, Set<String> allCounts, Set<String> keys, String trueGenotype) {
-       /* String[] inGenotype = trueGenotype.split("\\|", 2);
-                if ((from.equals(inGenotype[0]) || to.equals(inGenotype[1]))
-                        && !keys.contains(from + "/" + to)) {
-                    allCounts.add(String.format(countFormat, from, to, generateCounts(), generateCounts()));
-                    keys.add(from + "/" + to);
-                }  */
-        allCounts.add(String.format(countFormat, from, to, generateCounts(), generateCounts()));
-        keys.add(from + "/" + to);
-    }
-
     private void fillUpCounts(Set<String> allCounts, Set<String> keys, String referenceBase) {
         for (char base : bases) {
             String key = referenceBase + "/" + base;
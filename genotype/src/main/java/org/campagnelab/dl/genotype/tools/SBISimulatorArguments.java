@@ -36,6 +36,15 @@ public class SBISimulatorArguments implements ToolArguments {
     @Parameter(required = true, names = {"--genome"}, description = "Basename of a goby indexed genome.")
     public String genome;
 
+    @Parameter(names = "--seed", description = "Random seed. Each range of variants is simulated with a generator seeded from this seed, its chromosome and its index.")
+    public long seed = 232323;
+
+    @Parameter(names = "--threads", description = "Number of ranges of variants simulated in parallel.")
+    public int numThreads = 1;
+
+    @Parameter(names = "--variants-per-range", description = "Number of variants of a chromosome simulated by one thread. The output depends on the seed and this number, not on the number of threads.")
+    public int variantsPerRange = 1000000;
+
     @Parameter(names ={"-v", "--verbose"}, description = "Be more verbose.")
     boolean verbose;
 }
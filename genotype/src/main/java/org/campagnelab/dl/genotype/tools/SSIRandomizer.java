@@ -13,19 +13,58 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.File;
+import java.io.IOException;
+import java.util.ArrayDeque;
 import java.util.Collections;
 import java.util.List;
+import java.util.Queue;
 import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 
 /**
- * A randomizer for ssi/ssip files.
+ * A randomizer for ssi/ssip files. Segments are first scattered to random temporary buckets, then each bucket is
+ * loaded in memory, shuffled and appended to the output. All steps run on several threads:
+ * <ul>
+ * <li>the inputs are split in byte ranges (partitions), each read once by one thread, with its own random generator.
+ * When there are more buckets than a thread can keep writers open for, segments are scattered to super-buckets
+ * (consecutive runs of buckets), and each super-bucket is then split to its buckets, with its own random
+ * generator. Each segment is thus written at most twice, whatever the number of buckets,</li>
+ * <li>buckets are shuffled concurrently, each with its own random generator, and written in bucket order.</li>
+ * </ul>
+ * The layout of the buckets only depends on the number of segments, --records-per-bucket and the number of threads,
+ * and all random generators are seeded from --random-seed, so the output only depends on the seed, the number of
+ * records per bucket and the number of threads. The memory budget does not change the output: it only limits the
+ * number of buckets shuffled at the same time and the size of the chunks buffered by the bucket writers.
  *
  * @author manuele
  */
 public class SSIRandomizer extends AbstractTool<SSIRandomizerArguments> {
 
     static private Logger LOG = LoggerFactory.getLogger(SSIRandomizer.class);
+    /**
+     * Number of segments read to estimate the size of a segment.
+     */
+    private static final int SIZE_SAMPLE = 100;
+    /**
+     * Estimate of the heap used by a segment, per byte of its serialized form.
+     */
+    private static final int HEAP_BYTES_PER_SERIALIZED_BYTE = 4;
+    /**
+     * Maximum number of bucket writers open at the same time, over all scattering threads.
+     */
+    private static final int MAX_OPEN_WRITERS = 512;
+    /**
+     * Maximum number of bucket writers open at the same time, over all scattering threads. Tests lower it to split
+     * super-buckets with few segments.
+     */
+    int maxOpenWriters = MAX_OPEN_WRITERS;
+    /**
+     * Number of segments a thread reads before it updates the shared progress logger.
+     */
+    private static final int PROGRESS_BATCH = 10000;
 
     public static void main(String[] args) {
         SSIRandomizer tool = new SSIRandomizer();
@@ -44,21 +83,55 @@ public class SSIRandomizer extends AbstractTool<SSIRandomizerArguments> {
         if (workingDir == null) {
             workingDir = ".";
         }
+        final String tmpDir = workingDir + "/tmp";
+        final int numThreads = Math.max(1, args().numThreads);
+        ExecutorService executor = Executors.newFixedThreadPool(numThreads);
         try {
             long totalRecords = 0;
             for (String filename : args().inputFiles) {
                 SegmentReader source = new SegmentReader(filename);
-                totalRecords += Math.min(args().readN,source.getTotalRecords());
+                totalRecords += Math.min(args().readN, source.getTotalRecords());
                 source.close();
             }
-            int numBuckets = (int) (totalRecords / arguments.recordsPerBucket) + 1;
-            new File(workingDir + "/tmp").mkdir();
-            List<SegmentWriter> bucketWriters = new ObjectArrayList<>(numBuckets);
-            for (int i = 0; i < numBuckets; i++) {
-                bucketWriters.add(new SegmentWriter(workingDir + "/tmp/bucket" + i, arguments.chunkSizePerWriter));
+            // the layout of the buckets does not depend on the memory budget, so that the output does not either:
+            final int recordsPerBucket = Math.max(1, arguments.recordsPerBucket);
+            final int numBuckets = (int) (totalRecords / recordsPerBucket) + 1;
+            // each scattering thread has one writer open per super-bucket, at most fanout of them:
+            final int fanout = Math.max(1, maxOpenWriters / numThreads);
+            final int bucketsPerSuperBucket = (numBuckets + fanout - 1) / fanout;
+            final int numSuperBuckets = (numBuckets + bucketsPerSuperBucket - 1) / bucketsPerSuperBucket;
+            // buckets are shuffled ahead of the bucket being written, as many as fit in the memory budget:
+            final long memoryBudget = args().memoryBudgetMB * 1024 * 1024;
+            final long segmentSize = estimateSegmentSize(args().inputFiles.get(0)) * HEAP_BYTES_PER_SERIALIZED_BYTE;
+            final long bucketSize = segmentSize * recordsPerBucket;
+            final int shuffledAhead = (int) Math.max(1, Math.min(numThreads, memoryBudget / bucketSize - 1));
+            if (memoryBudget < 2 * bucketSize) {
+                LOG.warn(String.format("Buckets of %d segments need about %d MB, more than half of the memory budget. " +
+                        "Use fewer --records-per-bucket to reduce memory usage.", recordsPerBucket, bucketSize >> 20));
             }
-            SegmentWriter allWriter = new SegmentWriter(args().outputFile);
+            // each thread buffers one chunk per open writer:
+            final int chunkSize = (int) Math.max(1, Math.min(arguments.chunkSizePerWriter,
+                    memoryBudget / (segmentSize * numThreads * Math.max(numSuperBuckets, bucketsPerSuperBucket))));
+            LOG.info(String.format("Estimated %d bytes per segment, using %d buckets of %d segments, " +
+                            "%d super-buckets of %d buckets, %d buckets shuffled ahead and chunks of %d segments.",
+                    segmentSize, numBuckets, recordsPerBucket, numSuperBuckets, bucketsPerSuperBucket, shuffledAhead,
+                    chunkSize));
+
+            List<Partition> partitions = partitions(numThreads);
             Random rand = new XoRoShiRo128PlusRandom(args().randomSeed);
+            for (Partition partition : partitions) {
+                partition.seed = rand.nextLong();
+            }
+            long[] bucketSeeds = new long[numBuckets];
+            for (int bucket = 0; bucket < numBuckets; bucket++) {
+                bucketSeeds[bucket] = rand.nextLong();
+            }
+            long[] superBucketSeeds = new long[numSuperBuckets];
+            for (int superBucket = 0; superBucket < numSuperBuckets; superBucket++) {
+                superBucketSeeds[superBucket] = rand.nextLong();
+            }
+            new File(tmpDir).mkdir();
+
             //set up logger
             ProgressLogger pgRead = new ProgressLogger(LOG);
             pgRead.itemsName = "sites";
@@ -67,23 +140,37 @@ public class SSIRandomizer extends AbstractTool<SSIRandomizerArguments> {
             pgRead.start();
 
             //fill buckets randomly
-            System.out.println("Filling " + numBuckets + " temp buckets randomly");
-            for (String filename : args().inputFiles) {
-                SegmentReader source = new SegmentReader(filename);
-                long count=0;
-                for (SegmentInformationRecords.SegmentInformation rec : source) {
-                    int bucket = rand.nextInt(numBuckets);
-                    bucketWriters.get(bucket).writeRecord(rec);
-                    pgRead.lightUpdate();
-                    count++;
-                    if (count>args().readN) break;
-
-                }
-                source.close();
-                System.gc();
+            System.out.printf("Filling %d temp buckets randomly from %d partitions\n", numSuperBuckets, partitions.size());
+            List<Future<?>> futures = new ObjectArrayList<>();
+            for (int partitionIndex = 0; partitionIndex < partitions.size(); partitionIndex++) {
+                final Partition partition = partitions.get(partitionIndex);
+                final String bucketPrefix = String.format("%s/part%d-bucket", tmpDir, partitionIndex);
+                futures.add(executor.submit(() -> {
+                    scatter(partition, bucketPrefix, numSuperBuckets, chunkSize, pgRead);
+                    return null;
+                }));
+            }
+            for (Future<?> future : futures) {
+                future.get();
             }
-
             pgRead.stop();
+            if (bucketsPerSuperBucket > 1) {
+                System.out.printf("Splitting %d temp buckets in %d buckets\n", numSuperBuckets, numBuckets);
+                futures.clear();
+                for (int superBucket = 0; superBucket < numSuperBuckets; superBucket++) {
+                    final int firstBucket = superBucket * bucketsPerSuperBucket;
+                    final int endBucket = Math.min(numBuckets, firstBucket + bucketsPerSuperBucket);
+                    final List<String> superBucketFiles = partitionBucketFiles(tmpDir, partitions.size(), superBucket);
+                    final long seed = superBucketSeeds[superBucket];
+                    futures.add(executor.submit(() -> {
+                        split(superBucketFiles, tmpDir + "/bucket", firstBucket, endBucket, seed, chunkSize);
+                        return null;
+                    }));
+                }
+                for (Future<?> future : futures) {
+                    future.get();
+                }
+            }
 
             System.out.println("Shuffling contents of each bucket and writing to output file");
             System.out.printf("There are %d buckets to shuffle\n", numBuckets);
@@ -93,41 +180,186 @@ public class SSIRandomizer extends AbstractTool<SSIRandomizerArguments> {
             pgTempBucket.expectedUpdates = numBuckets;
             pgTempBucket.displayFreeMemory = true;
             pgTempBucket.start();
-            int i = 0;
-            for (SegmentWriter bucketWriter : bucketWriters) {
-                bucketWriter.close();
-
-                //put contents of bucket in a list
-                SegmentReader bucketReader = new SegmentReader(workingDir + "/tmp/bucket" + i);
-                List<SegmentInformationRecords.SegmentInformation> records = new ObjectArrayList<>(arguments.recordsPerBucket);
-                for (SegmentInformationRecords.SegmentInformation rec : bucketReader) {
-                    records.add(rec);
+            try (SegmentWriter allWriter = new SegmentWriter(args().outputFile)) {
+                // shuffle up to shuffledAhead buckets ahead of the bucket being written:
+                Queue<Future<List<SegmentInformationRecords.SegmentInformation>>> shuffled = new ArrayDeque<>();
+                int nextBucket = 0;
+                while (nextBucket < numBuckets || !shuffled.isEmpty()) {
+                    while (nextBucket < numBuckets && shuffled.size() < shuffledAhead) {
+                        final int bucket = nextBucket++;
+                        final List<String> bucketFiles = bucketsPerSuperBucket > 1 ?
+                                Collections.singletonList(String.format("%s/bucket%d", tmpDir, bucket)) :
+                                partitionBucketFiles(tmpDir, partitions.size(), bucket);
+                        shuffled.add(executor.submit(() -> shuffle(bucketFiles, bucketSeeds[bucket],
+                                recordsPerBucket)));
+                    }
+                    //write list to final file
+                    for (SegmentInformationRecords.SegmentInformation rec : shuffled.remove().get()) {
+                        allWriter.writeRecord(rec);
+                    }
+                    pgTempBucket.update();
                 }
-                bucketReader.close();
-
-                //shuffle list
-                Collections.shuffle(records, rand);
-
-                //write list to final file
-                for (SegmentInformationRecords.SegmentInformation rec : records) {
-                    allWriter.writeRecord(rec);
-                }
-                i++;
-                pgTempBucket.update();
             }
             pgTempBucket.stop();
-            allWriter.close();
             final String sourceFilename = args().inputFiles.get(0);
             String sourceBasename = BasenameUtils.getBasename(sourceFilename,".ssi",".ssip");
             String destBasename = BasenameUtils.getBasename(args().outputFile,".ssi",".ssip");
             FileUtils.copyFile(new File(sourceBasename + ".ssip"), new File(destBasename + ".ssip"));
             //delete temp files
-            FileUtils.deleteDirectory(new File((workingDir + "/tmp")));
+            FileUtils.deleteDirectory(new File(tmpDir));
 
         } catch (Exception e) {
             e.printStackTrace();
             throw new RuntimeException(e);
 
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    /**
+     * A byte range of an input file, scattered by one thread.
+     */
+    private static class Partition {
+        final String ssiPath;
+        final long startOffset;
+        final long endOffset;
+        long seed;
+
+        Partition(String ssiPath, long startOffset, long endOffset) {
+            this.ssiPath = ssiPath;
+            this.startOffset = startOffset;
+            this.endOffset = endOffset;
+        }
+    }
+
+    /**
+     * Split each input in numThreads byte ranges. Inputs are not split when --read-N limits the number of segments
+     * read, since the first N segments of a file must then be read by the same thread.
+     */
+    private List<Partition> partitions(int numThreads) {
+        List<Partition> partitions = new ObjectArrayList<>();
+        for (String filename : args().inputFiles) {
+            String ssiPath = SegmentReader.ssiFilename(filename);
+            long length = new File(ssiPath).length();
+            int numPartitions = args().readN == Long.MAX_VALUE ? numThreads : 1;
+            for (int i = 0; i < numPartitions; i++) {
+                partitions.add(new Partition(ssiPath, length * i / numPartitions, length * (i + 1) / numPartitions));
+            }
+        }
+        return partitions;
+    }
+
+    /**
+     * Scatter the segments of a partition to buckets, drawn uniformly.
+     */
+    private void scatter(Partition partition, String bucketPrefix, int numBuckets, int chunkSize,
+                         ProgressLogger pgRead) throws IOException {
+        Random rand = new XoRoShiRo128PlusRandom(partition.seed);
+        List<SegmentWriter> bucketWriters = new ObjectArrayList<>(numBuckets);
+        try (SegmentReader source = new SegmentReader(partition.ssiPath, partition.startOffset, partition.endOffset)) {
+            for (int i = 0; i < numBuckets; i++) {
+                bucketWriters.add(new SegmentWriter(bucketPrefix + i, chunkSize, false));
+            }
+            long count = 0;
+            int notLogged = 0;
+            for (SegmentInformationRecords.SegmentInformation rec : source) {
+                if (count >= args().readN) {
+                    break;
+                }
+                bucketWriters.get(rand.nextInt(numBuckets)).writeRecord(rec);
+                count++;
+                if (++notLogged == PROGRESS_BATCH) {
+                    logProgress(pgRead, notLogged);
+                    notLogged = 0;
+                }
+            }
+            logProgress(pgRead, notLogged);
+        } finally {
+            for (SegmentWriter bucketWriter : bucketWriters) {
+                bucketWriter.close();
+            }
+        }
+    }
+
+    private static void logProgress(ProgressLogger pgRead, int count) {
+        synchronized (pgRead) {
+            pgRead.update(count);
+        }
+    }
+
+    /**
+     * Split the files of a super-bucket to buckets firstBucket to endBucket (exclusive), drawn uniformly. The files
+     * of the super-bucket are deleted once read.
+     */
+    private static void split(List<String> superBucketFiles, String bucketPrefix, int firstBucket, int endBucket,
+                              long seed, int chunkSize) throws IOException {
+        Random rand = new XoRoShiRo128PlusRandom(seed);
+        List<SegmentWriter> bucketWriters = new ObjectArrayList<>(endBucket - firstBucket);
+        try {
+            for (int i = firstBucket; i < endBucket; i++) {
+                bucketWriters.add(new SegmentWriter(bucketPrefix + i, chunkSize, false));
+            }
+            for (String superBucketFile : superBucketFiles) {
+                try (SegmentReader superBucketReader = new SegmentReader(superBucketFile)) {
+                    for (SegmentInformationRecords.SegmentInformation rec : superBucketReader) {
+                        bucketWriters.get(rand.nextInt(endBucket - firstBucket)).writeRecord(rec);
+                    }
+                }
+                new File(superBucketFile + ".ssi").delete();
+            }
+        } finally {
+            for (SegmentWriter bucketWriter : bucketWriters) {
+                bucketWriter.close();
+            }
+        }
+    }
+
+    /**
+     * Return the basenames of the files that the partitions scattered to a bucket, in partition order.
+     */
+    private static List<String> partitionBucketFiles(String tmpDir, int numPartitions, int bucket) {
+        List<String> files = new ObjectArrayList<>(numPartitions);
+        for (int partitionIndex = 0; partitionIndex < numPartitions; partitionIndex++) {
+            files.add(String.format("%s/part%d-bucket%d", tmpDir, partitionIndex, bucket));
+        }
+        return files;
+    }
+
+    /**
+     * Load a bucket from its files, in order, and shuffle it. The files are deleted once read.
+     */
+    private static List<SegmentInformationRecords.SegmentInformation> shuffle(List<String> bucketFiles, long seed,
+                                                                               int recordsPerBucket) throws IOException {
+        //put contents of bucket in a list
+        List<SegmentInformationRecords.SegmentInformation> records = new ObjectArrayList<>(recordsPerBucket);
+        for (String bucketBasename : bucketFiles) {
+            try (SegmentReader bucketReader = new SegmentReader(bucketBasename)) {
+                for (SegmentInformationRecords.SegmentInformation rec : bucketReader) {
+                    records.add(rec);
+                }
+            }
+            new File(bucketBasename + ".ssi").delete();
+        }
+        //shuffle list
+        Collections.shuffle(records, new XoRoShiRo128PlusRandom(seed));
+        return records;
+    }
+
+    /**
+     * Estimate the serialized size of a segment from the first segments of a file.
+     */
+    private static long estimateSegmentSize(String filename) throws IOException {
+        long totalSize = 0;
+        int count = 0;
+        try (SegmentReader source = new SegmentReader(filename)) {
+            for (SegmentInformationRecords.SegmentInformation rec : source) {
+                totalSize += rec.getSerializedSize();
+                if (++count == SIZE_SAMPLE) {
+                    break;
+                }
+            }
         }
+        return count == 0 ? 1 : Math.max(1, totalSize / count);
     }
 }
@@ -19,9 +19,20 @@ public class SSIRandomizerArguments implements ToolArguments {
     @Parameter(required = true, variableArity = true, names = {"-i", "--input-files"}, description = "Input files in .ssi/.ssip format.")
     public List<String> inputFiles = new ArrayList<>();
 
-    @Parameter(names = {"-b", "--records-per-bucket"}, description = "Number of records to store in each bucket.")
+    @Parameter(names = {"-b", "--records-per-bucket"}, description = "Average number of records to store in each bucket. " +
+            "The output is the same for a given random seed, number of records per bucket and number of threads.")
     int recordsPerBucket = 20000;
 
+    @Parameter(names = {"--memory-budget"}, description = "Memory, in megabytes, available to hold the buckets being " +
+            "shuffled and the buffers of the bucket writers. It limits the number of buckets shuffled at the same " +
+            "time and the size of the writer chunks, but does not change the output. Defaults to half of the maximum " +
+            "heap size.")
+    long memoryBudgetMB = Runtime.getRuntime().maxMemory() / 2 / (1024 * 1024);
+
+    @Parameter(names = {"--threads"}, description = "Number of threads used to fill and shuffle buckets. The output " +
+            "is the same for a given random seed, number of records per bucket and number of threads.")
+    int numThreads = 1;
+
     @Parameter(required = true, names = {"-o", "--output-prefix"}, description = "Prefix for the output filenames.")
     public String outputFile;
 
@@ -0,0 +1,202 @@
+package org.campagnelab.dl.genotype.tools;
+
+import org.campagnelab.dl.genotype.helpers.GenotypeHelper;
+import org.campagnelab.dl.varanalysis.protobuf.BaseInformationRecords;
+
+import java.io.PrintStream;
+import java.text.DecimalFormat;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Statistics of the records of an .sbi file, as reported by {@link SbiStats}. Statistics of disjoint sets of records
+ * can be merged, so that byte ranges of a file can be processed by different threads. Counts, min and max are exact
+ * and do not depend on how records were partitioned. Continuous properties are summarized with a histogram, which is
+ * also exact up to {@link Histogram#NUM_BINS} and merges by adding bins.
+ */
+public class SbiStatistics {
+    long numSites;
+    long numIndels;
+    long numSnps;
+    long numHetSnps;
+    long numHomSnps;
+    long numHetIndels;
+    long numHomIndels;
+    long numVariants;
+    /**
+     * Number of reads that support any genotype in the sample, per site.
+     */
+    final Histogram coverage = new Histogram();
+
+    /**
+     * Add a record to the statistics.
+     *
+     * @param rec         the record.
+     * @param sampleIndex index of the sample whose coverage is measured.
+     */
+    public void observe(BaseInformationRecords.BaseInformation rec, int sampleIndex) {
+        String trueGenotype = rec.getTrueGenotype();
+        boolean isIndel = GenotypeHelper.isIndel(rec.getReferenceBase(), trueGenotype);
+        boolean isVariant = GenotypeHelper.isVariant(true, trueGenotype, rec.getReferenceBase());
+        boolean isSnp = isVariant && !isIndel;
+        boolean heterozygous = GenotypeHelper.isHeterozygote(trueGenotype);
+        numSites++;
+        if (isVariant) {
+            numVariants++;
+        }
+        if (isIndel) {
+            numIndels++;
+            if (heterozygous) {
+                numHetIndels++;
+            } else {
+                numHomIndels++;
+            }
+        }
+        if (isSnp) {
+            numSnps++;
+            if (heterozygous) {
+                numHetSnps++;
+            } else {
+                numHomSnps++;
+            }
+        }
+        if (sampleIndex < rec.getSamplesCount()) {
+            int siteCoverage = 0;
+            for (BaseInformationRecords.CountInfo count : rec.getSamples(sampleIndex).getCountsList()) {
+                siteCoverage += count.getGenotypeCountForwardStrand() + count.getGenotypeCountReverseStrand();
+            }
+            coverage.add(siteCoverage);
+        }
+    }
+
+    /**
+     * Add the statistics of other records to these statistics.
+     *
+     * @param other statistics of records not observed by this instance.
+     */
+    public void merge(SbiStatistics other) {
+        numSites += other.numSites;
+        numIndels += other.numIndels;
+        numSnps += other.numSnps;
+        numHetSnps += other.numHetSnps;
+        numHomSnps += other.numHomSnps;
+        numHetIndels += other.numHetIndels;
+        numHomIndels += other.numHomIndels;
+        numVariants += other.numVariants;
+        coverage.merge(other.coverage);
+    }
+
+    /**
+     * Return the statistics as properties, sorted by name.
+     */
+    public Map<String, String> toProperties() {
+        Map<String, String> properties = new TreeMap<>();
+        properties.put("sbiStats.numSites", Long.toString(numSites));
+        properties.put("sbiStats.numIndels", Long.toString(numIndels));
+        properties.put("sbiStats.numSnps", Long.toString(numSnps));
+        properties.put("sbiStats.numHetSnps", Long.toString(numHetSnps));
+        properties.put("sbiStats.numHomSnps", Long.toString(numHomSnps));
+        properties.put("sbiStats.numHetIndels", Long.toString(numHetIndels));
+        properties.put("sbiStats.numHomIndels", Long.toString(numHomIndels));
+        properties.put("sbiStats.numVariants", Long.toString(numVariants));
+        coverage.toProperties("sbiStats.coverage", properties);
+        return properties;
+    }
+
+    public void print(PrintStream out) {
+        DecimalFormat df = new DecimalFormat("#.##");
+        out.println("numSites = " + numSites);
+        out.println("numIndels = " + numIndels);
+        out.println("numSnps = " + numSnps);
+        out.println("numHetSnps = " + numHetSnps);
+        out.println("numHomSnps = " + numHomSnps);
+        out.println("numHetIndels = " + numHetIndels);
+        out.println("numHomIndels = " + numHomIndels);
+        out.println("numVariants = " + numVariants);
+        out.println("Het/Hom_Ratio = " + df.format((0d + numHetIndels + numHetSnps) / (0d + numHomIndels + numHomSnps)));
+        if (coverage.total > 0) {
+            out.printf("coverage: min=%d median=%d p90=%d p99=%d max=%d mean=%s%n", coverage.min,
+                    coverage.quantile(0.5), coverage.quantile(0.9), coverage.quantile(0.99), coverage.max,
+                    df.format(coverage.mean()));
+        }
+    }
+
+    /**
+     * A mergeable histogram of non-negative integer values, with one bin per value below NUM_BINS and one bin for
+     * larger values. Min, max and mean are exact. Quantiles are exact unless they fall in the last bin, in which
+     * case the max is returned.
+     */
+    public static class Histogram {
+        static final int NUM_BINS = 4096;
+        final long[] bins = new long[NUM_BINS + 1];
+        long total;
+        long sum;
+        int min = Integer.MAX_VALUE;
+        int max = Integer.MIN_VALUE;
+
+        public void add(int value) {
+            bins[Math.max(0, Math.min(value, NUM_BINS))]++;
+            total++;
+            sum += value;
+            min = Math.min(min, value);
+            max = Math.max(max, value);
+        }
+
+        public void merge(Histogram other) {
+            for (int bin = 0; bin < bins.length; bin++) {
+                bins[bin] += other.bins[bin];
+            }
+            total += other.total;
+            sum += other.sum;
+            min = Math.min(min, other.min);
+            max = Math.max(max, other.max);
+        }
+
+        public double mean() {
+            return total == 0 ? 0 : ((double) sum) / total;
+        }
+
+        /**
+         * Return the smallest value such that at least a fraction q of the values are less or equal to it.
+         */
+        public int quantile(double q) {
+            long rank = Math.max(1, (long) Math.ceil(q * total));
+            long cumulative = 0;
+            for (int bin = 0; bin < NUM_BINS; bin++) {
+                cumulative += bins[bin];
+                if (cumulative >= rank) {
+                    return bin;
+                }
+            }
+            return max;
+        }
+
+        void toProperties(String prefix, Map<String, String> properties) {
+            if (total == 0) {
+                return;
+            }
+            properties.put(prefix + ".min", Integer.toString(min));
+            properties.put(prefix + ".max", Integer.toString(max));
+            properties.put(prefix + ".sum", Long.toString(sum));
+            properties.put(prefix + ".median", Integer.toString(quantile(0.5)));
+            properties.put(prefix + ".p90", Integer.toString(quantile(0.9)));
+            properties.put(prefix + ".p99", Integer.toString(quantile(0.99)));
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Histogram)) {
+                return false;
+            }
+            Histogram other = (Histogram) o;
+            return total == other.total && sum == other.sum && min == other.min && max == other.max &&
+                    Arrays.equals(bins, other.bins);
+        }
+
+        @Override
+        public int hashCode() {
+            return Arrays.hashCode(bins);
+        }
+    }
+}
@@ -1,20 +1,33 @@
 package org.campagnelab.dl.genotype.tools;
 
 
+import it.unimi.dsi.fastutil.objects.ObjectArrayList;
 import it.unimi.dsi.logging.ProgressLogger;
 import org.campagnelab.dl.framework.tools.arguments.AbstractTool;
-import org.campagnelab.dl.genotype.helpers.GenotypeHelper;
 import org.campagnelab.dl.somatic.storage.RecordReader;
 import org.campagnelab.dl.varanalysis.protobuf.BaseInformationRecords;
-import org.campagnelab.goby.reads.RandomAccessSequenceCache;
+import org.campagnelab.goby.baseinfo.BasenameUtils;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
 import java.io.IOException;
-import java.text.DecimalFormat;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 /**
- * Use sbistats to see the distibution of types of records in a dataset.
+ * Use sbistats to see the distibution of types of records in a dataset. With --threads, the .sbi file is split in
+ * byte ranges, each read by one thread. The statistics of the partitions are merged in partition order and are the
+ * same as when the file is read by a single thread.
  * <p>
  * Created by rct66 on 5/18/16.
  *
@@ -22,9 +35,6 @@ import java.text.DecimalFormat;
  */
 public class SbiStats extends AbstractTool<SbiStatsArguments> {
 
-
-    RandomAccessSequenceCache genome = new RandomAccessSequenceCache();
-
     static private Logger LOG = LoggerFactory.getLogger(SbiStats.class);
 
     public static void main(String[] args) {
@@ -39,66 +49,88 @@ public class SbiStats extends AbstractTool<SbiStatsArguments> {
     //only supports genotypes encoded with a bar (|) delimiter
     public void execute() {
         try {
-            RecordReader source = new RecordReader(args().inputFile);
-            ProgressLogger recordLogger = new ProgressLogger(LOG);
-            recordLogger.expectedUpdates = source.numRecords();
-            System.out.println(source.numRecords() + " records to label");
-            int recordsLabeled = 0;
-            recordLogger.start();
-
-            int numIndels = 0;
-            int numSnps = 0;
-            int numHetSnps = 0;
-            int numHomSnps = 0;
-            int numHetIndels = 0;
-            int numHomIndels = 0;
-            int numVariants = 0;
-            int numHasIndel = 0;
-            int numSites = 0;
-            for (BaseInformationRecords.BaseInformation rec : source) {
-                String trueGenotype = rec.getTrueGenotype();
-                boolean isIndel = GenotypeHelper.isIndel(rec.getReferenceBase(), trueGenotype);
-                boolean isVariant = GenotypeHelper.isVariant(true, trueGenotype, rec.getReferenceBase());
-                boolean isSnp = isVariant && !isIndel;
-                boolean heterozygous = GenotypeHelper.isHeterozygote(trueGenotype);
-                numSites++;
-                if (isVariant) {
-                    numVariants++;
-                }
-                if (isIndel) {
-                    numIndels++;
-                    if (heterozygous) {
-                        numHetIndels++;
-                    } else {
-                        numHomIndels++;
-                    }
-                }
-                if (isSnp) {
-                    numSnps++;
-                    if (heterozygous) {
-                        numHetSnps++;
-                    } else {
-                        numHomSnps++;
-                    }
-                }
-                recordLogger.lightUpdate();
+            SbiStatistics statistics = computeStatistics();
+            statistics.print(System.out);
+            if (args().updateSbip) {
+                updateSbip(statistics);
             }
-            recordLogger.done();
-            DecimalFormat df = new DecimalFormat("#.##");
-            System.out.println("numSites = " + numSites);
-            System.out.println("numIndels = " + numIndels);
-            System.out.println("numSnps = " + numSnps);
-            System.out.println("numHetSnps = " + numHetSnps);
-            System.out.println("numHomSnps = " + numHomSnps);
-            System.out.println("numHetIndels = " + numHetIndels);
-            System.out.println("numHomIndels = " + numHomIndels);
-            System.out.println("numVariants = " + numVariants);
-            System.out.println("Het/Hom_Ratio = "+df.format((0d+numHetIndels+numHetSnps)/(0d+numHomIndels+numHomSnps)));
         } catch (IOException e) {
             throw new RuntimeException(e);
         }
     }
 
+    /**
+     * Compute the statistics of the input file, with one thread per partition.
+     */
+    SbiStatistics computeStatistics() throws IOException {
+        String inputSbi;
+        long numRecords;
+        try (RecordReader source = new RecordReader(args().inputFile)) {
+            inputSbi = source.getSourceSbiPath();
+            numRecords = source.numRecords();
+        }
+        ProgressLogger recordLogger = new ProgressLogger(LOG);
+        recordLogger.expectedUpdates = numRecords;
+        System.out.println(numRecords + " records to process");
+        recordLogger.start();
+
+        final int numPartitions = Math.max(1, args().numThreads);
+        final long inputLength = new File(inputSbi).length();
+        ExecutorService executor = Executors.newFixedThreadPool(numPartitions);
+        SbiStatistics statistics = new SbiStatistics();
+        try {
+            List<Future<SbiStatistics>> futures = new ObjectArrayList<>();
+            for (int partition = 0; partition < numPartitions; partition++) {
+                final long startOffset = inputLength * partition / numPartitions;
+                final long endOffset = inputLength * (partition + 1) / numPartitions;
+                futures.add(executor.submit(() -> partitionStatistics(inputSbi, startOffset, endOffset, recordLogger)));
+            }
+            for (Future<SbiStatistics> future : futures) {
+                statistics.merge(future.get());
+            }
+        } catch (InterruptedException | ExecutionException e) {
+            throw new IOException("Unable to compute statistics in parallel.", e);
+        } finally {
+            executor.shutdown();
+        }
+        recordLogger.done();
+        return statistics;
+    }
+
+    private SbiStatistics partitionStatistics(String inputSbi, long startOffset, long endOffset,
+                                              ProgressLogger recordLogger) throws IOException {
+        SbiStatistics statistics = new SbiStatistics();
+        try (RecordReader source = new RecordReader(inputSbi, startOffset, endOffset)) {
+            for (BaseInformationRecords.BaseInformation rec : source) {
+                statistics.observe(rec, args().sampleIndex);
+                synchronized (recordLogger) {
+                    recordLogger.lightUpdate();
+                }
+            }
+        }
+        return statistics;
+    }
+
+    /**
+     * Store the statistics in the .sbip file of the input, replacing the statistics of a previous run.
+     */
+    private void updateSbip(SbiStatistics statistics) throws IOException {
+        String sbipFilename = BasenameUtils.getBasename(args().inputFile, ".sbi", ".sbip") + ".sbip";
+        Properties properties = new Properties();
+        if (new File(sbipFilename).exists()) {
+            try (InputStream input = new FileInputStream(sbipFilename)) {
+                properties.load(input);
+            }
+        }
+        for (Map.Entry<String, String> entry : statistics.toProperties().entrySet()) {
+            properties.setProperty(entry.getKey(), entry.getValue());
+        }
+        try (OutputStream output = new FileOutputStream(sbipFilename)) {
+            properties.store(output, "");
+        }
+        System.out.println("Statistics written to " + sbipFilename);
+    }
+
 
     @Override
     public SbiStatsArguments createArguments() {
@@ -17,6 +17,12 @@ public class SbiStatsArguments implements ToolArguments {
     @Parameter(required = false, names = {"-s", "--sample-index"}, description = "Add calls to an alternative sample in the sbi file (default if first sample, index 0")
     public int sampleIndex = 0;
 
+    @Parameter(names = {"--threads"}, description = "Number of threads. The input is split in as many byte ranges, each read by one thread.")
+    public int numThreads = 1;
+
+    @Parameter(names = {"--update-sbip"}, description = "Store the statistics in the .sbip file of the input, as sbiStats.* properties.")
+    public boolean updateSbip;
+
 
 }
 
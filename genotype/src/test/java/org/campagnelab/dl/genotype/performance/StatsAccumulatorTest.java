@@ -3,6 +3,11 @@ package org.campagnelab.dl.genotype.performance;
 import org.campagnelab.dl.genotype.predictions.GenotypePrediction;
 import org.junit.Test;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+
 import static org.junit.Assert.assertEquals;
 
 /**
@@ -78,8 +83,60 @@ public class StatsAccumulatorTest {
 
 }
 
+    @Test
+    public void testMerge() throws Exception {
+        StatsAccumulator single = new StatsAccumulator();
+        single.initializeStats();
+        observe(single, false);
+        observe(single, true);
+
+        StatsAccumulator snps = new StatsAccumulator();
+        snps.initializeStats();
+        observe(snps, false);
+        StatsAccumulator indels = new StatsAccumulator();
+        indels.initializeStats();
+        observe(indels, true);
+        StatsAccumulator merged = snps.merge(indels);
+
+        assertEquals("TP is wrong", 2, merged.numTruePositive);
+        assertEquals("FN is wrong", 2, merged.numFalseNegative);
+        assertEquals("processed is wrong", 8, merged.numProcessed);
+        String header[] = single.createOutputHeader();
+        double[] expected = single.createOutputStatistics();
+        double[] stats = merged.createOutputStatistics();
+        for (int i = 0; i < stats.length; i++) {
+            assertEquals("wrong stat at index " + i + " " + header[i], expected[i], stats[i], 0.00001);
+        }
+    }
+
+    @Test
+    public void testWriteThenRead() throws Exception {
+        StatsAccumulator written = new StatsAccumulator();
+        written.initializeStats();
+        written.setNumVariantsExpected(10);
+        observe(written, false);
+        observe(written, true);
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        written.write(new DataOutputStream(bytes));
+        StatsAccumulator read = StatsAccumulator.read(new DataInputStream(new ByteArrayInputStream(bytes.toByteArray())));
+
+        assertEquals("expected variants is wrong", 10, read.numVariantsExpected);
+        assertEquals("TP is wrong", 2, read.numTruePositive);
+        assertEquals("indel FN is wrong", 1, read.numIndelsFalseNegative);
+        assertEquals("processed is wrong", 8, read.numProcessed);
+        double[] expected = written.createOutputStatistics();
+        double[] stats = read.createOutputStatistics();
+        for (int i = 0; i < stats.length; i++) {
+            assertEquals("wrong stat at index " + i, expected[i], stats[i], 0);
+        }
+    }
+
     public void observe(boolean isIndel) throws Exception {
         acc.initializeStats();
+        observe(acc, isIndel);
+    }
+
+    public void observe(StatsAccumulator target, boolean isIndel) throws Exception {
         int nVariants = 0;
         //true negative
         GenotypePrediction pred1 = new GenotypePrediction();
@@ -88,7 +145,7 @@ public class StatsAccumulatorTest {
         pred1.isVariant = false;
         pred1.isIndel = isIndel;
         pred1.isPredictedIndel=isIndel;
-        acc.observe(pred1);
+        target.observe(pred1);
 
         //true positive
         GenotypePrediction pred2 = new GenotypePrediction();
@@ -97,7 +154,7 @@ public class StatsAccumulatorTest {
         pred2.isVariant = true;
         pred2.isIndel = isIndel;
         pred1.isPredictedIndel=isIndel;
-        acc.observe(pred2);
+        target.observe(pred2);
         nVariants += 1;
 
         //false positive
@@ -107,7 +164,7 @@ public class StatsAccumulatorTest {
         pred3.isVariant = false;
         pred3.isIndel = isIndel;
         pred1.isPredictedIndel=isIndel;
-        acc.observe(pred3);
+        target.observe(pred3);
 
         //false negative
         GenotypePrediction pred4 = new GenotypePrediction();
@@ -117,10 +174,10 @@ public class StatsAccumulatorTest {
         pred4.isIndel = isIndel;
         pred1.isPredictedIndel=isIndel;
         nVariants += 1;
-        acc.observe(pred4);
+        target.observe(pred4);
 
 
-        //      assertEquals(1f / nVariants, acc.createOutputStatistics("Recall")[0], 0.1);
+        //      assertEquals(1f / nVariants, target.createOutputStatistics("Recall")[0], 0.1);
 
     }
 
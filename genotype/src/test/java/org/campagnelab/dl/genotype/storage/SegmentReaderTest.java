@@ -0,0 +1,81 @@
+package org.campagnelab.dl.genotype.storage;
+
+import it.unimi.dsi.fastutil.ints.IntArrayList;
+import org.apache.commons.io.FileUtils;
+import org.campagnelab.dl.somatic.storage.ChunkPositionIndex;
+import org.campagnelab.dl.somatic.storage.ChunkRangeIterator;
+import org.campagnelab.dl.varanalysis.protobuf.SegmentInformationRecords;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Check that segments read from an interval are those that overlap the interval.
+ */
+public class SegmentReaderTest {
+    private static final String DIR = "test-results/segment-reader/";
+    private static final String SSI = DIR + "segments.ssi";
+
+    @Before
+    public void setUp() throws Exception {
+        FileUtils.deleteQuietly(new File(DIR));
+        FileUtils.forceMkdir(new File(DIR));
+        // 500 segments of 10 bases on chr1, starting every 20 bases, in chunks of 20 segments:
+        try (SegmentWriter writer = new SegmentWriter(DIR + "segments", 20)) {
+            for (int start = 0; start < 10000; start += 20) {
+                writer.writeRecord(segment(start, start + 9));
+            }
+        }
+    }
+
+    @Test
+    public void interval() throws Exception {
+        assertTrue(new File(ChunkPositionIndex.indexFilename(SSI)).exists());
+        try (SegmentReader reader = new SegmentReader(SSI)) {
+            assertEquals(25, reader.getPositionIndex().numChunks());
+            assertEquals(IntArrayList.wrap(new int[]{400, 420, 440}), starts(reader.interval("chr1", 405, 440)));
+            assertEquals(IntArrayList.wrap(new int[]{9980}), starts(reader.interval("chr1:9989-20000")));
+            assertEquals(0, starts(reader.interval("chr1", 410, 419)).size());
+            assertEquals(0, starts(reader.interval("chr2", 0, 1000)).size());
+        }
+    }
+
+    @Test
+    public void rebuildIndex() throws Exception {
+        new File(ChunkPositionIndex.indexFilename(SSI)).delete();
+        ChunkPositionIndex index = SegmentReader.rebuildIndex(SSI);
+        assertEquals(25, index.numChunks());
+        assertEquals(1, index.byteRanges(0, 405, 440).size());
+        assertNotNull(ChunkPositionIndex.load(SSI));
+    }
+
+    private static IntArrayList starts(ChunkRangeIterator<SegmentInformationRecords.SegmentInformation> segments)
+            throws IOException {
+        IntArrayList starts = new IntArrayList();
+        try (ChunkRangeIterator<SegmentInformationRecords.SegmentInformation> iterator = segments) {
+            while (iterator.hasNext()) {
+                starts.add(iterator.next().getStartPosition().getLocation());
+            }
+        }
+        return starts;
+    }
+
+    private static SegmentInformationRecords.SegmentInformation segment(int start, int end) {
+        return SegmentInformationRecords.SegmentInformation.newBuilder()
+                .setStartPosition(position(start))
+                .setEndPosition(position(end))
+                .setLength(end - start + 1)
+                .build();
+    }
+
+    private static SegmentInformationRecords.ReferencePosition position(int location) {
+        return SegmentInformationRecords.ReferencePosition.newBuilder()
+                .setReferenceIndex(0).setReferenceId("chr1").setLocation(location).build();
+    }
+}
@@ -0,0 +1,90 @@
+package org.campagnelab.dl.genotype.tools;
+
+import it.unimi.dsi.fastutil.ints.IntArrayList;
+import org.apache.commons.io.FileUtils;
+import org.campagnelab.dl.somatic.storage.RecordReader;
+import org.campagnelab.dl.somatic.storage.RecordWriter;
+import org.campagnelab.dl.varanalysis.protobuf.BaseInformationRecords;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.Reader;
+import java.util.Properties;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Check that filtering with several threads keeps the order of the input and is reproducible.
+ */
+public class FilterSBITest {
+    private static final String DIR = "test-results/filter-sbi/";
+    private static final int NUM_RECORDS = 1000;
+
+    @Before
+    public void setUp() throws Exception {
+        FileUtils.deleteQuietly(new File(DIR));
+        FileUtils.forceMkdir(new File(DIR));
+        // small chunks, so that every partition gets some records:
+        RecordWriter writer = new RecordWriter(DIR + "input", 25);
+        for (int i = 0; i < NUM_RECORDS; i++) {
+            boolean isVariant = i % 3 == 0;
+            BaseInformationRecords.SampleInfo.Builder sample = BaseInformationRecords.SampleInfo.newBuilder()
+                    .setIsVariant(isVariant);
+            writer.writeRecord(BaseInformationRecords.BaseInformation.newBuilder()
+                    .setReferenceId("chr1").setReferenceIndex(0).setPosition(i).setReferenceBase("A")
+                    .setTrueGenotype(isVariant ? "A/T" : "A/A").addSamples(sample).build());
+        }
+        writer.close();
+    }
+
+    @Test
+    public void parallelKeepsOrder() throws IOException {
+        // no sampling: the output does not depend on the number of threads.
+        IntArrayList single = filter(1, 0, "single");
+        IntArrayList parallel = filter(4, 0, "parallel");
+        assertEquals(NUM_RECORDS / 3 + 1, single.size());
+        assertEquals(single, parallel);
+    }
+
+    @Test
+    public void reproducibleForSeedAndThreads() throws IOException {
+        IntArrayList first = filter(4, 0.5, "first");
+        IntArrayList second = filter(4, 0.5, "second");
+        assertEquals(first, second);
+        assertTrue(first.size() > NUM_RECORDS / 3 + 1);
+        for (int i = 1; i < first.size(); i++) {
+            assertTrue(first.getInt(i - 1) < first.getInt(i));
+        }
+    }
+
+    /**
+     * Remove reference matching sites and return the positions of the sites kept.
+     */
+    private IntArrayList filter(int numThreads, double otherSamplingRate, String output) throws IOException {
+        FilterSBI tool = new FilterSBI();
+        tool.parseArguments(new String[]{"-i", DIR + "input.sbi", "-o", DIR + output, "--remove-ref-matching",
+                        "--other-sampling-rate", Double.toString(otherSamplingRate),
+                        "--threads", Integer.toString(numThreads)},
+                "FilterSBI", tool.createArguments());
+        tool.filter();
+        IntArrayList positions = new IntArrayList();
+        try (RecordReader reader = new RecordReader(DIR + output + ".sbi")) {
+            for (BaseInformationRecords.BaseInformation rec : reader) {
+                positions.add(rec.getPosition());
+            }
+        }
+        assertEquals(tool.includedCount, positions.size());
+        // properties of the concatenated output count the records kept, and describe the filter:
+        Properties properties = new Properties();
+        try (Reader reader = new FileReader(DIR + output + ".sbip")) {
+            properties.load(reader);
+        }
+        assertEquals(Long.toString(tool.includedCount), properties.getProperty("numRecords"));
+        assertEquals(Long.toString(tool.filteredCount), properties.getProperty("removeSnps.filtered"));
+        return positions;
+    }
+}
@@ -0,0 +1,55 @@
+package org.campagnelab.dl.genotype.tools;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Test concatenation of the VCF and BED files of PredictG shards.
+ */
+public class MergePredictGShardsTest {
+    private static final String DIR = "test-results/merge-predict-shards/";
+
+    @Before
+    public void setUp() throws IOException {
+        FileUtils.deleteQuietly(new File(DIR));
+        FileUtils.forceMkdir(new File(DIR));
+    }
+
+    @Test
+    public void mergeVCF() throws IOException {
+        File shard0 = write("shard-0.vcf", "##fileformat=VCFv4.1\n#CHROM\tPOS\n1\t10\tA\n1\t20\tC\n");
+        File shard1 = write("shard-1.vcf", "##fileformat=VCFv4.1\n#CHROM\tPOS\n1\t20\tC\n2\t5\tG\n");
+        File shard2 = write("shard-2.vcf", "##fileformat=VCFv4.1\n#CHROM\tPOS\n");
+        File merged = new File(DIR, "merged.vcf");
+
+        assertEquals(3, MergePredictGShards.mergeLines(Arrays.asList(shard0, shard1, shard2), merged));
+        assertEquals("##fileformat=VCFv4.1\n#CHROM\tPOS\n1\t10\tA\n1\t20\tC\n2\t5\tG\n",
+                FileUtils.readFileToString(merged, StandardCharsets.UTF_8));
+    }
+
+    @Test
+    public void mergeBED() throws IOException {
+        File shard0 = write("shard-0.bed", "1\t9\t10\t0\n");
+        File shard1 = write("shard-1.bed", "1\t19\t20\t0\n1\t29\t30\t1\n");
+        File merged = new File(DIR, "merged.bed");
+
+        // the indices of the second shard continue after the 5 predictions of the first:
+        assertEquals(3, MergePredictGShards.mergeLines(Arrays.asList(shard0, shard1), merged, new long[]{0, 5}));
+        assertEquals("1\t9\t10\t0\n1\t19\t20\t5\n1\t29\t30\t6\n",
+                FileUtils.readFileToString(merged, StandardCharsets.UTF_8));
+    }
+
+    private File write(String filename, String content) throws IOException {
+        File file = new File(DIR, filename);
+        FileUtils.writeStringToFile(file, content, StandardCharsets.UTF_8);
+        return file;
+    }
+}
@@ -0,0 +1,125 @@
+package org.campagnelab.dl.genotype.tools;
+
+import it.unimi.dsi.fastutil.objects.ObjectArrayList;
+import org.apache.commons.io.FileUtils;
+import org.campagnelab.dl.somatic.storage.RecordReader;
+import org.campagnelab.dl.varanalysis.protobuf.BaseInformationRecords;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Check that ranges simulated with several threads are appended to the output in reference order, and that the
+ * output does not depend on the number of threads.
+ */
+public class SBISimulatorTest {
+    private static final String DIR = "test-results/sbi-simulator/";
+    private static final long SEED = 232323;
+
+    @Before
+    public void setUp() throws Exception {
+        FileUtils.deleteQuietly(new File(DIR));
+        FileUtils.forceMkdir(new File(DIR));
+    }
+
+    @Test
+    public void threadsKeepReferenceOrder() throws IOException {
+        List<String> single = simulate(1, "single");
+        List<String> parallel = simulate(4, "parallel");
+        assertEquals(single, parallel);
+        assertEquals(1000 + 10 + 300 + 300, single.size());
+        String[] previous = single.get(0).split(":");
+        for (int i = 1; i < single.size(); i++) {
+            String[] current = single.get(i).split(":");
+            int previousIndex = Integer.parseInt(previous[0]);
+            int currentIndex = Integer.parseInt(current[0]);
+            assertTrue(previousIndex < currentIndex || previousIndex == currentIndex &&
+                    Integer.parseInt(previous[1]) < Integer.parseInt(current[1]));
+            previous = current;
+        }
+        assertNoRangeFiles();
+    }
+
+    @Test
+    public void failedRangeRemovesTemporaryFiles() {
+        List<SBISimulator.RangeTask> ranges = ranges();
+        ranges.add(1, writer -> {
+            throw new IOException("range failed");
+        });
+        try {
+            SBISimulator.simulateRanges(ranges, DIR + "failed.sbi", 4);
+            fail("a failed range must fail the simulation");
+        } catch (IOException e) {
+            // expected
+        }
+        assertNoRangeFiles();
+    }
+
+    @Test
+    public void noRangesWritesEmptyFile() throws IOException {
+        SBISimulator.simulateRanges(new ObjectArrayList<>(), DIR + "empty.sbi", 4);
+        try (RecordReader reader = new RecordReader(DIR + "empty.sbi")) {
+            assertEquals(0, reader.numRecords());
+            assertFalse(reader.iterator().hasNext());
+        }
+    }
+
+    /**
+     * Simulate the ranges and return the reference index, position and counts of the output records.
+     */
+    private List<String> simulate(int numThreads, String output) throws IOException {
+        SBISimulator.simulateRanges(ranges(), DIR + output + ".sbi", numThreads);
+        List<String> records = new ObjectArrayList<>();
+        try (RecordReader reader = new RecordReader(DIR + output + ".sbi")) {
+            for (BaseInformationRecords.BaseInformation record : reader) {
+                BaseInformationRecords.CountInfo counts = record.getSamples(0).getCounts(0);
+                records.add(record.getReferenceIndex() + ":" + record.getPosition() + ":" +
+                        counts.getGenotypeCountForwardStrand() + "+" + counts.getGenotypeCountReverseStrand());
+            }
+        }
+        return records;
+    }
+
+    /**
+     * Ranges of different sizes, so that later ranges finish before earlier ones with several threads.
+     */
+    private List<SBISimulator.RangeTask> ranges() {
+        List<SBISimulator.RangeTask> ranges = new ObjectArrayList<>();
+        ranges.add(range("chr1", 0, 0, 0, 1000));
+        ranges.add(range("chr1", 0, 1, 1000, 1010));
+        ranges.add(range("chr2", 1, 0, 0, 300));
+        ranges.add(range("chr3", 2, 0, 0, 300));
+        return ranges;
+    }
+
+    private SBISimulator.RangeTask range(String chromosome, int referenceIndex, int rangeIndex, int start, int end) {
+        return writer -> {
+            Random random = SBISimulator.rangeRandom(SEED, chromosome, rangeIndex);
+            for (int position = start; position < end; position++) {
+                BaseInformationRecords.CountInfo.Builder counts = BaseInformationRecords.CountInfo.newBuilder()
+                        .setFromSequence("A").setToSequence("T").setMatchesReference(false)
+                        .setGenotypeCountForwardStrand(random.nextInt(101) + 100)
+                        .setGenotypeCountReverseStrand(random.nextInt(101) + 100);
+                writer.writeRecord(BaseInformationRecords.BaseInformation.newBuilder()
+                        .setReferenceId(chromosome).setReferenceIndex(referenceIndex).setPosition(position)
+                        .setReferenceBase("A").setTrueGenotype("A/T")
+                        .addSamples(BaseInformationRecords.SampleInfo.newBuilder().addCounts(counts)).build());
+            }
+        };
+    }
+
+    private void assertNoRangeFiles() {
+        for (String filename : new File(DIR).list()) {
+            assertTrue("temporary file left behind: " + filename, !filename.contains("-range-"));
+        }
+    }
+}
@@ -0,0 +1,97 @@
+package org.campagnelab.dl.genotype.tools;
+
+import it.unimi.dsi.fastutil.ints.IntArrayList;
+import org.apache.commons.io.FileUtils;
+import org.campagnelab.dl.genotype.storage.SegmentReader;
+import org.campagnelab.dl.genotype.storage.SegmentWriter;
+import org.campagnelab.dl.varanalysis.protobuf.SegmentInformationRecords;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotEquals;
+
+/**
+ * Check that parallel randomization keeps every segment and is reproducible for a given seed.
+ */
+public class SSIRandomizerTest {
+    private static final String DIR = "test-results/ssi-randomizer/";
+    private static final int NUM_SEGMENTS = 300;
+
+    @Before
+    public void setUp() throws Exception {
+        FileUtils.deleteQuietly(new File(DIR));
+        FileUtils.forceMkdir(new File(DIR));
+        try (SegmentWriter writer = new SegmentWriter(DIR + "input", 20)) {
+            for (int i = 0; i < NUM_SEGMENTS; i++) {
+                SegmentInformationRecords.ReferencePosition position = SegmentInformationRecords.ReferencePosition
+                        .newBuilder().setReferenceIndex(0).setReferenceId("chr1").setLocation(i).build();
+                writer.writeRecord(SegmentInformationRecords.SegmentInformation.newBuilder()
+                        .setStartPosition(position).setEndPosition(position).setLength(1).build());
+            }
+        }
+    }
+
+    @Test
+    public void parallelIsReproducible() throws Exception {
+        IntArrayList first = randomize(DIR + "first", 3, 1000, 512);
+        IntArrayList second = randomize(DIR + "second", 3, 1000, 512);
+        assertEquals(first, second);
+        assertAllSegments(first);
+    }
+
+    @Test
+    public void memoryBudgetDoesNotChangeOutput() throws Exception {
+        // without budget, one bucket is shuffled ahead instead of 3, and writer chunks hold a single segment:
+        IntArrayList small = randomize(DIR + "small", 3, 0, 512);
+        IntArrayList large = randomize(DIR + "large", 3, 1000, 512);
+        assertEquals(small, large);
+        assertAllSegments(small);
+    }
+
+    @Test
+    public void superBucketsAreSplit() throws Exception {
+        // 8 buckets and at most 2 open writers per thread: 2 super-buckets of 4 buckets each.
+        IntArrayList first = randomize(DIR + "first", 3, 1000, 6);
+        IntArrayList second = randomize(DIR + "second", 3, 1000, 6);
+        assertEquals(first, second);
+        assertAllSegments(first);
+    }
+
+    /**
+     * Check that the output has each segment once, in shuffled order.
+     */
+    private void assertAllSegments(IntArrayList locations) {
+        assertEquals(NUM_SEGMENTS, locations.size());
+        IntArrayList sorted = new IntArrayList(locations);
+        sorted.sort(null);
+        for (int i = 0; i < NUM_SEGMENTS; i++) {
+            assertEquals(i, sorted.getInt(i));
+        }
+        assertNotEquals(sorted, locations);
+    }
+
+    private IntArrayList randomize(String output, int numThreads, int memoryBudgetMB, int maxOpenWriters)
+            throws IOException {
+        SSIRandomizer tool = new SSIRandomizer();
+        tool.parseArguments(new String[]{"-i", DIR + "input.ssi", "-o", output, "-b", "40",
+                "--random-seed", "42", "--threads", Integer.toString(numThreads),
+                "--memory-budget", Integer.toString(memoryBudgetMB)}, "SSIRandomizer",
+                tool.createArguments());
+        tool.maxOpenWriters = maxOpenWriters;
+        tool.execute();
+        // temporary buckets are removed:
+        assertFalse(new File(DIR + "tmp").exists());
+        IntArrayList locations = new IntArrayList();
+        try (SegmentReader reader = new SegmentReader(output + ".ssi")) {
+            for (SegmentInformationRecords.SegmentInformation segment : reader) {
+                locations.add(segment.getStartPosition().getLocation());
+            }
+        }
+        return locations;
+    }
+}
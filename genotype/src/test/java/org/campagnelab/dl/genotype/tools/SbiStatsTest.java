@@ -0,0 +1,116 @@
+package org.campagnelab.dl.genotype.tools;
+
+import org.apache.commons.io.FileUtils;
+import org.campagnelab.dl.somatic.storage.RecordWriter;
+import org.campagnelab.dl.somatic.tools.QuickConcat;
+import org.campagnelab.dl.varanalysis.protobuf.BaseInformationRecords;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Map;
+import java.util.Properties;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Check that statistics computed over several partitions are the same as over the whole file.
+ */
+public class SbiStatsTest {
+    private static final String DIR = "test-results/sbi-stats/";
+    private static final int NUM_RECORDS = 1000;
+    private static final String[] GENOTYPES = {"A/A", "A/T", "T/T", "A/A", "AT/A", "A--/A--", "A/A"};
+
+    @Before
+    public void setUp() throws Exception {
+        FileUtils.deleteQuietly(new File(DIR));
+        FileUtils.forceMkdir(new File(DIR));
+        write(DIR + "input", 0, NUM_RECORDS);
+    }
+
+    private void write(String basename, int start, int end) throws IOException {
+        // small chunks, so that every partition gets some records:
+        RecordWriter writer = new RecordWriter(basename, 25);
+        for (int i = start; i < end; i++) {
+            BaseInformationRecords.SampleInfo.Builder sample = BaseInformationRecords.SampleInfo.newBuilder();
+            sample.addCounts(BaseInformationRecords.CountInfo.newBuilder().setFromSequence("A").setToSequence("A")
+                    .setMatchesReference(true).setIsIndel(false)
+                    .setGenotypeCountForwardStrand(i % 37).setGenotypeCountReverseStrand(i % 11));
+            writer.writeRecord(BaseInformationRecords.BaseInformation.newBuilder()
+                    .setReferenceId("chr1").setReferenceIndex(0).setPosition(i).setReferenceBase("A")
+                    .setTrueGenotype(GENOTYPES[i % GENOTYPES.length]).addSamples(sample).build());
+        }
+        writer.close();
+    }
+
+    @Test
+    public void parallelMatchesSingleThreaded() throws Exception {
+        SbiStatistics single = statistics(1);
+        SbiStatistics parallel = statistics(4);
+        assertEquals(NUM_RECORDS, single.numSites);
+        assertEquals(single.toProperties(), parallel.toProperties());
+        assertEquals(single.coverage, parallel.coverage);
+        assertEquals(0, single.coverage.min);
+        assertEquals(36 + 10, single.coverage.max);
+    }
+
+    @Test
+    public void quantiles() {
+        SbiStatistics.Histogram histogram = new SbiStatistics.Histogram();
+        for (int value = 1; value <= 100; value++) {
+            histogram.add(value);
+        }
+        histogram.add(1000000);
+        assertEquals(51, histogram.quantile(0.5));
+        assertEquals(1, histogram.quantile(0));
+        assertEquals(1000000, histogram.quantile(1));
+    }
+
+    @Test
+    public void concatenateUpdatedSbip() throws Exception {
+        write(DIR + "second", NUM_RECORDS, 3 * NUM_RECORDS);
+        updateSbip(DIR + "input.sbi");
+        updateSbip(DIR + "second.sbi");
+        QuickConcat.concatenate(new String[]{DIR + "input.sbi", DIR + "second.sbi"}, DIR + "concat", 1 << 16, null);
+
+        Properties merged = new Properties();
+        try (InputStream input = new FileInputStream(DIR + "concat.sbip")) {
+            merged.load(input);
+        }
+        Map<String, String> expected = statistics(DIR + "concat.sbi", 1).toProperties();
+        assertEquals(Integer.toString(3 * NUM_RECORDS), merged.getProperty("numRecords"));
+        assertEquals(expected.get("sbiStats.numSites"), merged.getProperty("sbiStats.numSites"));
+        assertEquals(expected.get("sbiStats.numIndels"), merged.getProperty("sbiStats.numIndels"));
+        assertEquals(expected.get("sbiStats.coverage.sum"), merged.getProperty("sbiStats.coverage.sum"));
+        assertEquals(expected.get("sbiStats.coverage.min"), merged.getProperty("sbiStats.coverage.min"));
+        assertEquals(expected.get("sbiStats.coverage.max"), merged.getProperty("sbiStats.coverage.max"));
+        // every value kept must be the value computed on the concatenation:
+        for (String key : merged.stringPropertyNames()) {
+            if (key.startsWith("sbiStats.")) {
+                assertTrue("missing statistic " + key, expected.containsKey(key));
+                assertEquals("wrong value for " + key, expected.get(key), merged.getProperty(key));
+            }
+        }
+    }
+
+    private void updateSbip(String sbiFilename) {
+        SbiStats tool = new SbiStats();
+        tool.parseArguments(new String[]{"-i", sbiFilename, "--update-sbip"}, "SbiStats", tool.createArguments());
+        tool.execute();
+    }
+
+    private SbiStatistics statistics(int numThreads) throws IOException {
+        return statistics(DIR + "input.sbi", numThreads);
+    }
+
+    private SbiStatistics statistics(String sbiFilename, int numThreads) throws IOException {
+        SbiStats tool = new SbiStats();
+        tool.parseArguments(new String[]{"-i", sbiFilename, "--threads", Integer.toString(numThreads)},
+                "SbiStats", tool.createArguments());
+        return tool.computeStatistics();
+    }
+}
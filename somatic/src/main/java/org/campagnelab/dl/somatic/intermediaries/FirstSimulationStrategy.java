@@ -1,12 +1,9 @@
 package org.campagnelab.dl.somatic.intermediaries;
 
 import it.unimi.dsi.fastutil.ints.IntArrayList;
-import it.unimi.dsi.fastutil.objects.ObjectArrayList;
 import it.unimi.dsi.util.XorShift1024StarRandom;
 import org.campagnelab.dl.somatic.tools.Mutate;
-import org.campagnelab.dl.somatic.utils.ProtoPredictor;
 import org.campagnelab.dl.varanalysis.protobuf.BaseInformationRecords;
-import org.campagnelab.goby.predictions.ProtoHelper;
 
 import java.util.Collections;
 import java.util.List;
@@ -181,14 +178,14 @@ public class FirstSimulationStrategy implements SimulationStrategy {
         baseBuild.setMutated(makeSomatic);
         int numSamples = record.getSamplesCount();
         for (int i = 0; i < numSamples - 1; i++) {
-            baseBuild.setSamples(i, record.getSamples(i).toBuilder().setIsTumor(false));
+            baseBuild.getSamplesBuilder(i).setIsTumor(false);
         }
-        baseBuild.setSamples(numSamples - 1, record.getSamples(numSamples - 1).toBuilder().setIsTumor(true));
+        // the somatic sample is changed in place in the record builder, and built once, with the record:
+        BaseInformationRecords.SampleInfo.Builder somatic = baseBuild.getSamplesBuilder(numSamples - 1).setIsTumor(true);
         if (!makeSomatic) {
             // don't change counts if we are not to make the second sample somatic.
             return baseBuild.build();
         }
-        BaseInformationRecords.SampleInfo somatic = baseBuild.getSamples(numSamples - 1);
         int numGenos = somatic.getCountsList().size();
         int[] forward = new int[numGenos];
         int[] backward = new int[numGenos];
@@ -246,196 +243,38 @@ public class FirstSimulationStrategy implements SimulationStrategy {
                 germlineCount++;
             }
         }
-        //write to respective builders and return rebuild
-        BaseInformationRecords.SampleInfo.Builder somaticBuild = somatic.toBuilder();
-        BaseInformationRecords.CountInfo.Builder sourceBuild = somaticBuild.getCounts(oldBase).toBuilder();
-        BaseInformationRecords.CountInfo.Builder destBuild = somaticBuild.getCounts(newBase).toBuilder();
-
-
-        {
-            //forward Quality
-            List<BaseInformationRecords.NumberWithFrequency> forwardQualitySource = modifiable(somaticBuild.getCounts(oldBase).getQualityScoresForwardStrandList());
-            List<BaseInformationRecords.NumberWithFrequency> forwardQualityDest = modifiable(somaticBuild.getCounts(newBase).getQualityScoresForwardStrandList());
-            mutateNumWithFreqLists(fMutCount, forwardQualitySource, forwardQualityDest);
-            sourceBuild.clearQualityScoresForwardStrand();
-            destBuild.clearQualityScoresForwardStrand();
-            sourceBuild.addAllQualityScoresForwardStrand(forwardQualitySource);
-            destBuild.addAllQualityScoresForwardStrand(forwardQualityDest);
+        BaseInformationRecords.CountInfo source = somatic.getCounts(oldBase);
+
+        // The per-read observations of the source genotype used to be shuffled to move those of the mutated reads
+        // to the new base. The moved observations were never copied to the mutated record, but the shuffles drew
+        // from the simulation random generator, so the same draws are still made, in this order, to keep simulated
+        // datasets reproducible.
+        shuffleObservations(source.getQualityScoresForwardStrandList());
+        shuffleObservations(source.getQualityScoresReverseStrandList());
+        shuffleObservations(source.getReadIndicesForwardStrandList());
+        shuffleObservations(source.getReadIndicesReverseStrandList());
+        shuffleObservations(source.getReadMappingQualityForwardStrandList());
+        shuffleObservations(source.getReadMappingQualityReverseStrandList());
+        shuffleObservations(source.getNumVariationsInReadsList());
+        shuffleObservations(source.getTargetAlignedLengthsList());
+        // query aligned lengths have always been simulated from the target aligned lengths:
+        shuffleObservations(source.getTargetAlignedLengthsList());
+        shuffleObservations(source.getDistancesToReadVariationsForwardStrandList());
+        shuffleObservations(source.getDistancesToReadVariationsReverseStrandList());
+        shuffleObservations(source.getPairFlagsList());
+        shuffleObservations(source.getQueryPositionsList());
+        shuffleObservations(source.getInsertSizesList());
+
+        // only the counts of the old and new bases change:
+        for (int base : new int[]{oldBase, newBase}) {
+            somatic.getCountsBuilder(base)
+                    .setGenotypeCountForwardStrand(forward[base])
+                    .setGenotypeCountReverseStrand(backward[base]);
         }
+        String mutatedAllele = somatic.getCounts(newBase).getToSequence();
+        baseBuild.setMutatedBase(mutatedAllele);
 
-
-        {
-            //reverse Quality
-            List<BaseInformationRecords.NumberWithFrequency> reverseQualitySource = modifiable(somaticBuild.getCounts(oldBase).getQualityScoresReverseStrandList());
-            List<BaseInformationRecords.NumberWithFrequency> reverseQualityDest = modifiable(somaticBuild.getCounts(newBase).getQualityScoresReverseStrandList());
-            mutateNumWithFreqLists(bMutCount, reverseQualitySource, reverseQualityDest);
-            sourceBuild.clearQualityScoresReverseStrand();
-            destBuild.clearQualityScoresReverseStrand();
-            sourceBuild.addAllQualityScoresReverseStrand(reverseQualitySource);
-            destBuild.addAllQualityScoresReverseStrand(reverseQualityDest);
-        }
-
-        {
-
-            //forward readIndices
-            List<BaseInformationRecords.NumberWithFrequency> forwardReadIndicesSource = modifiable(somaticBuild.getCounts(oldBase).getReadIndicesForwardStrandList());
-            List<BaseInformationRecords.NumberWithFrequency> forwardReadIndicesDest = modifiable(somaticBuild.getCounts(newBase).getReadIndicesForwardStrandList());
-            mutateNumWithFreqLists(fMutCount, forwardReadIndicesSource, forwardReadIndicesDest);
-            sourceBuild.clearReadIndicesForwardStrand();
-            destBuild.clearReadIndicesForwardStrand();
-            sourceBuild.addAllReadIndicesForwardStrand(forwardReadIndicesSource);
-            destBuild.addAllReadIndicesForwardStrand(forwardReadIndicesDest);
-
-        }
-
-        {
-            //reverse readIndices
-            List<BaseInformationRecords.NumberWithFrequency> reverseReadIndicesSource = modifiable(somaticBuild.getCounts(oldBase).getReadIndicesReverseStrandList());
-            List<BaseInformationRecords.NumberWithFrequency> reverseReadIndicesDest = modifiable(somaticBuild.getCounts(newBase).getReadIndicesReverseStrandList());
-            mutateNumWithFreqLists(bMutCount, reverseReadIndicesSource, reverseReadIndicesDest);
-            sourceBuild.clearReadIndicesReverseStrand();
-            destBuild.clearReadIndicesReverseStrand();
-            sourceBuild.addAllReadIndicesReverseStrand(reverseReadIndicesSource);
-            destBuild.addAllReadIndicesReverseStrand(reverseReadIndicesDest);
-        }
-
-
-        {
-            //forward mapping quality
-            List<BaseInformationRecords.NumberWithFrequency> forwardMQualitySource = modifiable(somaticBuild.getCounts(oldBase).getReadMappingQualityForwardStrandList());
-            List<BaseInformationRecords.NumberWithFrequency> forwardMQualityDest = modifiable(somaticBuild.getCounts(newBase).getReadMappingQualityForwardStrandList());
-            mutateNumWithFreqLists(fMutCount, forwardMQualitySource, forwardMQualityDest);
-            sourceBuild.clearReadMappingQualityForwardStrand();
-            destBuild.clearReadMappingQualityForwardStrand();
-            sourceBuild.addAllReadMappingQualityForwardStrand(forwardMQualitySource);
-            destBuild.addAllReadMappingQualityForwardStrand(forwardMQualityDest);
-        }
-
-
-        {
-            //reverse mapping quality
-            List<BaseInformationRecords.NumberWithFrequency> reverseMQualitySource = modifiable(somaticBuild.getCounts(oldBase).getReadMappingQualityReverseStrandList());
-            List<BaseInformationRecords.NumberWithFrequency> reverseMQualityDest = modifiable(somaticBuild.getCounts(newBase).getReadMappingQualityReverseStrandList());
-            mutateNumWithFreqLists(bMutCount, reverseMQualitySource, reverseMQualityDest);
-            sourceBuild.clearReadMappingQualityReverseStrand();
-            destBuild.clearReadMappingQualityReverseStrand();
-            sourceBuild.addAllReadMappingQualityReverseStrand(reverseMQualitySource);
-            destBuild.addAllReadMappingQualityReverseStrand(reverseMQualityDest);
-        }
-
-
-        {
-            //numvariationinread read
-            List<BaseInformationRecords.NumberWithFrequency> numVariationSource = modifiable(somaticBuild.getCounts(oldBase).getNumVariationsInReadsList());
-            List<BaseInformationRecords.NumberWithFrequency> numVariationDest =modifiable( somaticBuild.getCounts(newBase).getNumVariationsInReadsList());
-            mutateNumWithFreqLists(fMutCount + bMutCount, numVariationSource, numVariationDest);
-            sourceBuild.clearNumVariationsInReads();
-            destBuild.clearNumVariationsInReads();
-            sourceBuild.addAllNumVariationsInReads(numVariationSource);
-            destBuild.addAllNumVariationsInReads(numVariationSource);
-        }
-
-
-        {
-            //target aligned length
-            List<BaseInformationRecords.NumberWithFrequency> targetLengthsSource = modifiable(somaticBuild.getCounts(oldBase).getTargetAlignedLengthsList());
-            List<BaseInformationRecords.NumberWithFrequency> targetLengthsDest = modifiable(somaticBuild.getCounts(newBase).getTargetAlignedLengthsList());
-            mutateNumWithFreqLists(fMutCount + bMutCount, targetLengthsSource, targetLengthsDest);
-            sourceBuild.clearTargetAlignedLengths();
-            destBuild.clearTargetAlignedLengths();
-            sourceBuild.addAllTargetAlignedLengths(targetLengthsSource);
-            destBuild.addAllTargetAlignedLengths(targetLengthsDest);
-        }
-
-        {
-            //query aligned length
-            List<BaseInformationRecords.NumberWithFrequency> queryLengthsSource = modifiable(somaticBuild.getCounts(oldBase).getTargetAlignedLengthsList());
-            List<BaseInformationRecords.NumberWithFrequency> queryLengthsDest = modifiable(somaticBuild.getCounts(newBase).getTargetAlignedLengthsList());
-            mutateNumWithFreqLists(fMutCount + bMutCount, queryLengthsSource, queryLengthsDest);
-            sourceBuild.clearQueryAlignedLengths();
-            destBuild.clearQueryAlignedLengths();
-            sourceBuild.addAllQueryAlignedLengths(queryLengthsSource);
-            destBuild.addAllQueryAlignedLengths(queryLengthsDest);
-        }
-
-
-        {
-            //distances to forward read vars
-            List<BaseInformationRecords.NumberWithFrequency> distToVarsForwardSource = modifiable(somaticBuild.getCounts(oldBase).getDistancesToReadVariationsForwardStrandList());
-            List<BaseInformationRecords.NumberWithFrequency> distToVarsForwardDest = modifiable(somaticBuild.getCounts(newBase).getDistancesToReadVariationsForwardStrandList());
-            mutateNumWithFreqLists(fMutCount, distToVarsForwardSource, distToVarsForwardDest);
-            sourceBuild.clearDistancesToReadVariationsForwardStrand();
-            destBuild.clearDistancesToReadVariationsForwardStrand();
-            sourceBuild.addAllDistancesToReadVariationsForwardStrand(distToVarsForwardSource);
-            destBuild.addAllDistancesToReadVariationsForwardStrand(distToVarsForwardDest);
-        }
-
-
-        {
-            //distances to reverse read vars Reverse
-            List<BaseInformationRecords.NumberWithFrequency> distToVarsReverseSource = modifiable(somaticBuild.getCounts(oldBase).getDistancesToReadVariationsReverseStrandList());
-            List<BaseInformationRecords.NumberWithFrequency> distToVarsReverseDest = modifiable(somaticBuild.getCounts(newBase).getDistancesToReadVariationsReverseStrandList());
-            mutateNumWithFreqLists(bMutCount, distToVarsReverseSource, distToVarsReverseDest);
-            sourceBuild.clearDistancesToReadVariationsReverseStrand();
-            destBuild.clearDistancesToReadVariationsReverseStrand();
-            sourceBuild.addAllDistancesToReadVariationsReverseStrand(distToVarsReverseSource);
-            destBuild.addAllDistancesToReadVariationsReverseStrand(distToVarsReverseDest);
-        }
-
-
-        {
-            //pairFlags
-            List<BaseInformationRecords.NumberWithFrequency> pairFlagsSource = modifiable(somaticBuild.getCounts(oldBase).getPairFlagsList());
-            List<BaseInformationRecords.NumberWithFrequency> pairFlagsDest =modifiable(somaticBuild.getCounts(newBase).getPairFlagsList());
-            mutateNumWithFreqLists(fMutCount + bMutCount, pairFlagsSource, pairFlagsDest);
-            sourceBuild.clearPairFlags();
-            destBuild.clearPairFlags();
-            sourceBuild.addAllPairFlags(pairFlagsSource);
-            destBuild.addAllPairFlags(pairFlagsDest);
-
-        }
-
-        {
-            //query positions
-            List<BaseInformationRecords.NumberWithFrequency> queryPositionsSource = modifiable(somaticBuild.getCounts(oldBase).getQueryPositionsList());
-            List<BaseInformationRecords.NumberWithFrequency> queryPositionsDest =modifiable( somaticBuild.getCounts(newBase).getQueryPositionsList());
-            mutateNumWithFreqLists(fMutCount + bMutCount, queryPositionsSource, queryPositionsDest);
-            sourceBuild.clearQueryPositions();
-            destBuild.clearQueryPositions();
-            sourceBuild.addAllQueryPositions(queryPositionsSource);
-            destBuild.addAllQueryPositions(queryPositionsDest);
-        }
-
-        {
-            //insert sizes
-            List<BaseInformationRecords.NumberWithFrequency> insertSizesSource = modifiable(somaticBuild.getCounts(oldBase).getInsertSizesList());
-            List<BaseInformationRecords.NumberWithFrequency> insertSizesDest = modifiable(somaticBuild.getCounts(newBase).getInsertSizesList());
-            mutateNumWithFreqLists(fMutCount + bMutCount, insertSizesSource, insertSizesDest);
-            sourceBuild.clearInsertSizes();
-            destBuild.clearInsertSizes();
-            sourceBuild.addAllInsertSizes(insertSizesSource);
-            destBuild.addAllInsertSizes(insertSizesDest);
-        }
-
-
-        String mutatedAllele = "?";
-
-
-        i = 0;
-        for (BaseInformationRecords.CountInfo count : somaticBuild.getCountsList()) {
-            if (i == newBase) {
-                mutatedAllele = count.getToSequence();
-                baseBuild.setMutatedBase(count.getToSequence());
-            }
-            BaseInformationRecords.CountInfo.Builder countBuild = count.toBuilder();
-            countBuild.setGenotypeCountForwardStrand(forward[i]);
-            countBuild.setGenotypeCountReverseStrand(backward[i]);
-            somaticBuild.setCounts(i, countBuild);
-            i++;
-        }
-
-        somaticBuild.setFormattedCounts(Mutate.regenerateFormattedCounts(somaticBuild, mutatedAllele));
-        baseBuild.setSamples(numSamples - 1, somaticBuild);
+        somatic.setFormattedCounts(Mutate.regenerateFormattedCounts(somatic, mutatedAllele));
         baseBuild.setFrequencyOfMutation((float) frequency);
         //   System.out.printf("delta=%f somaticFreq=%f oldCount=%d%n", delta, frequency, sumCount);
         // String newBaseString = newBase<STRING.length? STRING[newBase]:"N";
@@ -444,45 +283,26 @@ public class FirstSimulationStrategy implements SimulationStrategy {
         return baseBuild.build();
     }
 
-    private List<BaseInformationRecords.NumberWithFrequency> modifiable(List<BaseInformationRecords.NumberWithFrequency> qualityScoresForwardStrandList) {
-        ObjectArrayList list = new ObjectArrayList();
-        list.addAll(qualityScoresForwardStrandList);
-        return list;
-    }
-
     @Override
     public void setSeed(long seed) {
         rand = new XorShift1024StarRandom(seed);
     }
 
 
-    private void mutateNumWithFreqLists(int fMutCount, List<BaseInformationRecords.NumberWithFrequency> source, List<BaseInformationRecords.NumberWithFrequency> dest) {
-        List<Integer> from = new ObjectArrayList<Integer>();
-        List<Integer> to = new ObjectArrayList<Integer>();
-        if (source.size() > 0) {
-
-            //forward strand
-            from.addAll(ProtoPredictor.expandFreq(source));
-            to.addAll(ProtoPredictor.expandFreq(dest));
-            mutateIntegerLists(fMutCount, from, to);
-
+    /**
+     * Draw from the random generator as Collections.shuffle would to shuffle the expanded list of observations. The
+     * shuffled observations are not used, only the draws are kept.
+     *
+     * @param source observations of the source genotype.
+     */
+    private void shuffleObservations(List<BaseInformationRecords.NumberWithFrequency> source) {
+        int size = 0;
+        for (BaseInformationRecords.NumberWithFrequency freq : source) {
+            size += freq.getFrequency();
+        }
+        for (int i = size; i > 1; i--) {
+            rand.nextInt(i);
         }
-        source.clear();
-        dest.clear();
-        source.addAll(ProtoHelper.compressFreq(from));
-        dest.addAll(ProtoHelper.compressFreq(to));
-
-    }
-
-
-    private void mutateIntegerLists(int fMutCount, List<Integer> source, List<Integer> dest) {
-        Collections.shuffle(source, rand);
-        int bound = Math.min(fMutCount, source.size());
-        dest.addAll(source.subList(0, bound));
-        List<Integer> tmp = new IntArrayList(source.subList(bound, source.size()));
-        source.clear();
-        source.addAll(tmp);
-
     }
 
 
@@ -21,4 +21,7 @@ public class QuickConcatArguments implements ToolArguments {
 
     @Parameter(names={"-f","--force"}, description = "Force override the output if it already exists.")
     public    boolean force=false;
+
+    @Parameter(names = {"--threads"}, description = "Number of input files copied at the same time, each at its own offset of the output.")
+    public int numThreads = 4;
 }
@@ -17,6 +17,9 @@ public class SomaticTrainingArguments extends TrainingArguments {
     @Parameter(names = "--early-stopping-measure", description = "Name of the measure to monitor to stop early stopping. One of score or AUC.")
     public String earlyStoppingMeasureName="AUC";
 
+    @Parameter(names = "--streaming-validation", description = "Estimate the AUC over the whole validation set, reading it again in prefetched minibatches for each estimate instead of caching --num-validation records in memory.")
+    public boolean streamingValidation = false;
+
     @Override
     protected String defaultArchitectureClassname() {
         return SixDenseLayersNarrower2WithFrequencyAndBase.class.getCanonicalName();
@@ -94,7 +94,9 @@ public class TrainSomaticModel extends SomaticTrainer {
         int notImproved = 0;
         int miniBatchesPerEpoch = async.totalExamples() / args().miniBatchSize;
         System.out.printf("Training with %d minibatches per epoch%n", miniBatchesPerEpoch);
-        perf = new MeasurePerformance(args().numValidation, validationDatasetFilename, args().miniBatchSize, featureCalculator, labelMapper);
+        perf = args().streamingValidation ?
+                new MeasurePerformance(validationDatasetFilename, args().miniBatchSize, featureCalculator, labelMapper) :
+                new MeasurePerformance(args().numValidation, validationDatasetFilename, args().miniBatchSize, featureCalculator, labelMapper);
         System.out.println("Finished loading validation records.");
         System.out.flush();
         double score = -1;
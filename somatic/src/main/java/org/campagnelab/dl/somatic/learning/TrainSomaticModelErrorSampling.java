@@ -6,7 +6,6 @@ import org.campagnelab.dl.framework.models.ModelSaver;
 import org.campagnelab.dl.somatic.learning.iterators.NamedDataSetIterator;
 import org.campagnelab.dl.somatic.learning.iterators.SamplingIterator;
 import org.campagnelab.dl.somatic.learning.performance.MeasurePerformance;
-import org.campagnelab.dl.somatic.util.ErrorRecord;
 import org.deeplearning4j.earlystopping.EarlyStoppingResult;
 import org.deeplearning4j.nn.conf.MultiLayerConfiguration;
 import org.deeplearning4j.nn.multilayer.MultiLayerNetwork;
@@ -90,7 +89,9 @@ public class TrainSomaticModelErrorSampling extends SomaticTrainer {
         double bestAUC = 0.5;
         double finalAUC = 0.5;
         long numExamplesUsed = 0;
-        perf= new MeasurePerformance(args().numValidation, validationDatasetFilename, miniBatchNumber, featureCalculator, labelMapper);
+        perf = args().streamingValidation ?
+                new MeasurePerformance(validationDatasetFilename, miniBatchNumber, featureCalculator, labelMapper) :
+                new MeasurePerformance(args().numValidation, validationDatasetFilename, miniBatchNumber, featureCalculator, labelMapper);
 int epoch;
         for (epoch = 0; epoch < args().maxEpochs; epoch++) {
             ProgressLogger pg = new ProgressLogger(LOG);
@@ -114,7 +115,7 @@ int epoch;
                 net.fit(ds);
 
                 INDArray predictedLabels = net.output(ds.getFeatures(), false);
-                updateProbabilities(predictedLabels, ds.getLabels());
+                updateLosses(predictedLabels, ds.getLabels());
                 numExamplesUsed += ds.numExamples();
                 pg.update();
                 iter++;
@@ -124,7 +125,6 @@ int epoch;
             }
          //   System.err.println("Num Examples Used: "+numExamplesUsed);
 
-            samplingIterator.updateStatistics();
             double auc = estimateTestSetPerf(epoch, iter);
             performanceLogger.log("epochs", numExamplesUsed, epoch, Double.NaN, auc);
             if (auc > bestAUC) {
@@ -157,24 +157,16 @@ int epoch;
     }
 
     /**
-     * Update the iterator with the probability that each record of the minibatch should be reused.
+     * Update the iterator with the loss of each record of the minibatch, so that records are drawn again in
+     * proportion to their loss.
      *
      * @param predictedLabels
      * @param labels
      */
-    private void updateProbabilities(INDArray predictedLabels, INDArray labels) {
-        for (int exampleIndex = 0; exampleIndex < predictedLabels.size(0); exampleIndex++) {
-
-            final float pOfWrongLabel = ErrorRecord.calculateWrongness(exampleIndex, predictedLabels, labels);
-            final boolean wrongPrediction = ErrorRecord.isWrongPrediction(exampleIndex, predictedLabels, labels);
-            float p = wrongPrediction ? pOfWrongLabel :
-                    1-pOfWrongLabel;
-            /*if (!wrongPrediction) {
-                p=0.05f;
-            }*/
-//            final float previousP = samplingIterator.getProbability(exampleIndex);
-            samplingIterator.setSamplingProbability(wrongPrediction, exampleIndex, (float) p);
-
+    private void updateLosses(INDArray predictedLabels, INDArray labels) {
+        float[] losses = SamplingIterator.crossEntropy(predictedLabels, labels);
+        for (int exampleIndex = 0; exampleIndex < losses.length; exampleIndex++) {
+            samplingIterator.setLoss(exampleIndex, losses[exampleIndex]);
         }
     }
 
@@ -201,10 +193,8 @@ int epoch;
        // validationDatasetFilename = "/data/no-threshold/validation-2/m-r-MHFC-63-CTL_B_NK_VN.parquet";
         if (validationDatasetFilename == null) return 0;
         double auc = perf.estimateAUC( net);
-        //   System.out.printf("Average sampling P=%f%n", samplingIterator.getAverageSamplingP());
-
-        System.out.printf("Epoch %d Iteration %d AUC=%f Average sampling P=%f %%skipped=%f %n ", epoch, iter, auc, samplingIterator.getAverageSamplingP(),
-                samplingIterator.percentSkipped());
+        System.out.printf("Epoch %d Iteration %d AUC=%f Average loss=%f %n ", epoch, iter, auc,
+                samplingIterator.getAverageLoss());
 
         return auc;
     }
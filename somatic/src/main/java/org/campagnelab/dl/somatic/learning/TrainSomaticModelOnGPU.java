@@ -90,7 +90,9 @@ public class TrainSomaticModelOnGPU extends SomaticTrainer {
         if (!(new File(validationDatasetFilename).exists())) {
             throw new IOException("Validation file not found! " + validationDatasetFilename);
         }
-        perf = new MeasurePerformance(args().numValidation, validationDatasetFilename, args().miniBatchSize, featureCalculator, labelMapper);
+        perf = args().streamingValidation ?
+                new MeasurePerformance(validationDatasetFilename, args().miniBatchSize, featureCalculator, labelMapper) :
+                new MeasurePerformance(args().numValidation, validationDatasetFilename, args().miniBatchSize, featureCalculator, labelMapper);
 
         ParallelWrapper wrapper = new ParallelWrapper.Builder(net)
                 .prefetchBuffer(args().miniBatchSize)
@@ -1,6 +1,6 @@
 package org.campagnelab.dl.somatic.learning.calibrate;
 
-import it.unimi.dsi.fastutil.floats.FloatArrayList;
+import it.unimi.dsi.fastutil.objects.ObjectArrayList;
 import it.unimi.dsi.logging.ProgressLogger;
 import org.campagnelab.dl.framework.architecture.nets.NeuralNetAssembler;
 import org.campagnelab.dl.framework.mappers.FeatureMapper;
@@ -10,7 +10,6 @@ import org.campagnelab.dl.somatic.learning.architecture.CalibrationAssembler;
 import org.campagnelab.dl.somatic.storage.RecordReader;
 import org.campagnelab.dl.somatic.utils.ProtoPredictor;
 import org.campagnelab.dl.varanalysis.protobuf.BaseInformationRecords;
-import org.deeplearning4j.nn.api.Layer;
 import org.deeplearning4j.nn.conf.LearningRatePolicy;
 import org.deeplearning4j.nn.conf.MultiLayerConfiguration;
 import org.deeplearning4j.nn.multilayer.MultiLayerNetwork;
@@ -23,13 +22,20 @@ import org.nd4j.linalg.lossfunctions.LossFunctions;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.io.File;
 import java.io.IOException;
+import java.util.Iterator;
+import java.util.List;
 
 /**
  * Created by fac2003 on 7/17/16.
  */
 public class CalibrateModelOutput {
     private static final int MIN_ITERATION_BETWEEN_BEST_MODEL = 10000;
+    /**
+     * Number of records whose activations are computed with one forward pass of the base model.
+     */
+    private static final int ACTIVATION_BATCH_SIZE = 1024;
     static private Logger LOG = LoggerFactory.getLogger(CalibrateModelOutput.class);
     private int seed = 232323;
     private double learningRate = 0.1;
@@ -95,140 +101,133 @@ public class CalibrateModelOutput {
         calibrationModel.init();
         calibrationModel.setListeners(new ScoreIterationListener(100));
 
-        int iter = 0;
-        int lastIter = 0;
-        DataSet miniBatch = null;
-        int currentMiniBatchSize = 0;
         ModelSaver saver = new ModelSaver(modelDirectory);
         double score = Float.MAX_VALUE;
         double bestScore = Float.MAX_VALUE - 10;
-        for (int epoch = 0; epoch < numEpoch; epoch++) {
-            ProgressLogger pgReadWrite = new ProgressLogger(LOG);
-            pgReadWrite.itemsName = "example";
-            pgReadWrite.expectedUpdates = reader.getTotalRecords();
-
-            pgReadWrite.start();
-            for (BaseInformationRecords.BaseInformation record : reader) {
-
-                if (currentMiniBatchSize == 0) {
-
-                    // create a new empty mini-batch. Done at the beginning and every time we are done with a
-                    // completed mini-batch:
-                    INDArray inputs = Nd4j.zeros(miniBatchSize, featureNumber);
-                    INDArray labels = Nd4j.zeros(miniBatchSize, 1);
-                    miniBatch = new DataSet(inputs, labels);
-                }
-                currentMiniBatchSize = accumulateMiniBatch(model, miniBatchSize, miniBatch, currentMiniBatchSize, modelFeatureMapper, record);
-                if (currentMiniBatchSize == miniBatchSize) {
+        // the base model activations are computed once, and read from the cache for each epoch:
+        File cacheFile = new File(modelDirectory, modelPrefix + "-calibration-features.cache");
+        CalibrationFeatureCache cache = new CalibrationFeatureCache(cacheFile, featureNumber, miniBatchSize);
+        try {
+            cacheActivations(model, modelFeatureMapper, reader, featureNumber, cache);
+            reader.close();
+            for (int epoch = 0; epoch < numEpoch; epoch++) {
+                ProgressLogger pgReadWrite = new ProgressLogger(LOG);
+                pgReadWrite.itemsName = "mini-batch";
+                pgReadWrite.expectedUpdates = cache.getNumMinibatches();
+
+                pgReadWrite.start();
+                Iterator<DataSet> minibatches = cache.minibatches();
+                while (minibatches.hasNext()) {
                     // miniBatch ready, let's fit the model:
-                    calibrationModel.fit(miniBatch);
+                    calibrationModel.fit(minibatches.next());
                     score = calibrationModel.score();
-                    currentMiniBatchSize = 0;
                     pgReadWrite.update();
-                } else {
-                    pgReadWrite.lightUpdate();
                 }
-                iter++;
+                pgReadWrite.stop();
+                if (score < bestScore) {
+                    bestScore = score;
+                    saver.saveModel(calibrationModel, modelPrefix + "Calibrated", score);
+                    System.out.println("Saving best score model.. score=" + bestScore);
+                }
             }
-            pgReadWrite.stop();
-            if (score < bestScore) {
-                bestScore = score;
-                saver.saveModel(calibrationModel, modelPrefix + "Calibrated", score);
-                System.out.println("Saving best score model.. score=" + bestScore);
-                lastIter = iter;
+        } finally {
+            cache.close();
+            cacheFile.delete();
+        }
+    }
 
+    /**
+     * Compute the activations of the base model for the records predicted as mutated, in batches of
+     * ACTIVATION_BATCH_SIZE records, and write balanced minibatches of activations to the cache. Records left over
+     * after the last complete minibatch are not used.
+     */
+    private void cacheActivations(MultiLayerNetwork model, FeatureMapper modelFeatureMapper, RecordReader reader,
+                                  int featureNumber, CalibrationFeatureCache cache) throws IOException {
+        ProgressLogger pgRead = new ProgressLogger(LOG);
+        pgRead.itemsName = "example";
+        pgRead.expectedUpdates = reader.getTotalRecords();
+        pgRead.start();
+        float[] labels = new float[miniBatchSize];
+        float[] features = new float[miniBatchSize * featureNumber];
+        int currentMiniBatchSize = 0;
+        List<BaseInformationRecords.BaseInformation> batch = new ObjectArrayList<>(ACTIVATION_BATCH_SIZE);
+        Iterator<BaseInformationRecords.BaseInformation> records = reader.iterator();
+        while (records.hasNext() || !batch.isEmpty()) {
+            if (records.hasNext() && batch.size() < ACTIVATION_BATCH_SIZE) {
+                batch.add(records.next());
+                continue;
             }
-            reader.close();
-            reader = new RecordReader(calibrationDatafile);
-
+            INDArray activations = getModelInternalActivations(model, modelFeatureMapper, batch);
+            // the output layer is last: positive probability first, then negative probability.
+            int outputOffset = featureNumber - 2;
+            for (int i = 0; i < batch.size(); i++) {
+                pgRead.lightUpdate();
+                boolean isMutated = activations.getFloat(i, outputOffset + ProtoPredictor.POSITIVE_PROBABILITY_INDEX) >
+                        activations.getFloat(i, outputOffset + ProtoPredictor.NEGATIVE_PROBABILITY_INDEX);
+                // consider only errors predicting mutation (false positive predictions):
+                if (!isMutated) {
+                    continue;
+                }
+                boolean isCorrect = batch.get(i).getSamplesList().get(1).getIsTumor();
+                if (!accept(labels, currentMiniBatchSize, isCorrect)) {
+                    continue;
+                }
+                INDArray row = activations.getRow(i);
+                for (int j = 0; j < featureNumber; j++) {
+                    features[currentMiniBatchSize * featureNumber + j] = row.getFloat(j);
+                }
+                // set calibration model as 1 when the prediction was correct, 0 otherwise.
+                labels[currentMiniBatchSize++] = isCorrect ? 1 : 0;
+                if (currentMiniBatchSize == miniBatchSize) {
+                    cache.write(labels, features);
+                    currentMiniBatchSize = 0;
+                }
+            }
+            batch.clear();
         }
-        reader.close();
+        pgRead.stop();
+        cache.close();
     }
 
-    int indices[] = {0, 0};
-
     /**
-     * Construct a balanced mini-batch with representative of correct and incorrect predictions:
+     * Construct a balanced mini-batch with representative of correct and incorrect predictions: decide if a record
+     * can be added to the current minibatch.
      *
-     * @param model
-     * @param miniBatchSize
-     * @param miniBatch
-     * @param currentMiniBatchSize
-     * @param modelFeatureMapper
-     * @param record
-     * @return
+     * @param labels               labels of the records already in the minibatch.
+     * @param currentMiniBatchSize number of records already in the minibatch.
+     * @param isCorrect            whether the base model prediction for the record is correct.
+     * @return true when the record must be added to the minibatch.
      */
-    private int accumulateMiniBatch(MultiLayerNetwork model, int miniBatchSize, DataSet miniBatch, int currentMiniBatchSize,
-                                    FeatureMapper modelFeatureMapper, BaseInformationRecords.BaseInformation record) {
-        int indexOfNewRecordInMinibatch = currentMiniBatchSize;
-        ProtoPredictor predictor = new ProtoPredictor(null,model, modelFeatureMapper);
-        boolean isTumor = record.getSamplesList().get(1).getIsTumor();
-        ProtoPredictor.Prediction prediction = predictor.mutPrediction(record);
-        boolean isCorrect = prediction.isCorrect(isTumor);
-        // consider only errors predicting mutation (false positive predictions):
-        if (!prediction.isMutated()) {
-
-            return indexOfNewRecordInMinibatch;
-        }
+    private boolean accept(float[] labels, int currentMiniBatchSize, boolean isCorrect) {
         int half = miniBatchSize / 2;
-        if (isCorrect && numCorrectInMiniBatch(miniBatch, indexOfNewRecordInMinibatch) > half) {
-            return indexOfNewRecordInMinibatch;
-        }
-        if (!isCorrect && numIncorrectInMiniBatch(miniBatch, indexOfNewRecordInMinibatch) > half) {
-            return indexOfNewRecordInMinibatch;
-        }
-        // calculate the model output and use as features for the calibration model:
-        FloatArrayList floats = getModelInternalActivations(model, modelFeatureMapper, record, indexOfNewRecordInMinibatch);
-        indices[0] = indexOfNewRecordInMinibatch;
-        for (int i = 0; i < floats.size(); i++) {
-            indices[1] = i;
-            miniBatch.getFeatures().putScalar(indices, floats.getFloat(i));
+        int numLabelZero = 0;
+        for (int i = 0; i < currentMiniBatchSize; i++) {
+            numLabelZero += labels[i] == 0 ? 1 : 0;
         }
-        // run the model again to obtain the predicted label (possibility to optimize):
-        // set calibration model as 1 when the prediction was correct, 1 otherwise.
-        indices[1] = 0;
-        miniBatch.getLabels().putScalar(indices, isCorrect ? 1 : 0);
-        return ++indexOfNewRecordInMinibatch;
-    }
-
-    int[] indices2 = {0, 0};
-
-    private int numCorrectInMiniBatch(DataSet miniBatch, int maxIndex) {
-        int numCorrect = 0;
-        indices2[1] = 0;
-        for (int i = 0; i < maxIndex; i++) {
-            indices2[0] = i;
-            numCorrect += miniBatch.getLabels().getFloat(indices2) == 0 ? 1 : 0;
+        int numLabelOne = currentMiniBatchSize - numLabelZero;
+        if (isCorrect && numLabelZero > half) {
+            return false;
         }
-        return numCorrect;
+        return !(!isCorrect && numLabelOne > half);
     }
 
-    private int numIncorrectInMiniBatch(DataSet miniBatch, int maxIndex) {
-
-        int numIncorrect = 0;
-        indices2[1] = 0;
-        for (int i = 0; i < maxIndex; i++) {
-            indices2[0] = i;
-            numIncorrect += miniBatch.getLabels().getFloat(indices2) == 1 ? 1 : 0;
+    /**
+     * Compute the activations of all the layers of the model, input included, for a batch of records.
+     *
+     * @return one row per record, with the activations of each layer one after the other.
+     */
+    private INDArray getModelInternalActivations(MultiLayerNetwork model, FeatureMapper modelFeatureMapper,
+                                                 List<BaseInformationRecords.BaseInformation> batch) {
+        INDArray inputFeatures = Nd4j.zeros(batch.size(), modelFeatureMapper.numberOfFeatures());
+        for (int i = 0; i < batch.size(); i++) {
+            modelFeatureMapper.prepareToNormalize(batch.get(i), i);
+            modelFeatureMapper.mapFeatures(batch.get(i), inputFeatures, i);
         }
-        return numIncorrect;
-    }
-
-
-    private FloatArrayList getModelInternalActivations(MultiLayerNetwork model, FeatureMapper modelFeatureMapper, BaseInformationRecords.BaseInformation record, int indexOfNewRecordInMinibatch) {
-        INDArray inputFeatures = Nd4j.zeros(1, modelFeatureMapper.numberOfFeatures());
-        modelFeatureMapper.prepareToNormalize(record,0);
-        modelFeatureMapper.mapFeatures(record, inputFeatures, 0);
-
-        FloatArrayList floats = new FloatArrayList();
-        model.feedForward(inputFeatures).stream().forEach(indArray -> floats.addAll(FloatArrayList.wrap(indArray.data().asFloat())));
-        return floats;
+        List<INDArray> activations = model.feedForward(inputFeatures, false);
+        return Nd4j.hstack(activations);
     }
 
     private int getModelActivationNumber(MultiLayerNetwork model, FeatureMapper modelFeatureMapper) {
-        int numActivations = 0;
-        Layer[] layers = model.getLayers();
-
         INDArray inputFeatures = Nd4j.zeros(1, modelFeatureMapper.numberOfFeatures());
 
         int sum = model.feedForward(inputFeatures, false).stream().mapToInt(indArray ->
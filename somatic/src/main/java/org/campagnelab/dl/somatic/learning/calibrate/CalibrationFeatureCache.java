@@ -0,0 +1,131 @@
+package org.campagnelab.dl.somatic.learning.calibrate;
+
+import org.nd4j.linalg.dataset.DataSet;
+import org.nd4j.linalg.factory.Nd4j;
+
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+/**
+ * A disk cache of the minibatches used to train a calibration model. Each minibatch holds the activations of the base
+ * model for miniBatchSize records, and one label per record. The file starts with the number of features and the
+ * minibatch size, followed by the minibatches, each stored as its labels and then its features in row order, as
+ * floats.
+ */
+public class CalibrationFeatureCache implements Closeable {
+    private final File file;
+    private final int numFeatures;
+    private final int miniBatchSize;
+    private DataOutputStream output;
+    private int numMinibatches;
+
+    /**
+     * Create an empty cache, open for writing.
+     *
+     * @param file          the cache file, overwritten.
+     * @param numFeatures   number of features (activations) per record.
+     * @param miniBatchSize number of records per minibatch.
+     */
+    public CalibrationFeatureCache(File file, int numFeatures, int miniBatchSize) throws IOException {
+        this.file = file;
+        this.numFeatures = numFeatures;
+        this.miniBatchSize = miniBatchSize;
+        output = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file), 1 << 20));
+        output.writeInt(numFeatures);
+        output.writeInt(miniBatchSize);
+    }
+
+    /**
+     * Append a minibatch.
+     *
+     * @param labels   miniBatchSize labels.
+     * @param features miniBatchSize * numFeatures features, one record after the other.
+     */
+    public void write(float[] labels, float[] features) throws IOException {
+        assert labels.length == miniBatchSize && features.length == miniBatchSize * numFeatures :
+                "minibatch must be complete";
+        for (float label : labels) {
+            output.writeFloat(label);
+        }
+        for (float feature : features) {
+            output.writeFloat(feature);
+        }
+        numMinibatches++;
+    }
+
+    public int getNumMinibatches() {
+        return numMinibatches;
+    }
+
+    /**
+     * Finish writing the cache. The minibatches can then be read with {@link #minibatches()}.
+     */
+    @Override
+    public void close() throws IOException {
+        if (output != null) {
+            output.close();
+            output = null;
+        }
+    }
+
+    /**
+     * Return an iterator over the minibatches of the cache, in the order they were written. The iterator reads one
+     * minibatch at a time and closes the file once all minibatches were read.
+     */
+    public Iterator<DataSet> minibatches() throws IOException {
+        close();
+        final FileChannel channel = new FileInputStream(file).getChannel();
+        // skip the header:
+        channel.position(8);
+        final ByteBuffer buffer = ByteBuffer.allocate(4 * miniBatchSize * (numFeatures + 1));
+        final float[] labels = new float[miniBatchSize];
+        final float[] features = new float[miniBatchSize * numFeatures];
+        return new Iterator<DataSet>() {
+            int index;
+
+            @Override
+            public boolean hasNext() {
+                if (index < numMinibatches) {
+                    return true;
+                }
+                try {
+                    channel.close();
+                } catch (IOException e) {
+                    throw new RuntimeException("Unable to close calibration cache " + file, e);
+                }
+                return false;
+            }
+
+            @Override
+            public DataSet next() {
+                if (!hasNext()) {
+                    throw new NoSuchElementException();
+                }
+                buffer.clear();
+                try {
+                    while (buffer.hasRemaining()) {
+                        if (channel.read(buffer) == -1) {
+                            throw new IOException("Unexpected end of file");
+                        }
+                    }
+                } catch (IOException e) {
+                    throw new RuntimeException("Unable to read calibration cache " + file, e);
+                }
+                buffer.flip();
+                buffer.asFloatBuffer().get(labels).get(features);
+                index++;
+                return new DataSet(Nd4j.create(features, new int[]{miniBatchSize, numFeatures}),
+                        Nd4j.create(labels, new int[]{miniBatchSize, 1}));
+            }
+        };
+    }
+}
@@ -3,6 +3,7 @@ package org.campagnelab.dl.somatic.learning.domains;
 import org.apache.commons.compress.utils.IOUtils;
 import org.campagnelab.dl.framework.architecture.graphs.ComputationGraphAssembler;
 import org.campagnelab.dl.framework.domains.DomainDescriptor;
+import org.campagnelab.dl.framework.domains.RecordCountHelper;
 import org.campagnelab.dl.framework.domains.prediction.PredictionInterpreter;
 import org.campagnelab.dl.framework.mappers.ConfigurableFeatureMapper;
 import org.campagnelab.dl.framework.mappers.FeatureMapper;
@@ -350,6 +351,10 @@ public class SomaticMutationDomainDescriptor extends DomainDescriptor<BaseInform
 
     @Override
     public long getNumRecords(String[] recordFiles) {
+        long numRecords = getNumRecordsFast(recordFiles);
+        if (numRecords != RecordCountHelper.UNKNOWN) {
+            return numRecords;
+        }
         BaseInformationConcatIterator it = null;
         try {
             List<BaseInformationIterator> list = Arrays.asList(recordFiles).stream().map(filename -> {
@@ -1,204 +1,114 @@
 package org.campagnelab.dl.somatic.learning.iterators;
 
-import it.unimi.dsi.fastutil.ints.Int2IntArrayMap;
-import it.unimi.dsi.fastutil.ints.IntArrayList;
-import it.unimi.dsi.util.XoRoShiRo128PlusRandom;
+import org.campagnelab.dl.framework.iterators.ImportanceSamplingIterator;
+import org.campagnelab.dl.framework.iterators.cache.MappedFeaturesCache;
 import org.nd4j.linalg.api.ndarray.INDArray;
 import org.nd4j.linalg.dataset.DataSet;
 import org.nd4j.linalg.dataset.api.DataSetPreProcessor;
-import org.nd4j.linalg.factory.Nd4j;
+import org.nd4j.linalg.dataset.api.MultiDataSet;
 
-import java.io.Serializable;
-import java.util.Arrays;
-import java.util.Iterator;
+import java.io.File;
+import java.io.IOException;
 import java.util.List;
-import java.util.function.Consumer;
 
 /**
- * An iterator that samples input records according to some probability.
+ * An iterator that samples input records in proportion to their loss in the last forward pass. Minibatches are drawn
+ * by an {@link ImportanceSamplingIterator} from a .cf cache of the delegate's minibatches. Only the examples drawn are
+ * read from the cache. Call {@link #setLoss(int, float)} for each example of a minibatch after the model scored it.
  * Created by fac2003 on 7/21/16.
  */
-public class SamplingIterator implements Iterator<DataSet>, NamedDataSetIterator, Serializable {
-    private final float[] samplingProbabilities;
-    private int miniBatchSize;
-    private float averageProbability;
-    private NamedDataSetIterator delegate;
+public class SamplingIterator implements NamedDataSetIterator {
     /**
-     * Number of examples in the delegate iterator (before sampling).
+     * Fraction of the examples of each minibatch drawn uniformly, whatever their loss.
      */
-    private int numExamples;
-    /**
-     * The offset in samplingProbabilities of the first record of the last minibatch returned by next(int)
-     */
-    private int offsetStartOfMinibatch;
+    private static final double UNIFORM_FRACTION = 0.1;
+    private final NamedDataSetIterator delegate;
+    private final ImportanceSamplingIterator sampler;
+    private DataSetPreProcessor preProcessor;
+    private int cursor;
+
     /**
-     * The size of the last minibatch returned by next().
+     * Sample from the minibatches of the delegate. They are written once to a temporary .cf cache, deleted on exit.
      */
-    private int lastMinibatchSize;
-    private int delegateBatchSize;
-    private int numReturned;
-    private int numSkipped;
-    private int currentRecordIndex;
-
     public SamplingIterator(NamedDataSetIterator delegate, long seed) {
-
-        this.delegate = delegate;
-        this.randomGenerator = new XoRoShiRo128PlusRandom(seed);
-        this.samplingProbabilities = new float[delegate.numExamples()];
-        // sampling probabilities are set to 1, forcing all records to be returned by default.
-        Arrays.fill(samplingProbabilities, 1f);
-        recalculateMinibatchSize();
-        throw new UnsupportedOperationException("This iterator is broken in DL4J 0.6.0, do not use.");
-    }
-
-    public void updateStatistics() {
-        recalculateMinibatchSize();
+        this(delegate, writeCache(delegate), seed);
     }
 
-    private void recalculateMinibatchSize() {
-
-        miniBatchSize = delegate.batch();
-        averageProbability = 0f;
-        for (float p : samplingProbabilities) {
-            averageProbability += p;
+    /**
+     * Sample from a .cf cache of the minibatches of the delegate.
+     *
+     * @param delegate      iterator the cache was written from, which describes the features and labels.
+     * @param cacheBasename basename of the .cf and .cfp files.
+     * @param seed          random seed.
+     */
+    public SamplingIterator(NamedDataSetIterator delegate, String cacheBasename, long seed) {
+        this.delegate = delegate;
+        try {
+            sampler = new ImportanceSamplingIterator(cacheBasename, delegate.batch(), UNIFORM_FRACTION, seed);
+        } catch (IOException e) {
+            throw new RuntimeException("Unable to read the cache " + cacheBasename, e);
         }
-        averageProbability /= samplingProbabilities.length;
-        float willIgnoreFraction = 1 - averageProbability;
-        this.delegateBatchSize = Math.round(delegate.batch() * (1 / averageProbability));
-        assert delegateBatchSize >= miniBatchSize : "delegate minibatch size must be larger than output size.";
-
-    }
-
-    public float getAverageSamplingP() {
-        return averageProbability;
     }
 
-    public void setSamplingProbability(boolean wrongPrediction, int indexInMinibatch, float probability) {
-        if (!sampleToDelegateIndexMap.containsKey(indexInMinibatch)) {
-            System.out.println("STOP");
-        }
-        assert sampleToDelegateIndexMap.containsKey(indexInMinibatch) : "The index (in minibatch) must be found: " + indexInMinibatch;
-        final int index = sampleToDelegateIndexMap.get(indexInMinibatch);
-        if (index >= samplingProbabilities.length) {
-
-        } else {
-//            if (wrongPrediction) {
-//                System.out.printf("Wrong prediction getting sample prob=%f %n",probability);
-//            }
-            samplingProbabilities[index] = probability;
+    private static String writeCache(NamedDataSetIterator delegate) {
+        try {
+            File cache = File.createTempFile("sampling-", "");
+            String cacheBasename = cache.getPath();
+            delegate.reset();
+            MappedFeaturesCache.write(delegate, cacheBasename);
+            cache.deleteOnExit();
+            new File(cacheBasename + ".cf").deleteOnExit();
+            new File(cacheBasename + ".cfp").deleteOnExit();
+            return cacheBasename;
+        } catch (IOException e) {
+            throw new RuntimeException("Unable to write a cache of the records of " + delegate.getBasename(), e);
         }
-
-    }
-
-    @Override
-    public boolean hasNext() {
-        return delegate.hasNext();
     }
 
-    @Override
-    public DataSet next() {
-        //int previousPoint = numReturned + numSkipped;
-        DataSet dataset = sample(delegate.next(delegateBatchSize), samplingProbabilities, offsetStartOfMinibatch);
-        //int newPoint = numReturned + numSkipped;
-        this.offsetStartOfMinibatch += lastMinibatchSize;
-        //    this.lastMinibatchSize = delegateBatchSize;
-        return dataset;
-    }
-
-    private XoRoShiRo128PlusRandom randomGenerator;
-    private Int2IntArrayMap sampleToDelegateIndexMap = new Int2IntArrayMap();
-
     /**
-     * Sample from delegate according to the sampling probabilities. Include a record from the delegate
-     * only when a random number is less than the sampling probability.
+     * Set the loss of an example of the minibatch last returned by next(). The example will be drawn again with a
+     * probability proportional to this loss.
      *
-     * @param next
-     * @param samplingProbabilities
-     * @param offsetStartOfMinibatch
-     * @return
+     * @param indexInMinibatch index of the example in the minibatch.
+     * @param loss             loss of the example.
      */
-    private DataSet sample(DataSet next, float[] samplingProbabilities, int offsetStartOfMinibatch) {
-        sampleToDelegateIndexMap.clear();
-        int numSamples = miniBatchSize;
-        lastMinibatchSize = delegateBatchSize;
-
-        int delegateNumExamples = next.numExamples();
-        lastMinibatchSize = delegateNumExamples;
-        int num = 0;
-        IntArrayList selectedIndices = new IntArrayList();
-        for (int delegateIndex = 0; delegateIndex < delegateNumExamples; delegateIndex++) {
-
-            final float random = randomGenerator.nextFloat();
-            final float p = getSamplingProbability(currentRecordIndex);
-            //   System.out.printf("random=%f p=%f%n",random,p);
-            //   System.out.flush();
-
-            if (random < p) {
-                selectedIndices.add(delegateIndex);
-                sampleToDelegateIndexMap.put(num, currentRecordIndex);
-                numReturned++;
-                num++;
-            } else {
-                numSkipped++;
-            }
-            currentRecordIndex++;
-
-        }
-
-        numSamples = selectedIndices.size();
-        if (numSamples == 0) {
-            return next;
-        }
-        num = 0;
-        INDArray examples = Nd4j.create(numSamples, next.getFeatures().columns(),'f');
-        INDArray outcomes = Nd4j.create(numSamples, next.numOutcomes(),'f');
-        for (int delegateIndex : selectedIndices) {
-            DataSet dataSet = next.get(delegateIndex);
-            examples.putRow(num, dataSet.getFeatures());
-            outcomes.putRow(num, dataSet.getLabels());
-            num++;
-        }
-
-        return new DataSet(examples, outcomes);
-    }
-
-    public float getProbability(int indexInMinibatch) {
-        assert sampleToDelegateIndexMap.containsKey(indexInMinibatch) : "The index (in mini-batch returned) must be found: " + indexInMinibatch;
-        final int index = sampleToDelegateIndexMap.get(indexInMinibatch);
-        if (index >= samplingProbabilities.length) {
-            return 1;
-        } else {
-            return samplingProbabilities[index];
-        }
+    public void setLoss(int indexInMinibatch, float loss) {
+        sampler.updateWeight(indexInMinibatch, loss);
     }
 
-    private float getSamplingProbability(int i) {
-        if (i >= samplingProbabilities.length) {
-            //     System.out.println("STOP " + i);
-            return 1;
-        } else {
-            return samplingProbabilities[i];
-        }
+    /**
+     * Return the average loss of the examples, as last observed.
+     */
+    public float getAverageLoss() {
+        return sampler.getAverageWeight();
     }
 
     @Override
-    public void remove() {
-        delegate.remove();
+    public boolean hasNext() {
+        return sampler.hasNext();
     }
 
     @Override
-    public void forEachRemaining(Consumer<? super DataSet> action) {
-        delegate.forEachRemaining(action);
+    public DataSet next() {
+        return next(delegate.batch());
     }
 
     @Override
     public DataSet next(int num) {
-        return delegate.next(miniBatchSize);
+        MultiDataSet mds = sampler.next(num);
+        DataSet dataset = new DataSet(mds.getFeatures(0), mds.getLabels(0),
+                mds.getFeaturesMaskArrays() == null ? null : mds.getFeaturesMaskArray(0),
+                mds.getLabelsMaskArrays() == null ? null : mds.getLabelsMaskArray(0));
+        if (preProcessor != null) {
+            preProcessor.preProcess(dataset);
+        }
+        cursor += dataset.numExamples();
+        return dataset;
     }
 
     @Override
     public int totalExamples() {
-        return delegate.totalExamples();
+        return sampler.numExamples();
     }
 
     @Override
@@ -223,14 +133,8 @@ public class SamplingIterator implements Iterator<DataSet>, NamedDataSetIterator
 
     @Override
     public void reset() {
-        recalculateMinibatchSize();
-        delegate.reset();
-        numReturned = 0;
-        numSkipped = 0;
-        offsetStartOfMinibatch = 0;
-        lastMinibatchSize = 0;
-        currentRecordIndex = 0;
-        sampleToDelegateIndexMap.clear();
+        sampler.reset();
+        cursor = 0;
     }
 
     @Override
@@ -240,23 +144,22 @@ public class SamplingIterator implements Iterator<DataSet>, NamedDataSetIterator
 
     @Override
     public int cursor() {
-        return delegate.cursor();
+        return cursor;
     }
 
     @Override
     public int numExamples() {
-        this.numExamples = delegate.numExamples();
-        return numExamples;
+        return sampler.numExamples();
     }
 
     @Override
     public void setPreProcessor(DataSetPreProcessor preProcessor) {
-        delegate.setPreProcessor(preProcessor);
+        this.preProcessor = preProcessor;
     }
 
     @Override
     public DataSetPreProcessor getPreProcessor() {
-        return delegate.getPreProcessor();
+        return preProcessor;
     }
 
     @Override
@@ -264,14 +167,28 @@ public class SamplingIterator implements Iterator<DataSet>, NamedDataSetIterator
         return delegate.getLabels();
     }
 
-
-    public double percentSkipped() {
-        final double numSkipped = this.numSkipped;
-        return 100f * numSkipped / (numSkipped + numReturned);
-    }
-
     @Override
     public String getBasename() {
         return delegate.getBasename();
     }
+
+    /**
+     * Return the loss of each example of a minibatch, as the cross-entropy of the predicted labels.
+     *
+     * @param predictedLabels predictions of the model, one row per example.
+     * @param labels          true labels, one-hot encoded.
+     * @return the loss of each example.
+     */
+    public static float[] crossEntropy(INDArray predictedLabels, INDArray labels) {
+        float[] losses = new float[predictedLabels.rows()];
+        for (int exampleIndex = 0; exampleIndex < losses.length; exampleIndex++) {
+            double loss = 0;
+            for (int label = 0; label < labels.columns(); label++) {
+                double p = Math.max(predictedLabels.getDouble(exampleIndex, label), 1e-7);
+                loss -= labels.getDouble(exampleIndex, label) * Math.log(p);
+            }
+            losses[exampleIndex] = (float) loss;
+        }
+        return losses;
+    }
 }
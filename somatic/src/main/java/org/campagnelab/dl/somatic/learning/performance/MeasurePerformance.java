@@ -4,10 +4,14 @@ import it.unimi.dsi.logging.ProgressLogger;
 import org.campagnelab.dl.framework.mappers.FeatureMapper;
 import org.campagnelab.dl.framework.mappers.LabelMapper;
 import org.campagnelab.dl.framework.performance.AUCHelper;
+import org.campagnelab.dl.framework.performance.StreamingAUC;
 import org.campagnelab.dl.somatic.learning.domains.predictions.IsSomaticMutationInterpreter;
 import org.campagnelab.dl.somatic.learning.iterators.BaseInformationIterator;
 import org.campagnelab.dl.somatic.learning.iterators.FirstNIterator;
+import org.deeplearning4j.datasets.iterator.AsyncDataSetIterator;
 import org.deeplearning4j.nn.multilayer.MultiLayerNetwork;
+import org.nd4j.linalg.api.ndarray.INDArray;
+import org.nd4j.linalg.dataset.DataSet;
 import org.nd4j.linalg.dataset.api.iterator.CachingDataSetIterator;
 import org.nd4j.linalg.dataset.api.iterator.cache.InMemoryDataSetCache;
 import org.slf4j.Logger;
@@ -17,12 +21,20 @@ import java.io.IOException;
 
 /**
  * Helper class to estimate performance on a test set, or part of it.
+ * <p>
+ * By default, the first scoreN validation records are cached in memory and the AUC is computed pairwise. In streaming
+ * mode, the whole validation file is read again for each estimate, in minibatches prefetched by a background thread,
+ * and the AUC and accuracy are accumulated in constant memory with a {@link StreamingAUC}.
  * Created by fac2003 on 7/15/16.
  */
 public class MeasurePerformance {
     private int aucClipMaxObservations;
     private int scoreN = Integer.MAX_VALUE;
     private AUCHelper helper;
+    /**
+     * Number of minibatches prepared ahead of prediction in streaming mode.
+     */
+    private static final int PREFETCH_BUFFER = 4;
     static private Logger LOG = LoggerFactory.getLogger(MeasurePerformance.class);
 
     public MeasurePerformance(int scoreN, String datafilePath, int miniBatchSize, FeatureMapper featureMapper, LabelMapper labelMapper) throws IOException {
@@ -45,16 +57,39 @@ public class MeasurePerformance {
         helper = new AUCHelper();
     }
 
+    /**
+     * Create a streaming estimator, which scores all the records of the validation file.
+     *
+     * @param datafilePath  validation file.
+     * @param miniBatchSize number of records predicted at once.
+     */
+    public MeasurePerformance(String datafilePath, int miniBatchSize, FeatureMapper featureMapper, LabelMapper labelMapper) {
+        this.streaming = true;
+        this.datafilePath = datafilePath;
+        this.miniBatchSize = miniBatchSize;
+        this.featureMapper = featureMapper;
+        this.labelMapper = labelMapper;
+    }
+
     public MeasurePerformance(int scoreN, int aucClipMaxObservations, String datafilePath, int miniBatchSize, FeatureMapper featureMapper, LabelMapper labelMapper) throws IOException {
         this(scoreN, datafilePath, miniBatchSize, featureMapper, labelMapper);
         this.aucClipMaxObservations = aucClipMaxObservations;
     }
 
     CachingDataSetIterator cachedIterator;
+    private boolean streaming;
+    private String datafilePath;
+    private int miniBatchSize;
+    private FeatureMapper featureMapper;
+    private LabelMapper labelMapper;
+    private long numScored;
+    private long numCorrect;
 
 
     public double estimateAUC(MultiLayerNetwork model) throws IOException {
-
+        if (streaming) {
+            return estimateAUCStreaming(model);
+        }
         cachedIterator.reset();
         return helper.estimate(cachedIterator, model, this.aucClipMaxObservations,
                 prediction -> {
@@ -63,5 +98,53 @@ public class MeasurePerformance {
                 new IsSomaticMutationInterpreter());
     }
 
+    /**
+     * Return the number of records scored by the last streaming estimate.
+     */
+    public long getNumScored() {
+        return numScored;
+    }
+
+    /**
+     * Return the fraction of records whose label was predicted correctly in the last streaming estimate.
+     */
+    public double getAccuracy() {
+        return numScored == 0 ? Double.NaN : ((double) numCorrect) / numScored;
+    }
 
+    private double estimateAUCStreaming(MultiLayerNetwork model) throws IOException {
+        StreamingAUC aucCalculator = new StreamingAUC();
+        numScored = 0;
+        numCorrect = 0;
+        BaseInformationIterator source = new BaseInformationIterator(datafilePath, miniBatchSize, featureMapper, labelMapper);
+        AsyncDataSetIterator prefetched = new AsyncDataSetIterator(source, PREFETCH_BUFFER);
+        ProgressLogger pg = new ProgressLogger(LOG);
+        pg.expectedUpdates = source.totalExamples();
+        pg.itemsName = "validation records";
+        pg.start();
+        try {
+            while (prefetched.hasNext()) {
+                DataSet next = prefetched.next();
+                INDArray outputs = model.output(next.getFeatures(), false);
+                INDArray trueLabels = next.getLabels();
+                int numExamples = next.numExamples();
+                for (int predictionIndex = 0; predictionIndex < numExamples; predictionIndex++) {
+                    double trueLabelYes = trueLabels.getDouble(predictionIndex, 1);
+                    double predictedLabelNo = outputs.getDouble(predictionIndex, 0);
+                    double predictedLabelYes = outputs.getDouble(predictionIndex, 1);
+                    aucCalculator.observe(predictedLabelYes, trueLabelYes - 0.5);
+                    if ((predictedLabelYes > predictedLabelNo) == (trueLabelYes > 0.5)) {
+                        numCorrect++;
+                    }
+                }
+                numScored += numExamples;
+                pg.update(numExamples);
+            }
+        } finally {
+            prefetched.shutdown();
+            source.close();
+        }
+        pg.stop();
+        return aucCalculator.evaluateStatistic();
+    }
 }
@@ -0,0 +1,480 @@
+package org.campagnelab.dl.somatic.storage;
+
+import it.unimi.dsi.fastutil.ints.Int2ObjectAVLTreeMap;
+import it.unimi.dsi.fastutil.ints.Int2ObjectSortedMap;
+import it.unimi.dsi.fastutil.ints.IntArrayList;
+import it.unimi.dsi.fastutil.longs.LongArrayList;
+import it.unimi.dsi.fastutil.objects.ObjectArrayList;
+import org.campagnelab.goby.compression.MessageChunksWriter;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.*;
+import java.util.List;
+
+/**
+ * A sidecar index for chunked record files (.sbi, .ssi). For every chunk of the data file, the index stores the byte
+ * offset of the chunk and the smallest and largest genomic positions, as (reference index, position) pairs, of the
+ * records it contains. Readers use the index to read only the chunks that overlap a genomic interval. The index is
+ * stored next to the data file, with the .idx extension appended to the data filename (e.g., file.sbi.idx).
+ * <p>
+ * Chunk bounds are exact whether or not records are sorted inside the data file, but the index is only selective
+ * when the file is sorted by position.
+ */
+public class ChunkPositionIndex {
+    static private Logger LOG = LoggerFactory.getLogger(ChunkPositionIndex.class);
+
+    private static final int MAGIC = 0x43504931; // "CPI1"
+    private static final int VERSION = 1;
+    // Goby chunk layout: one codec byte, DELIMITER_LENGTH bytes of delimiter, the chunk size and the chunk payload.
+    // A chunk of size zero marks the end of the file.
+    private static final int DELIMITER_LENGTH = MessageChunksWriter.DELIMITER_LENGTH;
+    private static final byte DELIMITER_CONTENT = (byte) 0xFF;
+    private static final int CHUNK_HEADER_LENGTH = 1 + DELIMITER_LENGTH + MessageChunksWriter.SIZE_OF_MESSAGE_LENGTH;
+
+    /**
+     * Receives the positions of the records of one chunk.
+     */
+    public interface PositionConsumer {
+        void accept(int referenceIndex, String referenceId, int position);
+    }
+
+    /**
+     * Reads the records of a byte range of a data file and reports their positions. Used to build an index for
+     * an existing file.
+     */
+    public interface ChunkScanner {
+        /**
+         * Report the positions of the records in the chunks that start in [startOffset, endOffset).
+         */
+        void scan(long startOffset, long endOffset, PositionConsumer consumer) throws IOException;
+    }
+
+    /**
+     * Offsets of the chunks, followed by the offset of the end of file marker.
+     */
+    private final long[] chunkOffsets;
+    private final int[] minReferenceIndex;
+    private final int[] minPosition;
+    private final int[] maxReferenceIndex;
+    private final int[] maxPosition;
+    private final Int2ObjectSortedMap<String> referenceNames;
+    /**
+     * Largest upper bound of the chunks up to each chunk, and smallest lower bound of the chunks from each chunk.
+     * Both are sorted, so that the chunks that overlap an interval can be found by binary search.
+     */
+    private final int[] cumulativeMaxReferenceIndex;
+    private final int[] cumulativeMaxPosition;
+    private final int[] remainingMinReferenceIndex;
+    private final int[] remainingMinPosition;
+
+    private ChunkPositionIndex(long[] chunkOffsets, int[] minReferenceIndex, int[] minPosition,
+                               int[] maxReferenceIndex, int[] maxPosition, Int2ObjectSortedMap<String> referenceNames) {
+        this.chunkOffsets = chunkOffsets;
+        this.minReferenceIndex = minReferenceIndex;
+        this.minPosition = minPosition;
+        this.maxReferenceIndex = maxReferenceIndex;
+        this.maxPosition = maxPosition;
+        this.referenceNames = referenceNames;
+        final int numChunks = minReferenceIndex.length;
+        cumulativeMaxReferenceIndex = new int[numChunks];
+        cumulativeMaxPosition = new int[numChunks];
+        remainingMinReferenceIndex = new int[numChunks];
+        remainingMinPosition = new int[numChunks];
+        for (int chunk = 0; chunk < numChunks; chunk++) {
+            if (chunk == 0 || compare(maxReferenceIndex[chunk], maxPosition[chunk],
+                    cumulativeMaxReferenceIndex[chunk - 1], cumulativeMaxPosition[chunk - 1]) > 0) {
+                cumulativeMaxReferenceIndex[chunk] = maxReferenceIndex[chunk];
+                cumulativeMaxPosition[chunk] = maxPosition[chunk];
+            } else {
+                cumulativeMaxReferenceIndex[chunk] = cumulativeMaxReferenceIndex[chunk - 1];
+                cumulativeMaxPosition[chunk] = cumulativeMaxPosition[chunk - 1];
+            }
+        }
+        for (int chunk = numChunks - 1; chunk >= 0; chunk--) {
+            if (chunk == numChunks - 1 || compare(minReferenceIndex[chunk], minPosition[chunk],
+                    remainingMinReferenceIndex[chunk + 1], remainingMinPosition[chunk + 1]) < 0) {
+                remainingMinReferenceIndex[chunk] = minReferenceIndex[chunk];
+                remainingMinPosition[chunk] = minPosition[chunk];
+            } else {
+                remainingMinReferenceIndex[chunk] = remainingMinReferenceIndex[chunk + 1];
+                remainingMinPosition[chunk] = remainingMinPosition[chunk + 1];
+            }
+        }
+    }
+
+    public int numChunks() {
+        return chunkOffsets.length - 1;
+    }
+
+    /**
+     * Return the index of a reference sequence, from its name.
+     *
+     * @param referenceId name of the reference sequence (i.e., chromosome).
+     * @return the reference index, or -1 if no record of the data file is on this reference.
+     */
+    public int referenceIndex(String referenceId) {
+        for (Int2ObjectSortedMap.Entry<String> entry : referenceNames.int2ObjectEntrySet()) {
+            if (referenceId.equals(entry.getValue())) {
+                return entry.getIntKey();
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Determine if a chunk may contain records in the interval.
+     *
+     * @param chunk          chunk index.
+     * @param referenceIndex reference index of the interval.
+     * @param start          first position of the interval.
+     * @param end            last position of the interval (inclusive).
+     * @return false when no record of the chunk is in the interval.
+     */
+    public boolean overlaps(int chunk, int referenceIndex, int start, int end) {
+        return compare(minReferenceIndex[chunk], minPosition[chunk], referenceIndex, end) <= 0 &&
+                compare(maxReferenceIndex[chunk], maxPosition[chunk], referenceIndex, start) >= 0;
+    }
+
+    /**
+     * Return the byte ranges to read to obtain all the records of an interval. Consecutive chunks are merged into
+     * one range. Each range is returned as {startOffset, endOffset}, and is suitable for the byte range constructors
+     * of the record readers: chunks that start in [startOffset, endOffset) are read.
+     *
+     * @param referenceIndex reference index of the interval.
+     * @param start          first position of the interval.
+     * @param end            last position of the interval (inclusive).
+     * @return byte ranges, in file order.
+     */
+    public List<long[]> byteRanges(int referenceIndex, int start, int end) {
+        boolean[] selected = new boolean[numChunks()];
+        select(selected, referenceIndex, start, end);
+        return byteRanges(selected);
+    }
+
+    /**
+     * Flag the chunks that may contain records in the interval. When the data file is sorted by position, only the
+     * chunks that overlap the interval are visited, after a binary search for the first one.
+     *
+     * @param selected       one flag per chunk. Flags of the chunks that overlap the interval are set to true, other
+     *                       flags are left unchanged.
+     * @param referenceIndex reference index of the interval.
+     * @param start          first position of the interval.
+     * @param end            last position of the interval (inclusive).
+     */
+    public void select(boolean[] selected, int referenceIndex, int start, int end) {
+        // chunks before the first one whose cumulative upper bound reaches start cannot overlap the interval:
+        int low = 0;
+        int high = numChunks();
+        while (low < high) {
+            int middle = (low + high) >>> 1;
+            if (compare(cumulativeMaxReferenceIndex[middle], cumulativeMaxPosition[middle], referenceIndex, start) < 0) {
+                low = middle + 1;
+            } else {
+                high = middle;
+            }
+        }
+        // neither can chunks from the first one whose remaining lower bound is after end:
+        for (int chunk = low; chunk < numChunks() &&
+                compare(remainingMinReferenceIndex[chunk], remainingMinPosition[chunk], referenceIndex, end) <= 0; chunk++) {
+            selected[chunk] |= overlaps(chunk, referenceIndex, start, end);
+        }
+    }
+
+    /**
+     * Return the byte ranges that cover the selected chunks, merging consecutive chunks.
+     *
+     * @param selected one flag per chunk, true when the chunk must be read.
+     * @return byte ranges, in file order.
+     */
+    public List<long[]> byteRanges(boolean[] selected) {
+        List<long[]> ranges = new ObjectArrayList<>();
+        int chunk = 0;
+        while (chunk < selected.length) {
+            if (!selected[chunk]) {
+                chunk++;
+                continue;
+            }
+            int last = chunk;
+            while (last + 1 < selected.length && selected[last + 1]) {
+                last++;
+            }
+            // the range ends just after the start of the last chunk, so that the next chunk is not read:
+            ranges.add(new long[]{chunkOffsets[chunk], chunkOffsets[last] + 1});
+            chunk = last + 1;
+        }
+        return ranges;
+    }
+
+    private static int compare(int referenceIndex1, int position1, int referenceIndex2, int position2) {
+        int result = Integer.compare(referenceIndex1, referenceIndex2);
+        return result != 0 ? result : Integer.compare(position1, position2);
+    }
+
+    /**
+     * Return the name of the index file of a data file.
+     *
+     * @param dataFile path of the data file (i.e., .sbi, .ssi).
+     * @return path of the index file.
+     */
+    public static String indexFilename(String dataFile) {
+        return dataFile + ".idx";
+    }
+
+    /**
+     * Load the index of a data file.
+     *
+     * @param dataFile path of the data file.
+     * @return the index, or null when the index does not exist or is older than the data file.
+     * @throws IOException when the index cannot be read.
+     */
+    public static ChunkPositionIndex load(String dataFile) throws IOException {
+        File indexFile = new File(indexFilename(dataFile));
+        if (!indexFile.exists() || indexFile.lastModified() < new File(dataFile).lastModified()) {
+            return null;
+        }
+        try (DataInputStream input = new DataInputStream(new BufferedInputStream(new FileInputStream(indexFile)))) {
+            if (input.readInt() != MAGIC || input.readInt() != VERSION) {
+                LOG.warn("Ignoring index {} with an unknown format.", indexFile);
+                return null;
+            }
+            int numReferences = input.readInt();
+            Int2ObjectSortedMap<String> referenceNames = new Int2ObjectAVLTreeMap<>();
+            for (int i = 0; i < numReferences; i++) {
+                referenceNames.put(input.readInt(), input.readUTF());
+            }
+            int numChunks = input.readInt();
+            long[] chunkOffsets = new long[numChunks + 1];
+            int[] minReferenceIndex = new int[numChunks];
+            int[] minPosition = new int[numChunks];
+            int[] maxReferenceIndex = new int[numChunks];
+            int[] maxPosition = new int[numChunks];
+            for (int chunk = 0; chunk < numChunks; chunk++) {
+                chunkOffsets[chunk] = input.readLong();
+                minReferenceIndex[chunk] = input.readInt();
+                minPosition[chunk] = input.readInt();
+                maxReferenceIndex[chunk] = input.readInt();
+                maxPosition[chunk] = input.readInt();
+            }
+            chunkOffsets[numChunks] = input.readLong();
+            return new ChunkPositionIndex(chunkOffsets, minReferenceIndex, minPosition, maxReferenceIndex,
+                    maxPosition, referenceNames);
+        }
+    }
+
+    /**
+     * Write the index next to the data file.
+     *
+     * @param dataFile path of the data file.
+     * @throws IOException when the index cannot be written.
+     */
+    public void save(String dataFile) throws IOException {
+        try (DataOutputStream output = new DataOutputStream(new BufferedOutputStream(
+                new FileOutputStream(indexFilename(dataFile))))) {
+            output.writeInt(MAGIC);
+            output.writeInt(VERSION);
+            output.writeInt(referenceNames.size());
+            for (Int2ObjectSortedMap.Entry<String> entry : referenceNames.int2ObjectEntrySet()) {
+                output.writeInt(entry.getIntKey());
+                output.writeUTF(entry.getValue() == null ? "" : entry.getValue());
+            }
+            output.writeInt(numChunks());
+            for (int chunk = 0; chunk < numChunks(); chunk++) {
+                output.writeLong(chunkOffsets[chunk]);
+                output.writeInt(minReferenceIndex[chunk]);
+                output.writeInt(minPosition[chunk]);
+                output.writeInt(maxReferenceIndex[chunk]);
+                output.writeInt(maxPosition[chunk]);
+            }
+            output.writeLong(chunkOffsets[numChunks()]);
+        }
+    }
+
+    /**
+     * Write the index next to the data file, when possible. Data files are often shared read-only, in which case the
+     * index can only be kept in memory.
+     *
+     * @param dataFile path of the data file.
+     * @return true when the index was written.
+     */
+    public boolean trySave(String dataFile) {
+        try {
+            save(dataFile);
+            return true;
+        } catch (IOException e) {
+            LOG.warn("Unable to write the index {}, it will be rebuilt the next time the file is read: {}",
+                    indexFilename(dataFile), e.getMessage());
+            return false;
+        }
+    }
+
+    /**
+     * Build the index of the concatenation of several data files.
+     *
+     * @param indices index of each concatenated file, in the order of concatenation. Files that are not part of
+     *                the output must have a null index.
+     * @param offsets offset of each file in the output.
+     * @return the index of the concatenated file.
+     */
+    public static ChunkPositionIndex concatenate(ChunkPositionIndex[] indices, long[] offsets) {
+        LongArrayList chunkOffsets = new LongArrayList();
+        IntArrayList minReferenceIndex = new IntArrayList();
+        IntArrayList minPosition = new IntArrayList();
+        IntArrayList maxReferenceIndex = new IntArrayList();
+        IntArrayList maxPosition = new IntArrayList();
+        Int2ObjectSortedMap<String> referenceNames = new Int2ObjectAVLTreeMap<>();
+        long end = 0;
+        for (int file = 0; file < indices.length; file++) {
+            ChunkPositionIndex index = indices[file];
+            if (index == null) {
+                continue;
+            }
+            for (int chunk = 0; chunk < index.numChunks(); chunk++) {
+                chunkOffsets.add(offsets[file] + index.chunkOffsets[chunk]);
+                minReferenceIndex.add(index.minReferenceIndex[chunk]);
+                minPosition.add(index.minPosition[chunk]);
+                maxReferenceIndex.add(index.maxReferenceIndex[chunk]);
+                maxPosition.add(index.maxPosition[chunk]);
+            }
+            end = offsets[file] + index.chunkOffsets[index.numChunks()];
+            for (Int2ObjectSortedMap.Entry<String> entry : index.referenceNames.int2ObjectEntrySet()) {
+                if (!referenceNames.containsKey(entry.getIntKey())) {
+                    referenceNames.put(entry.getIntKey(), entry.getValue());
+                }
+            }
+        }
+        chunkOffsets.add(end);
+        return new ChunkPositionIndex(chunkOffsets.toLongArray(), minReferenceIndex.toIntArray(),
+                minPosition.toIntArray(), maxReferenceIndex.toIntArray(), maxPosition.toIntArray(), referenceNames);
+    }
+
+    /**
+     * Find the offsets of the chunks of a data file, from the chunk headers. Chunk payloads are skipped.
+     *
+     * @param dataFile data file.
+     * @return offsets of each chunk, followed by the offset of the end of file marker (or the file length when the
+     * marker is missing).
+     * @throws IOException when the file is not a chunked file.
+     */
+    public static long[] chunkOffsets(File dataFile) throws IOException {
+        LongArrayList offsets = new LongArrayList();
+        try (RandomAccessFile input = new RandomAccessFile(dataFile, "r")) {
+            final long length = input.length();
+            long offset = 0;
+            byte[] delimiter = new byte[DELIMITER_LENGTH];
+            while (offset + CHUNK_HEADER_LENGTH <= length) {
+                input.seek(offset + 1);
+                input.readFully(delimiter);
+                for (byte b : delimiter) {
+                    if (b != DELIMITER_CONTENT) {
+                        throw new IOException(String.format("No chunk delimiter at offset %d of %s", offset, dataFile));
+                    }
+                }
+                int chunkSize = input.readInt();
+                if (chunkSize == 0) {
+                    break;
+                }
+                offsets.add(offset);
+                offset += CHUNK_HEADER_LENGTH + chunkSize;
+            }
+            offsets.add(Math.min(offset, length));
+        }
+        return offsets.toLongArray();
+    }
+
+    /**
+     * Build the index of an existing data file, reading each chunk with the scanner.
+     *
+     * @param dataFile data file.
+     * @param scanner  reads the records of a byte range.
+     * @return the index.
+     * @throws IOException when the file cannot be read.
+     */
+    public static ChunkPositionIndex build(File dataFile, ChunkScanner scanner) throws IOException {
+        long[] offsets = chunkOffsets(dataFile);
+        Builder builder = new Builder();
+        for (int chunk = 0; chunk < offsets.length - 1; chunk++) {
+            final int chunkIndex = chunk;
+            scanner.scan(offsets[chunk], offsets[chunk] + 1,
+                    (referenceIndex, referenceId, position) -> builder.observe(chunkIndex, referenceIndex, referenceId, position));
+        }
+        return builder.build(offsets);
+    }
+
+    /**
+     * Collects the position bounds of each chunk, as records are written or read.
+     */
+    public static class Builder {
+        private final Int2ObjectSortedMap<String> referenceNames = new Int2ObjectAVLTreeMap<>();
+        private final ObjectArrayList<int[]> bounds = new ObjectArrayList<>();
+
+        /**
+         * Observe the position of a record.
+         *
+         * @param chunk          index of the chunk that holds the record.
+         * @param referenceIndex reference index of the record.
+         * @param referenceId    name of the reference sequence, may be null.
+         * @param position       position of the record.
+         */
+        public void observe(int chunk, int referenceIndex, String referenceId, int position) {
+            while (bounds.size() <= chunk) {
+                bounds.add(null);
+            }
+            int[] chunkBounds = bounds.get(chunk);
+            if (chunkBounds == null) {
+                bounds.set(chunk, new int[]{referenceIndex, position, referenceIndex, position});
+            } else {
+                if (compare(referenceIndex, position, chunkBounds[0], chunkBounds[1]) < 0) {
+                    chunkBounds[0] = referenceIndex;
+                    chunkBounds[1] = position;
+                }
+                if (compare(referenceIndex, position, chunkBounds[2], chunkBounds[3]) > 0) {
+                    chunkBounds[2] = referenceIndex;
+                    chunkBounds[3] = position;
+                }
+            }
+            if (referenceId != null && !referenceNames.containsKey(referenceIndex)) {
+                referenceNames.put(referenceIndex, referenceId);
+            }
+        }
+
+        /**
+         * Return the number of chunks observed so far.
+         */
+        public int numChunks() {
+            return bounds.size();
+        }
+
+        /**
+         * Build the index.
+         *
+         * @param chunkOffsets offsets of the chunks of the data file, followed by the offset of the end of file
+         *                     marker, as returned by {@link ChunkPositionIndex#chunkOffsets(File)}.
+         * @return the index.
+         */
+        public ChunkPositionIndex build(long[] chunkOffsets) {
+            int numChunks = chunkOffsets.length - 1;
+            int[] minReferenceIndex = new int[numChunks];
+            int[] minPosition = new int[numChunks];
+            int[] maxReferenceIndex = new int[numChunks];
+            int[] maxPosition = new int[numChunks];
+            for (int chunk = 0; chunk < numChunks; chunk++) {
+                int[] chunkBounds = chunk < bounds.size() ? bounds.get(chunk) : null;
+                if (chunkBounds == null) {
+                    // empty chunk, never overlaps an interval:
+                    minReferenceIndex[chunk] = Integer.MAX_VALUE;
+                    minPosition[chunk] = Integer.MAX_VALUE;
+                    maxReferenceIndex[chunk] = Integer.MIN_VALUE;
+                    maxPosition[chunk] = Integer.MIN_VALUE;
+                } else {
+                    minReferenceIndex[chunk] = chunkBounds[0];
+                    minPosition[chunk] = chunkBounds[1];
+                    maxReferenceIndex[chunk] = chunkBounds[2];
+                    maxPosition[chunk] = chunkBounds[3];
+                }
+            }
+            return new ChunkPositionIndex(chunkOffsets, minReferenceIndex, minPosition, maxReferenceIndex,
+                    maxPosition, new Int2ObjectAVLTreeMap<>(referenceNames));
+        }
+    }
+}
@@ -0,0 +1,93 @@
+package org.campagnelab.dl.somatic.storage;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.function.Predicate;
+
+/**
+ * Iterates over the records of selected byte ranges of a chunked record file (.sbi, .ssi), in file order, and
+ * returns the records that pass a filter. Byte ranges are usually obtained from a {@link ChunkPositionIndex}.
+ */
+public class ChunkRangeIterator<RecordType> implements Iterator<RecordType>, Closeable {
+
+    /**
+     * Opens a reader over the chunks that start in a byte range of the file.
+     */
+    public interface RangeReaderFactory<RecordType> {
+        RecordReaderI<RecordType> open(long startOffset, long endOffset) throws IOException;
+    }
+
+    private final Iterator<long[]> ranges;
+    private final RangeReaderFactory<RecordType> readerFactory;
+    private final Predicate<RecordType> filter;
+    private RecordReaderI<RecordType> reader;
+    private Iterator<RecordType> records;
+    private RecordType next;
+
+    /**
+     * @param ranges        byte ranges to read, as {startOffset, endOffset}, in file order.
+     * @param readerFactory opens a reader for each range.
+     * @param filter        records that do not pass the filter are skipped.
+     */
+    public ChunkRangeIterator(List<long[]> ranges, RangeReaderFactory<RecordType> readerFactory,
+                              Predicate<RecordType> filter) {
+        this.ranges = ranges.iterator();
+        this.readerFactory = readerFactory;
+        this.filter = filter;
+    }
+
+    @Override
+    public boolean hasNext() {
+        while (next == null) {
+            if (records != null && records.hasNext()) {
+                RecordType record = records.next();
+                if (filter.test(record)) {
+                    next = record;
+                }
+            } else {
+                closeReader();
+                if (!ranges.hasNext()) {
+                    return false;
+                }
+                long[] range = ranges.next();
+                try {
+                    reader = readerFactory.open(range[0], range[1]);
+                } catch (IOException e) {
+                    throw new RuntimeException(String.format("Unable to read byte range [%d, %d)", range[0], range[1]), e);
+                }
+                records = reader.iterator();
+            }
+        }
+        return true;
+    }
+
+    @Override
+    public RecordType next() {
+        if (!hasNext()) {
+            throw new NoSuchElementException();
+        }
+        RecordType result = next;
+        next = null;
+        return result;
+    }
+
+    private void closeReader() {
+        if (reader != null) {
+            try {
+                reader.close();
+            } catch (IOException e) {
+                throw new RuntimeException("Unable to close reader", e);
+            }
+            reader = null;
+            records = null;
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        closeReader();
+    }
+}
@@ -0,0 +1,164 @@
+package org.campagnelab.dl.somatic.storage;
+
+import it.unimi.dsi.logging.ProgressLogger;
+import org.campagnelab.dl.somatic.tools.QuickConcat;
+import org.campagnelab.dl.varanalysis.protobuf.BaseInformationRecords;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.function.IntFunction;
+
+/**
+ * Routes the records of an .sbi file to several outputs with multiple threads. The input is split in byte ranges of
+ * about the same size, one per thread. Each partition is read by its own reader and writes the records it routes to
+ * its own chunk files, one per output. The chunk files of each output are then concatenated in partition order,
+ * without decoding or re-encoding records, so every output keeps the order of the input file.
+ */
+public class ParallelRecordRouter {
+    private static final long CONCAT_BUFFER_SIZE = 100 * 1024 * 1024;
+
+    /**
+     * Decides which output a record is written to. Each partition has its own router, so routers do not need to be
+     * thread-safe.
+     */
+    public interface Router {
+        /**
+         * Return the index of the output this record should be written to, or -1 to skip the record.
+         *
+         * @param record record to route.
+         * @return index of an output, or -1.
+         */
+        int route(BaseInformationRecords.BaseInformation record);
+    }
+
+    /**
+     * Processes the records of a partition and writes them to any of the outputs. Each partition has its own
+     * processor, so processors do not need to be thread-safe.
+     */
+    public interface Processor {
+        /**
+         * Process one record.
+         *
+         * @param record  record read from the input.
+         * @param writers writers of the partition, one per output.
+         * @throws IOException when a record cannot be written.
+         */
+        void process(BaseInformationRecords.BaseInformation record, RecordWriter[] writers) throws IOException;
+    }
+
+    private final String inputFile;
+    private final String[] outputBasenames;
+    private final int numPartitions;
+
+    /**
+     * @param inputFile       input .sbi file.
+     * @param outputBasenames basenames of the outputs, without the .sbi extension.
+     * @param numPartitions   number of partitions, each processed by one thread.
+     */
+    public ParallelRecordRouter(String inputFile, String[] outputBasenames, int numPartitions) {
+        this.inputFile = inputFile;
+        this.outputBasenames = outputBasenames;
+        this.numPartitions = numPartitions;
+    }
+
+    /**
+     * Route all the records of the input.
+     *
+     * @param routerForPartition creates the router of each partition, called with partition indices in increasing
+     *                           order before any record is read.
+     * @param progressLogger     progress logger updated for each record read, shared across partitions.
+     * @throws IOException when the input cannot be read or an output cannot be written.
+     */
+    public void route(IntFunction<Router> routerForPartition, ProgressLogger progressLogger) throws IOException {
+        process(partition -> {
+            final Router router = routerForPartition.apply(partition);
+            return (record, writers) -> {
+                int output = router.route(record);
+                if (output != -1) {
+                    writers[output].writeRecord(record);
+                }
+            };
+        }, progressLogger);
+    }
+
+    /**
+     * Process all the records of the input. Processors may write modified records.
+     *
+     * @param processorForPartition creates the processor of each partition, called with partition indices in
+     *                              increasing order before any record is read.
+     * @param progressLogger        progress logger updated for each record read, shared across partitions.
+     * @throws IOException when the input cannot be read or an output cannot be written.
+     */
+    public void process(IntFunction<Processor> processorForPartition, ProgressLogger progressLogger) throws IOException {
+        String inputSbi;
+        try (RecordReader reader = new RecordReader(inputFile)) {
+            inputSbi = reader.getSourceSbiPath();
+        }
+        long inputLength = new File(inputSbi).length();
+        String[][] chunkBasenames = new String[outputBasenames.length][numPartitions];
+        ExecutorService executor = Executors.newFixedThreadPool(numPartitions);
+        try {
+            List<Future<?>> futures = new ArrayList<>();
+            for (int partition = 0; partition < numPartitions; partition++) {
+                final long startOffset = inputLength * partition / numPartitions;
+                final long endOffset = inputLength * (partition + 1) / numPartitions;
+                final String[] partitionBasenames = new String[outputBasenames.length];
+                for (int output = 0; output < outputBasenames.length; output++) {
+                    partitionBasenames[output] = String.format("%s-part-%d", outputBasenames[output], partition);
+                    chunkBasenames[output][partition] = partitionBasenames[output];
+                }
+                final Processor processor = processorForPartition.apply(partition);
+                futures.add(executor.submit(() -> {
+                    processPartition(inputSbi, startOffset, endOffset, partitionBasenames, processor, progressLogger);
+                    return null;
+                }));
+            }
+            for (Future<?> future : futures) {
+                future.get();
+            }
+        } catch (InterruptedException | ExecutionException e) {
+            throw new IOException("Unable to process records in parallel.", e);
+        } finally {
+            executor.shutdown();
+        }
+        for (int output = 0; output < outputBasenames.length; output++) {
+            QuickConcat.concatenate(chunkBasenames[output], outputBasenames[output], CONCAT_BUFFER_SIZE, null);
+            for (String chunkBasename : chunkBasenames[output]) {
+                new File(chunkBasename + ".sbi").delete();
+                new File(chunkBasename + ".sbip").delete();
+                new File(ChunkPositionIndex.indexFilename(chunkBasename + ".sbi")).delete();
+            }
+        }
+    }
+
+    private static void processPartition(String inputSbi, long startOffset, long endOffset,
+                                         String[] partitionBasenames, Processor processor,
+                                         ProgressLogger progressLogger) throws IOException {
+        RecordWriter[] writers = new RecordWriter[partitionBasenames.length];
+        try (RecordReader reader = new RecordReader(inputSbi, startOffset, endOffset)) {
+            for (int output = 0; output < writers.length; output++) {
+                writers[output] = new RecordWriter(partitionBasenames[output]);
+            }
+            for (BaseInformationRecords.BaseInformation record : reader) {
+                processor.process(record, writers);
+                if (progressLogger != null) {
+                    synchronized (progressLogger) {
+                        progressLogger.lightUpdate();
+                    }
+                }
+            }
+        } finally {
+            for (RecordWriter writer : writers) {
+                if (writer != null) {
+                    writer.close();
+                }
+            }
+        }
+    }
+}
@@ -1,6 +1,11 @@
 package org.campagnelab.dl.somatic.storage;
 
+import it.unimi.dsi.fastutil.ints.Int2ObjectMap;
+import it.unimi.dsi.fastutil.ints.Int2ObjectOpenHashMap;
+import it.unimi.dsi.fastutil.ints.IntArrayList;
 import org.apache.commons.io.IOUtils;
+import org.campagnelab.dl.framework.bed.BEDRecord;
+import org.campagnelab.dl.framework.bed.BEDRecords;
 import org.campagnelab.dl.varanalysis.protobuf.BaseInformationRecords;
 import org.campagnelab.goby.baseinfo.SequenceBaseInformationReader;
 import org.campagnelab.goby.exception.GobyRuntimeException;
@@ -8,7 +13,10 @@ import org.campagnelab.goby.exception.GobyRuntimeException;
 import java.io.Closeable;
 import java.io.File;
 import java.io.IOException;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.Iterator;
+import java.util.List;
 import java.util.Properties;
 import java.util.Spliterator;
 
@@ -21,6 +29,7 @@ public class RecordReader implements Closeable, RecordIterable<BaseInformationRe
         RecordReaderI<BaseInformationRecords.BaseInformation> {
 
     private final SequenceBaseInformationReader reader;
+    private ChunkPositionIndex positionIndex;
 
     public RecordReader(String filepath) throws IOException {
         reader = new SequenceBaseInformationReader(filepath);
@@ -109,6 +118,14 @@ public class RecordReader implements Closeable, RecordIterable<BaseInformationRe
     }
 
 
+    /**
+     * Gets the path of the .sbi file this reader reads from.
+     * @return the path of the .sbi file.
+     */
+    public String getSourceSbiPath() {
+        return this.reader.getSourceSbiPath();
+    }
+
     /**
      * Gets the current position of the reader.
      * @return the offset of the position, in bytes.
@@ -147,6 +164,132 @@ public class RecordReader implements Closeable, RecordIterable<BaseInformationRe
         return new RecordSpliterator(reader.getSourceSbiPath(), 0, length, length, maxSplits);
     }
 
+    /**
+     * Return the position index of the file. The index is rebuilt when it is missing or older than the .sbi file,
+     * and saved when the directory of the file is writable.
+     *
+     * @return the position index.
+     * @throws IOException when the index cannot be read or rebuilt.
+     */
+    public ChunkPositionIndex getPositionIndex() throws IOException {
+        if (positionIndex == null) {
+            positionIndex = ChunkPositionIndex.load(getSourceSbiPath());
+            if (positionIndex == null) {
+                positionIndex = buildIndex(getSourceSbiPath());
+                positionIndex.trySave(getSourceSbiPath());
+            }
+        }
+        return positionIndex;
+    }
+
+    /**
+     * Rebuild the position index of an existing .sbi file, reading each chunk once, and save it next to the file.
+     *
+     * @param sbiPath path of the .sbi file.
+     * @return the index.
+     * @throws IOException when the file cannot be read or the index cannot be written.
+     */
+    public static ChunkPositionIndex rebuildIndex(String sbiPath) throws IOException {
+        ChunkPositionIndex index = buildIndex(sbiPath);
+        index.save(sbiPath);
+        return index;
+    }
+
+    private static ChunkPositionIndex buildIndex(String sbiPath) throws IOException {
+        return ChunkPositionIndex.build(new File(sbiPath), (startOffset, endOffset, consumer) -> {
+            try (RecordReader reader = new RecordReader(sbiPath, startOffset, endOffset)) {
+                for (BaseInformationRecords.BaseInformation record : reader) {
+                    consumer.accept(record.getReferenceIndex(), record.getReferenceId(), record.getPosition());
+                }
+            }
+        });
+    }
+
+    /**
+     * Iterate over the records of a region. Only the chunks that overlap the region are read.
+     *
+     * @param region region in the chr:start-end format, where start and end are zero-based positions, both included.
+     * @return iterator over the records in the region, in file order. Close it to release the file.
+     * @throws IOException when the position index cannot be obtained.
+     */
+    public ChunkRangeIterator<BaseInformationRecords.BaseInformation> interval(String region) throws IOException {
+        int colon = region.lastIndexOf(':');
+        int dash = region.indexOf('-', colon + 1);
+        if (colon == -1 || dash == -1) {
+            throw new IllegalArgumentException("Region must be provided in the chr:start-end format: " + region);
+        }
+        int referenceIndex = getPositionIndex().referenceIndex(region.substring(0, colon));
+        return interval(referenceIndex, Integer.parseInt(region.substring(colon + 1, dash)),
+                Integer.parseInt(region.substring(dash + 1)) + 1);
+    }
+
+    /**
+     * Iterate over the records of a genomic interval. Only the chunks that overlap the interval are read.
+     *
+     * @param referenceIndex index of the reference sequence, -1 when the reference is not in the file.
+     * @param start          zero-based start of the interval, included.
+     * @param end            zero-based end of the interval, excluded.
+     * @return iterator over the records in the interval, in file order. Close it to release the file.
+     * @throws IOException when the position index cannot be obtained.
+     */
+    public ChunkRangeIterator<BaseInformationRecords.BaseInformation> interval(int referenceIndex, int start, int end) throws IOException {
+        List<long[]> ranges = referenceIndex != -1 && end > start ?
+                getPositionIndex().byteRanges(referenceIndex, start, end - 1) : Collections.emptyList();
+        return new ChunkRangeIterator<>(ranges, rangeReaderFactory(), record -> record.getReferenceIndex() == referenceIndex &&
+                record.getPosition() >= start && record.getPosition() < end);
+    }
+
+    /**
+     * Iterate over the records that fall inside BED regions. Each chunk that overlaps at least one region is read
+     * once, in file order. The chunks of each region are found by binary search in the position index. Chromosomes of the regions are matched with the reference ids of the records.
+     *
+     * @param regions BED regions (zero-based, end excluded).
+     * @return iterator over the records in the regions, in file order. Close it to release the file.
+     * @throws IOException when the position index cannot be obtained.
+     */
+    public ChunkRangeIterator<BaseInformationRecords.BaseInformation> regions(BEDRecords regions) throws IOException {
+        ChunkPositionIndex index = getPositionIndex();
+        regions.sort();
+        boolean[] selected = new boolean[index.numChunks()];
+        Int2ObjectMap<int[]> mergedRegions = new Int2ObjectOpenHashMap<>();
+        for (String chromosome : regions.chromosomes()) {
+            int referenceIndex = index.referenceIndex(chromosome);
+            if (referenceIndex == -1) {
+                continue;
+            }
+            IntArrayList bounds = new IntArrayList();
+            for (BEDRecord region : regions.records(chromosome)) {
+                if (region.getEndPosition() <= region.getStartPosition()) {
+                    continue;
+                }
+                index.select(selected, referenceIndex, region.getStartPosition(), region.getEndPosition() - 1);
+                // merge regions sorted by start, so that the filter can use a binary search:
+                int last = bounds.size() - 1;
+                if (last > 0 && region.getStartPosition() <= bounds.getInt(last)) {
+                    bounds.set(last, Math.max(bounds.getInt(last), region.getEndPosition()));
+                } else {
+                    bounds.add(region.getStartPosition());
+                    bounds.add(region.getEndPosition());
+                }
+            }
+            mergedRegions.put(referenceIndex, bounds.toIntArray());
+        }
+        return new ChunkRangeIterator<>(index.byteRanges(selected), rangeReaderFactory(), record -> {
+            int[] bounds = mergedRegions.get(record.getReferenceIndex());
+            if (bounds == null) {
+                return false;
+            }
+            // bounds holds start0, end0, start1, end1, ... Positions inside a region fall after an even index:
+            int insertion = Arrays.binarySearch(bounds, record.getPosition());
+            return insertion >= 0 ? insertion % 2 == 0 : (-insertion - 1) % 2 == 1;
+        });
+    }
+
+    private ChunkRangeIterator.RangeReaderFactory<BaseInformationRecords.BaseInformation> rangeReaderFactory() {
+        final String sbiPath = getSourceSbiPath();
+        return (startOffset, endOffset) -> new RecordReader(sbiPath, startOffset, endOffset);
+    }
+
     public Properties getProperties() {
         return reader.getProperties();
     }
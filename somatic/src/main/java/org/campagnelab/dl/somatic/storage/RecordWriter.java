@@ -4,8 +4,11 @@ package org.campagnelab.dl.somatic.storage;
 import org.apache.commons.io.FilenameUtils;
 import org.campagnelab.dl.varanalysis.protobuf.BaseInformationRecords;
 import org.campagnelab.goby.baseinfo.SequenceBaseInformationWriter;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
 import java.io.Closeable;
+import java.io.File;
 import java.io.IOException;
 
 /**
@@ -14,20 +17,35 @@ import java.io.IOException;
  * @author manuele simi
  */
 public class RecordWriter implements Closeable {
+    static private Logger LOG = LoggerFactory.getLogger(RecordWriter.class);
+    /**
+     * Number of records per chunk, unless specified in the constructor.
+     */
+    public static final int DEFAULT_ENTRIES_PER_CHUNK = 10000;
 
     private SequenceBaseInformationWriter writer;
+    private final String sbiFilename;
+    private final int numEntriesPerChunk;
+    private final ChunkPositionIndex.Builder indexBuilder = new ChunkPositionIndex.Builder();
+    private long numWritten;
 
     public RecordWriter(String file, int numEntriesPerChunk) throws IOException {
         writer = new SequenceBaseInformationWriter(file);
         writer.setNumEntriesPerChunk(numEntriesPerChunk);
+        this.numEntriesPerChunk = numEntriesPerChunk;
+        this.sbiFilename = (file.endsWith(".sbi") ? FilenameUtils.removeExtension(file) : file) + ".sbi";
     }
 
     public RecordWriter(String file) throws IOException {
-        writer = new SequenceBaseInformationWriter(file);
+        this(file, DEFAULT_ENTRIES_PER_CHUNK);
     }
 
     public void writeRecord(BaseInformationRecords.BaseInformation record) throws IOException {
         writer.appendEntry(record);
+        // records are written in chunks of numEntriesPerChunk records:
+        indexBuilder.observe((int) (numWritten / numEntriesPerChunk), record.getReferenceIndex(),
+                record.getReferenceId(), record.getPosition());
+        numWritten++;
     }
 
     public static String addParqExtension(String path) {
@@ -51,6 +69,29 @@ public class RecordWriter implements Closeable {
     public void close() throws IOException {
 
         writer.close();
+        writeIndex();
+    }
+
+    /**
+     * Write the position index of the file, built from the positions of the records written. The index is not
+     * written when the chunks found in the file do not match the number of records written per chunk. It can then
+     * be rebuilt with RecordReader.rebuildIndex.
+     */
+    private void writeIndex() {
+        File sbiFile = new File(sbiFilename);
+        if (!sbiFile.exists()) {
+            return;
+        }
+        try {
+            long[] chunkOffsets = ChunkPositionIndex.chunkOffsets(sbiFile);
+            if (chunkOffsets.length - 1 != indexBuilder.numChunks()) {
+                LOG.warn("Chunks of {} do not match the records written, position index not written.", sbiFilename);
+                return;
+            }
+            indexBuilder.build(chunkOffsets).save(sbiFilename);
+        } catch (IOException e) {
+            LOG.warn("Unable to write the position index of " + sbiFilename, e);
+        }
     }
 
 }
@@ -1,23 +1,20 @@
 package org.campagnelab.dl.somatic.tools;
 
-import it.unimi.dsi.fastutil.ints.Int2ObjectAVLTreeMap;
-import it.unimi.dsi.fastutil.objects.Object2ObjectArrayMap;
-import it.unimi.dsi.io.FastBufferedReader;
-import it.unimi.dsi.io.LineIterator;
-import it.unimi.dsi.lang.MutableString;
+import it.unimi.dsi.fastutil.objects.ObjectArrayList;
 import it.unimi.dsi.logging.ProgressLogger;
 import it.unimi.dsi.util.XorShift1024StarRandom;
 import org.apache.commons.compress.utils.IOUtils;
+import org.apache.commons.io.FilenameUtils;
 import org.campagnelab.dl.framework.tools.arguments.AbstractTool;
+import org.campagnelab.dl.somatic.storage.ParallelRecordRouter;
 import org.campagnelab.dl.somatic.storage.RecordReader;
 import org.campagnelab.dl.somatic.storage.RecordWriter;
 import org.campagnelab.dl.varanalysis.protobuf.BaseInformationRecords;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import java.io.FileNotFoundException;
-import java.io.FileReader;
 import java.io.IOException;
+import java.util.List;
 import java.util.Random;
 
 /**
@@ -42,107 +39,82 @@ public class CombineWithGoldStandard extends AbstractTool<CombineWithGoldStandar
 
     @Override
     public void execute() {
-        loadAnnotations(args().annotationFilename);
-        RecordWriter outputWriters = null;
-        try {
-            outputWriters = new RecordWriter(args().outputFilename);
-        } catch (IOException e) {
-            throw new RuntimeException("Unable to create output file+" + args().outputFilename, e);
-        }
-        Random rand = new XorShift1024StarRandom();
+        GoldStandardAnnotations annotations = GoldStandardAnnotations.load(args().annotationFilename);
+        List<Annotator> annotators = new ObjectArrayList<>();
         try (RecordReader reader = new RecordReader(args().sbiFilename)) {
-
-
 //set up logger
             ProgressLogger pgRead = new ProgressLogger(LOG);
             pgRead.itemsName = "records";
-            pgRead.expectedUpdates = Math.min(reader.getTotalRecords(), reader.getTotalRecords());
+            pgRead.expectedUpdates = reader.getTotalRecords();
             pgRead.displayFreeMemory = true;
             pgRead.start();
-            long numWritten = 0;
-            long numMutatedWritten = 0;
-            for (BaseInformationRecords.BaseInformation record : reader) {
-                record = annotate(record);
-                double choice = rand.nextDouble();
-                if (choice < args().samplingFraction || record.getMutated()) {
-                    outputWriters.writeRecord(record);
-                    numWritten += 1;
-                    if (record.getMutated()) {
-                        numMutatedWritten++;
-                       /* System.out.printf("%s:%d\n\tnormal: %s\ttumor:  %s %n", record.getReferenceId(), record.getPosition(),
-                                record.getSamples(0).getFormattedCounts(),
-                                record.getSamples(1).getFormattedCounts());*/
+            if (args().numThreads <= 1) {
+                Annotator annotator = new Annotator(annotations.cursor(), new XorShift1024StarRandom());
+                annotators.add(annotator);
+                RecordWriter[] outputWriters = new RecordWriter[1];
+                try {
+                    outputWriters[0] = new RecordWriter(args().outputFilename);
+                } catch (IOException e) {
+                    throw new RuntimeException("Unable to create output file+" + args().outputFilename, e);
+                }
+                try {
+                    for (BaseInformationRecords.BaseInformation record : reader) {
+                        annotator.process(record, outputWriters);
+                        pgRead.lightUpdate();
                     }
+                } finally {
+                    IOUtils.closeQuietly(outputWriters[0]);
                 }
-                pgRead.lightUpdate();
+            } else {
+                // each byte range of the input is annotated with its own cursor and sampled with its own random
+                // generator:
+                String outputBasename = args().outputFilename.endsWith(".sbi") ?
+                        FilenameUtils.removeExtension(args().outputFilename) : args().outputFilename;
+                new ParallelRecordRouter(reader.getSourceSbiPath(), new String[]{outputBasename}, args().numThreads)
+                        .process(partition -> {
+                            Annotator annotator = new Annotator(annotations.cursor(), new XorShift1024StarRandom());
+                            annotators.add(annotator);
+                            return annotator;
+                        }, pgRead);
             }
             pgRead.stop();
+            long numWritten = 0;
+            long numMutatedWritten = 0;
+            for (Annotator annotator : annotators) {
+                numWritten += annotator.numWritten;
+                numMutatedWritten += annotator.numMutatedWritten;
+            }
             System.out.printf("Wrote %d records (of which %d are mutated).", numWritten, numMutatedWritten);
         } catch (IOException e) {
             throw new RuntimeException("Unable to load or write files. Check command line arguments.",e);
-        } finally {
-            IOUtils.closeQuietly(outputWriters);
         }
     }
 
-    class Mutation {
-        String from;
-        String to;
-        int position;
-    }
-
-    Object2ObjectArrayMap<String, Int2ObjectAVLTreeMap<Annotation>> annotations = new Object2ObjectArrayMap<>();
-
-    class Annotation {
-        int position;
-        String toBase;
-        // true proportion of the somatic variation among cells. May be null if this information is not available.
-        // the frequency is between 0 and 1.
-        Float frequency;
-    }
-
-    private void loadAnnotations(String annotationFilename) {
-        try {
-            LineIterator lines = new LineIterator(new FastBufferedReader(new FileReader(annotationFilename)));
-            for (MutableString line : lines.allLines()) {
-               if (line.startsWith("#")) continue;
-                String tokens[] = line.toString().split("\t");
-                final String chromosome = tokens[0];
-                int position = Integer.parseInt(tokens[1]);
-                // convert to zero-based position used by goby/variationanalysis:
-                position -= 1;
-                Int2ObjectAVLTreeMap<Annotation> perPositionMap = annotations.getOrDefault(chromosome, new Int2ObjectAVLTreeMap<>());                Annotation a = new Annotation();
-                a.position = position;
-                a.toBase = tokens.length >= 3 ? tokens[2] : null;
-                a.frequency = tokens.length >= 4 ? Float.parseFloat(tokens[3]) : null;
-                perPositionMap.put(position, a);
-                annotations.put(chromosome, perPositionMap);
-            }
-        } catch (FileNotFoundException e) {
-            throw new RuntimeException("Unable to find annotation filename:" + annotationFilename, e);
+    /**
+     * Annotates the records of one partition and writes annotated records and a sample of the other records.
+     */
+    private class Annotator implements ParallelRecordRouter.Processor {
+        private final GoldStandardAnnotations.Cursor cursor;
+        private final Random rand;
+        long numWritten;
+        long numMutatedWritten;
 
+        Annotator(GoldStandardAnnotations.Cursor cursor, Random rand) {
+            this.cursor = cursor;
+            this.rand = rand;
         }
-    }
 
-    private BaseInformationRecords.BaseInformation annotate(BaseInformationRecords.BaseInformation record) {
-        if (!isAnnotated(record.getReferenceId(), record.getPosition())) {
-            return record;
-        }
-        final BaseInformationRecords.BaseInformation.Builder builder = record.toBuilder();
-        Annotation a=getAnnotation(record.getReferenceId(), record.getPosition());
-        if (a.toBase!=null) {
-            builder.setMutatedBase(a.toBase);
-        }
-        if (a.frequency !=null) {
-            builder.setFrequencyOfMutation(a.frequency);
+        @Override
+        public void process(BaseInformationRecords.BaseInformation record, RecordWriter[] writers) throws IOException {
+            record = cursor.annotate(record);
+            double choice = rand.nextDouble();
+            if (choice < args().samplingFraction || record.getMutated()) {
+                writers[0].writeRecord(record);
+                numWritten += 1;
+                if (record.getMutated()) {
+                    numMutatedWritten++;
+                }
+            }
         }
-        return builder.setMutated(true).build();
-    }
-
-    private boolean isAnnotated(String referenceId, int position) {
-        return annotations.getOrDefault(referenceId, new Int2ObjectAVLTreeMap<Annotation>()).getOrDefault(position, null)!=null;
-    }
-    private Annotation getAnnotation(String referenceId, int position) {
-        return annotations.getOrDefault(referenceId, new Int2ObjectAVLTreeMap<Annotation>()).get(position);
     }
 }
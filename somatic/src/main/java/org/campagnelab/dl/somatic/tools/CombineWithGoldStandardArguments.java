@@ -20,4 +20,7 @@ public class CombineWithGoldStandardArguments implements ToolArguments {
 
     @Parameter( names = {"-f", "--sampling-fraction"}, description = "Fraction of the input file to write to the output. Annotated site are written irrespective of fraction.")
     float samplingFraction=1f;
+
+    @Parameter(names = {"--threads"}, description = "Number of threads used to annotate byte ranges of the input. Records are written in input order.")
+    int numThreads = 1;
 }
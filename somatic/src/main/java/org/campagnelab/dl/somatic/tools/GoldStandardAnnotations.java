@@ -0,0 +1,188 @@
+package org.campagnelab.dl.somatic.tools;
+
+import it.unimi.dsi.fastutil.ints.Int2IntOpenHashMap;
+import it.unimi.dsi.fastutil.ints.IntArrayList;
+import it.unimi.dsi.fastutil.objects.Object2IntOpenHashMap;
+import it.unimi.dsi.fastutil.objects.Object2ObjectLinkedOpenHashMap;
+import it.unimi.dsi.fastutil.objects.ObjectArrayList;
+import it.unimi.dsi.io.FastBufferedReader;
+import it.unimi.dsi.io.LineIterator;
+import it.unimi.dsi.lang.MutableString;
+import org.campagnelab.dl.somatic.utils.SortedIntCursor;
+import org.campagnelab.dl.varanalysis.protobuf.BaseInformationRecords;
+
+import java.io.FileNotFoundException;
+import java.io.FileReader;
+import java.io.Reader;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Gold standard annotations of somatic mutations, stored per chromosome in arrays sorted by position. Records are
+ * annotated with a {@link Cursor}, which advances along the arrays as positions increase (see
+ * {@link SortedIntCursor}), so that annotating a sorted .sbi file costs one comparison per record. The annotations are read-only once loaded and can be shared by the
+ * cursors of several threads.
+ * <p>
+ * TSV format is chromosome\tposition\t[toBases]\t[somaticFrequency], with one-based positions.
+ */
+public class GoldStandardAnnotations {
+    /**
+     * Annotations of one chromosome, sorted by position.
+     */
+    private static class Chromosome {
+        final int[] positions;
+        final String[] toBases;
+        // NaN when the frequency is not available:
+        final float[] frequencies;
+
+        Chromosome(int[] positions, String[] toBases, float[] frequencies) {
+            this.positions = positions;
+            this.toBases = toBases;
+            this.frequencies = frequencies;
+        }
+    }
+
+    private final Object2IntOpenHashMap<String> chromosomeIndices = new Object2IntOpenHashMap<>();
+    private final Chromosome[] chromosomes;
+
+    private GoldStandardAnnotations(Object2ObjectLinkedOpenHashMap<String, List<String[]>> linesPerChromosome) {
+        chromosomeIndices.defaultReturnValue(-1);
+        chromosomes = new Chromosome[linesPerChromosome.size()];
+        int chromosomeIndex = 0;
+        for (Object2ObjectLinkedOpenHashMap.Entry<String, List<String[]>> entry : linesPerChromosome.object2ObjectEntrySet()) {
+            chromosomeIndices.put(entry.getKey(), chromosomeIndex);
+            chromosomes[chromosomeIndex++] = sort(entry.getValue());
+        }
+    }
+
+    /**
+     * Sort the annotations of a chromosome by position. When a position is annotated more than once, the last
+     * annotation is kept.
+     */
+    private static Chromosome sort(List<String[]> lines) {
+        final int[] zeroBasedPositions = new int[lines.size()];
+        for (int i = 0; i < zeroBasedPositions.length; i++) {
+            // convert to zero-based position used by goby/variationanalysis:
+            zeroBasedPositions[i] = Integer.parseInt(lines.get(i)[1]) - 1;
+        }
+        Integer[] order = new Integer[zeroBasedPositions.length];
+        for (int i = 0; i < order.length; i++) {
+            order[i] = i;
+        }
+        // stable, so that annotations of the same position stay in file order:
+        Arrays.sort(order, (a, b) -> Integer.compare(zeroBasedPositions[a], zeroBasedPositions[b]));
+        IntArrayList positions = new IntArrayList();
+        ObjectArrayList<String> toBases = new ObjectArrayList<>();
+        float[] frequencies = new float[order.length];
+        for (int i = 0; i < order.length; i++) {
+            String[] tokens = lines.get(order[i]);
+            int last = positions.size() - 1;
+            int slot = last >= 0 && positions.getInt(last) == zeroBasedPositions[order[i]] ? last : positions.size();
+            if (slot == positions.size()) {
+                positions.add(zeroBasedPositions[order[i]]);
+                toBases.add(null);
+            }
+            toBases.set(slot, tokens.length >= 3 ? tokens[2] : null);
+            frequencies[slot] = tokens.length >= 4 ? Float.parseFloat(tokens[3]) : Float.NaN;
+        }
+        return new Chromosome(positions.toIntArray(), toBases.toArray(new String[0]),
+                Arrays.copyOf(frequencies, positions.size()));
+    }
+
+    /**
+     * Load annotations from a TSV file. Lines that start with # are ignored.
+     *
+     * @param annotationFilename path of the TSV file.
+     * @return the annotations.
+     */
+    public static GoldStandardAnnotations load(String annotationFilename) {
+        try {
+            return load(new FileReader(annotationFilename));
+        } catch (FileNotFoundException e) {
+            throw new RuntimeException("Unable to find annotation filename:" + annotationFilename, e);
+        }
+    }
+
+    /**
+     * Load annotations in TSV format. Lines that start with # are ignored.
+     *
+     * @param reader reader over the TSV lines.
+     * @return the annotations.
+     */
+    public static GoldStandardAnnotations load(Reader reader) {
+        Object2ObjectLinkedOpenHashMap<String, List<String[]>> linesPerChromosome = new Object2ObjectLinkedOpenHashMap<>();
+        LineIterator lines = new LineIterator(new FastBufferedReader(reader));
+        for (MutableString line : lines.allLines()) {
+            if (line.startsWith("#")) continue;
+            String tokens[] = line.toString().split("\t");
+            linesPerChromosome.computeIfAbsent(tokens[0], chromosome -> new ObjectArrayList<>()).add(tokens);
+        }
+        return new GoldStandardAnnotations(linesPerChromosome);
+    }
+
+    /**
+     * Return a new cursor over the annotations. Cursors are not thread-safe: each thread needs its own.
+     */
+    public Cursor cursor() {
+        return new Cursor();
+    }
+
+    /**
+     * Finds the annotation of records. The cursor remembers the chromosome and index of the last record annotated and
+     * advances from there when positions increase. It falls back to a binary search when the input goes back.
+     */
+    public class Cursor {
+        // chromosome slot for each reference index seen so far:
+        private final Int2IntOpenHashMap slotOfReferenceIndex = new Int2IntOpenHashMap();
+        private final SortedIntCursor positions = new SortedIntCursor();
+        private int currentReferenceIndex = Integer.MIN_VALUE;
+        private Chromosome current;
+
+        private Cursor() {
+        }
+
+        /**
+         * Annotate a record. Records that are not annotated are returned as is, without rebuilding the protobuf.
+         *
+         * @param record the record.
+         * @return the record, marked as mutated when it is annotated.
+         */
+        public BaseInformationRecords.BaseInformation annotate(BaseInformationRecords.BaseInformation record) {
+            int found = find(record.getReferenceIndex(), record.getReferenceId(), record.getPosition());
+            if (found == -1) {
+                return record;
+            }
+            final BaseInformationRecords.BaseInformation.Builder builder = record.toBuilder();
+            if (current.toBases[found] != null) {
+                builder.setMutatedBase(current.toBases[found]);
+            }
+            if (!Float.isNaN(current.frequencies[found])) {
+                builder.setFrequencyOfMutation(current.frequencies[found]);
+            }
+            return builder.setMutated(true).build();
+        }
+
+        /**
+         * Find the annotation of a position.
+         *
+         * @return index of the annotation in the arrays of the chromosome, or -1 when the position is not annotated.
+         */
+        int find(int referenceIndex, String referenceId, int position) {
+            if (referenceIndex != currentReferenceIndex) {
+                currentReferenceIndex = referenceIndex;
+                int slot;
+                if (slotOfReferenceIndex.containsKey(referenceIndex)) {
+                    slot = slotOfReferenceIndex.get(referenceIndex);
+                } else {
+                    slot = chromosomeIndices.getInt(referenceId);
+                    slotOfReferenceIndex.put(referenceIndex, slot);
+                }
+                current = slot == -1 ? null : chromosomes[slot];
+                if (current != null) {
+                    positions.reset(current.positions);
+                }
+            }
+            return current == null ? -1 : positions.find(position);
+        }
+    }
+}
@@ -0,0 +1,51 @@
+package org.campagnelab.dl.somatic.tools;
+
+import org.campagnelab.dl.framework.tools.arguments.AbstractTool;
+import org.campagnelab.dl.somatic.storage.ChunkPositionIndex;
+import org.campagnelab.dl.somatic.storage.RecordReader;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+
+/**
+ * A tool to build the position index of sbi files written before indices were introduced. The index lets
+ * {@link RecordReader#interval(int, int, int)} and {@link RecordReader#regions} read only the chunks that overlap
+ * genomic intervals.
+ */
+public class IndexRecords extends AbstractTool<IndexRecordsArguments> {
+
+    static private Logger LOG = LoggerFactory.getLogger(IndexRecords.class);
+
+    public static void main(String[] args) {
+
+        IndexRecords tool = new IndexRecords();
+        tool.parseArguments(args, "IndexRecords", tool.createArguments());
+        tool.execute();
+    }
+
+    @Override
+    public void execute() {
+        try {
+            for (String inputFile : args().inputFiles) {
+                String sbiPath;
+                try (RecordReader reader = new RecordReader(inputFile)) {
+                    sbiPath = reader.getSourceSbiPath();
+                }
+                if (!args().force && ChunkPositionIndex.load(sbiPath) != null) {
+                    LOG.info("Index of {} is up to date.", sbiPath);
+                    continue;
+                }
+                ChunkPositionIndex index = RecordReader.rebuildIndex(sbiPath);
+                LOG.info("Indexed {} chunks of {}", index.numChunks(), sbiPath);
+            }
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    @Override
+    public IndexRecordsArguments createArguments() {
+        return new IndexRecordsArguments();
+    }
+}
@@ -0,0 +1,21 @@
+package org.campagnelab.dl.somatic.tools;
+
+import com.beust.jcommander.Parameter;
+import com.beust.jcommander.Parameters;
+import org.campagnelab.dl.framework.tools.arguments.ToolArguments;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Arguments of IndexRecords tool.
+ */
+@Parameters(commandDescription = "Build the position index (.sbi.idx) of existing sbi files.")
+
+public class IndexRecordsArguments implements ToolArguments {
+    @Parameter(required = true, variableArity = true, names = {"-i", "--input-files"}, description = "Input files in .sbi/.sbip format.")
+    public List<String> inputFiles = new ArrayList<>();
+
+    @Parameter(names = {"-f", "--force"}, description = "Rebuild the index even when an up to date index exists.")
+    public boolean force;
+}
@@ -2,19 +2,29 @@ package org.campagnelab.dl.somatic.tools;
 
 import it.unimi.dsi.fastutil.objects.ObjectArrayList;
 import it.unimi.dsi.logging.ProgressLogger;
+import it.unimi.dsi.util.XorShift1024StarRandom;
+import org.apache.commons.io.FilenameUtils;
 import org.campagnelab.dl.framework.tools.arguments.AbstractTool;
 import org.campagnelab.dl.somatic.intermediaries.SimulationCharacteristics;
 import org.campagnelab.dl.somatic.intermediaries.SimulationStrategy;
+import org.campagnelab.dl.somatic.storage.ChunkPositionIndex;
 import org.campagnelab.dl.somatic.storage.RecordReader;
 import org.campagnelab.dl.somatic.storage.RecordWriter;
 import org.campagnelab.dl.varanalysis.protobuf.BaseInformationRecords;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.io.File;
 import java.io.IOException;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Iterator;
+import java.util.List;
 import java.util.Random;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 /**
  * The mutator object iterates over a file and creates additional copies of every record, where
@@ -28,6 +38,7 @@ import java.util.Random;
 public class Mutate extends AbstractTool<MutateArguments> {
     private static final int CHUNK_SIZE = 10000;
     private static final int NUM_SIMULATED_RECORD_PER_DATUM = 2;
+    private static final long CONCAT_BUFFER_SIZE = 100 * 1024 * 1024;
     static private Logger LOG = LoggerFactory.getLogger(Mutate.class);
 
     final String[] STRING = new String[]{"A", "T", "C", "G"};
@@ -76,52 +87,129 @@ public class Mutate extends AbstractTool<MutateArguments> {
 
     public void execute() {
         try {
-            RecordReader reader = new RecordReader(args().inputFile);
-            RecordWriter writer = new RecordWriter(args().outputFile);
-
-            //set up logger
-            ProgressLogger pgReadWrite = new ProgressLogger(LOG);
-            pgReadWrite.itemsName = "mutation";
-            pgReadWrite.expectedUpdates = reader.getTotalRecords();
-            pgReadWrite.displayFreeMemory = true;
-            pgReadWrite.start();
-            SimulationCharacteristics sim = new SimulationCharacteristics();
-            int maxProcess = Integer.MAX_VALUE;
-            int iteration = 0;
-            for (BaseInformationRecords.BaseInformation base : reader) {
-                iteration++;
-                sim.observe(base);
-                if (sim.size() >= CHUNK_SIZE) {
-                    sim.batchIsComplete();
-                    processBatch(sim, writer);
-                    sim.clear();
-                }
+            if (args().numThreads > 1) {
+                executeParallel(args().numThreads);
+            } else {
+                RecordReader reader = new RecordReader(args().inputFile);
+                RecordWriter writer = new RecordWriter(args().outputFile);
 
-                pgReadWrite.lightUpdate();
-                if (iteration > maxProcess) {
-                    break;
-                }
+                //set up logger
+                ProgressLogger pgReadWrite = createProgressLogger(reader.getTotalRecords());
+                pgReadWrite.start();
+                mutatePartition(reader, writer, strategy, pgReadWrite);
+                pgReadWrite.stop();
+                reader.close();
+                writer.close();
             }
-            processBatch(sim, writer);
-
-            pgReadWrite.stop();
-            reader.close();
-            writer.close();
             System.out.println("Fraction of non-canonical:" + ((float) 1 - ((float) numCanonical / (float) numRecordsTotal)));
         } catch (IOException e) {
             System.err.println("Unable to load or write files. Check command line arguments.");
         }
     }
 
+    /**
+     * Simulate in parallel. The input is split in numThreads partitions of about the same number of bytes. Each
+     * partition is read by its own reader and mutated with its own strategy, seeded from a random stream
+     * initialized with --random-seed, and written to a temporary file. Temporary files are then concatenated in
+     * partition order, so that the output only depends on the seed and the number of threads.
+     *
+     * @param numThreads number of partitions and threads.
+     * @throws IOException
+     */
+    private void executeParallel(int numThreads) throws IOException {
+        String inputSbi;
+        long totalRecords;
+        try (RecordReader reader = new RecordReader(args().inputFile)) {
+            inputSbi = reader.getSourceSbiPath();
+            totalRecords = reader.getTotalRecords();
+        }
+        String outputBasename = args().outputFile.endsWith(".sbi") ?
+                FilenameUtils.removeExtension(args().outputFile) : args().outputFile;
+        long inputLength = new File(inputSbi).length();
+        XorShift1024StarRandom seeds = new XorShift1024StarRandom(args().seed);
+        String[] partitionBasenames = new String[numThreads];
+        ProgressLogger pgReadWrite = createProgressLogger(totalRecords);
+        pgReadWrite.start();
+        ExecutorService executor = Executors.newFixedThreadPool(numThreads);
+        try {
+            List<Future<?>> futures = new ArrayList<>();
+            for (int partition = 0; partition < numThreads; partition++) {
+                final long startOffset = inputLength * partition / numThreads;
+                final long endOffset = inputLength * (partition + 1) / numThreads;
+                final String partitionBasename = String.format("%s-part-%d", outputBasename, partition);
+                partitionBasenames[partition] = partitionBasename;
+                final SimulationStrategy partitionStrategy = createStrategy(args().strategyClassname);
+                partitionStrategy.setup(deltaSmall, deltaBig, args().heteroHeuristic, seeds.nextLong(), args().canonThreshold);
+                futures.add(executor.submit(() -> {
+                    try (RecordReader reader = new RecordReader(inputSbi, startOffset, endOffset);
+                         RecordWriter writer = new RecordWriter(partitionBasename)) {
+                        mutatePartition(reader, writer, partitionStrategy, pgReadWrite);
+                    }
+                    return null;
+                }));
+            }
+            for (Future<?> future : futures) {
+                future.get();
+            }
+        } catch (InterruptedException | ExecutionException e) {
+            throw new RuntimeException("Unable to simulate records in parallel.", e);
+        } finally {
+            executor.shutdown();
+        }
+        pgReadWrite.stop();
+        QuickConcat.concatenate(partitionBasenames, outputBasename, CONCAT_BUFFER_SIZE, null);
+        for (String partitionBasename : partitionBasenames) {
+            new File(partitionBasename + ".sbi").delete();
+            new File(partitionBasename + ".sbip").delete();
+            new File(ChunkPositionIndex.indexFilename(partitionBasename + ".sbi")).delete();
+        }
+    }
+
+    private ProgressLogger createProgressLogger(long expectedUpdates) {
+        ProgressLogger pgReadWrite = new ProgressLogger(LOG);
+        pgReadWrite.itemsName = "mutation";
+        pgReadWrite.expectedUpdates = expectedUpdates;
+        pgReadWrite.displayFreeMemory = true;
+        return pgReadWrite;
+    }
+
+    /**
+     * Mutate the records of one reader and write them in order.
+     *
+     * @param reader      source of records.
+     * @param writer      destination of the original and mutated records.
+     * @param strategy    simulation strategy, used by this partition only.
+     * @param pgReadWrite progress logger, shared across partitions.
+     */
+    private void mutatePartition(RecordReader reader, RecordWriter writer, SimulationStrategy strategy,
+                                 ProgressLogger pgReadWrite) throws IOException {
+        SimulationCharacteristics sim = new SimulationCharacteristics();
+        for (BaseInformationRecords.BaseInformation base : reader) {
+            sim.observe(base);
+            if (sim.size() >= CHUNK_SIZE) {
+                sim.batchIsComplete();
+                processBatch(sim, writer, strategy);
+                sim.clear();
+            }
+            synchronized (pgReadWrite) {
+                pgReadWrite.lightUpdate();
+            }
+        }
+        processBatch(sim, writer, strategy);
+    }
+
     /**
      * Process one batch of records.
      *
      * @param sim
      * @param writer
+     * @param strategy
      */
-    private void processBatch(SimulationCharacteristics sim, RecordWriter writer) throws IOException {
+    private void processBatch(SimulationCharacteristics sim, RecordWriter writer, SimulationStrategy strategy) throws IOException {
         Iterator<BaseInformationRecords.BaseInformation> iterator = sim.iterator();
         ObjectArrayList<BaseInformationRecords.BaseInformation> shufflingList = new ObjectArrayList<>();
+        int batchCanonical = 0;
+        int batchRecords = 0;
         while (iterator.hasNext()) {
             BaseInformationRecords.BaseInformation record = iterator.next();
             if (strategy.numberOfSamplesSupported() != record.getSamplesCount()) {
@@ -131,14 +219,14 @@ public class Mutate extends AbstractTool<MutateArguments> {
                 System.exit(1);
             }
             shufflingList.add(strategy.mutate( false, record, record.getSamples(0), record.getSamples(1), sim));
-            numRecordsTotal++;
+            batchRecords++;
 
             for (int i = 0; i < args().k; i++) {
                 BaseInformationRecords.BaseInformation possiblyMutated = strategy.mutate(true, record, record.getSamples(0), record.getSamples(1), sim);
                 if (possiblyMutated.getMutated()) {
                     shufflingList.add(possiblyMutated);
                     if (i == 0) {
-                        numCanonical++;
+                        batchCanonical++;
                     }
                 } else {
                     break;
@@ -152,6 +240,10 @@ public class Mutate extends AbstractTool<MutateArguments> {
             writer.writeRecord(record);
             numMutated += record.getMutated() ? 1 : 0;
         }
+        synchronized (this) {
+            numCanonical += batchCanonical;
+            numRecordsTotal += batchRecords;
+        }
         System.out.printf("Ratio of mutated to total record (0-1): %f%n", numMutated / shufflingList.size());
         System.out.flush();
         shufflingList.clear();
@@ -33,4 +33,9 @@ public class MutateArguments implements ToolArguments {
 
     @Parameter( names = { "--random-seed"}, description = "Random seed.")
     public long seed= 2398823;
+
+    @Parameter(names = {"--threads"}, description = "Number of threads. When larger than one, the input is split in as many " +
+            "partitions, each simulated with its own random stream derived from --random-seed, and partition outputs are " +
+            "concatenated in input order. The output is reproducible for a given seed and number of threads.")
+    public int numThreads = 1;
 }
@@ -1,31 +1,43 @@
 package org.campagnelab.dl.somatic.tools;
 
+import it.unimi.dsi.fastutil.objects.ObjectAVLTreeSet;
 import it.unimi.dsi.fastutil.objects.ObjectArrayList;
 import it.unimi.dsi.fastutil.objects.ObjectList;
+import it.unimi.dsi.fastutil.objects.ObjectOpenHashSet;
 import it.unimi.dsi.logging.ProgressLogger;
-import org.apache.commons.compress.utils.IOUtils;
 import org.apache.commons.io.FilenameUtils;
 import org.campagnelab.dl.framework.tools.arguments.AbstractTool;
 import org.campagnelab.dl.somatic.intermediaries.QuickConcatArguments;
-import org.campagnelab.dl.somatic.storage.RecordReader;
-import org.campagnelab.goby.baseinfo.SequenceBaseInformationReader;
-import org.campagnelab.goby.baseinfo.SequenceBaseInformationWriter;
+import org.campagnelab.dl.somatic.storage.ChunkPositionIndex;
 import org.campagnelab.goby.compression.MessageChunksWriter;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.*;
 import java.nio.channels.FileChannel;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Comparator;
+import java.util.List;
 import java.util.Properties;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 /**
  * A utility to quickly concatenate a list of .sbi files. Concatenation does not decompress each file and simply
- * concatenates the bytes and add up the number of records.
+ * concatenates the bytes and add up the number of records. Inputs are copied in parallel with --threads.
  */
 public class QuickConcat extends AbstractTool<QuickConcatArguments> {
     static private Logger LOG = LoggerFactory.getLogger(QuickConcat.class);
+    private static final String NUM_RECORDS = "numRecords";
+    /**
+     * Properties that count records, and add up when files are concatenated. The counts are those written by SbiStats.
+     */
+    private static final Set<String> ADDITIVE_KEYS = new ObjectOpenHashSet<>(Arrays.asList(
+            "sbiStats.numSites", "sbiStats.numIndels", "sbiStats.numSnps", "sbiStats.numHetSnps",
+            "sbiStats.numHomSnps", "sbiStats.numHetIndels", "sbiStats.numHomIndels", "sbiStats.numVariants"));
 
     @Override
     public QuickConcatArguments createArguments() {
@@ -85,72 +97,279 @@ public class QuickConcat extends AbstractTool<QuickConcatArguments> {
         progressLogger.expectedUpdates = inputFilenames.length;
         progressLogger.displayFreeMemory = true;
         progressLogger.start();
-        FileChannel input = null;
-        FileChannel output = null;
-        long bufferSize = arguments.copyBufferSize;
+        concatenate(inputFilenames, outputBasename, arguments.copyBufferSize, arguments.numThreads, progressLogger);
+        progressLogger.stop();
+    }
 
+    /**
+     * Concatenate .sbi files in the order provided with one thread. See
+     * {@link #concatenate(String[], String, long, int, ProgressLogger)}.
+     */
+    public static void concatenate(String[] inputFilenames, String outputBasename, long bufferSize,
+                                   ProgressLogger progressLogger) {
+        concatenate(inputFilenames, outputBasename, bufferSize, 1, progressLogger);
+    }
+
+    /**
+     * Concatenate .sbi files in the order provided, without decompressing records, and write the properties of
+     * the output. Input files are never opened with a record reader: a file is empty when its first chunk is the
+     * end of file marker, and properties are merged from the .sbip files (number of records and counts are added,
+     * min and max statistics are combined, see {@link #mergeProperties(List)}). Files without records are skipped. Each input is copied at its own
+     * offset in the output, so that several inputs can be copied at the same time.
+     *
+     * @param inputFilenames .sbi files to concatenate.
+     * @param outputBasename basename of the output, without the .sbi extension.
+     * @param bufferSize     number of bytes copied at a time.
+     * @param numThreads     number of files copied at the same time.
+     * @param progressLogger logger updated after each file is copied, or null.
+     */
+    public static void concatenate(String[] inputFilenames, String outputBasename, long bufferSize, int numThreads,
+                                   ProgressLogger progressLogger) {
+        final int numFiles = inputFilenames.length;
         ObjectList<Properties> properties = new ObjectArrayList<>();
-        for (final String inputFilename : inputFilenames) {
-            try {
-                SequenceBaseInformationReader reader = new SequenceBaseInformationReader(inputFilename);
-                properties.add(reader.getProperties());
-                reader.close();
-            } catch (IOException e) {
-                throw new RuntimeException("Unable to open " + inputFilename, e);
+        boolean[] empty = new boolean[numFiles];
+        long[] lengths = new long[numFiles];
+        for (int fileIndex = 0; fileIndex < numFiles; fileIndex++) {
+            String sbiFilename = sbiFilename(inputFilenames[fileIndex]);
+            properties.add(loadProperties(sbiFilename + "p"));
+            lengths[fileIndex] = new File(sbiFilename).length();
+            empty[fileIndex] = isEmpty(sbiFilename);
+        }
+        try (Writer writer = new FileWriter(outputBasename + ".sbip")) {
+            mergeProperties(properties).store(writer, "Concatenation of " + numFiles + " files");
+        } catch (IOException e) {
+            throw new RuntimeException("Unable to write properties", e);
+        }
+        // the last file with records is copied with its end of file marker. When no file has records, the last file
+        // is copied to obtain a valid empty output:
+        int lastFileNumToCopy = numFiles - 1;
+        while (lastFileNumToCopy > 0 && empty[lastFileNumToCopy]) {
+            lastFileNumToCopy--;
+        }
+        final long[] offsets = new long[numFiles];
+        final long[] bytesToCopy = new long[numFiles];
+        long outputLength = 0;
+        for (int curFileNum = 0; curFileNum <= lastFileNumToCopy; curFileNum++) {
+            offsets[curFileNum] = outputLength;
+            // do not try to concat an empty file:
+            if (!empty[curFileNum] || curFileNum == lastFileNumToCopy) {
+                bytesToCopy[curFileNum] = lengths[curFileNum];
+                if (curFileNum < lastFileNumToCopy) {
+                    // Compact-reads files end with a delimiter (8 x 0xff)
+                    // followed by a 4 byte int 0 (4 x 0x00). Strip
+                    // these on all but the last file.
+                    bytesToCopy[curFileNum] -= END_OF_FILE_LENGTH;
+                }
             }
+            outputLength += bytesToCopy[curFileNum];
         }
+        ExecutorService executor = Executors.newFixedThreadPool(Math.max(1, numThreads));
+        try (RandomAccessFile output = new RandomAccessFile(outputBasename + ".sbi", "rw")) {
+            output.setLength(outputLength);
+            final FileChannel outputChannel = output.getChannel();
+            List<Future<?>> futures = new ArrayList<>();
+            for (int curFileNum = 0; curFileNum <= lastFileNumToCopy; curFileNum++) {
+                if (bytesToCopy[curFileNum] == 0) {
+                    continue;
+                }
+                final int fileNum = curFileNum;
+                futures.add(executor.submit(() -> {
+                    copy(sbiFilename(inputFilenames[fileNum]), bytesToCopy[fileNum], outputChannel, offsets[fileNum],
+                            bufferSize);
+                    if (progressLogger != null) {
+                        synchronized (progressLogger) {
+                            progressLogger.update();
+                        }
+                    }
+                    return null;
+                }));
+            }
+            for (Future<?> future : futures) {
+                future.get();
+            }
+            System.out.printf("Concatenated %d files.%n", numFiles);
+        } catch (Exception e) {
+            throw new RuntimeException("Unable to concatenate", e);
+        } finally {
+            executor.shutdown();
+        }
+        writeIndex(inputFilenames, outputBasename, offsets, bytesToCopy, lastFileNumToCopy);
+    }
 
+    /**
+     * Write the position index of the output when all the copied inputs have an index.
+     */
+    private static void writeIndex(String[] inputFilenames, String outputBasename, long[] offsets,
+                                   long[] bytesToCopy, int lastFileNumToCopy) {
+        String outputSbi = outputBasename + ".sbi";
+        new File(ChunkPositionIndex.indexFilename(outputSbi)).delete();
         try {
-            SequenceBaseInformationWriter.writeProperties(outputBasename, properties);
-        } catch (FileNotFoundException e) {
-            throw new RuntimeException("Unable to write properties", e);
+            ChunkPositionIndex[] indices = new ChunkPositionIndex[inputFilenames.length];
+            for (int curFileNum = 0; curFileNum <= lastFileNumToCopy; curFileNum++) {
+                if (bytesToCopy[curFileNum] == 0) {
+                    continue;
+                }
+                indices[curFileNum] = ChunkPositionIndex.load(sbiFilename(inputFilenames[curFileNum]));
+                if (indices[curFileNum] == null) {
+                    // the output index can be rebuilt with RecordReader.rebuildIndex.
+                    return;
+                }
+            }
+            ChunkPositionIndex.concatenate(indices, offsets).save(outputSbi);
+        } catch (IOException e) {
+            LOG.warn("Unable to write the position index of " + outputSbi, e);
         }
+    }
 
-        try {
-            output = new FileOutputStream(outputFile + ".sbi").getChannel();
-            int lastFileNumToCopy = inputFilenames.length - 1;
-            int curFileNum = 0;
-            for (final String inputFilename : inputFilenames) {
-                RecordReader reader=new RecordReader(inputFilename);
-                // do not try to concat an empty file:
-                if (reader.getTotalRecords()>0) {
-
-                    System.out.printf("Reading from %s%n", inputFilename);
-                    input = new FileInputStream(inputFilename).getChannel();
-                    long bytesToCopy = input.size();
-                    if (curFileNum++ < lastFileNumToCopy) {
-                        // Compact-reads files end with a delimiter (8 x 0xff)
-                        // followed by a 4 byte int 0 (4 x 0x00). Strip
-                        // these on all but the last file.
-                        bytesToCopy -= (MessageChunksWriter.DELIMITER_LENGTH + 1 + MessageChunksWriter.SIZE_OF_MESSAGE_LENGTH);
-                    }
+    /**
+     * Copy the first bytesToCopy bytes of an input file at the given offset of the output.
+     */
+    private static void copy(String inputFilename, long bytesToCopy, FileChannel output, long offset, long bufferSize)
+            throws IOException {
+        System.out.printf("Reading from %s%n", inputFilename);
+        try (FileChannel input = new FileInputStream(inputFilename).getChannel()) {
+            // Copy the file about bufferSize bytes at a time. With very large files, a single transfer makes Java
+            // freeze until the entire chunk is copied, so this makes for a more responsive program
+            // should you want to ^C in the middle of the copy.
+            long position = 0;
+            while (position < bytesToCopy) {
+                long bytesToCopyThisTime = Math.min(bufferSize, bytesToCopy - position);
+                // transferFrom reads from the current position of input and writes at an absolute position of output:
+                long transferred = output.transferFrom(input, offset + position, bytesToCopyThisTime);
+                if (transferred <= 0) {
+                    throw new EOFException("Unexpected end of file in " + inputFilename);
+                }
+                position += transferred;
+            }
+        }
+    }
 
-                    // Copy the file about 10 megabytes at a time. It would probably
-                    // be marginally faster to jugit st tell NIO to copy the ENTIRE file
-                    // in one go, but with very large files Java will freeze until the
-                    // entire chunck is copied so this makes for a more responsive program
-                    // should you want to ^C in the middle of the copy. Also, with the single
-                    // transferTo() you might not see any file size changes in the output file
-                    // until the entire copy is complete.
-                    long position = 0;
-                    while (position < bytesToCopy) {
-                        long bytesToCopyThisTime = Math.min(bufferSize, bytesToCopy - position);
-                        position += input.transferTo(position, bytesToCopyThisTime, output);
+    // number of bytes of the end of file marker: codec byte, delimiter and a zero chunk size.
+    private static final int END_OF_FILE_LENGTH = MessageChunksWriter.DELIMITER_LENGTH + 1 + MessageChunksWriter.SIZE_OF_MESSAGE_LENGTH;
+
+    /**
+     * Determine if an .sbi file has no records from its size and the header of its first chunk.
+     *
+     * @param sbiFilename name of the .sbi file.
+     * @return true when the first chunk of the file is the end of file marker.
+     */
+    static boolean isEmpty(String sbiFilename) {
+        File file = new File(sbiFilename);
+        if (!file.exists()) {
+            throw new RuntimeException("Unable to open " + sbiFilename);
+        }
+        if (file.length() <= END_OF_FILE_LENGTH) {
+            return true;
+        }
+        try (RandomAccessFile input = new RandomAccessFile(file, "r")) {
+            input.seek(MessageChunksWriter.DELIMITER_LENGTH + 1);
+            return input.readInt() == 0;
+        } catch (IOException e) {
+            throw new RuntimeException("Unable to open " + sbiFilename, e);
+        }
+    }
+
+    private static Properties loadProperties(String sbipFilename) {
+        Properties properties = new Properties();
+        try (Reader reader = new FileReader(sbipFilename)) {
+            properties.load(reader);
+        } catch (IOException e) {
+            throw new RuntimeException("Unable to open " + sbipFilename, e);
+        }
+        return properties;
+    }
+
+    /**
+     * Merge the properties of several .sbi files, keeping only values that describe the concatenation exactly:
+     * <ul>
+     * <li>numRecords, the counts written by SbiStats and keys that end in .sum are added up,</li>
+     * <li>keys that end in .min or .max keep the smallest or largest value,</li>
+     * <li>other values, such as settings, quantiles or means, are kept when they are the same in every file.
+     * Quantiles and means that differ between files cannot be derived from the values of each file, and are
+     * dropped. Run SbiStats --update-sbip on the output to compute them again.</li>
+     * </ul>
+     * Statistics defined in some of the files only describe part of the records, and are dropped too.
+     *
+     * @param properties properties of each file.
+     * @return the merged properties.
+     */
+    static Properties mergeProperties(List<Properties> properties) {
+        Set<String> keys = new ObjectAVLTreeSet<>();
+        for (Properties fileProperties : properties) {
+            keys.addAll(fileProperties.stringPropertyNames());
+        }
+        Properties result = new Properties();
+        List<String> dropped = new ObjectArrayList<>();
+        for (String key : keys) {
+            String value = mergeProperty(key, properties);
+            if (value != null) {
+                result.setProperty(key, value);
+            } else {
+                dropped.add(key);
+            }
+        }
+        if (result.getProperty(NUM_RECORDS) == null) {
+            result.setProperty(NUM_RECORDS, "0");
+        }
+        if (!dropped.isEmpty()) {
+            LOG.info("Properties that do not describe the concatenation were dropped: " + dropped);
+        }
+        return result;
+    }
+
+    /**
+     * Merge the values of one key, following the rules of {@link #mergeProperties(List)}.
+     *
+     * @return the merged value, or null when the key must be dropped.
+     */
+    private static String mergeProperty(String key, List<Properties> properties) {
+        if (NUM_RECORDS.equals(key)) {
+            long sum = 0;
+            for (Properties fileProperties : properties) {
+                sum += Long.parseLong(fileProperties.getProperty(key, "0"));
+            }
+            return Long.toString(sum);
+        }
+        List<String> values = new ObjectArrayList<>();
+        for (Properties fileProperties : properties) {
+            String value = fileProperties.getProperty(key);
+            if (value == null) {
+                return null;
+            }
+            values.add(value);
+        }
+        try {
+            if (key.endsWith(".min") || key.endsWith(".max")) {
+                boolean min = key.endsWith(".min");
+                String result = values.get(0);
+                for (String value : values) {
+                    double difference = Double.parseDouble(value) - Double.parseDouble(result);
+                    if (min ? difference < 0 : difference > 0) {
+                        result = value;
                     }
-                    input.close();
-                    input = null;
-                    progressLogger.update();
                 }
-                reader.close();
+                return result;
+            }
+            if (key.endsWith(".sum") || ADDITIVE_KEYS.contains(key)) {
+                long sum = 0;
+                for (String value : values) {
+                    sum += Long.parseLong(value);
+                }
+                return Long.toString(sum);
+            }
+        } catch (NumberFormatException e) {
+            return null;
+        }
+        for (String value : values) {
+            if (!value.equals(values.get(0))) {
+                return null;
             }
-            System.out.printf("Concatenated %d files.%n", lastFileNumToCopy + 1);
-            progressLogger.stop();
-        } catch (Exception e) {
-            throw new RuntimeException("Unable to concatenate", e);
-        } finally {
-            IOUtils.closeQuietly(input);
-            IOUtils.closeQuietly(output);
         }
+        return values.get(0);
+    }
+
+    private static String sbiFilename(String filename) {
+        return filename.endsWith(".sbi") ? filename : filename + ".sbi";
     }
 
     private String[] reorderFilenames(String[] inputFilenames) {
@@ -7,6 +7,7 @@ import it.unimi.dsi.fastutil.objects.Object2IntMap;
 import it.unimi.dsi.logging.ProgressLogger;
 import it.unimi.dsi.util.XoRoShiRo128PlusRandom;
 import org.campagnelab.dl.framework.tools.arguments.AbstractTool;
+import org.campagnelab.dl.somatic.storage.ParallelRecordRouter;
 import org.campagnelab.dl.somatic.storage.RecordReader;
 import org.campagnelab.dl.somatic.storage.RecordWriter;
 import org.campagnelab.dl.varanalysis.protobuf.BaseInformationRecords;
@@ -35,7 +36,6 @@ public class Split extends AbstractTool<SplitArguments> {
         tool.execute();
     }
 
-    Random rand;
     Object2IntMap<String> chomosomeToSuffixIndex;
 
     @Override
@@ -71,22 +71,31 @@ public class Split extends AbstractTool<SplitArguments> {
             System.err.println("Splitting a file into one fraction is not useful. Aborting.");
             System.exit(1);
         }
+        fractions = new double[numOutputs];
+        double sumFractions = 0;
+        for (int i = 0; i < numOutputs; i++) {
+            fractions[i] = args().fractions.get(i);
+            sumFractions += fractions[i];
+        }
+        // normalize fractions:
+        for (int i = 0; i < numOutputs; i++) {
+            fractions[i] /= sumFractions;
+        }
+        if (args().numThreads > 1) {
+            if (args().writeN == Long.MAX_VALUE) {
+                splitInParallel(args().numThreads);
+                return;
+            }
+            System.err.println("--write-n is not supported with --threads, splitting with one thread.");
+        }
         RecordWriter outputWriters[] = new RecordWriter[numOutputs];
 
         try (RecordReader reader = new RecordReader(args().inputFile)) {
-            fractions = new double[numOutputs];
-            double sumFractions = 0;
             for (int i = 0; i < numOutputs; i++) {
                 outputWriters[i] = new RecordWriter(args().outputFile + args().suffixes.get(i));
-                fractions[i] = args().fractions.get(i);
-                sumFractions += fractions[i];
-            }
-            // normalize fractions:
-            for (int i = 0; i < numOutputs; i++) {
-                fractions[i] /= sumFractions;
             }
 
-            rand = new XoRoShiRo128PlusRandom(args().randomSeed);
+            Random rand = new XoRoShiRo128PlusRandom(args().randomSeed);
             //set up logger
             ProgressLogger pgRead = new ProgressLogger(LOG);
             pgRead.itemsName = "records";
@@ -95,7 +104,7 @@ public class Split extends AbstractTool<SplitArguments> {
             pgRead.start();
             long numWritten = 0;
             for (BaseInformationRecords.BaseInformation record : reader) {
-                int index = recorgBelongsTo(record);
+                int index = recorgBelongsTo(record, rand);
 
                 outputWriters[index].writeRecord(record);
                 pgRead.update();
@@ -114,8 +123,41 @@ public class Split extends AbstractTool<SplitArguments> {
         }
     }
 
+    /**
+     * Split with several threads. Each partition of the input draws destinations with its own random generator,
+     * seeded from --random-seed, so the split is reproducible for a given seed and number of threads.
+     *
+     * @param numThreads number of partitions and threads.
+     */
+    private void splitInParallel(int numThreads) {
+        String[] outputBasenames = new String[numOutputs];
+        for (int i = 0; i < numOutputs; i++) {
+            outputBasenames[i] = args().outputFile + args().suffixes.get(i);
+        }
+        try {
+            long totalRecords;
+            try (RecordReader reader = new RecordReader(args().inputFile)) {
+                totalRecords = reader.getTotalRecords();
+            }
+            //set up logger
+            ProgressLogger pgRead = new ProgressLogger(LOG);
+            pgRead.itemsName = "records";
+            pgRead.expectedUpdates = totalRecords;
+            pgRead.displayFreeMemory = true;
+            pgRead.start();
+            Random seeds = new XoRoShiRo128PlusRandom(args().randomSeed);
+            new ParallelRecordRouter(args().inputFile, outputBasenames, numThreads).route(partition -> {
+                Random rand = new XoRoShiRo128PlusRandom(seeds.nextLong());
+                return record -> recorgBelongsTo(record, rand);
+            }, pgRead);
+            pgRead.stop();
+        } catch (IOException e) {
+            System.err.println("Unable to load or write files. Check command line arguments.");
+        }
+    }
+
 
-    private int recorgBelongsTo(BaseInformationRecords.BaseInformation record) {
+    private int recorgBelongsTo(BaseInformationRecords.BaseInformation record, Random rand) {
         final String chromosome = record.getReferenceId();
         //      System.out.println(chromosome);
         // find the index that override wants to put the record into:
@@ -34,5 +34,9 @@ public class SplitArguments implements ToolArguments {
     @Parameter(required=false, names = { "--random-seed"}, description = "Seed for random generator used to determine in which file to output a site.")
     long randomSeed=232323;
 
+    @Parameter(required=false, names = {"--threads"}, description = "Number of threads. When larger than one, byte ranges of the input are split concurrently and " +
+            "each output is assembled by concatenating the ranges in input order. The split is reproducible for a given seed and number of threads.")
+    public int numThreads=1;
+
 }
 
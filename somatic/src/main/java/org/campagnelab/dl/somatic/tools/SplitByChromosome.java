@@ -4,6 +4,7 @@ import it.unimi.dsi.fastutil.objects.Object2IntArrayMap;
 import it.unimi.dsi.fastutil.objects.ObjectArraySet;
 import it.unimi.dsi.logging.ProgressLogger;
 import org.campagnelab.dl.framework.tools.arguments.AbstractTool;
+import org.campagnelab.dl.somatic.storage.ParallelRecordRouter;
 import org.campagnelab.dl.somatic.storage.RecordReader;
 import org.campagnelab.dl.somatic.storage.RecordWriter;
 import org.campagnelab.dl.varanalysis.protobuf.BaseInformationRecords;
@@ -11,6 +12,8 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
 
@@ -42,45 +45,47 @@ public class SplitByChromosome extends AbstractTool<SplitByChromosomeArguments>
 
         try (RecordReader reader = new RecordReader(args().inputFile)) {
 
-            RecordWriter trainWriter = new RecordWriter(args().outputFile + "train");
-            RecordWriter valWriter = new RecordWriter(args().outputFile + "validation");
-            RecordWriter testWriter = new RecordWriter(args().outputFile + "test");
-
             //set up logger
             ProgressLogger pgRead = new ProgressLogger(LOG);
             pgRead.itemsName = "records";
             pgRead.expectedUpdates = reader.getTotalRecords();
             pgRead.displayFreeMemory = true;
             pgRead.start();
-            long numWritten = 0;
-
-            for (BaseInformationRecords.BaseInformation record : reader) {
-                String refID = record.getReferenceId();
-                //increment count of chrom for print output
-
-
-                //write record to appropriate writer
-                if (testIDs.contains(refID)){
-                    testWriter.writeRecord(record);
-                    int count = testCounts.computeIfAbsent(refID, k -> 0);
-                    testCounts.put(refID,++count);
-                } else if (valIDs.contains(refID)){
-                    valWriter.writeRecord(record);
-                    int count = valCounts.computeIfAbsent(refID, k -> 0);
-                    valCounts.put(refID,++count);
-                } else {
-                    trainWriter.writeRecord(record);
-                    int count = trainCounts.computeIfAbsent(refID, k -> 0);
-                    trainCounts.put(refID,++count);
-                }
-                pgRead.lightUpdate();
-                numWritten += 1;
 
+            if (args().numThreads > 1) {
+                String[] outputBasenames = new String[]{args().outputFile + "train", args().outputFile + "validation",
+                        args().outputFile + "test"};
+                List<ChromosomeRouter> routers = new ArrayList<>();
+                new ParallelRecordRouter(args().inputFile, outputBasenames, args().numThreads).route(partition -> {
+                    ChromosomeRouter router = new ChromosomeRouter(testIDs, valIDs);
+                    routers.add(router);
+                    return router;
+                }, pgRead);
+                for (ChromosomeRouter router : routers) {
+                    addCounts(trainCounts, router.counts[TRAIN]);
+                    addCounts(valCounts, router.counts[VALIDATION]);
+                    addCounts(testCounts, router.counts[TEST]);
+                }
+            } else {
+                RecordWriter trainWriter = new RecordWriter(args().outputFile + "train");
+                RecordWriter valWriter = new RecordWriter(args().outputFile + "validation");
+                RecordWriter testWriter = new RecordWriter(args().outputFile + "test");
+                RecordWriter[] writers = {trainWriter, valWriter, testWriter};
+                ChromosomeRouter router = new ChromosomeRouter(testIDs, valIDs);
+
+                for (BaseInformationRecords.BaseInformation record : reader) {
+                    //write record to appropriate writer
+                    writers[router.route(record)].writeRecord(record);
+                    pgRead.lightUpdate();
+                }
+                trainWriter.close();
+                testWriter.close();
+                valWriter.close();
+                addCounts(trainCounts, router.counts[TRAIN]);
+                addCounts(valCounts, router.counts[VALIDATION]);
+                addCounts(testCounts, router.counts[TEST]);
             }
             pgRead.stop();
-            trainWriter.close();
-            testWriter.close();
-            valWriter.close();
 
             int sumTrain = trainCounts.values().stream().mapToInt(Integer::intValue).sum();
             int sumVal = valCounts.values().stream().mapToInt(Integer::intValue).sum();
@@ -100,7 +105,40 @@ public class SplitByChromosome extends AbstractTool<SplitByChromosomeArguments>
         }
     }
 
-   
+    private static final int TRAIN = 0;
+    private static final int VALIDATION = 1;
+    private static final int TEST = 2;
+
+    private static void addCounts(Map<String, Integer> total, Map<String, Integer> counts) {
+        for (Map.Entry<String, Integer> entry : counts.entrySet()) {
+            total.merge(entry.getKey(), entry.getValue(), Integer::sum);
+        }
+    }
+
+    /**
+     * Routes records to train, validation or test by chromosome, and counts records per chromosome in each output.
+     */
+    private static class ChromosomeRouter implements ParallelRecordRouter.Router {
+        private final Set<String> testIDs;
+        private final Set<String> valIDs;
+        @SuppressWarnings("unchecked")
+        final Map<String, Integer>[] counts = new Map[]{new Object2IntArrayMap<>(10), new Object2IntArrayMap<>(),
+                new Object2IntArrayMap<>()};
+
+        ChromosomeRouter(Set<String> testIDs, Set<String> valIDs) {
+            this.testIDs = testIDs;
+            this.valIDs = valIDs;
+        }
+
+        @Override
+        public int route(BaseInformationRecords.BaseInformation record) {
+            String refID = record.getReferenceId();
+            int output = testIDs.contains(refID) ? TEST : valIDs.contains(refID) ? VALIDATION : TRAIN;
+            //increment count of chrom for print output
+            counts[output].merge(refID, 1, Integer::sum);
+            return output;
+        }
+    }
 
     @Override
     public SplitByChromosomeArguments createArguments() {
@@ -26,5 +26,9 @@ public class SplitByChromosomeArguments implements ToolArguments {
     @Parameter(required=true, names = {"-o", "--output-prefix"}, description = "Prefix for the output filenames.")
     public String outputFile;
 
+    @Parameter(required=false, names = {"--threads"}, description = "Number of threads. When larger than one, byte ranges of the input are split concurrently and " +
+            "each output is assembled by concatenating the ranges in input order.")
+    public int numThreads=1;
+
 }
 
@@ -18,32 +18,79 @@
 
 package org.campagnelab.dl.somatic.util;
 
-import it.unimi.dsi.fastutil.objects.ObjectAVLTreeSet;
+import it.unimi.dsi.fastutil.objects.Object2IntOpenHashMap;
 import it.unimi.dsi.fastutil.objects.ObjectArrayList;
-import it.unimi.dsi.fastutil.objects.ObjectSortedSet;
 import it.unimi.dsi.util.XoRoShiRo128PlusRandom;
 import org.deeplearning4j.nn.multilayer.MultiLayerNetwork;
 import org.nd4j.linalg.api.ndarray.INDArray;
 
+import java.util.Arrays;
 import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
 
 
 /**
- * This class is an adaptation of MG4J's DocumentScoreBoundedSizeQueue.
+ * This class is an adaptation of MG4J's DocumentScoreBoundedSizeQueue. Errors are kept in an indexed min-heap
+ * ordered by wrongness:
+ * <ul>
+ * <li>records are stored in slots 0..size-1. The heap orders slots by wrongness, so the least wrong record is
+ * found and replaced in O(log n),</li>
+ * <li>the sum and max of wrongness are maintained as records come and go, so statistics are O(1),</li>
+ * <li>a Fenwick tree over the slots, weighted by wrongness, samples records in proportion to their wrongness in
+ * O(log n). An alias table would sample in O(1), but would have to be rebuilt each time a record is replaced.</li>
+ * </ul>
+ * Scoring threads can call {@link #offer(float, INDArray, INDArray)} concurrently: errors are added to a lock-free
+ * buffer, and moved to the heap the next time the queue is read.
  *
  * @author Fabien Campagne Date: Oct 21 2010
  */
 public class HitBoundedPriorityQueue {
 
     /**
-     * The underlying queue.
+     * Records, in slots 0..size-1.
      */
-    protected final ObjectSortedSet<ErrorRecord> queue;
+    private ErrorRecord[] records;
+    /**
+     * Min-heap of slots, ordered by the wrongness of their record.
+     */
+    private int[] heap;
+    /**
+     * Position of each slot in the heap.
+     */
+    private int[] heapIndex;
+    /**
+     * Fenwick tree of the wrongness of the records, indexed by slot + 1.
+     */
+    private double[] fenwick;
+    /**
+     * Slot of each record, used to reject records already in the queue.
+     */
+    private final Object2IntOpenHashMap<ErrorRecord> slots = new Object2IntOpenHashMap<>();
+    private int size;
+    private double wrongnessSum;
+    private float maxWrongness = Float.NaN;
+    /**
+     * True when the record with the max wrongness was removed, and the max must be found again.
+     */
+    private boolean maxStale;
     /**
      * The maximum number of documents to be ranked.
      */
     protected final int maxSize;
 
+    /**
+     * Errors offered concurrently, not yet in the heap.
+     */
+    private final ConcurrentLinkedQueue<ErrorRecord> pending = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger numPending = new AtomicInteger();
+    /**
+     * Least wrongness in the queue when it is full, or -infinity. Offered errors that are not wronger are dropped
+     * without taking the lock.
+     */
+    private volatile float admissionThreshold = Float.NEGATIVE_INFINITY;
+
 
     /**
      * Creates a new empty bounded-size queue with a given capacity and natural
@@ -53,10 +100,31 @@ public class HitBoundedPriorityQueue {
      * @param capacity the initial capacity of this queue.
      */
     public HitBoundedPriorityQueue(final int capacity) {
+        this(capacity, new XoRoShiRo128PlusRandom());
+    }
+
+    /**
+     * Creates a new empty bounded-size queue that draws samples with the given random generator.
+     *
+     * @param capacity the maximum number of errors kept.
+     * @param random   random generator used by the sampling methods.
+     */
+    public HitBoundedPriorityQueue(final int capacity, XoRoShiRo128PlusRandom random) {
         super();
         maxSize = capacity;
-        queue = new ObjectAVLTreeSet<>(ErrorRecord.INCREASING_SCORE_COMPARATOR);
+        this.random = random;
+        slots.defaultReturnValue(-1);
+        allocate(Math.min(capacity, 1024));
+    }
 
+    private void allocate(int capacity) {
+        records = records == null ? new ErrorRecord[capacity] : Arrays.copyOf(records, capacity);
+        heap = heap == null ? new int[capacity] : Arrays.copyOf(heap, capacity);
+        heapIndex = heapIndex == null ? new int[capacity] : Arrays.copyOf(heapIndex, capacity);
+        fenwick = new double[capacity + 1];
+        for (int slot = 0; slot < size; slot++) {
+            fenwickAdd(slot, records[slot].wrongness);
+        }
     }
 
 
@@ -67,33 +135,97 @@ public class HitBoundedPriorityQueue {
      */
 
     public synchronized boolean enqueue(float wrongness, INDArray features, INDArray label) {
-        ErrorRecord dsi = new ErrorRecord(wrongness, features, label);
-        if (queue.contains(dsi)) return false;
-        if (queue.size() < maxSize) {
-            queue.add(dsi);
-            return true;
-        } else {
-            dsi = queue.first();
+        drainPending();
+        return add(new ErrorRecord(wrongness, features, label));
+    }
+
+    /**
+     * Offers an error without blocking, for use by several scoring threads. The error is dropped right away when
+     * the queue is full of wronger errors, and otherwise added to the queue the next time it is read.
+     *
+     * @return false if the error was dropped, true if it may be enqueued.
+     */
+    public boolean offer(float wrongness, INDArray features, INDArray label) {
+        if (wrongness <= admissionThreshold) {
+            return false;
+        }
+        pending.add(new ErrorRecord(wrongness, features, label));
+        if (numPending.incrementAndGet() > Math.max(maxSize, 1024)) {
+            // keep memory bounded when the queue is not read for a while:
+            synchronized (this) {
+                drainPending();
+            }
+        }
+        return true;
+    }
 
-            if (wrongness > dsi.wrongness) {
-                queue.remove(dsi);
+    private void drainPending() {
+        ErrorRecord record;
+        while ((record = pending.poll()) != null) {
+            numPending.decrementAndGet();
+            add(record);
+        }
+    }
 
-                dsi.wrongness = wrongness;
-                dsi.features = features;
-                dsi.label = label;
-                queue.add(dsi);
+    private boolean add(ErrorRecord dsi) {
+        if (slots.containsKey(dsi)) return false;
+        if (size < maxSize) {
+            if (size == records.length) {
+                allocate((int) Math.min(maxSize, 2L * records.length));
+            }
+            int slot = size++;
+            records[slot] = dsi;
+            slots.put(dsi, slot);
+            heap[slot] = slot;
+            heapIndex[slot] = slot;
+            fenwickAdd(slot, dsi.wrongness);
+            siftUp(slot);
+            wrongnessSum += dsi.wrongness;
+            if (!maxStale && !(dsi.wrongness <= maxWrongness)) {
+                maxWrongness = dsi.wrongness;
+            }
+            updateAdmissionThreshold();
+            return true;
+        } else {
+            int slot = heap[0];
+            ErrorRecord least = records[slot];
+            if (dsi.wrongness > least.wrongness) {
+                slots.removeInt(least);
+                removedWrongness(least.wrongness);
+                records[slot] = dsi;
+                slots.put(dsi, slot);
+                fenwickAdd(slot, dsi.wrongness - least.wrongness);
+                siftDown(0);
+                wrongnessSum += dsi.wrongness;
+                if (!maxStale && !(dsi.wrongness <= maxWrongness)) {
+                    maxWrongness = dsi.wrongness;
+                }
+                updateAdmissionThreshold();
                 return true;
             }
             return false;
         }
     }
 
-    public boolean isEmpty() {
-        return queue.isEmpty();
+    private void removedWrongness(float wrongness) {
+        wrongnessSum -= wrongness;
+        if (wrongness >= maxWrongness) {
+            maxStale = true;
+        }
     }
 
-    public int size() {
-        return queue.size();
+    private void updateAdmissionThreshold() {
+        admissionThreshold = size == maxSize && size > 0 ? records[heap[0]].wrongness : Float.NEGATIVE_INFINITY;
+    }
+
+    public synchronized boolean isEmpty() {
+        drainPending();
+        return size == 0;
+    }
+
+    public synchronized int size() {
+        drainPending();
+        return size;
     }
 
     /**
@@ -102,25 +234,80 @@ public class HitBoundedPriorityQueue {
      *
      * @return the next {@link ErrorRecord}.
      */
-    public final ErrorRecord dequeue() {
-        ErrorRecord v = queue.first();
-        queue.remove(v);
+    public final synchronized ErrorRecord dequeue() {
+        drainPending();
+        ErrorRecord v = first();
+        removeSlot(heap[0]);
         return v;
     }
 
-    public ErrorRecord first() {
-        return queue.first();
+    /**
+     * Remove the record of a slot, and move the record of the last slot in its place, so that slots stay dense.
+     */
+    private void removeSlot(int slot) {
+        ErrorRecord removed = records[slot];
+        slots.removeInt(removed);
+        removedWrongness(removed.wrongness);
+        int last = --size;
+        // remove the slot from the heap:
+        int position = heapIndex[slot];
+        int lastPosition = size;
+        if (position != lastPosition) {
+            swap(position, lastPosition);
+        }
+        // the last slot now takes the place of the removed slot:
+        fenwickAdd(slot, -removed.wrongness);
+        if (slot != last) {
+            fenwickAdd(last, -records[last].wrongness);
+            records[slot] = records[last];
+            slots.put(records[slot], slot);
+            fenwickAdd(slot, records[slot].wrongness);
+            heap[heapIndex[last]] = slot;
+            heapIndex[slot] = heapIndex[last];
+        }
+        records[last] = null;
+        if (position < size) {
+            siftDown(position);
+            siftUp(position);
+        }
+        if (size == 0) {
+            wrongnessSum = 0;
+        }
+        updateAdmissionThreshold();
+    }
+
+    public synchronized ErrorRecord first() {
+        drainPending();
+        if (size == 0) throw new NoSuchElementException();
+        return records[heap[0]];
     }
 
-    public ErrorRecord last() {
-        return queue.last();
+    public synchronized ErrorRecord last() {
+        drainPending();
+        if (size == 0) throw new NoSuchElementException();
+        int wrongest = 0;
+        for (int slot = 1; slot < size; slot++) {
+            if (records[slot].wrongness > records[wrongest].wrongness) {
+                wrongest = slot;
+            }
+        }
+        return records[wrongest];
     }
 
-    public void clear() {
-        queue.clear();
+    public synchronized void clear() {
+        pending.clear();
+        numPending.set(0);
+        Arrays.fill(records, 0, size, null);
+        Arrays.fill(fenwick, 0);
+        slots.clear();
+        size = 0;
+        wrongnessSum = 0;
+        maxWrongness = Float.NaN;
+        maxStale = false;
+        updateAdmissionThreshold();
     }
 
-    private XoRoShiRo128PlusRandom random = new XoRoShiRo128PlusRandom();
+    private XoRoShiRo128PlusRandom random;
 
     /**
      * Return a random sample of exactly numElements.
@@ -128,51 +315,136 @@ public class HitBoundedPriorityQueue {
      * @param numElements The number of elements to return
      * @return a random sample drawn with replacement.
      */
-    public List<ErrorRecord> getRandomSample(int numElements) {
-        List<ErrorRecord> sample = new ObjectArrayList<>();
-        assert !queue.isEmpty() : "queue cannot be empty to return a random sample";
+    public synchronized List<ErrorRecord> getRandomSample(int numElements) {
+        drainPending();
+        List<ErrorRecord> sample = new ObjectArrayList<>(numElements);
+        assert size != 0 : "queue cannot be empty to return a random sample";
         while (sample.size() < numElements) {
-            for (ErrorRecord record : queue) {
-                float value = random.nextFloat();
-                if (value < 1f / queue.size()) {
-                    sample.add(record);
-                }
-                if (sample.size() >= numElements) {
-                    break;
-                }
-            }
+            sample.add(records[random.nextInt(size)]);
         }
         return sample;
     }
 
-    List<ErrorRecord> tmpList = new ObjectArrayList<>();
-
-    public void updateWrongness(MultiLayerNetwork net) {
-        tmpList.clear();
+    /**
+     * Return a random sample of exactly numElements, where each error is drawn with a probability proportional to
+     * its wrongness.
+     *
+     * @param numElements The number of elements to return
+     * @return a random sample drawn with replacement.
+     */
+    public synchronized List<ErrorRecord> getWeightedSample(int numElements) {
+        drainPending();
+        assert size != 0 : "queue cannot be empty to return a random sample";
+        if (!(wrongnessSum > 0)) {
+            return getRandomSample(numElements);
+        }
+        List<ErrorRecord> sample = new ObjectArrayList<>(numElements);
+        while (sample.size() < numElements) {
+            sample.add(records[fenwickFind(random.nextDouble() * wrongnessSum)]);
+        }
+        return sample;
+    }
 
-        for (ErrorRecord record : this.queue) {
+    public synchronized void updateWrongness(MultiLayerNetwork net) {
+        drainPending();
+        wrongnessSum = 0;
+        Arrays.fill(fenwick, 0);
+        for (int slot = 0; slot < size; slot++) {
+            ErrorRecord record = records[slot];
             record.updateWrongness(record.features, net);
-            tmpList.add(record);
+            wrongnessSum += record.wrongness;
+            fenwickAdd(slot, record.wrongness);
+        }
+        maxStale = true;
+        //heapify again to reorder elements according to updated wrongness:
+        for (int position = size / 2 - 1; position >= 0; position--) {
+            siftDown(position);
         }
-        //enqueue elements again to reorder them according to updated wrongness:
-        queue.clear();
-        queue.addAll(tmpList);
+        updateAdmissionThreshold();
+    }
+
+
+    public synchronized float getMinWrongness() {
+        drainPending();
+        if (size == 0) return Float.NaN;
+        return records[heap[0]].wrongness;
+    }
+
+    public synchronized float getMaxWrongness() {
+        drainPending();
+        if (size == 0) return Float.NaN;
+        if (maxStale) {
+            maxWrongness = last().wrongness;
+            maxStale = false;
+        }
+        return maxWrongness;
+    }
 
+    public synchronized float getMeanWrongness() {
+        drainPending();
+        if (size == 0) return Float.NaN;
+        return (float) (wrongnessSum / size);
     }
 
+    private float wrongnessAt(int position) {
+        return records[heap[position]].wrongness;
+    }
 
-    public float getMinWrongness() {
-        if (queue.isEmpty()) return Float.NaN;
-        return (float) queue.stream().mapToDouble((er -> er.wrongness)).min().getAsDouble();
+    private void swap(int a, int b) {
+        int slot = heap[a];
+        heap[a] = heap[b];
+        heap[b] = slot;
+        heapIndex[heap[a]] = a;
+        heapIndex[heap[b]] = b;
     }
 
-    public float getMaxWrongness() {
-        if (queue.isEmpty()) return Float.NaN;
-        return (float) queue.stream().mapToDouble((er -> er.wrongness)).max().getAsDouble();
+    private void siftUp(int position) {
+        while (position > 0) {
+            int parent = (position - 1) / 2;
+            if (wrongnessAt(parent) <= wrongnessAt(position)) {
+                return;
+            }
+            swap(parent, position);
+            position = parent;
+        }
     }
 
-    public float getMeanWrongness() {
-        if (queue.isEmpty()) return Float.NaN;
-        return (float) queue.stream().mapToDouble((er -> er.wrongness)).sum() / queue.size();
+    private void siftDown(int position) {
+        while (true) {
+            int child = 2 * position + 1;
+            if (child >= size) {
+                return;
+            }
+            if (child + 1 < size && wrongnessAt(child + 1) < wrongnessAt(child)) {
+                child++;
+            }
+            if (wrongnessAt(position) <= wrongnessAt(child)) {
+                return;
+            }
+            swap(position, child);
+            position = child;
+        }
+    }
+
+    private void fenwickAdd(int slot, double delta) {
+        for (int i = slot + 1; i < fenwick.length; i += i & -i) {
+            fenwick[i] += delta;
+        }
+    }
+
+    /**
+     * Return the slot whose cumulative wrongness range contains target.
+     */
+    private int fenwickFind(double target) {
+        int position = 0;
+        for (int step = Integer.highestOneBit(fenwick.length - 1); step > 0; step >>= 1) {
+            int next = position + step;
+            if (next < fenwick.length && fenwick[next] <= target) {
+                position = next;
+                target -= fenwick[next];
+            }
+        }
+        // position is the number of slots whose cumulative wrongness is at most target:
+        return Math.min(position, size - 1);
     }
 }
@@ -15,8 +15,10 @@ public class BayesCalibrator extends CalcCalibrator {
 
     @Override
     public float calibrateProb(float prob) {
-        double mutGreater = plantedMutSet.subSet(prob,1.1f).size() + 1;
-        double unMutGreater = unMutSet.subSet(prob,1.1f).size() + 1;
+        SortedFloatSet plantedMutSet = plantedMutSet();
+        SortedFloatSet unMutSet = unMutSet();
+        double mutGreater = plantedMutSet.count(prob,1.1f) + 1;
+        double unMutGreater = unMutSet.count(prob,1.1f) + 1;
         double  pMGreater = mutGreater/plantedMutSet.size();
         double  pUGreater = unMutGreater/ unMutSet.size();
         double bayes = pMGreater* priorMutRate /pUGreater;
@@ -1,23 +1,41 @@
 package org.campagnelab.dl.somatic.utils;
 
-import it.unimi.dsi.fastutil.floats.FloatAVLTreeSet;
+import it.unimi.dsi.fastutil.floats.FloatArrayList;
+import it.unimi.dsi.fastutil.floats.FloatCollection;
 import it.unimi.dsi.fastutil.io.BinIO;
 
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
 import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
 import java.io.IOException;
 
 /**
  * Created by rct66 on 7/19/16.
  * Defines the class which calibrates model probability using some formula, such as bayes theorem.
- *
+ * <p>
+ * Sets are saved in a compact binary format: a magic number, the number of probabilities, then the sorted
+ * probabilities. Sets saved by earlier versions, as serialized FloatAVLTreeSet, can still be loaded.
  */
 public abstract class CalcCalibrator {
+    /**
+     * First int of the files written by save(). Serialized Java objects start with 0xACED, so files written by
+     * BinIO.storeObject are recognized and loaded as such.
+     */
+    private static final int MAGIC = 0x43414c31; // "CAL1"
+
     /**
      * These are two sorted sets containing the model probabilities encountered in PredictMutations (mutated and unmutated examples seperate).
      * They structured for easy access to the number of model probabilities greater than x, (or less than), for any given x.
+     * Observations are collected in lists, and sorted the next time a set is used.
      */
-    FloatAVLTreeSet plantedMutSet = new FloatAVLTreeSet();
-    FloatAVLTreeSet unMutSet = new FloatAVLTreeSet();
+    SortedFloatSet plantedMutSet = SortedFloatSet.of(new float[0], 0);
+    SortedFloatSet unMutSet = SortedFloatSet.of(new float[0], 0);
+    private final FloatArrayList plantedMutObserved = new FloatArrayList();
+    private final FloatArrayList unMutObserved = new FloatArrayList();
     int totalExamples;
     String modelPath;
     String prefix;
@@ -25,28 +43,71 @@ public abstract class CalcCalibrator {
     public void observe(float modelProb, boolean isMut){
         totalExamples++;
         if (isMut) {
-            plantedMutSet.add(modelProb);
+            plantedMutObserved.add(modelProb);
         } else {
-            unMutSet.add(modelProb);
+            unMutObserved.add(modelProb);
+        }
+    }
+
+    /**
+     * Return the set of probabilities of mutated examples.
+     */
+    SortedFloatSet plantedMutSet() {
+        if (!plantedMutObserved.isEmpty()) {
+            plantedMutSet = merge(plantedMutSet, plantedMutObserved);
         }
+        return plantedMutSet;
+    }
+
+    /**
+     * Return the set of probabilities of unmutated examples.
+     */
+    SortedFloatSet unMutSet() {
+        if (!unMutObserved.isEmpty()) {
+            unMutSet = merge(unMutSet, unMutObserved);
+        }
+        return unMutSet;
+    }
+
+    private static SortedFloatSet merge(SortedFloatSet set, FloatArrayList observed) {
+        float[] values = new float[set.size() + observed.size()];
+        set.copyTo(values, 0);
+        observed.getElements(0, values, set.size(), observed.size());
+        observed.clear();
+        return SortedFloatSet.of(values, values.length);
     }
 
     //call to save stats to disk
     public void save() throws IOException {
-        File mutFile =  new File(modelPath + "/" + prefix + "mutSet");
-        File unMutFile = new File(modelPath + "/" + prefix + "unMutSet");
-        mutFile.createNewFile();
-        unMutFile.createNewFile();
-        BinIO.storeObject(plantedMutSet,mutFile);
-        BinIO.storeObject(unMutSet,unMutFile);
+        save(plantedMutSet(), new File(modelPath + "/" + prefix + "mutSet"));
+        save(unMutSet(), new File(modelPath + "/" + prefix + "unMutSet"));
     }
 
     //call to load stats from disk
     public void load() throws IOException, ClassNotFoundException {
-        File mutFile =  new File(modelPath + "/" + prefix + "mutSet");
-        File unMutFile = new File(modelPath + "/" + prefix + "unMutSet");
-        plantedMutSet = (FloatAVLTreeSet)BinIO.loadObject(mutFile);
-        unMutSet = (FloatAVLTreeSet)BinIO.loadObject(unMutFile);
+        plantedMutSet = load(new File(modelPath + "/" + prefix + "mutSet"));
+        unMutSet = load(new File(modelPath + "/" + prefix + "unMutSet"));
+        plantedMutObserved.clear();
+        unMutObserved.clear();
+    }
+
+    static void save(SortedFloatSet set, File file) throws IOException {
+        try (DataOutputStream output = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file)))) {
+            output.writeInt(MAGIC);
+            set.write(output);
+        }
+    }
+
+    /**
+     * Load a set saved by save(), or a FloatAVLTreeSet saved with BinIO.storeObject by earlier versions.
+     */
+    static SortedFloatSet load(File file) throws IOException, ClassNotFoundException {
+        try (DataInputStream input = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+            if (file.length() >= 4 && input.readInt() == MAGIC) {
+                return SortedFloatSet.read(input);
+            }
+        }
+        return SortedFloatSet.of((FloatCollection) BinIO.loadObject(file));
     }
 
     public CalcCalibrator(String modelPath, String prefix, boolean loadStats) throws IOException, ClassNotFoundException {
@@ -13,7 +13,8 @@ public class FDREstimator extends CalcCalibrator {
 
     @Override
     public float calibrateProb(float prob) {
-        double unMutGreater = unMutSet.subSet(prob,1.1f).size();
+        SortedFloatSet unMutSet = unMutSet();
+        double unMutGreater = unMutSet.count(prob, 1.1f);
         double unMutTotal = unMutSet.size();
         double FDR = unMutGreater/(unMutTotal);
         return (float) FDR;
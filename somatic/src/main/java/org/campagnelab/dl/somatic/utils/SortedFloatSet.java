@@ -0,0 +1,98 @@
+package org.campagnelab.dl.somatic.utils;
+
+import it.unimi.dsi.fastutil.floats.FloatCollection;
+import it.unimi.dsi.fastutil.floats.FloatIterator;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * A set of floats stored in a sorted array. The number of elements in a range is computed with two binary searches,
+ * where a subset of a FloatAVLTreeSet must be walked to be counted. Elements are ordered as with Float.compare, like
+ * the tree sets the calibrators used before.
+ */
+public class SortedFloatSet {
+    private final float[] elements;
+
+    private SortedFloatSet(float[] sortedDistinct) {
+        this.elements = sortedDistinct;
+    }
+
+    /**
+     * Build a set from values, in any order. Duplicate values are kept once.
+     *
+     * @param values    values, sorted in place.
+     * @param numValues number of values to use, from the start of the array.
+     */
+    public static SortedFloatSet of(float[] values, int numValues) {
+        Arrays.sort(values, 0, numValues);
+        int numDistinct = 0;
+        for (int i = 0; i < numValues; i++) {
+            if (numDistinct == 0 || Float.compare(values[numDistinct - 1], values[i]) != 0) {
+                values[numDistinct++] = values[i];
+            }
+        }
+        return new SortedFloatSet(Arrays.copyOf(values, numDistinct));
+    }
+
+    /**
+     * Build a set with the elements of a fastutil collection, such as a FloatAVLTreeSet.
+     */
+    public static SortedFloatSet of(FloatCollection values) {
+        float[] array = new float[values.size()];
+        int i = 0;
+        for (FloatIterator it = values.iterator(); it.hasNext(); ) {
+            array[i++] = it.nextFloat();
+        }
+        return of(array, array.length);
+    }
+
+    public int size() {
+        return elements.length;
+    }
+
+    /**
+     * Return the number of elements lower than value.
+     */
+    public int rank(float value) {
+        int index = Arrays.binarySearch(elements, value);
+        return index >= 0 ? index : -index - 1;
+    }
+
+    /**
+     * Return the number of elements in [from, to), as subSet(from, to).size() does for a sorted set.
+     */
+    public int count(float from, float to) {
+        return Float.compare(from, to) >= 0 ? 0 : rank(to) - rank(from);
+    }
+
+    /**
+     * Copy the elements, in increasing order, to an array.
+     */
+    public void copyTo(float[] destination, int offset) {
+        System.arraycopy(elements, 0, destination, offset, elements.length);
+    }
+
+    /**
+     * Write the set as its number of elements followed by the elements.
+     */
+    public void write(DataOutputStream output) throws IOException {
+        output.writeInt(elements.length);
+        for (float element : elements) {
+            output.writeFloat(element);
+        }
+    }
+
+    /**
+     * Read a set written with {@link #write(DataOutputStream)}.
+     */
+    public static SortedFloatSet read(DataInputStream input) throws IOException {
+        float[] elements = new float[input.readInt()];
+        for (int i = 0; i < elements.length; i++) {
+            elements[i] = input.readFloat();
+        }
+        return new SortedFloatSet(elements);
+    }
+}
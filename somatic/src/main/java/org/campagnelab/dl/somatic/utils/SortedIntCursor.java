@@ -0,0 +1,65 @@
+package org.campagnelab.dl.somatic.utils;
+
+/**
+ * Finds positions in an array of sorted positions, for positions that are mostly looked up in increasing order, as
+ * when the records of a sorted file are joined with sorted annotations. The cursor remembers the index of the last
+ * position found and steps forward from there, so that a merge-join costs one comparison per record. It jumps ahead
+ * with a binary search when the lookups skip many positions, and restarts with a binary search when they go back.
+ * Cursors are not thread-safe, but several cursors can share the same array.
+ */
+public class SortedIntCursor {
+    /**
+     * Number of positions the cursor steps over before it switches to a binary search.
+     */
+    private static final int SCAN_LIMIT = 16;
+
+    private int[] positions = new int[0];
+    private int index;
+
+    /**
+     * Move the cursor to the start of new positions.
+     *
+     * @param positions positions sorted in increasing order. Positions may be repeated.
+     */
+    public void reset(int[] positions) {
+        this.positions = positions;
+        index = 0;
+    }
+
+    /**
+     * Find a position.
+     *
+     * @param position the position.
+     * @return index of the first occurrence of the position in the array, or -1 when the array does not contain it.
+     */
+    public int find(int position) {
+        if (index > 0 && position <= positions[index - 1]) {
+            // the lookups are not sorted, restart from the start of the array:
+            index = lowerBound(positions, 0, position);
+        } else if (index + SCAN_LIMIT < positions.length && positions[index + SCAN_LIMIT] < position) {
+            // the lookups skip many positions (e.g., a new region), jump ahead:
+            index = lowerBound(positions, index + SCAN_LIMIT + 1, position);
+        }
+        while (index < positions.length && positions[index] < position) {
+            index++;
+        }
+        return index < positions.length && positions[index] == position ? index : -1;
+    }
+
+    /**
+     * Return the index of the first position greater or equal to position, in positions[from..].
+     */
+    private static int lowerBound(int[] positions, int from, int position) {
+        int low = from;
+        int high = positions.length;
+        while (low < high) {
+            int middle = (low + high) >>> 1;
+            if (positions[middle] < position) {
+                low = middle + 1;
+            } else {
+                high = middle;
+            }
+        }
+        return low;
+    }
+}
@@ -0,0 +1,93 @@
+package org.campagnelab.dl.somatic.intermediaries;
+
+import it.unimi.dsi.fastutil.objects.ObjectArrayList;
+import it.unimi.dsi.util.XorShift1024StarRandom;
+import org.campagnelab.dl.varanalysis.protobuf.BaseInformationRecords;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Check that FirstSimulationStrategy simulates the same records as the previous implementation for a given seed.
+ */
+public class FirstSimulationStrategyTest {
+
+    @Test
+    public void sameAsLegacy() {
+        FirstSimulationStrategy strategy = new FirstSimulationStrategy(0.0, 1.0, 0.1, 2398823);
+        LegacyFirstSimulationStrategy legacy = new LegacyFirstSimulationStrategy(0.0, 1.0, 0.1, 2398823);
+        XorShift1024StarRandom random = new XorShift1024StarRandom(12);
+        for (int position = 0; position < 500; position++) {
+            BaseInformationRecords.BaseInformation record = record(position, random);
+            // several mutations per site, as Mutate does with -k:
+            for (int k = 0; k < 3; k++) {
+                boolean makeSomatic = k > 0;
+                BaseInformationRecords.BaseInformation expected = legacy.mutate(makeSomatic, record,
+                        record.getSamples(0), record.getSamples(1), null);
+                BaseInformationRecords.BaseInformation actual = strategy.mutate(makeSomatic, record,
+                        record.getSamples(0), record.getSamples(1), null);
+                assertEquals(expected, actual);
+            }
+        }
+    }
+
+    private BaseInformationRecords.BaseInformation record(int position, XorShift1024StarRandom random) {
+        BaseInformationRecords.BaseInformation.Builder builder = BaseInformationRecords.BaseInformation.newBuilder();
+        builder.setPosition(position);
+        builder.setReferenceBase("A");
+        builder.setReferenceIndex(0);
+        builder.setMutated(false);
+        String[] bases = {"A", "T", "C", "G", "N"};
+        boolean heterozygous = random.nextBoolean();
+        for (int sampleIndex = 0; sampleIndex < 2; sampleIndex++) {
+            BaseInformationRecords.SampleInfo.Builder sample = BaseInformationRecords.SampleInfo.newBuilder();
+            for (int baseIndex = 0; baseIndex < bases.length; baseIndex++) {
+                int forward = 0;
+                int reverse = 0;
+                if (baseIndex == 0 || (heterozygous && baseIndex == 2)) {
+                    forward = random.nextInt(30);
+                    reverse = random.nextInt(30);
+                }
+                BaseInformationRecords.CountInfo.Builder count = BaseInformationRecords.CountInfo.newBuilder();
+                count.setFromSequence("A");
+                count.setToSequence(bases[baseIndex]);
+                count.setMatchesReference(baseIndex == 0);
+                count.setGenotypeCountForwardStrand(forward);
+                count.setGenotypeCountReverseStrand(reverse);
+                count.addAllQualityScoresForwardStrand(frequencies(forward, 40, random));
+                count.addAllQualityScoresReverseStrand(frequencies(reverse, 40, random));
+                count.addAllReadIndicesForwardStrand(frequencies(forward, 150, random));
+                count.addAllReadIndicesReverseStrand(frequencies(reverse, 150, random));
+                count.addAllReadMappingQualityForwardStrand(frequencies(forward, 60, random));
+                count.addAllReadMappingQualityReverseStrand(frequencies(reverse, 60, random));
+                count.addAllNumVariationsInReads(frequencies(forward + reverse, 5, random));
+                count.addAllTargetAlignedLengths(frequencies(forward + reverse, 150, random));
+                count.addAllQueryAlignedLengths(frequencies(forward + reverse, 150, random));
+                count.addAllDistancesToReadVariationsForwardStrand(frequencies(forward, 20, random));
+                count.addAllDistancesToReadVariationsReverseStrand(frequencies(reverse, 20, random));
+                count.addAllPairFlags(frequencies(forward + reverse, 255, random));
+                count.addAllQueryPositions(frequencies(forward + reverse, 150, random));
+                count.addAllInsertSizes(frequencies(forward + reverse, 500, random));
+                sample.addCounts(count);
+            }
+            sample.setFormattedCounts("");
+            builder.addSamples(sample);
+        }
+        return builder.build();
+    }
+
+    /**
+     * Spread numReads observations, in [0,maxValue), across a few distinct values.
+     */
+    private Iterable<BaseInformationRecords.NumberWithFrequency> frequencies(int numReads, int maxValue,
+                                                                             XorShift1024StarRandom random) {
+        ObjectArrayList<BaseInformationRecords.NumberWithFrequency> list = new ObjectArrayList<>();
+        while (numReads > 0) {
+            int frequency = 1 + random.nextInt(numReads);
+            list.add(BaseInformationRecords.NumberWithFrequency.newBuilder()
+                    .setNumber(random.nextInt(maxValue)).setFrequency(frequency).build());
+            numReads -= frequency;
+        }
+        return list;
+    }
+}
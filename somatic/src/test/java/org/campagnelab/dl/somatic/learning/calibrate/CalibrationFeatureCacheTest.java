@@ -0,0 +1,51 @@
+package org.campagnelab.dl.somatic.learning.calibrate;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.Before;
+import org.junit.Test;
+import org.nd4j.linalg.dataset.DataSet;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Iterator;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+
+/**
+ * Check that minibatches written to the calibration cache are read back unchanged, for every epoch.
+ */
+public class CalibrationFeatureCacheTest {
+    private static final String DIR = "test-results/calibration-cache/";
+
+    @Before
+    public void setUp() throws IOException {
+        FileUtils.deleteQuietly(new File(DIR));
+        FileUtils.forceMkdir(new File(DIR));
+    }
+
+    @Test
+    public void roundTrip() throws IOException {
+        int numFeatures = 3;
+        int miniBatchSize = 2;
+        CalibrationFeatureCache cache = new CalibrationFeatureCache(new File(DIR + "features.cache"), numFeatures,
+                miniBatchSize);
+        cache.write(new float[]{1, 0}, new float[]{0.1f, 0.2f, 0.3f, 0.4f, 0.5f, 0.6f});
+        cache.write(new float[]{0, 0}, new float[]{1, 2, 3, 4, 5, 6});
+        cache.close();
+        assertEquals(2, cache.getNumMinibatches());
+        for (int epoch = 0; epoch < 2; epoch++) {
+            Iterator<DataSet> minibatches = cache.minibatches();
+            DataSet first = minibatches.next();
+            assertArrayEquals(new int[]{2, 3}, first.getFeatures().shape());
+            assertArrayEquals(new int[]{2, 1}, first.getLabels().shape());
+            assertEquals(1f, first.getLabels().getFloat(0, 0), 0);
+            assertEquals(0f, first.getLabels().getFloat(1, 0), 0);
+            assertEquals(0.6f, first.getFeatures().getFloat(1, 2), 0);
+            DataSet second = minibatches.next();
+            assertEquals(4f, second.getFeatures().getFloat(1, 0), 0);
+            assertFalse(minibatches.hasNext());
+        }
+    }
+}
@@ -12,8 +12,8 @@ import static org.junit.Assert.*;
  * Created by fac2003 on 7/21/16.
  */
 public class SamplingIteratorTest {
-  // Disable this test because the sampling iterator does not work in DL 0.6.0. Needs a rewrite, consider the efficient
-  // feature mapper mechanism for new implementation.
+  // Disabled because the .sbi file of the sample data is not in the repository. ImportanceSamplingIteratorTest in
+  // the framework checks the sampling itself.
     public void sample() throws IOException {
         long seed = 012;
         int minibatchSize = 3;
@@ -27,7 +27,7 @@ public class SamplingIteratorTest {
         assertEquals(minibatchSize, dataset.numExamples());
         for (int i = 0; i < dataset.numExamples(); i++) {
 
-            trainIter.setSamplingProbability(true, i, 0.5f);
+            trainIter.setLoss(i, 0.5f);
         }
         trainIter.reset();
 
@@ -0,0 +1,137 @@
+package org.campagnelab.dl.somatic.storage;
+
+import it.unimi.dsi.fastutil.ints.IntArrayList;
+import org.apache.commons.io.FileUtils;
+import org.campagnelab.dl.framework.bed.BEDRecord;
+import org.campagnelab.dl.framework.bed.BEDRecords;
+import org.campagnelab.dl.varanalysis.protobuf.BaseInformationRecords;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.List;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Check that interval and region reads return the same records as a full scan.
+ */
+public class ChunkPositionIndexTest {
+    private static final String DIR = "test-results/chunk-position-index/";
+    private static final String SBI = DIR + "input.sbi";
+
+    @Before
+    public void setUp() throws Exception {
+        FileUtils.deleteQuietly(new File(DIR));
+        FileUtils.forceMkdir(new File(DIR));
+        // chr1 positions 0, 3, 6, .., 2997, then chr2 positions 0, 3, .., 1497, in chunks of 50 records:
+        RecordWriter writer = new RecordWriter(DIR + "input", 50);
+        for (int position = 0; position < 3000; position += 3) {
+            writer.writeRecord(record(0, "chr1", position));
+        }
+        for (int position = 0; position < 1500; position += 3) {
+            writer.writeRecord(record(1, "chr2", position));
+        }
+        writer.close();
+    }
+
+    @Test
+    public void indexWrittenWithRecords() throws Exception {
+        assertTrue(new File(ChunkPositionIndex.indexFilename(SBI)).exists());
+        ChunkPositionIndex index = ChunkPositionIndex.load(SBI);
+        assertNotNull(index);
+        assertEquals(30, index.numChunks());
+        assertEquals(0, index.referenceIndex("chr1"));
+        assertEquals(1, index.referenceIndex("chr2"));
+        assertEquals(-1, index.referenceIndex("chrX"));
+        // positions 300 to 449 of chr1 are all in the third chunk:
+        assertEquals(1, index.byteRanges(0, 300, 449).size());
+    }
+
+    @Test
+    public void interval() throws Exception {
+        try (RecordReader reader = new RecordReader(SBI)) {
+            assertEquals(expected(0, 299, 451), positions(reader.interval(0, 299, 451)));
+            assertEquals(expected(1, 0, 10), positions(reader.interval(1, 0, 10)));
+            assertEquals(expected(1, 1400, 5000), positions(reader.interval(1, 1400, 5000)));
+            assertEquals(0, positions(reader.interval(1, 2000, 5000)).size());
+            assertEquals(0, positions(reader.interval(0, 10, 10)).size());
+        }
+    }
+
+    @Test
+    public void intervalOfRegion() throws Exception {
+        try (RecordReader reader = new RecordReader(SBI)) {
+            // the end of a chr:start-end region is included:
+            assertEquals(expected(0, 299, 451), positions(reader.interval("chr1:299-450")));
+            assertEquals(expected(1, 0, 10), positions(reader.interval("chr2:0-9")));
+            assertEquals(0, positions(reader.interval("chrX:0-1000")).size());
+        }
+    }
+
+    @Test
+    public void regions() throws Exception {
+        BEDRecords regions = new BEDRecords();
+        regions.add(new BEDRecord("chr2", 600, 610));
+        regions.add(new BEDRecord("chr1", 30, 60));
+        regions.add(new BEDRecord("chr1", 50, 100));
+        regions.add(new BEDRecord("chr1", 2990, 3100));
+        regions.add(new BEDRecord("chrX", 0, 1000));
+        IntArrayList expected = new IntArrayList();
+        expected.addAll(expected(0, 30, 100));
+        expected.addAll(expected(0, 2990, 3100));
+        expected.addAll(expected(1, 600, 610));
+        try (RecordReader reader = new RecordReader(SBI)) {
+            assertEquals(expected, positions(reader.regions(regions)));
+        }
+    }
+
+    @Test
+    public void rebuildIndex() throws Exception {
+        ChunkPositionIndex written = ChunkPositionIndex.load(SBI);
+        new File(ChunkPositionIndex.indexFilename(SBI)).delete();
+        ChunkPositionIndex rebuilt = RecordReader.rebuildIndex(SBI);
+        assertEquals(written.numChunks(), rebuilt.numChunks());
+        assertRangesEqual(written.byteRanges(0, 1000, 2000), rebuilt.byteRanges(0, 1000, 2000));
+        assertRangesEqual(written.byteRanges(1, 0, 100), rebuilt.byteRanges(1, 0, 100));
+        assertNotNull(ChunkPositionIndex.load(SBI));
+    }
+
+    private static void assertRangesEqual(List<long[]> expected, List<long[]> actual) {
+        assertEquals(expected.size(), actual.size());
+        for (int i = 0; i < expected.size(); i++) {
+            assertArrayEquals(expected.get(i), actual.get(i));
+        }
+    }
+
+    private static IntArrayList expected(int referenceIndex, int start, int end) {
+        IntArrayList positions = new IntArrayList();
+        int last = referenceIndex == 0 ? 3000 : 1500;
+        for (int position = 0; position < Math.min(end, last); position += 3) {
+            if (position >= start) {
+                positions.add(referenceIndex * 10000 + position);
+            }
+        }
+        return positions;
+    }
+
+    private static IntArrayList positions(ChunkRangeIterator<BaseInformationRecords.BaseInformation> iterator) throws IOException {
+        IntArrayList positions = new IntArrayList();
+        try (ChunkRangeIterator<BaseInformationRecords.BaseInformation> records = iterator) {
+            while (records.hasNext()) {
+                BaseInformationRecords.BaseInformation record = records.next();
+                positions.add(record.getReferenceIndex() * 10000 + record.getPosition());
+            }
+        }
+        return positions;
+    }
+
+    private static BaseInformationRecords.BaseInformation record(int referenceIndex, String referenceId, int position) {
+        return BaseInformationRecords.BaseInformation.newBuilder()
+                .setReferenceIndex(referenceIndex).setReferenceId(referenceId).setPosition(position).build();
+    }
+}
@@ -0,0 +1,62 @@
+package org.campagnelab.dl.somatic.storage;
+
+import it.unimi.dsi.fastutil.ints.IntArrayList;
+import org.apache.commons.io.FileUtils;
+import org.campagnelab.dl.varanalysis.protobuf.BaseInformationRecords;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Check that parallel routing keeps every record, in input order.
+ */
+public class ParallelRecordRouterTest {
+    private static final String DIR = "test-results/parallel-router/";
+    private static final int NUM_RECORDS = 2000;
+
+    @Before
+    public void setUp() throws Exception {
+        FileUtils.deleteQuietly(new File(DIR));
+        FileUtils.forceMkdir(new File(DIR));
+        // small chunks, so that every partition gets some records:
+        RecordWriter writer = new RecordWriter(DIR + "input", 30);
+        for (int i = 0; i < NUM_RECORDS; i++) {
+            writer.writeRecord(BaseInformationRecords.BaseInformation.newBuilder()
+                    .setReferenceId(i % 3 == 0 ? "chr1" : "chr2").setReferenceIndex(0).setPosition(i).build());
+        }
+        writer.close();
+    }
+
+    @Test
+    public void routeInOrder() throws Exception {
+        String[] outputs = {DIR + "even", DIR + "odd"};
+        new ParallelRecordRouter(DIR + "input.sbi", outputs, 4).route(partition ->
+                record -> record.getPosition() % 5 == 4 ? -1 : record.getPosition() % 2, null);
+
+        IntArrayList expectedEven = new IntArrayList();
+        IntArrayList expectedOdd = new IntArrayList();
+        for (int i = 0; i < NUM_RECORDS; i++) {
+            if (i % 5 != 4) {
+                (i % 2 == 0 ? expectedEven : expectedOdd).add(i);
+            }
+        }
+        assertEquals(expectedEven, positions(outputs[0]));
+        assertEquals(expectedOdd, positions(outputs[1]));
+        assertEquals(expectedEven.size(), new RecordReader(outputs[0] + ".sbi").getTotalRecords());
+        assertEquals(expectedOdd.size(), new RecordReader(outputs[1] + ".sbi").getTotalRecords());
+    }
+
+    private IntArrayList positions(String basename) throws IOException {
+        IntArrayList positions = new IntArrayList();
+        try (RecordReader reader = new RecordReader(basename + ".sbi")) {
+            for (BaseInformationRecords.BaseInformation record : reader) {
+                positions.add(record.getPosition());
+            }
+        }
+        return positions;
+    }
+}
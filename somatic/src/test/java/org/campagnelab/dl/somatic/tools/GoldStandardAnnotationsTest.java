@@ -0,0 +1,63 @@
+package org.campagnelab.dl.somatic.tools;
+
+import org.campagnelab.dl.varanalysis.protobuf.BaseInformationRecords;
+import org.junit.Test;
+
+import java.io.StringReader;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class GoldStandardAnnotationsTest {
+
+    private static final String TSV = "#chromosome\tposition\n" +
+            "chr2\t11\tT\t0.5\n" +
+            "chr1\t101\tA\n" +
+            "chr1\t6\n" +
+            "chr1\t101\tG\t0.25\n";
+
+    @Test
+    public void annotateSortedRecords() {
+        GoldStandardAnnotations.Cursor cursor = GoldStandardAnnotations.load(new StringReader(TSV)).cursor();
+        BaseInformationRecords.BaseInformation unannotated = record(0, "chr1", 4);
+        assertSame(unannotated, cursor.annotate(unannotated));
+
+        BaseInformationRecords.BaseInformation annotated = cursor.annotate(record(0, "chr1", 5));
+        assertTrue(annotated.getMutated());
+        assertFalse(annotated.hasMutatedBase());
+
+        // the last annotation of a position is kept:
+        annotated = cursor.annotate(record(0, "chr1", 100));
+        assertTrue(annotated.getMutated());
+        assertEquals("G", annotated.getMutatedBase());
+        assertEquals(0.25f, annotated.getFrequencyOfMutation(), 0f);
+        // several records at the same position:
+        assertTrue(cursor.annotate(record(0, "chr1", 100)).getMutated());
+        assertFalse(cursor.annotate(record(0, "chr1", 101)).getMutated());
+
+        annotated = cursor.annotate(record(1, "chr2", 10));
+        assertEquals("T", annotated.getMutatedBase());
+        assertFalse(cursor.annotate(record(2, "chr3", 10)).getMutated());
+    }
+
+    @Test
+    public void annotateUnsortedRecords() {
+        StringBuilder tsv = new StringBuilder();
+        for (int position = 1; position <= 1000; position += 10) {
+            tsv.append("chr1\t").append(position).append('\n');
+        }
+        GoldStandardAnnotations.Cursor cursor = GoldStandardAnnotations.load(new StringReader(tsv.toString())).cursor();
+        int[] positions = {990, 0, 500, 501, 20, 20, 730, 10, 999};
+        for (int position : positions) {
+            assertEquals("position " + position, position % 10 == 0,
+                    cursor.annotate(record(0, "chr1", position)).getMutated());
+        }
+    }
+
+    private static BaseInformationRecords.BaseInformation record(int referenceIndex, String referenceId, int position) {
+        return BaseInformationRecords.BaseInformation.newBuilder()
+                .setReferenceIndex(referenceIndex).setReferenceId(referenceId).setPosition(position).build();
+    }
+}
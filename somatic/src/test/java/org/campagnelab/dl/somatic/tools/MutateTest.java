@@ -0,0 +1,88 @@
+package org.campagnelab.dl.somatic.tools;
+
+import it.unimi.dsi.fastutil.objects.ObjectArrayList;
+import org.apache.commons.io.FileUtils;
+import org.campagnelab.dl.somatic.intermediaries.FirstSimulationStrategy;
+import org.campagnelab.dl.somatic.storage.RecordReader;
+import org.campagnelab.dl.somatic.storage.RecordWriter;
+import org.campagnelab.dl.varanalysis.protobuf.BaseInformationRecords;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Check that parallel simulation is reproducible for a given seed and number of threads.
+ */
+public class MutateTest {
+    private static final String INPUT = "test-results/mutate/input.sbi";
+    private static final int NUM_RECORDS = 1000;
+
+    @Before
+    public void setUp() throws Exception {
+        FileUtils.deleteQuietly(new File("test-results/mutate"));
+        FileUtils.forceMkdir(new File("test-results/mutate"));
+        // small chunks, so that every partition gets some records:
+        RecordWriter writer = new RecordWriter(INPUT, 50);
+        for (int i = 0; i < NUM_RECORDS; i++) {
+            writer.writeRecord(record(i));
+        }
+        writer.close();
+    }
+
+    @Test
+    public void parallelIsReproducible() throws Exception {
+        List<BaseInformationRecords.BaseInformation> first = mutate("test-results/mutate/first.sbi", 3);
+        List<BaseInformationRecords.BaseInformation> second = mutate("test-results/mutate/second.sbi", 3);
+        // FirstSimulationStrategy always mutates, so we get the original and one mutated copy of each record:
+        assertEquals(2 * NUM_RECORDS, first.size());
+        assertEquals(first, second);
+        // records are written in input order:
+        for (int i = 0; i < NUM_RECORDS; i++) {
+            assertEquals(i, first.get(2 * i).getPosition());
+            assertEquals(i, first.get(2 * i + 1).getPosition());
+        }
+    }
+
+    private List<BaseInformationRecords.BaseInformation> mutate(String output, int numThreads) throws IOException {
+        Mutate tool = new Mutate(new String[]{"-i", INPUT, "-o", output,
+                "--strategy", FirstSimulationStrategy.class.getCanonicalName(),
+                "--threads", Integer.toString(numThreads)});
+        tool.execute();
+        List<BaseInformationRecords.BaseInformation> records = new ObjectArrayList<>();
+        try (RecordReader reader = new RecordReader(output)) {
+            for (BaseInformationRecords.BaseInformation record : reader) {
+                records.add(record);
+            }
+        }
+        return records;
+    }
+
+    private BaseInformationRecords.BaseInformation record(int position) {
+        BaseInformationRecords.BaseInformation.Builder builder = BaseInformationRecords.BaseInformation.newBuilder();
+        builder.setPosition(position);
+        builder.setReferenceBase("A");
+        builder.setReferenceIndex(0);
+        builder.setMutated(false);
+        for (int sampleIndex = 0; sampleIndex < 2; sampleIndex++) {
+            BaseInformationRecords.SampleInfo.Builder sample = BaseInformationRecords.SampleInfo.newBuilder();
+            String[] bases = {"A", "T", "C", "G", "N"};
+            for (int baseIndex = 0; baseIndex < bases.length; baseIndex++) {
+                BaseInformationRecords.CountInfo.Builder count = BaseInformationRecords.CountInfo.newBuilder();
+                count.setFromSequence("A");
+                count.setToSequence(bases[baseIndex]);
+                count.setMatchesReference(baseIndex == 0);
+                count.setGenotypeCountForwardStrand(baseIndex == 0 ? 10 + position % 7 : 0);
+                count.setGenotypeCountReverseStrand(baseIndex == 0 ? 12 : 0);
+                sample.addCounts(count);
+            }
+            sample.setFormattedCounts("");
+            builder.addSamples(sample);
+        }
+        return builder.build();
+    }
+}
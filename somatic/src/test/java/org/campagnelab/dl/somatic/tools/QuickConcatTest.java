@@ -0,0 +1,122 @@
+package org.campagnelab.dl.somatic.tools;
+
+import it.unimi.dsi.fastutil.ints.IntArrayList;
+import org.apache.commons.io.FileUtils;
+import org.campagnelab.dl.somatic.storage.RecordReader;
+import org.campagnelab.dl.somatic.storage.RecordWriter;
+import org.campagnelab.dl.varanalysis.protobuf.BaseInformationRecords;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Properties;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class QuickConcatTest {
+    private static final String DIR = "test-results/quick-concat/";
+
+    @Before
+    public void setUp() throws Exception {
+        FileUtils.deleteQuietly(new File(DIR));
+        FileUtils.forceMkdir(new File(DIR));
+    }
+
+    @Test
+    public void concatenateSkipsEmptyFiles() throws Exception {
+        write(DIR + "part-0", 0, 120);
+        write(DIR + "part-1", 120, 120);
+        write(DIR + "part-2", 120, 310);
+        write(DIR + "part-3", 310, 310);
+        assertFalse(QuickConcat.isEmpty(DIR + "part-0.sbi"));
+        assertTrue(QuickConcat.isEmpty(DIR + "part-1.sbi"));
+        String[] inputs = {DIR + "part-0.sbi", DIR + "part-1.sbi", DIR + "part-2.sbi", DIR + "part-3.sbi"};
+        QuickConcat.concatenate(inputs, DIR + "all", 1000, 3, null);
+
+        IntArrayList positions = new IntArrayList();
+        try (RecordReader reader = new RecordReader(DIR + "all.sbi")) {
+            assertEquals(310, reader.getTotalRecords());
+            for (BaseInformationRecords.BaseInformation record : reader) {
+                positions.add(record.getPosition());
+            }
+        }
+        assertEquals(310, positions.size());
+        for (int i = 0; i < positions.size(); i++) {
+            assertEquals(i, positions.getInt(i));
+        }
+    }
+
+    @Test
+    public void mergeProperties() {
+        Properties first = new Properties();
+        first.setProperty("numRecords", "10");
+        first.setProperty("stats.baseQuality.forward.min", "2.0");
+        first.setProperty("stats.baseQuality.forward.max", "40.0");
+        first.setProperty("goby.version", "3.3");
+        Properties second = new Properties();
+        second.setProperty("numRecords", "5");
+        second.setProperty("stats.baseQuality.forward.min", "0.0");
+        second.setProperty("stats.baseQuality.forward.max", "30.0");
+        second.setProperty("goby.version", "3.3");
+        Properties merged = QuickConcat.mergeProperties(Arrays.asList(first, second));
+        assertEquals("15", merged.getProperty("numRecords"));
+        assertEquals("0.0", merged.getProperty("stats.baseQuality.forward.min"));
+        assertEquals("40.0", merged.getProperty("stats.baseQuality.forward.max"));
+        assertEquals("3.3", merged.getProperty("goby.version"));
+    }
+
+    @Test
+    public void mergeStatisticsProperties() {
+        Properties first = new Properties();
+        first.setProperty("numRecords", "10");
+        first.setProperty("sbiStats.numSites", "10");
+        first.setProperty("sbiStats.coverage.sum", "100");
+        first.setProperty("sbiStats.coverage.median", "9");
+        first.setProperty("sbiStats.coverage.p99", "30");
+        first.setProperty("sbiStats.sampleIndex", "0");
+        Properties second = new Properties();
+        second.setProperty("numRecords", "5");
+        second.setProperty("sbiStats.numSites", "5");
+        second.setProperty("sbiStats.coverage.sum", "75");
+        second.setProperty("sbiStats.coverage.median", "15");
+        second.setProperty("sbiStats.coverage.p99", "30");
+        second.setProperty("sbiStats.sampleIndex", "0");
+        second.setProperty("sbiStats.numVariants", "2");
+        Properties merged = QuickConcat.mergeProperties(Arrays.asList(first, second));
+        assertEquals("15", merged.getProperty("sbiStats.numSites"));
+        assertEquals("175", merged.getProperty("sbiStats.coverage.sum"));
+        // quantiles that differ cannot be merged, quantiles and settings that agree are kept:
+        assertNull(merged.getProperty("sbiStats.coverage.median"));
+        assertEquals("30", merged.getProperty("sbiStats.coverage.p99"));
+        assertEquals("0", merged.getProperty("sbiStats.sampleIndex"));
+        // counts of some files only are dropped:
+        assertNull(merged.getProperty("sbiStats.numVariants"));
+    }
+
+    @Test
+    public void keepNonAdditiveNumProperties() {
+        Properties first = new Properties();
+        first.setProperty("numRecords", "10");
+        first.setProperty("numFeatures", "42");
+        Properties second = new Properties();
+        second.setProperty("numRecords", "5");
+        second.setProperty("numFeatures", "42");
+        Properties merged = QuickConcat.mergeProperties(Arrays.asList(first, second));
+        assertEquals("15", merged.getProperty("numRecords"));
+        assertEquals("42", merged.getProperty("numFeatures"));
+    }
+
+    private void write(String basename, int start, int end) throws IOException {
+        RecordWriter writer = new RecordWriter(basename, 50);
+        for (int position = start; position < end; position++) {
+            writer.writeRecord(BaseInformationRecords.BaseInformation.newBuilder()
+                    .setReferenceId("chr1").setReferenceIndex(0).setPosition(position).build());
+        }
+        writer.close();
+    }
+}
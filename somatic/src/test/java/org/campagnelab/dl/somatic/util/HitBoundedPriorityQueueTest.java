@@ -0,0 +1,98 @@
+package org.campagnelab.dl.somatic.util;
+
+import it.unimi.dsi.util.XoRoShiRo128PlusRandom;
+import org.junit.Test;
+import org.nd4j.linalg.api.ndarray.INDArray;
+import org.nd4j.linalg.factory.Nd4j;
+
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Check that the queue keeps the wrongest errors, with running statistics that match the records kept.
+ */
+public class HitBoundedPriorityQueueTest {
+    private static final INDArray LABEL = Nd4j.create(new float[]{1, 0});
+
+    private static INDArray features(int i) {
+        return Nd4j.create(new float[]{i, 1});
+    }
+
+    @Test
+    public void keepsWrongest() {
+        HitBoundedPriorityQueue queue = new HitBoundedPriorityQueue(10);
+        Random random = new Random(1);
+        float[] wrongness = new float[200];
+        for (int i = 0; i < wrongness.length; i++) {
+            wrongness[i] = random.nextFloat();
+            queue.enqueue(wrongness[i], features(i), LABEL);
+        }
+        float[] sorted = wrongness.clone();
+        Arrays.sort(sorted);
+        assertEquals(10, queue.size());
+        assertEquals(sorted[190], queue.getMinWrongness(), 0);
+        assertEquals(sorted[199], queue.getMaxWrongness(), 0);
+        double sum = 0;
+        for (int i = 190; i < 200; i++) {
+            sum += sorted[i];
+        }
+        assertEquals(sum / 10, queue.getMeanWrongness(), 1e-6);
+        // not wronger than the least wrong error kept:
+        assertFalse(queue.enqueue(sorted[190], features(1000), LABEL));
+        for (int i = 190; i < 200; i++) {
+            assertEquals(sorted[i], queue.dequeue().wrongness, 0);
+            if (!queue.isEmpty()) {
+                assertEquals(sorted[199], queue.getMaxWrongness(), 0);
+            }
+        }
+        assertTrue(queue.isEmpty());
+    }
+
+    @Test
+    public void weightedSample() {
+        HitBoundedPriorityQueue queue = new HitBoundedPriorityQueue(10, new XoRoShiRo128PlusRandom(1));
+        queue.enqueue(0.1f, features(0), LABEL);
+        queue.enqueue(0.9f, features(1), LABEL);
+        queue.enqueue(0f, features(2), LABEL);
+        int wrongest = 0;
+        for (ErrorRecord record : queue.getWeightedSample(10000)) {
+            assertTrue(record.wrongness > 0);
+            if (record.wrongness == 0.9f) {
+                wrongest++;
+            }
+        }
+        assertEquals(9000, wrongest, 300);
+        assertEquals(100, queue.getRandomSample(100).size());
+    }
+
+    @Test
+    public void concurrentOffers() throws Exception {
+        HitBoundedPriorityQueue queue = new HitBoundedPriorityQueue(50);
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        Future<?>[] futures = new Future[4];
+        for (int thread = 0; thread < 4; thread++) {
+            final int offset = thread * 1000;
+            futures[thread] = executor.submit(() -> {
+                for (int i = 0; i < 1000; i++) {
+                    queue.offer((offset + i) / 4000f, features(offset + i), LABEL);
+                }
+            });
+        }
+        for (Future<?> future : futures) {
+            future.get();
+        }
+        executor.shutdown();
+        executor.awaitTermination(1, TimeUnit.MINUTES);
+        assertEquals(50, queue.size());
+        assertEquals(3950 / 4000f, queue.getMinWrongness(), 0);
+        assertEquals(3999 / 4000f, queue.getMaxWrongness(), 0);
+    }
+}
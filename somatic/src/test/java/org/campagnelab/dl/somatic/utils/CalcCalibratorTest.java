@@ -0,0 +1,81 @@
+package org.campagnelab.dl.somatic.utils;
+
+import it.unimi.dsi.fastutil.floats.FloatAVLTreeSet;
+import it.unimi.dsi.fastutil.io.BinIO;
+import org.apache.commons.io.FileUtils;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Check that calibrators give the same probabilities as with the tree sets they used before, and that sets saved by
+ * earlier versions can be loaded.
+ */
+public class CalcCalibratorTest {
+    private static final String DIR = "test-results/calibrator/";
+
+    @Before
+    public void setUp() throws Exception {
+        FileUtils.deleteQuietly(new File(DIR));
+        FileUtils.forceMkdir(new File(DIR));
+    }
+
+    @Test
+    public void sameAsTreeSets() throws Exception {
+        FloatAVLTreeSet mutSet = new FloatAVLTreeSet();
+        FloatAVLTreeSet unMutSet = new FloatAVLTreeSet();
+        BayesCalibrator bayes = new BayesCalibrator(DIR, "test", false);
+        FDREstimator fdr = new FDREstimator(DIR, "test", false);
+        Random random = new Random(1);
+        for (int i = 0; i < 5000; i++) {
+            // rounded, so that some probabilities are observed more than once:
+            float prob = Math.round(random.nextFloat() * 1000) / 1000f;
+            boolean isMut = random.nextInt(10) == 0;
+            (isMut ? mutSet : unMutSet).add(prob);
+            bayes.observe(prob, isMut);
+            fdr.observe(prob, isMut);
+        }
+        for (float prob = 0; prob <= 1; prob += 0.0125f) {
+            double mutGreater = mutSet.subSet(prob, 1.1f).size() + 1;
+            double unMutGreater = unMutSet.subSet(prob, 1.1f).size() + 1;
+            float expectedBayes = (float) ((mutGreater / mutSet.size()) * bayes.priorMutRate / (unMutGreater / unMutSet.size()));
+            float expectedFdr = (float) (((double) unMutSet.subSet(prob, 1.1f).size()) / unMutSet.size());
+            assertEquals(expectedBayes, bayes.calibrateProb(prob), 0);
+            assertEquals(expectedFdr, fdr.calibrateProb(prob), 0);
+        }
+        // observations after calibration are added to the sets:
+        fdr.observe(2f, false);
+        unMutSet.add(2f);
+        assertEquals(unMutSet.size(), fdr.unMutSet().size());
+        assertEquals(1, fdr.unMutSet().count(1.5f, 3f));
+    }
+
+    @Test
+    public void saveAndLoad() throws Exception {
+        FDREstimator fdr = new FDREstimator(DIR, "new", false);
+        for (int i = 0; i < 100; i++) {
+            fdr.observe(i / 100f, i % 3 == 0);
+        }
+        fdr.save();
+        FDREstimator loaded = new FDREstimator(DIR, "new", true);
+        assertEquals(fdr.plantedMutSet().size(), loaded.plantedMutSet().size());
+        assertEquals(fdr.unMutSet().size(), loaded.unMutSet().size());
+        assertEquals(fdr.calibrateProb(0.5f), loaded.calibrateProb(0.5f), 0);
+    }
+
+    @Test
+    public void loadLegacy() throws Exception {
+        FloatAVLTreeSet mutSet = new FloatAVLTreeSet(new float[]{0.9f, 0.95f});
+        FloatAVLTreeSet unMutSet = new FloatAVLTreeSet(new float[]{0.1f, 0.2f, 0.3f, 0.92f});
+        BinIO.storeObject(mutSet, new File(DIR + "legacymutSet"));
+        BinIO.storeObject(unMutSet, new File(DIR + "legacyunMutSet"));
+        FDREstimator loaded = new FDREstimator(DIR, "legacy", true);
+        assertEquals(2, loaded.plantedMutSet().size());
+        assertEquals(0.25f, loaded.calibrateProb(0.5f), 0);
+        assertEquals(3, loaded.unMutSet().rank(0.5f));
+    }
+}
@@ -0,0 +1,66 @@
+package org.campagnelab.dl.somatic.utils;
+
+import it.unimi.dsi.fastutil.ints.Int2IntOpenHashMap;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Check that a merge-join with the cursor finds the same positions as a hash map lookup per record, as the true
+ * genotype and gold standard annotations did before.
+ */
+public class SortedIntCursorTest {
+
+    @Test
+    public void sameAsMapLookup() {
+        // positions 0, 0, 3, 5, 5, 5, 9, ..:
+        int[] positions = new int[500];
+        Random random = new Random(1);
+        for (int i = 1; i < positions.length; i++) {
+            positions[i] = positions[i - 1] + (random.nextInt(3) == 0 ? 0 : random.nextInt(5) + 1);
+        }
+        // the map keeps the first occurrence of each position:
+        Int2IntOpenHashMap map = new Int2IntOpenHashMap();
+        map.defaultReturnValue(-1);
+        for (int i = positions.length - 1; i >= 0; i--) {
+            map.put(positions[i], i);
+        }
+        // sorted records, with repeated positions and gaps longer than the scan limit:
+        int[] records = new int[1000];
+        for (int i = 1; i < records.length; i++) {
+            records[i] = records[i - 1] + (random.nextInt(4) == 0 ? 0 : random.nextInt(10) == 0 ? 200 : 1);
+        }
+        SortedIntCursor cursor = new SortedIntCursor();
+        cursor.reset(positions);
+        for (int record : records) {
+            assertEquals("position " + record, map.get(record), cursor.find(record));
+        }
+        // records that are not sorted:
+        int[] shuffled = Arrays.copyOf(records, records.length);
+        for (int i = shuffled.length - 1; i > 0; i--) {
+            int j = random.nextInt(i + 1);
+            int tmp = shuffled[i];
+            shuffled[i] = shuffled[j];
+            shuffled[j] = tmp;
+        }
+        cursor.reset(positions);
+        for (int record : shuffled) {
+            assertEquals("position " + record, map.get(record), cursor.find(record));
+        }
+    }
+
+    @Test
+    public void empty() {
+        SortedIntCursor cursor = new SortedIntCursor();
+        assertEquals(-1, cursor.find(0));
+        cursor.reset(new int[]{2, 2, 4});
+        assertEquals(-1, cursor.find(1));
+        assertEquals(0, cursor.find(2));
+        assertEquals(0, cursor.find(2));
+        assertEquals(2, cursor.find(4));
+        assertEquals(-1, cursor.find(5));
+    }
+}